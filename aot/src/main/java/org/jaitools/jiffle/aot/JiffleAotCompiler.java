@@ -0,0 +1,420 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.aot;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleException;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.PrecompiledRuntimes;
+import org.jaitools.jiffle.RuntimeClassCache;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * Compiles Jiffle scripts ahead of time. Each script is run through the
+ * usual {@link Jiffle} compile pipeline and the bytecode of its runtime 
+ * classes is written to an output directory, together with the registry 
+ * file read by {@link PrecompiledRuntimes}. When the output directory is 
+ * packaged with an application (e.g. it is the {@code target/classes} 
+ * directory of a Maven module), the scripts can be run without parsing or
+ * compiling them:
+ * <pre><code>
+ * JiffleDirectRuntime runtime = PrecompiledRuntimes.getDirectRuntime("mandelbrot");
+ * </code></pre>
+ * Each script is registered under its file name without the {@code .jfl}
+ * extension. Scripts without an {@code images} block are compiled with the 
+ * image parameters set with {@link #setImageParams(Map)}.
+ * <p>
+ * The compiler can be run from the command line or a build (e.g. with the
+ * Maven antrun or exec plugins) with:
+ * <pre>
+ * java org.jaitools.jiffle.aot.JiffleAotCompiler [options] outputDir script-or-dir ...
+ * 
+ * options:
+ *   -package name       package for the runtime classes
+ *   -model direct|indirect|both
+ *   -images var=ROLE,...  image parameters, e.g. result=DEST,src=SOURCE
+ * </pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleAotCompiler {
+    
+    /** Default package for runtime classes. */
+    public static final String DEFAULT_PACKAGE = "org.jaitools.jiffle.precompiled";
+    
+    /** File extension of Jiffle scripts. */
+    public static final String SCRIPT_EXTENSION = ".jfl";
+    
+    private final File outputDir;
+    private String packageName;
+    private final Set<Jiffle.RuntimeModel> models;
+    private final Map<String, Jiffle.ImageRole> imageParams;
+    
+    /** Registry entries written by this compiler, keyed by property name. */
+    private final SortedMap<String, String> entries;
+
+    /**
+     * Creates a new compiler which writes classes and the registry file
+     * to the given directory. By default, classes are created for the 
+     * direct runtime model in the package {@link #DEFAULT_PACKAGE}.
+     * 
+     * @param outputDir output directory (created if it does not exist)
+     */
+    public JiffleAotCompiler(File outputDir) {
+        if (outputDir == null) {
+            throw new IllegalArgumentException("outputDir must not be null");
+        }
+        
+        this.outputDir = outputDir;
+        this.packageName = DEFAULT_PACKAGE;
+        this.models = CollectionFactory.orderedSet();
+        this.models.add(Jiffle.RuntimeModel.DIRECT);
+        this.imageParams = CollectionFactory.orderedMap();
+        this.entries = CollectionFactory.sortedMap();
+    }
+    
+    /**
+     * Sets the package for runtime classes.
+     * 
+     * @param packageName package name
+     */
+    public void setPackageName(String packageName) {
+        if (packageName == null || packageName.trim().length() == 0) {
+            throw new IllegalArgumentException("packageName must not be null or empty");
+        }
+        this.packageName = packageName.trim();
+    }
+    
+    /**
+     * Sets the runtime models for which classes are created.
+     * 
+     * @param models one or more runtime models
+     */
+    public void setRuntimeModels(Jiffle.RuntimeModel... models) {
+        if (models == null || models.length == 0) {
+            throw new IllegalArgumentException("At least one runtime model is required");
+        }
+        this.models.clear();
+        this.models.addAll(Arrays.asList(models));
+    }
+    
+    /**
+     * Sets the image parameters used for all scripts compiled subsequently.
+     * They are ignored by scripts that have an {@code images} block.
+     * 
+     * @param params image parameters
+     */
+    public void setImageParams(Map<String, Jiffle.ImageRole> params) {
+        imageParams.clear();
+        if (params != null) {
+            imageParams.putAll(params);
+        }
+    }
+    
+    /**
+     * Compiles a script file, or all script files in a directory.
+     * 
+     * @param fileOrDir a script file or a directory containing script files
+     * 
+     * @return names of the compiled scripts
+     * 
+     * @throws JiffleException on errors reading or compiling scripts or
+     *         writing classes
+     */
+    public List<String> compile(File fileOrDir) throws JiffleException {
+        List<String> names = CollectionFactory.list();
+        
+        if (fileOrDir.isDirectory()) {
+            File[] files = fileOrDir.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(SCRIPT_EXTENSION)) {
+                    names.addAll(compile(file));
+                }
+            }
+            
+        } else {
+            String fileName = fileOrDir.getName();
+            String name = fileName.endsWith(SCRIPT_EXTENSION) ? 
+                    fileName.substring(0, fileName.length() - SCRIPT_EXTENSION.length()) :
+                    fileName;
+            
+            compile(name, readScript(fileOrDir));
+            names.add(name);
+        }
+        
+        return names;
+    }
+    
+    /**
+     * Compiles a script and writes its runtime classes.
+     * 
+     * @param name name under which to register the script; may contain 
+     *        letters, digits, '-', '_' and '.'
+     * @param script the script
+     * 
+     * @throws JiffleException on errors compiling the script or writing classes
+     */
+    public void compile(String name, String script) throws JiffleException {
+        if (name == null || !name.matches("[A-Za-z0-9_.\\-]+")) {
+            throw new IllegalArgumentException("Invalid script name: " + name);
+        }
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        entries.put(name + PrecompiledRuntimes.IMAGES_SUFFIX, 
+                PrecompiledRuntimes.formatImageParams(jiffle.getImageParams()));
+        
+        for (Jiffle.RuntimeModel model : models) {
+            String className = packageName + "." + getClassName(name, model);
+            Map<String, byte[]> classes = jiffle.getRuntimeClassBytes(model, className);
+            for (String cname : classes.keySet()) {
+                writeClass(cname, classes.get(cname));
+            }
+            
+            RuntimeClassCache.Key key = new RuntimeClassCache.Key(
+                    script, imageParams, model, getBaseClass(model));
+            
+            String prefix = name + "." + model.name().toLowerCase();
+            entries.put(prefix + PrecompiledRuntimes.CLASS_SUFFIX, className);
+            entries.put(prefix + PrecompiledRuntimes.KEY_SUFFIX, key.getDigest());
+        }
+    }
+    
+    /**
+     * Writes the registry file for the scripts compiled so far. Entries
+     * already present in the output directory's registry file for other 
+     * scripts are retained.
+     * 
+     * @return the registry file
+     * 
+     * @throws JiffleException on error writing the file
+     */
+    public File writeRegistry() throws JiffleException {
+        File file = new File(outputDir, PrecompiledRuntimes.REGISTRY_FILE);
+        
+        SortedMap<String, String> all = CollectionFactory.sortedMap();
+        try {
+            if (file.isFile()) {
+                Properties existing = new Properties();
+                InputStream in = new FileInputStream(file);
+                try {
+                    existing.load(in);
+                } finally {
+                    in.close();
+                }
+                for (String propName : existing.stringPropertyNames()) {
+                    all.put(propName, existing.getProperty(propName));
+                }
+            }
+            all.putAll(entries);
+            
+            file.getParentFile().mkdirs();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+            try {
+                writer.write("# Precompiled Jiffle runtime classes written by ");
+                writer.write(getClass().getName());
+                writer.write("\n");
+                for (String propName : all.keySet()) {
+                    writer.write(propName + " = " + all.get(propName) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            
+        } catch (IOException ex) {
+            throw new JiffleException("Unable to write registry file " + file, ex);
+        }
+        
+        return file;
+    }
+    
+    /**
+     * Gets the simple runtime class name for a script name and runtime 
+     * model. For example, script {@code life-toroid} gives 
+     * {@code LifeToroidDirectRuntime} for the direct model.
+     * 
+     * @param name script name
+     * @param model runtime model
+     * 
+     * @return simple class name
+     */
+    public static String getClassName(String name, Jiffle.RuntimeModel model) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : name.split("[^A-Za-z0-9]+")) {
+            if (part.length() > 0) {
+                sb.append(Character.toUpperCase(part.charAt(0))).append(part.substring(1));
+            }
+        }
+        if (sb.length() == 0 || !Character.isJavaIdentifierStart(sb.charAt(0))) {
+            sb.insert(0, "Script");
+        }
+        
+        sb.append(model == Jiffle.RuntimeModel.DIRECT ? "DirectRuntime" : "IndirectRuntime");
+        return sb.toString();
+    }
+
+    /**
+     * Runs the compiler from the command line.
+     * 
+     * @param args options, output directory and scripts (see class docs)
+     * 
+     * @throws Exception on errors
+     */
+    public static void main(String[] args) throws Exception {
+        String pkg = null;
+        Jiffle.RuntimeModel[] runtimeModels = null;
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.orderedMap();
+        
+        int k = 0;
+        while (k < args.length && args[k].startsWith("-")) {
+            String opt = args[k++];
+            if (k >= args.length) {
+                usage("Missing value for " + opt);
+            }
+            String value = args[k++];
+            
+            if ("-package".equals(opt)) {
+                pkg = value;
+                
+            } else if ("-model".equals(opt)) {
+                if ("both".equalsIgnoreCase(value)) {
+                    runtimeModels = Jiffle.RuntimeModel.values();
+                } else {
+                    runtimeModels = new Jiffle.RuntimeModel[] {
+                        Jiffle.RuntimeModel.valueOf(value.toUpperCase())
+                    };
+                }
+                
+            } else if ("-images".equals(opt)) {
+                for (String param : value.split(",")) {
+                    String[] parts = param.split("=");
+                    if (parts.length != 2) {
+                        usage("Invalid image parameter: " + param);
+                    }
+                    params.put(parts[0].trim(), 
+                            Jiffle.ImageRole.valueOf(parts[1].trim().toUpperCase()));
+                }
+                
+            } else {
+                usage("Unknown option: " + opt);
+            }
+        }
+        
+        if (args.length - k < 2) {
+            usage("An output directory and at least one script are required");
+        }
+        
+        JiffleAotCompiler compiler = new JiffleAotCompiler(new File(args[k++]));
+        if (pkg != null) {
+            compiler.setPackageName(pkg);
+        }
+        if (runtimeModels != null) {
+            compiler.setRuntimeModels(runtimeModels);
+        }
+        compiler.setImageParams(params);
+        
+        for (; k < args.length; k++) {
+            for (String name : compiler.compile(new File(args[k]))) {
+                System.out.println("Compiled " + name);
+            }
+        }
+        
+        System.out.println("Wrote " + compiler.writeRegistry());
+    }
+    
+    private static void usage(String msg) {
+        System.err.println(msg);
+        System.err.println("Usage: JiffleAotCompiler [-package name] [-model direct|indirect|both] "
+                + "[-images var=ROLE,...] outputDir script-or-dir ...");
+        System.exit(1);
+    }
+    
+    private void writeClass(String className, byte[] bytes) throws JiffleException {
+        File file = new File(outputDir, className.replace('.', File.separatorChar) + ".class");
+        file.getParentFile().mkdirs();
+        
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            throw new JiffleException("Unable to write class file " + file, ex);
+        }
+    }
+    
+    private static String readScript(File file) throws JiffleException {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+            
+        } catch (IOException ex) {
+            throw new JiffleException("Could not read the script file " + file, ex);
+            
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+    
+    private static Class<? extends JiffleRuntime> getBaseClass(
+            Jiffle.RuntimeModel model) {
+        return model == Jiffle.RuntimeModel.DIRECT ? 
+                JiffleProperties.DEFAULT_DIRECT_BASE_CLASS : 
+                JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
+    }
+}
@@ -0,0 +1,307 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.aot;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRenderedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.jai.JAI;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleBuilder;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.PrecompiledRuntimes;
+import org.jaitools.jiffle.RuntimeClassCache;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ahead-of-time compilation of scripts and for creating
+ * runtime objects from the precompiled classes.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleAotCompilerTest {
+    
+    private static final int WIDTH = 10;
+    private static final double TOL = 1.0e-8;
+    
+    private static final String RAMP_SCRIPT = "result = x() + 2 * y();";
+    
+    private static final String LIST_SCRIPT = 
+              "images { out = write; } \n"
+            + "L = [x(), y(), 1]; \n"
+            + "out = sum(L);";
+    
+    private File scriptDir;
+    private File outputDir;
+    private ClassLoader savedLoader;
+    
+    @Before
+    public void setup() throws Exception {
+        scriptDir = createTempDir("scripts");
+        outputDir = createTempDir("classes");
+        writeScript("ramp", RAMP_SCRIPT);
+        writeScript("list-sum", LIST_SCRIPT);
+        
+        savedLoader = Thread.currentThread().getContextClassLoader();
+        RuntimeClassCache.clear();
+    }
+    
+    @After
+    public void cleanup() {
+        Thread.currentThread().setContextClassLoader(savedLoader);
+        PrecompiledRuntimes.reload();
+        RuntimeClassCache.clear();
+        delete(scriptDir);
+        delete(outputDir);
+    }
+    
+    @Test
+    public void compileDirectory() throws Exception {
+        System.out.println("   compile script directory");
+        JiffleAotCompiler compiler = createCompiler();
+        
+        List<String> names = compiler.compile(scriptDir);
+        assertEquals(2, names.size());
+        assertTrue(names.contains("ramp"));
+        assertTrue(names.contains("list-sum"));
+        
+        File registry = compiler.writeRegistry();
+        assertTrue(registry.isFile());
+        
+        File pkgDir = new File(outputDir, "org/jaitools/jiffle/precompiled");
+        assertTrue(new File(pkgDir, "RampDirectRuntime.class").isFile());
+        assertTrue(new File(pkgDir, "RampIndirectRuntime.class").isFile());
+        assertTrue(new File(pkgDir, "ListSumDirectRuntime.class").isFile());
+    }
+    
+    @Test
+    public void runtimeByName() throws Exception {
+        System.out.println("   runtime objects by script name");
+        usePrecompiledClasses();
+        
+        assertTrue(PrecompiledRuntimes.contains("ramp"));
+        assertEquals(Jiffle.ImageRole.DEST, 
+                PrecompiledRuntimes.getImageParams("list-sum").get("out"));
+        
+        JiffleDirectRuntime direct = PrecompiledRuntimes.getDirectRuntime("ramp");
+        assertEquals("org.jaitools.jiffle.precompiled.RampDirectRuntime", 
+                direct.getClass().getName());
+        
+        BufferedImage img = createImage();
+        direct.setDestinationImage("result", img);
+        direct.evaluateAll(null);
+        assertImage(img, 0);
+        
+        JiffleIndirectRuntime indirect = PrecompiledRuntimes.getIndirectRuntime("ramp");
+        assertEquals(3 + 2 * 4, indirect.evaluate(3, 4), TOL);
+        
+        JiffleDirectRuntime listRuntime = PrecompiledRuntimes.getDirectRuntime("list-sum");
+        img = createImage();
+        listRuntime.setDestinationImage("out", img);
+        listRuntime.evaluateAll(null);
+        
+        RandomIter iter = RandomIterFactory.create(img, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + y + 1, iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void builderWithPrecompiledScript() throws Exception {
+        System.out.println("   JiffleBuilder with precompiled script");
+        usePrecompiledClasses();
+        
+        JiffleBuilder builder = new JiffleBuilder();
+        RenderedImage img = builder.precompiled("ramp").dest("result", WIDTH, WIDTH)
+                .run().getImage("result");
+        
+        assertImage(img, 0);
+    }
+    
+    @Test
+    public void matchingScriptUsesPrecompiledClass() throws Exception {
+        System.out.println("   matching script and image params use precompiled class");
+        usePrecompiledClasses();
+        
+        JiffleRuntime runtime = RuntimeClassCache.getRuntimeInstance(
+                RAMP_SCRIPT, getImageParams(), JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+        assertEquals("org.jaitools.jiffle.precompiled.RampDirectRuntime", 
+                runtime.getClass().getName());
+        
+        Jiffle jiffle = new Jiffle(RAMP_SCRIPT, getImageParams());
+        assertEquals("org.jaitools.jiffle.precompiled.RampIndirectRuntime", 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT).getClass().getName());
+        
+        // different image parameters must not match
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("other", Jiffle.ImageRole.DEST);
+        runtime = RuntimeClassCache.getRuntimeInstance("other = x() + 2 * y();", 
+                params, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+        assertFalse(runtime.getClass().getName().startsWith("org.jaitools.jiffle.precompiled"));
+    }
+    
+    @Test
+    public void runsWithoutCompilerDependencies() throws Exception {
+        System.out.println("   precompiled classes run without compiler libraries");
+        compileAll();
+        
+        URL[] urls = {
+            outputDir.toURI().toURL(),
+            getLocation(PrecompiledRuntimes.class),
+            getLocation(CollectionFactory.class),
+            getLocation(JAI.class)
+        };
+        ClassLoader loader = new URLClassLoader(urls, null);
+        
+        try {
+            loader.loadClass("org.antlr.runtime.Token");
+            fail("ANTLR should not be visible");
+        } catch (ClassNotFoundException ex) {
+            // expected
+        }
+        
+        Thread.currentThread().setContextClassLoader(loader);
+        Class<?> registry = loader.loadClass(PrecompiledRuntimes.class.getName());
+        Object runtime = registry.getMethod("getDirectRuntime", String.class)
+                .invoke(null, "ramp");
+        
+        BufferedImage img = createImage();
+        Class<?> runtimeClass = loader.loadClass(JiffleDirectRuntime.class.getName());
+        runtimeClass.getMethod("setDestinationImage", String.class, WritableRenderedImage.class)
+                .invoke(runtime, "result", img);
+        
+        Method evaluateAll = runtimeClass.getMethod("evaluateAll", 
+                loader.loadClass("org.jaitools.jiffle.runtime.JiffleProgressListener"));
+        evaluateAll.invoke(runtime, new Object[] {null});
+        
+        assertImage(img, 0);
+    }
+    
+    @Test
+    public void classNames() {
+        System.out.println("   class names from script names");
+        assertEquals("LifeToroidDirectRuntime", 
+                JiffleAotCompiler.getClassName("life-toroid", Jiffle.RuntimeModel.DIRECT));
+        assertEquals("Script3dIndirectRuntime", 
+                JiffleAotCompiler.getClassName("3d", Jiffle.RuntimeModel.INDIRECT));
+    }
+    
+    private JiffleAotCompiler createCompiler() {
+        JiffleAotCompiler compiler = new JiffleAotCompiler(outputDir);
+        compiler.setRuntimeModels(Jiffle.RuntimeModel.values());
+        compiler.setImageParams(getImageParams());
+        return compiler;
+    }
+    
+    private void compileAll() throws Exception {
+        JiffleAotCompiler compiler = createCompiler();
+        compiler.compile(scriptDir);
+        compiler.writeRegistry();
+    }
+    
+    private void usePrecompiledClasses() throws Exception {
+        compileAll();
+        ClassLoader loader = new URLClassLoader(
+                new URL[] { outputDir.toURI().toURL() }, savedLoader);
+        Thread.currentThread().setContextClassLoader(loader);
+        PrecompiledRuntimes.reload();
+    }
+    
+    private Map<String, Jiffle.ImageRole> getImageParams() {
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("result", Jiffle.ImageRole.DEST);
+        return params;
+    }
+    
+    private BufferedImage createImage() {
+        return new BufferedImage(WIDTH, WIDTH, BufferedImage.TYPE_BYTE_GRAY);
+    }
+    
+    private void assertImage(RenderedImage img, int band) {
+        RandomIter iter = RandomIterFactory.create(img, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + 2 * y, iter.getSampleDouble(x, y, band), TOL);
+            }
+        }
+    }
+    
+    private void writeScript(String name, String script) throws Exception {
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(scriptDir, name + ".jfl")), "UTF-8");
+        try {
+            writer.write(script);
+        } finally {
+            writer.close();
+        }
+    }
+    
+    private static URL getLocation(Class<?> clazz) {
+        return clazz.getProtectionDomain().getCodeSource().getLocation();
+    }
+    
+    private static File createTempDir(String prefix) throws Exception {
+        File dir = File.createTempFile("jiffle", prefix);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.demo.jiffle;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.parser.JiffleLexer;
+import org.jaitools.jiffle.parser.JiffleParser;
+
+/**
+ * Reports how parse and compile times grow with script size. Scripts of
+ * increasing length are generated by repeating statements which use image
+ * positions, foreach loops and conditional expressions (the constructs for
+ * which the parser would previously backtrack). For each size the median
+ * time to parse the script, and to compile it to a final AST, is printed 
+ * together with the time per 1000 lines, which should stay roughly constant.
+ * 
+ * @author Michael Bedward
+ * @since 1.1
+ * @version $Id$
+ */
+public class ParseTimeBenchmark {
+    
+    private static final int[] NUM_LINES = {250, 500, 1000, 2000, 4000, 8000};
+    private static final int NUM_WARMUP_RUNS = 5;
+    private static final int NUM_TIMED_RUNS = 9;
+
+    /**
+     * Runs the benchmark and prints the results.
+     * 
+     * @param args ignored
+     * @throws Exception on an error in the Jiffle compiler
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%8s %12s %12s %14s %14s", 
+                "lines", "parse (ms)", "per 1000", "compile (ms)", "per 1000"));
+        
+        String warmup = createScript(NUM_LINES[0]);
+        for (int i = 0; i < NUM_WARMUP_RUNS; i++) {
+            parse(warmup);
+            compile(warmup);
+        }
+        
+        for (int numLines : NUM_LINES) {
+            String script = createScript(numLines);
+            
+            double[] parseTimes = new double[NUM_TIMED_RUNS];
+            double[] compileTimes = new double[NUM_TIMED_RUNS];
+            for (int i = 0; i < NUM_TIMED_RUNS; i++) {
+                long t0 = System.nanoTime();
+                parse(script);
+                parseTimes[i] = (System.nanoTime() - t0) / 1.0e6;
+                
+                t0 = System.nanoTime();
+                compile(script);
+                compileTimes[i] = (System.nanoTime() - t0) / 1.0e6;
+            }
+            Arrays.sort(parseTimes);
+            Arrays.sort(compileTimes);
+            
+            double parseMs = parseTimes[NUM_TIMED_RUNS / 2];
+            double compileMs = compileTimes[NUM_TIMED_RUNS / 2];
+            System.out.println(String.format("%8d %12.2f %12.2f %14.2f %14.2f",
+                    numLines, parseMs, parseMs * 1000 / numLines,
+                    compileMs, compileMs * 1000 / numLines));
+        }
+    }
+    
+    /*
+     * Generates a script with the given number of statements (plus
+     * the final assignment to the destination image).
+     */
+    private static String createScript(int numLines) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v0 = src;\n");
+        
+        for (int i = 1; i < numLines; i++) {
+            switch (i % 4) {
+                case 0:
+                    sb.append(String.format(
+                            "v%d = con(src[$x(), y() - 1] > %d, v%d + 1, src[%d][0, 1]);\n",
+                            i, i, i - 1, i % 3));
+                    break;
+                    
+                case 1:
+                    sb.append(String.format(
+                            "v%d = v%d; foreach (k in 1:%d) v%d += k * src[0][k, -k];\n",
+                            i, i - 1, i % 5 + 1, i));
+                    break;
+                    
+                case 2:
+                    sb.append(String.format(
+                            "if (v%d < %d) { v%d = v%d * 2; } else v%d = (v%d + %d) / 2;\n",
+                            i - 1, i, i, i - 1, i, i - 1, i));
+                    break;
+                    
+                default:
+                    sb.append(String.format(
+                            "L%d = [v%d, %d, src[1]]; v%d = max(L%d);\n",
+                            i, i - 1, i, i, i));
+            }
+        }
+        
+        sb.append(String.format("dest = v%d;\n", numLines - 1));
+        return sb.toString();
+    }
+    
+    private static void parse(String script) throws Exception {
+        JiffleParser parser = new JiffleParser(new CommonTokenStream(
+                new JiffleLexer(new ANTLRStringStream(script))));
+        parser.prog();
+        if (parser.getNumberOfSyntaxErrors() > 0) {
+            throw new IllegalStateException("Syntax errors in generated script");
+        }
+    }
+    
+    private static void compile(String script) throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        new Jiffle(script, imageParams);
+    }
+    
+}
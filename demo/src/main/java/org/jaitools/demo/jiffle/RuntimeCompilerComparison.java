@@ -0,0 +1,134 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.demo.jiffle;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.demo.ImageChoice;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+
+/**
+ * Compares the ways in which Jiffle can create runtime classes: directly 
+ * as bytecode, or by compiling generated source with Janino or with the
+ * JDK's {@code javax.tools} compiler. For each example script it reports
+ * the median time taken to create a runtime object (with the runtime
+ * class cache cleared each time) and the steady-state throughput of the
+ * runtime object once warmed up.
+ * <p>
+ * The javac backend requires the demo to be run on a JDK.
+ * 
+ * @author Michael Bedward
+ * @since 1.1
+ * @version $Id$
+ */
+public class RuntimeCompilerComparison extends JiffleDemoBase {
+    
+    private static final int NUM_COMPILES = 11;
+    private static final int NUM_WARMUP_RUNS = 5;
+    private static final int NUM_TIMED_RUNS = 10;
+    
+    private static final String[][] BACKENDS = {
+        // label, runtime.backend, runtime.compiler
+        {"bytecode", JiffleProperties.BACKEND_BYTECODE, JiffleProperties.COMPILER_JANINO},
+        {"janino", JiffleProperties.BACKEND_SOURCE, JiffleProperties.COMPILER_JANINO},
+        {"javac", JiffleProperties.BACKEND_SOURCE, JiffleProperties.COMPILER_JAVAC}
+    };
+
+    /**
+     * Runs the comparison for each example script and prints the results.
+     * 
+     * @param args ignored
+     * @throws Exception on an error in the Jiffle compiler
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println(String.format("%-14s %-10s %14s %14s", 
+                "script", "backend", "create (ms)", "Mpixels/s"));
+        
+        try {
+            for (ImageChoice choice : ImageChoice.values()) {
+                String script = JiffleDemoHelper.getScript(choice);
+                
+                for (String[] backend : BACKENDS) {
+                    System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, backend[1]);
+                    System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, backend[2]);
+                    
+                    double[] results = timeBackend(script, choice.getDestImageVarName());
+                    System.out.println(String.format("%-14s %-10s %14.2f %14.2f",
+                            choice, backend[0], results[0], results[1]));
+                }
+            }
+            
+        } finally {
+            System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+            System.clearProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY);
+        }
+    }
+
+    /*
+     * Returns the median runtime creation time in milliseconds and the 
+     * throughput in millions of pixels per second.
+     */
+    private static double[] timeBackend(String script, String destVar) throws Exception {
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        imageParams.put(destVar, Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        
+        double[] createTimes = new double[NUM_COMPILES];
+        JiffleDirectRuntime runtime = null;
+        for (int i = 0; i < NUM_COMPILES; i++) {
+            RuntimeClassCache.clear();
+            long t0 = System.nanoTime();
+            runtime = jiffle.getRuntimeInstance();
+            createTimes[i] = (System.nanoTime() - t0) / 1.0e6;
+        }
+        Arrays.sort(createTimes);
+        
+        TiledImage destImg = ImageUtils.createConstantImage(WIDTH, HEIGHT, 0d);
+        runtime.setDestinationImage(destVar, destImg);
+        
+        for (int i = 0; i < NUM_WARMUP_RUNS; i++) {
+            runtime.evaluateAll(null);
+        }
+        
+        long t0 = System.nanoTime();
+        for (int i = 0; i < NUM_TIMED_RUNS; i++) {
+            runtime.evaluateAll(null);
+        }
+        double seconds = (System.nanoTime() - t0) / 1.0e9;
+        double mpixels = (double) WIDTH * HEIGHT * NUM_TIMED_RUNS / 1.0e6;
+        
+        return new double[] { createTimes[NUM_COMPILES / 2], mpixels / seconds };
+    }
+    
+}
@@ -46,6 +46,13 @@
  * {@code ProgressListenerDemo} shows how to use a progress listener
  * with {@code JiffleExecutor} when running long tasks.
  * <p>
+ * {@code RuntimeCompilerComparison} reports the time taken to create
+ * runtime objects, and their throughput, for each of the ways in which
+ * Jiffle can create runtime classes.
+ * <p>
+ * {@code ParseTimeBenchmark} reports how the time taken to parse and
+ * compile a script grows with the length of the script.
+ * <p>
  * {@code GameOfLife} is a more advanced example which uses Jiffle
  * runtime objects to drive a simulation where the output image of each
  * step becomes the input image of the next step.
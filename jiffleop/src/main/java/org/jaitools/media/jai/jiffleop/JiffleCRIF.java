@@ -0,0 +1,181 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.media.jai.jiffleop;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.ParameterBlock;
+import java.awt.image.renderable.RenderContext;
+import java.awt.image.renderable.RenderableImage;
+import java.util.List;
+
+import javax.media.jai.CRIFImpl;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * The image factory for the "Jiffle" operation in the renderable layer.
+ * <p>
+ * Renderable coordinates are the script's world coordinates. The renderable
+ * bounds are given by the {@code destBounds} parameter or, if that is not
+ * set, are the union of the source bounds. A rendering evaluates the script
+ * once for each of its pixels, so a rendering at a reduced scale does not 
+ * compute the image at full resolution first. As with other operations, 
+ * tiles of a rendering are only computed when they are read, so the area of 
+ * interest of the render context is treated as a hint and does not limit
+ * the rendering's bounds.
+ * <p>
+ * The render context transform may only scale and translate.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleCRIF extends CRIFImpl {
+    
+    /* Tolerance used when rounding rendered bounds to whole pixels */
+    private static final double EPS = 1.0e-8;
+
+    /** Constructor */
+    public JiffleCRIF() {
+        super("Jiffle");
+    }
+
+    /**
+     * Creates a rendering in which world coordinates are pixel coordinates.
+     * 
+     * @param paramBlock the rendered source images and the parameters
+     * @param renderHints rendering hints
+     * 
+     * @return the new image
+     */
+    @Override
+    public RenderedImage create(ParameterBlock paramBlock, RenderingHints renderHints) {
+        return new JiffleRIF().create(paramBlock, renderHints);
+    }
+    
+    /**
+     * Creates a rendering for the given render context. The rendered image
+     * has a pixel for each device position within the renderable bounds. 
+     * Sources which have not already been rendered are rendered with the 
+     * same transform.
+     * 
+     * @param renderContext the render context
+     * @param paramBlock the source images and the parameters
+     * 
+     * @return the new image
+     * 
+     * @throws IllegalArgumentException if the render context transform 
+     *         has rotation or shear, or does not preserve axis directions
+     */
+    @Override
+    public RenderedImage create(RenderContext renderContext, ParameterBlock paramBlock) {
+        AffineTransform usr2dev = renderContext.getTransform();
+        Rectangle2D deviceArea = usr2dev.createTransformedShape(
+                getBounds2D(paramBlock)).getBounds2D();
+        int minX = (int) Math.floor(deviceArea.getMinX() + EPS);
+        int minY = (int) Math.floor(deviceArea.getMinY() + EPS);
+        int maxX = Math.max(minX + 1, (int) Math.ceil(deviceArea.getMaxX() - EPS));
+        int maxY = Math.max(minY + 1, (int) Math.ceil(deviceArea.getMaxY() - EPS));
+        Rectangle imageBounds = new Rectangle(minX, minY, maxX - minX, maxY - minY);
+        
+        /*
+         * The script may read sources anywhere, so they are rendered without
+         * an area of interest.
+         */
+        RenderContext sourceContext = new RenderContext(usr2dev, renderContext.getRenderingHints());
+        
+        List<RenderedImage> sources = CollectionFactory.list();
+        for (int i = 0; i < paramBlock.getNumSources(); i++) {
+            Object source = paramBlock.getSource(i);
+            if (source instanceof RenderableImage) {
+                sources.add(((RenderableImage) source).createRendering(sourceContext));
+                
+            } else if (source instanceof RenderedImage) {
+                // already rendered by the caller
+                sources.add((RenderedImage) source);
+                
+            } else {
+                throw new IllegalArgumentException("Unsupported source " + i + ": " + source);
+            }
+        }
+        
+        return JiffleRIF.createImage(paramBlock, sources, imageBounds, 
+                usr2dev, renderContext.getRenderingHints());
+    }
+
+    /**
+     * Gets the renderable bounds of the operation. These are given by the 
+     * {@code destBounds} parameter or, if it is not set, by the union of
+     * the source bounds.
+     * 
+     * @param paramBlock the source images and the parameters
+     * 
+     * @return the bounds
+     * 
+     * @throws IllegalArgumentException if there are no sources and no
+     *         {@code destBounds} parameter
+     */
+    @Override
+    public Rectangle2D getBounds2D(ParameterBlock paramBlock) {
+        Rectangle destBounds = (Rectangle) paramBlock.getObjectParameter(
+                JiffleDescriptor.DEST_BOUNDS_ARG);
+        if (destBounds != null) {
+            return new Rectangle2D.Double(destBounds.x, destBounds.y, 
+                    destBounds.width, destBounds.height);
+        }
+        
+        Rectangle2D bounds = null;
+        for (int i = 0; i < paramBlock.getNumSources(); i++) {
+            Object source = paramBlock.getSource(i);
+            Rectangle2D r;
+            if (source instanceof RenderableImage) {
+                RenderableImage ri = (RenderableImage) source;
+                r = new Rectangle2D.Double(ri.getMinX(), ri.getMinY(), 
+                        ri.getWidth(), ri.getHeight());
+            } else {
+                RenderedImage ri = (RenderedImage) source;
+                r = new Rectangle2D.Double(ri.getMinX(), ri.getMinY(), 
+                        ri.getWidth(), ri.getHeight());
+            }
+            
+            if (bounds == null) {
+                bounds = r;
+            } else {
+                bounds = bounds.createUnion(r);
+            }
+        }
+        
+        if (bounds == null) {
+            throw new IllegalArgumentException(
+                    "No source images and no destination bounds specified");
+        }
+        return bounds;
+    }
+}
@@ -28,10 +28,35 @@ package org.jaitools.media.jai.jiffleop;
 import java.awt.Rectangle;
 
 import javax.media.jai.OperationDescriptorImpl;
+import javax.media.jai.registry.RenderableRegistryMode;
 import javax.media.jai.registry.RenderedRegistryMode;
 
 /**
  * Jiffle operation.
+ * <p>
+ * Any number of source images may be provided. Their variable names in
+ * the script are given with the {@code sourceNames} parameter, in the
+ * order of the sources. If the parameter is not set, a single source is
+ * named {@code src} and several sources are named {@code src0}, 
+ * {@code src1} and so on.
+ * <p>
+ * The destination image has a band for each destination variable. A 
+ * single variable is named with the {@code destName} parameter. Several
+ * variables, which are computed together in one pass, are named in band
+ * order with the {@code destNames} parameter, which overrides 
+ * {@code destName}.
+ * <p>
+ * The destination data type can be set with the {@code destType} 
+ * parameter or with the sample model of an {@code ImageLayout} rendering
+ * hint, and defaults to {@code TYPE_DOUBLE}. Script values are rounded and
+ * clamped to the range of integral data types. The tile dimensions and 
+ * grid offsets are taken from an {@code ImageLayout} hint if present.
+ * <p>
+ * The operation supports the rendered and renderable modes. In the 
+ * renderable mode the {@code destBounds} parameter is in renderable 
+ * coordinates, which are the script's world coordinates, and each 
+ * rendering evaluates the script only at its own pixels (see 
+ * {@link JiffleCRIF}).
  * 
  * @author Michael Bedward
  * @since 0.1
@@ -42,23 +67,35 @@ public class JiffleDescriptor extends OperationDescriptorImpl {
     static final int SCRIPT_ARG = 0;
     static final int DEST_NAME_ARG = 1;
     static final int DEST_BOUNDS_ARG = 2;
+    static final int SOURCE_NAMES_ARG = 3;
+    static final int DEST_TYPE_ARG = 4;
+    static final int DEST_NAMES_ARG = 5;
 
     private static final String[] paramNames = {
         "script",
         "destName",
-        "destBounds"
+        "destBounds",
+        "sourceNames",
+        "destType",
+        "destNames"
     };
 
     private static final Class[] paramClasses = {
          String.class,
          String.class,
-         Rectangle.class
+         Rectangle.class,
+         String[].class,
+         Integer.class,
+         String[].class
     };
 
     private static final Object[] paramDefaults = {
          NO_PARAMETER_DEFAULT,
          "dest",
-         (Rectangle)null
+         (Rectangle)null,
+         (String[])null,
+         (Integer)null,
+         (String[])null
     };
 
     public JiffleDescriptor() {
@@ -72,10 +109,21 @@ public class JiffleDescriptor extends OperationDescriptorImpl {
                     {"arg0Desc", paramNames[0] + " (String):" +
                              "the Jiffle script"},
                     {"arg1Desc", paramNames[1] + " (String, default \"dest\"):" +
-                             "the destination variable name"}
+                             "the destination variable name"},
+                    {"arg2Desc", paramNames[2] + " (Rectangle, default null):" +
+                             "the destination bounds (renderable bounds in renderable mode); " +
+                             "if null, the union of the source bounds"},
+                    {"arg3Desc", paramNames[3] + " (String[], default null):" +
+                             "the source variable names in source order"},
+                    {"arg4Desc", paramNames[4] + " (Integer, default null):" +
+                             "the destination DataBuffer type; if null, taken from an " +
+                             "ImageLayout hint or TYPE_DOUBLE"},
+                    {"arg5Desc", paramNames[5] + " (String[], default null):" +
+                             "destination variable names, one per band; if null, destName is used"}
 
                 },
-                new String[]{RenderedRegistryMode.MODE_NAME},   // supported modes
+                new String[]{RenderedRegistryMode.MODE_NAME,    // supported modes
+                             RenderableRegistryMode.MODE_NAME},
                 
                 1,                                              // number of sources
                 
@@ -87,10 +135,76 @@ public class JiffleDescriptor extends OperationDescriptorImpl {
                 );
     }
 
+    /**
+     * Returns 0 because the operation does not require source images. 
+     * Sources are optional and the actual number is not fixed.
+     * 
+     * @return 0
+     */
     @Override
     public int getNumSources() {
         return 0;
     }
-
     
+    /**
+     * Gets the destination variable names.
+     * 
+     * @param name the {@code destName} parameter
+     * @param names the {@code destNames} parameter (may be {@code null})
+     * 
+     * @return the variable names in band order
+     * 
+     * @throws IllegalArgumentException if {@code names} is empty or has
+     *         duplicate names
+     */
+    static String[] getDestNames(String name, String[] names) {
+        if (names == null) {
+            return new String[] {name};
+        }
+        
+        if (names.length == 0) {
+            throw new IllegalArgumentException("destNames must not be empty");
+        }
+        for (int i = 1; i < names.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (names[i].equals(names[j])) {
+                    throw new IllegalArgumentException("Duplicate destination name: " + names[i]);
+                }
+            }
+        }
+        return names.clone();
+    }
+    
+    /**
+     * Gets the script variable names for the given number of source images.
+     * 
+     * @param names names provided with the {@code sourceNames} parameter 
+     *        (may be {@code null})
+     * @param numSources number of source images
+     * 
+     * @return the variable names
+     * 
+     * @throws IllegalArgumentException if {@code names} is not {@code null} 
+     *         and its length differs from {@code numSources}
+     */
+    static String[] getSourceNames(String[] names, int numSources) {
+        if (names != null) {
+            if (names.length != numSources) {
+                throw new IllegalArgumentException(String.format(
+                        "%d source names provided for %d source images", 
+                        names.length, numSources));
+            }
+            return names.clone();
+        }
+        
+        String[] defaults = new String[numSources];
+        if (numSources == 1) {
+            defaults[0] = "src";
+        } else {
+            for (int i = 0; i < numSources; i++) {
+                defaults[i] = "src" + i;
+            }
+        }
+        return defaults;
+    }
 }
@@ -26,23 +26,77 @@
 package org.jaitools.media.jai.jiffleop;
 
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.media.jai.BorderExtender;
 import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
 import javax.media.jai.OpImage;
 import javax.media.jai.PlanarImage;
 
 import org.jaitools.CollectionFactory;
 import org.jaitools.jiffle.Jiffle;
 import org.jaitools.jiffle.JiffleException;
-import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.JiffleRuntimeFactory;
+import org.jaitools.jiffle.RuntimeClassCache;
+import org.jaitools.jiffle.SourceFootprint;
+import org.jaitools.jiffle.runtime.AbstractIndirectRuntime;
+import org.jaitools.jiffle.runtime.AffineCoordinateTransform;
 
 /**
  * Jiffle operation.
+ * <p>
+ * JAI may compute tiles of this image concurrently. Runtime objects are
+ * not thread-safe, so each call to {@code computeRect} takes a runtime
+ * object from a pool of copies of the object created for the script,
+ * adding a new copy when none is free. The pool therefore grows to the
+ * number of threads computing tiles at the same time. Copies are made
+ * from the compiled runtime class without compiling the script again.
+ * <p>
+ * A script which assigns to image-scope variables outside its init block
+ * gives results that depend on the order in which pixels are processed.
+ * For such a script all tiles are computed with a single runtime object,
+ * one at a time.
+ * <p>
+ * The image has one band for each destination variable, in the order
+ * in which the variables are given. All bands are computed in a single
+ * pass over the pixels, so values shared between destination variables
+ * are only calculated once.
+ * <p>
+ * The area of each source image needed to compute a destination rectangle
+ * is worked out from the positions at which the script reads the image 
+ * (see {@link SourceFootprint}). A script which only reads {@code src} and
+ * {@code src[-1, 0]} needs just one extra column to the left of the 
+ * destination rectangle, while a script which reads a source at absolute
+ * positions can need any part of that source. For each tile, the needed
+ * area of a source is copied into an array held by the runtime object and
+ * re-used for later tiles. A source with no bounded area is instead read 
+ * on demand, so that only the source tiles actually read are computed.
+ * Where the needed area extends past the edge of a source image, it is 
+ * filled using the {@link BorderExtender} given with the 
+ * {@code JAI.KEY_BORDER_EXTENDER} rendering hint, if any. Otherwise, 
+ * reads past the edge return the script's outside value or fail if 
+ * there is none.
+ * <p>
+ * The script works in world coordinates, which are related to the pixels
+ * of this image and its sources by a transform consisting of scaling and
+ * translation. For images created in the rendered mode this is the 
+ * identity transform, so that world coordinates are pixel coordinates.
+ * In the renderable mode (see {@link JiffleCRIF}) world coordinates are
+ * renderable coordinates and the transform is that of the render context.
+ * A rendering at a reduced scale evaluates the script once for each of 
+ * its own pixels, rather than at every world position.
  * 
  * @author Michael Bedward
  * @since 0.1
@@ -50,40 +104,156 @@ import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
  */
 public class JiffleOpImage extends OpImage {
     
-    private final JiffleIndirectRuntime runtime;
+    /* 
+     * Configured when this image is created. It is only used to make
+     * copies and is never evaluated.
+     */
+    private final AbstractIndirectRuntime prototype;
+    
+    /* Runtime objects not currently in use by computeRect */
+    private final Queue<AbstractIndirectRuntime> idleRuntimes = 
+            new ConcurrentLinkedQueue<AbstractIndirectRuntime>();
+    
+    /* Whether all tiles must be computed with one runtime object */
+    private final boolean serialEvaluation;
+    
+    /* The runtime object used when serialEvaluation is true */
+    private AbstractIndirectRuntime serialRuntime;
+    
+    /* Source image variable names in the order of the source images */
+    private final List<String> sourceVarNames;
     
-    // TESTING
-    private final int band = 0;
+    /* Footprint of each source image, in source image order */
+    private final SourceFootprint[] footprints;
+    
+    /* Used to fill source areas beyond image edges; may be null */
+    private final BorderExtender extender;
+    
+    /* Number of destination variables, which is the number of bands */
+    private final int numDests;
+    
+    /* 
+     * For each band, the index of the destination variable's value in 
+     * the runtime's output, or null if the output is already in band order
+     */
+    private final int[] outputIndex;
     
     private final Rectangle bounds;
+    
+    /* Pixels per world unit */
+    private final double xscale;
+    private final double yscale;
+    
+    /* Image coordinates of the world origin */
+    private final double xoffset;
+    private final double yoffset;
 
+    /**
+     * Creates a new image in which world coordinates are pixel coordinates.
+     * 
+     * @param sourceImages source images keyed by script variable name
+     * @param layout the image layout
+     * @param configuration rendering hints
+     * @param script the script
+     * @param destVarNames destination variable names in band order
+     * @param destBounds the image bounds, or {@code null} for the union
+     *        of the source image bounds
+     */
     public JiffleOpImage(Map<String, RenderedImage> sourceImages, 
             ImageLayout layout, 
             Map configuration,
             String script,
-            String destVarName,
+            String[] destVarNames,
             Rectangle destBounds) {
         
+        this(sourceImages, layout, configuration, script, destVarNames, destBounds, null);
+    }
+
+    /**
+     * Creates a new image.
+     * 
+     * @param sourceImages source images keyed by script variable name
+     * @param layout the image layout
+     * @param configuration rendering hints
+     * @param script the script
+     * @param destVarNames destination variable names in band order
+     * @param destBounds the image bounds, or {@code null} for the union
+     *        of the source image bounds
+     * @param worldToImage the transform from world coordinates to the pixel
+     *        coordinates of this image and its sources, or {@code null}
+     *        for the identity transform
+     * 
+     * @throws IllegalArgumentException if the transform has rotation or 
+     *         shear, or does not preserve axis directions
+     */
+    public JiffleOpImage(Map<String, RenderedImage> sourceImages, 
+            ImageLayout layout, 
+            Map configuration,
+            String script,
+            String[] destVarNames,
+            Rectangle destBounds,
+            AffineTransform worldToImage) {
+        
         super(new Vector(sourceImages.values()), layout, configuration, false);
         
+        if (worldToImage == null) {
+            worldToImage = new AffineTransform();
+        }
+        if (worldToImage.getShearX() != 0 || worldToImage.getShearY() != 0 
+                || !(worldToImage.getScaleX() > 0 && worldToImage.getScaleY() > 0)) {
+            throw new IllegalArgumentException(
+                    "Only positive scaling and translation are supported: " + worldToImage);
+        }
+        xscale = worldToImage.getScaleX();
+        yscale = worldToImage.getScaleY();
+        xoffset = worldToImage.getTranslateX();
+        yoffset = worldToImage.getTranslateY();
+        
         try {
-            Jiffle jiffle = new Jiffle();
-            jiffle.setScript(script);
-            
             Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
             for (String varName : sourceImages.keySet()) {
                 imageParams.put(varName, Jiffle.ImageRole.SOURCE);
             }
-            imageParams.put(destVarName, Jiffle.ImageRole.DEST);
+            for (String varName : destVarNames) {
+                imageParams.put(varName, Jiffle.ImageRole.DEST);
+            }
             
-            jiffle.setImageParams(imageParams);
-            jiffle.compile();
-            runtime = (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+            sourceVarNames = CollectionFactory.list();
+            sourceVarNames.addAll(sourceImages.keySet());
             
-            for (String varName : sourceImages.keySet()) {
-                runtime.setSourceImage(varName);
+            // the script is only compiled if its runtime class and source
+            // footprints are not already cached
+            JiffleRuntimeFactory<AbstractIndirectRuntime> factory = 
+                    RuntimeClassCache.getRuntimeFactory(script, imageParams, 
+                            JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+            
+            Map<String, SourceFootprint> scriptFootprints = factory.getSourceFootprints();
+            
+            footprints = new SourceFootprint[sourceVarNames.size()];
+            for (int i = 0; i < footprints.length; i++) {
+                SourceFootprint fp = scriptFootprints.get(sourceVarNames.get(i));
+                // a source not read by the script only needs a token area
+                footprints[i] = fp == null ? 
+                        SourceFootprint.CENTRE : fp.scale(xscale, yscale);
             }
             
+            Object ext = configuration == null ? 
+                    null : configuration.get(JAI.KEY_BORDER_EXTENDER);
+            extender = ext instanceof BorderExtender ? (BorderExtender) ext : null;
+            
+            prototype = factory.newInstance();
+            
+            serialEvaluation = prototype.writesImageScopeVars();
+            prototype.setDestinationDataType(getSampleModel().getDataType());
+            
+            numDests = destVarNames.length;
+            if (getSampleModel().getNumBands() != numDests) {
+                throw new IllegalArgumentException(String.format(
+                        "Sample model has %d bands for %d destination variables", 
+                        getSampleModel().getNumBands(), numDests));
+            }
+            outputIndex = getOutputIndex(destVarNames, prototype.getOutputVarNames());
+            
             if (destBounds == null) {
                 bounds = getSourceBounds();
                 if (bounds == null) {
@@ -94,7 +264,27 @@ public class JiffleOpImage extends OpImage {
                 bounds = new Rectangle(destBounds);
             }
             
-            runtime.setWorldByResolution(bounds, 1, 1);
+            if (worldToImage.isIdentity()) {
+                prototype.setWorldByResolution(bounds, 1, 1);
+            } else {
+                Rectangle2D world = new Rectangle2D.Double(
+                        worldX(bounds.x), worldY(bounds.y), 
+                        bounds.width / xscale, bounds.height / yscale);
+                
+                prototype.setWorldByResolution(world, 1 / xscale, 1 / yscale);
+                prototype.setDefaultTransform(new AffineCoordinateTransform(worldToImage));
+            }
+            
+            for (int i = 0; i < sourceVarNames.size(); i++) {
+                String varName = sourceVarNames.get(i);
+                prototype.setSourceImage(varName);
+                
+                // an unbounded source is read on demand rather than copied
+                // for each tile; copies of the prototype get their own iterator
+                if (!footprints[i].isBounded()) {
+                    prototype.setSourceData(varName, getSourceImage(i));
+                }
+            }
             
         } catch (JiffleException ex) {
             throw new RuntimeException(ex);
@@ -104,38 +294,134 @@ public class JiffleOpImage extends OpImage {
     
 
     /**
-     * For testing: returns null to indicate that all of the destination
-     * could be affected.
+     * Returns the destination area which depends on the given area of
+     * a source image. This is the source rectangle grown by the source's
+     * footprint, clipped to the bounds of this image. If the script reads 
+     * the source at positions which are not bounded, all of this image
+     * is returned.
      * 
-     * @param sourceRect
-     * @param sourceIndex
-     * @return 
+     * @param sourceRect the source image area
+     * @param sourceIndex the source image index
+     * @return the destination area
      */
     @Override
     public Rectangle mapSourceRect(Rectangle sourceRect, int sourceIndex) {
-        return null;
+        Rectangle r = footprints[sourceIndex].getDestRect(sourceRect);
+        return r == null ? getBounds() : r.intersection(getBounds());
     }
 
     /**
-     * For testing: returns the source image bounds.
+     * Returns the area of a source image needed to compute the given 
+     * destination area. This is the destination rectangle grown by the 
+     * source's footprint and may extend beyond the source bounds. If the
+     * script reads the source at positions which are not bounded, the
+     * source bounds are returned.
      * 
-     * @param destRect
-     * @param sourceIndex
-     * @return 
+     * @param destRect the destination area
+     * @param sourceIndex the source image index
+     * @return the source area
      */
     @Override
     public Rectangle mapDestRect(Rectangle destRect, int sourceIndex) {
-        return getSourceImage(sourceIndex).getBounds();
+        Rectangle r = footprints[sourceIndex].getSourceRect(destRect);
+        return r == null ? getSourceImage(sourceIndex).getBounds() : r;
     }
 
     @Override
     protected void computeRect(PlanarImage[] sources, WritableRaster dest, Rectangle destRect) {
+        if (serialEvaluation) {
+            synchronized (prototype) {
+                if (serialRuntime == null) {
+                    serialRuntime = (AbstractIndirectRuntime) prototype.copy();
+                }
+                computeRect(serialRuntime, sources, dest, destRect);
+            }
+            
+        } else {
+            AbstractIndirectRuntime runtime = idleRuntimes.poll();
+            if (runtime == null) {
+                runtime = (AbstractIndirectRuntime) prototype.copy();
+            }
+            
+            try {
+                computeRect(runtime, sources, dest, destRect);
+            } finally {
+                idleRuntimes.offer(runtime);
+            }
+        }
+    }
+    
+    private void computeRect(AbstractIndirectRuntime runtime, PlanarImage[] sources,
+            WritableRaster dest, Rectangle destRect) {
+        
+        for (int i = 0; i < sources.length; i++) {
+            if (footprints[i].isBounded()) {
+                runtime.setSourceData(sourceVarNames.get(i), sources[i], 
+                        mapDestRect(destRect, i), extender);
+            }
+        }
+        
+        final int n = destRect.width;
+        double[] rowValues = new double[n * numDests];
+        double[] bandValues = outputIndex == null ? rowValues : new double[n * numDests];
+        
         for (int y = destRect.y, iy = 0; iy < destRect.height; y++, iy++) {
-            for (int x = destRect.x, ix = 0; ix < destRect.width; x++, ix++) {
-                dest.setSample(x, y, band, runtime.evaluate(x, y));
+            runtime.evaluateRowAll(worldY(y), worldX(destRect.x), n, rowValues);
+            
+            if (outputIndex != null) {
+                for (int i = 0, k = 0; i < n; i++) {
+                    for (int b = 0; b < numDests; b++) {
+                        bandValues[k++] = rowValues[i * numDests + outputIndex[b]];
+                    }
+                }
             }
+            
+            dest.setPixels(destRect.x, y, n, 1, bandValues);
         }
     }
+    
+    /**
+     * Converts an image X ordinate to world units.
+     */
+    private double worldX(int x) {
+        return (x - xoffset) / xscale;
+    }
+    
+    /**
+     * Converts an image Y ordinate to world units.
+     */
+    private double worldY(int y) {
+        return (y - yoffset) / yscale;
+    }
+    
+    /**
+     * Maps bands, which are in the order of the destination variables 
+     * given to this image, to the order in which the runtime object
+     * returns destination values.
+     * 
+     * @return the index of each band's value in the runtime output, or
+     *         {@code null} if the orders are the same
+     * 
+     * @throws IllegalArgumentException if the script does not assign 
+     *         to a destination variable
+     */
+    private static int[] getOutputIndex(String[] destVarNames, String[] outputVarNames) {
+        List<String> outputs = CollectionFactory.list();
+        outputs.addAll(Arrays.asList(outputVarNames));
+        
+        int[] index = new int[destVarNames.length];
+        boolean inOrder = true;
+        for (int b = 0; b < destVarNames.length; b++) {
+            index[b] = outputs.indexOf(destVarNames[b]);
+            if (index[b] < 0) {
+                throw new IllegalArgumentException(
+                        "Destination variable not assigned by the script: " + destVarNames[b]);
+            }
+            inOrder &= index[b] == b;
+        }
+        
+        return inOrder ? null : index;
+    }
 
     @Override
     protected void computeRect(Raster[] sources, WritableRaster dest, Rectangle destRect) {
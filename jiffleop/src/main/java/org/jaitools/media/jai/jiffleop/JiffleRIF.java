@@ -28,11 +28,13 @@ package org.jaitools.media.jai.jiffleop;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.DataBuffer;
 import java.awt.image.RenderedImage;
 import java.awt.image.SampleModel;
 import java.awt.image.renderable.ParameterBlock;
 import java.awt.image.renderable.RenderedImageFactory;
+import java.util.List;
 import java.util.Map;
 
 import javax.media.jai.ImageLayout;
@@ -64,22 +66,149 @@ public class JiffleRIF implements RenderedImageFactory {
     public RenderedImage create(ParameterBlock paramBlock,
             RenderingHints renderHints) {
         
-        Map<String, RenderedImage> sourceImages = CollectionFactory.map();
+        List<RenderedImage> sources = CollectionFactory.list();
+        for (int i = 0; i < paramBlock.getNumSources(); i++) {
+            sources.add(paramBlock.getRenderedSource(i));
+        }
+        
+        return createImage(paramBlock, sources, null, null, renderHints);
+    }
+
+    /**
+     * Creates a new instance of JiffleOpImage. This is shared by the rendered
+     * and renderable modes of the operation.
+     * 
+     * @param paramBlock the operation parameters
+     * @param sources the rendered source images, in source order
+     * @param imageBounds the destination image bounds, or {@code null} to
+     *        take them from the {@code destBounds} parameter or the union of 
+     *        the source bounds
+     * @param worldToImage transform from world to image coordinates, or 
+     *        {@code null} for the identity transform
+     * @param renderHints rendering hints (may be {@code null})
+     * 
+     * @return the new image
+     */
+    static RenderedImage createImage(ParameterBlock paramBlock, List<RenderedImage> sources,
+            Rectangle imageBounds, AffineTransform worldToImage, RenderingHints renderHints) {
+        
+        // an ordered map so that the source image order is kept
+        Map<String, RenderedImage> sourceImages = CollectionFactory.orderedMap();
         
         String script = (String) paramBlock.getObjectParameter(JiffleDescriptor.SCRIPT_ARG);
-        String destVarName = (String) paramBlock.getObjectParameter(JiffleDescriptor.DEST_NAME_ARG);
+        String[] destVarNames = JiffleDescriptor.getDestNames(
+                (String) paramBlock.getObjectParameter(JiffleDescriptor.DEST_NAME_ARG),
+                (String[]) paramBlock.getObjectParameter(JiffleDescriptor.DEST_NAMES_ARG));
         Rectangle destBounds = (Rectangle) paramBlock.getObjectParameter(JiffleDescriptor.DEST_BOUNDS_ARG);
+        String[] sourceNames = (String[]) paramBlock.getObjectParameter(JiffleDescriptor.SOURCE_NAMES_ARG);
+        
+        sourceNames = JiffleDescriptor.getSourceNames(sourceNames, sources.size());
+        Rectangle sourceBounds = null;
+        for (int i = 0; i < sourceNames.length; i++) {
+            RenderedImage image = sources.get(i);
+            if (sourceImages.put(sourceNames[i], image) != null) {
+                throw new IllegalArgumentException("Duplicate source name: " + sourceNames[i]);
+            }
+            
+            Rectangle r = new Rectangle(image.getMinX(), image.getMinY(), 
+                    image.getWidth(), image.getHeight());
+            sourceBounds = sourceBounds == null ? r : sourceBounds.union(r);
+        }
+        
+        if (imageBounds != null) {
+            destBounds = imageBounds;
+        } else if (destBounds == null) {
+            destBounds = sourceBounds;
+        }
+        if (destBounds == null) {
+            throw new IllegalArgumentException(
+                    "No source images and no destination bounds specified");
+        }
 
-        // Ignore any ImageLayout that was provided and create one here
-        ImageLayout layout = new ImageLayout(destBounds.x, destBounds.y, destBounds.width, destBounds.height);
+        Integer destType = (Integer) paramBlock.getObjectParameter(JiffleDescriptor.DEST_TYPE_ARG);
+        ImageLayout layout = createLayout(destBounds, destType, destVarNames.length, renderHints);
+        
+        return new JiffleOpImage(sourceImages, layout, renderHints, 
+                script, destVarNames, destBounds, worldToImage);
+    }
 
-        Dimension defaultTileSize = JAI.getDefaultTileSize();
-        SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
-                DataBuffer.TYPE_DOUBLE, defaultTileSize.width, defaultTileSize.height, 1);
+    /**
+     * Creates the layout for the destination image. The bounds are always 
+     * the destination bounds and there is one band for each destination
+     * variable. The tile grid and dimensions are taken from 
+     * an {@code ImageLayout} rendering hint when it specifies them, 
+     * otherwise JAI's default tile size is used. The data type is the
+     * {@code destType} parameter if provided, else that of a sample model
+     * in the layout hint, else {@code TYPE_DOUBLE}.
+     */
+    private static ImageLayout createLayout(Rectangle destBounds, Integer destType, 
+            int numBands, RenderingHints renderHints) {
+        
+        ImageLayout hint = renderHints == null ? 
+                null : (ImageLayout) renderHints.get(JAI.KEY_IMAGE_LAYOUT);
+        
+        SampleModel hintSM = null;
+        if (hint != null && hint.isValid(ImageLayout.SAMPLE_MODEL_MASK)) {
+            hintSM = hint.getSampleModel(null);
+            if (hintSM.getNumBands() != numBands) {
+                throw new IllegalArgumentException(String.format(
+                        "ImageLayout sample model has %d bands for %d destination variables",
+                        hintSM.getNumBands(), numBands));
+            }
+        }
+        
+        int dataType;
+        if (destType != null) {
+            dataType = destType;
+        } else if (hintSM != null) {
+            dataType = hintSM.getDataType();
+        } else {
+            dataType = DataBuffer.TYPE_DOUBLE;
+        }
+        
+        Dimension tileSize = JAI.getDefaultTileSize();
+        int tileWidth = tileSize.width;
+        int tileHeight = tileSize.height;
+        ImageLayout layout = new ImageLayout(destBounds.x, destBounds.y, destBounds.width, destBounds.height);
+        
+        if (hint != null) {
+            if (hint.isValid(ImageLayout.TILE_WIDTH_MASK)) {
+                tileWidth = hint.getTileWidth(null);
+            }
+            if (hint.isValid(ImageLayout.TILE_HEIGHT_MASK)) {
+                tileHeight = hint.getTileHeight(null);
+            }
+            if (hint.isValid(ImageLayout.TILE_GRID_X_OFFSET_MASK)) {
+                layout.setTileGridXOffset(hint.getTileGridXOffset(null));
+            }
+            if (hint.isValid(ImageLayout.TILE_GRID_Y_OFFSET_MASK)) {
+                layout.setTileGridYOffset(hint.getTileGridYOffset(null));
+            }
+        }
+        
+        if (tileWidth <= 0 || tileHeight <= 0) {
+            throw new IllegalArgumentException("Tile dimensions must be positive");
+        }
+        layout.setTileWidth(tileWidth);
+        layout.setTileHeight(tileHeight);
+        
+        SampleModel sm;
+        if (hintSM != null && hintSM.getDataType() == dataType) {
+            sm = hintSM.createCompatibleSampleModel(tileWidth, tileHeight);
+        } else {
+            sm = RasterFactory.createPixelInterleavedSampleModel(
+                    dataType, tileWidth, tileHeight, numBands);
+        }
         layout.setSampleModel(sm);
-        layout.setColorModel(PlanarImage.createColorModel(sm));
         
-        return new JiffleOpImage(sourceImages, layout, renderHints, script, destVarName, destBounds);
+        if (hint != null && hint.isValid(ImageLayout.COLOR_MODEL_MASK) && 
+                hint.getColorModel(null).isCompatibleSampleModel(sm)) {
+            layout.setColorModel(hint.getColorModel(null));
+        } else {
+            layout.setColorModel(PlanarImage.createColorModel(sm));
+        }
+        
+        return layout;
     }
 }
 
@@ -25,11 +25,13 @@
 
 package org.jaitools.media.jai.jiffleop;
 
+import java.awt.image.renderable.ContextualRenderedImageFactory;
 import java.awt.image.renderable.RenderedImageFactory;
 
 import javax.media.jai.OperationDescriptor;
 import javax.media.jai.OperationRegistry;
 import javax.media.jai.OperationRegistrySpi;
+import javax.media.jai.registry.RenderableRegistryMode;
 import javax.media.jai.registry.RenderedRegistryMode;
 
 /**
@@ -49,7 +51,7 @@ public class JiffleSpi implements OperationRegistrySpi {
     public JiffleSpi() {}
 
     /**
-     * Registers the MaskedConvolve operation and its
+     * Registers the Jiffle operation and its
      * associated image factories across all supported operation modes.
      *
      * @param registry The registry with which to register the operations
@@ -67,5 +69,11 @@ public class JiffleSpi implements OperationRegistrySpi {
                                  productName,
                                  rif);
 
+        ContextualRenderedImageFactory crif = new JiffleCRIF();
+
+        registry.registerFactory(RenderableRegistryMode.MODE_NAME,
+                                 descName,
+                                 productName,
+                                 crif);
     }
 }
@@ -0,0 +1,139 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.media.jai.jiffleop;
+
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+
+import javax.media.jai.ImageLayout;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.RenderedOp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the data type and tile layout of JiffleOpImage.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class DestinationLayoutTest {
+    
+    private static final int WIDTH = 30;
+    
+    private static final String SCRIPT = "dest = x() * 10 - 50.5;" ;
+    
+    @Test
+    public void defaultIsDouble() throws Exception {
+        System.out.println("   default data type is double");
+        
+        RenderedOp op = createOp(SCRIPT, null, null);
+        assertEquals(DataBuffer.TYPE_DOUBLE, op.getSampleModel().getDataType());
+        assertEquals(1, op.getSampleModel().getNumBands());
+        
+        Raster data = op.getData();
+        for (int x = 0; x < WIDTH; x++) {
+            assertEquals(x * 10 - 50.5, data.getSampleDouble(x, 0, 0), 1.0e-8);
+        }
+    }
+    
+    @Test
+    public void byteParameter() throws Exception {
+        System.out.println("   byte destination from parameter");
+        
+        RenderedOp op = createOp(SCRIPT, DataBuffer.TYPE_BYTE, null);
+        assertEquals(DataBuffer.TYPE_BYTE, op.getSampleModel().getDataType());
+        assertByteValues(op.getData());
+    }
+    
+    @Test
+    public void layoutHint() throws Exception {
+        System.out.println("   data type and tile size from ImageLayout hint");
+        
+        SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, 1, 1, 1);
+        ImageLayout layout = new ImageLayout();
+        layout.setSampleModel(sm);
+        layout.setTileWidth(7);
+        layout.setTileHeight(4);
+        
+        RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        RenderedOp op = createOp(SCRIPT, null, hints);
+        
+        assertEquals(DataBuffer.TYPE_BYTE, op.getSampleModel().getDataType());
+        assertEquals(7, op.getTileWidth());
+        assertEquals(4, op.getTileHeight());
+        assertEquals(new Rectangle(0, 0, WIDTH, WIDTH), op.getBounds());
+        assertByteValues(op.getData());
+    }
+    
+    @Test
+    public void parameterOverridesHint() throws Exception {
+        System.out.println("   data type parameter overrides ImageLayout hint");
+        
+        SampleModel sm = RasterFactory.createPixelInterleavedSampleModel(
+                DataBuffer.TYPE_BYTE, 1, 1, 1);
+        ImageLayout layout = new ImageLayout();
+        layout.setSampleModel(sm);
+        
+        RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        RenderedOp op = createOp(SCRIPT, DataBuffer.TYPE_SHORT, hints);
+        assertEquals(DataBuffer.TYPE_SHORT, op.getSampleModel().getDataType());
+        
+        Raster data = op.getData();
+        for (int x = 0; x < WIDTH; x++) {
+            assertEquals(Math.floor(x * 10 - 50.5 + 0.5), data.getSampleDouble(x, 0, 0), 0);
+        }
+    }
+    
+    private void assertByteValues(Raster data) {
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                double expected = Math.max(0, Math.min(255, Math.floor(x * 10 - 50.5 + 0.5)));
+                assertEquals(expected, data.getSample(x, y, 0), 0);
+            }
+        }
+    }
+    
+    private RenderedOp createOp(String script, Integer destType, RenderingHints hints) {
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.setParameter("script", script);
+        pb.setParameter("destName", "dest");
+        pb.setParameter("destBounds", new Rectangle(0, 0, WIDTH, WIDTH));
+        if (destType != null) {
+            pb.setParameter("destType", destType);
+        }
+        
+        return hints == null ? JAI.create("Jiffle", pb) : JAI.create("Jiffle", pb, hints);
+    }
+}
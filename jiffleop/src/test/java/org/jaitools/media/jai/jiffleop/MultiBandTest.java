@@ -0,0 +1,110 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.media.jai.jiffleop;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for Jiffle operations with more than one destination variable.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class MultiBandTest {
+    
+    private static final int WIDTH = 20;
+    
+    private static final String SCRIPT = 
+              "a = x() + y(); \n"
+            + "d1 = a + 1; \n"
+            + "d2 = a * 2;" ;
+    
+    @Test
+    public void bandPerDestination() throws Exception {
+        System.out.println("   one band per destination variable");
+        
+        RenderedOp op = createOp(SCRIPT, new String[] {"d1", "d2"}, null);
+        assertEquals(2, op.getSampleModel().getNumBands());
+        
+        Raster data = op.getData();
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + y + 1, data.getSampleDouble(x, y, 0), 1.0e-8);
+                assertEquals((x + y) * 2, data.getSampleDouble(x, y, 1), 1.0e-8);
+            }
+        }
+    }
+    
+    @Test
+    public void bandOrderFromParameter() throws Exception {
+        System.out.println("   band order follows destNames parameter");
+        
+        RenderedOp op = createOp(SCRIPT, new String[] {"d2", "d1"}, DataBuffer.TYPE_INT);
+        assertEquals(DataBuffer.TYPE_INT, op.getSampleModel().getDataType());
+        
+        Raster data = op.getData();
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals((x + y) * 2, data.getSample(x, y, 0));
+                assertEquals(x + y + 1, data.getSample(x, y, 1));
+            }
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void unassignedDestination() throws Exception {
+        System.out.println("   destination name not assigned by script");
+        createOp(SCRIPT, new String[] {"d1", "d3"}, null).getData();
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void duplicateDestination() throws Exception {
+        System.out.println("   duplicate destination names");
+        createOp(SCRIPT, new String[] {"d1", "d1"}, null).getData();
+    }
+    
+    private RenderedOp createOp(String script, String[] destNames, Integer destType) {
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.setParameter("script", script);
+        pb.setParameter("destNames", destNames);
+        pb.setParameter("destBounds", new Rectangle(0, 0, WIDTH, WIDTH));
+        if (destType != null) {
+            pb.setParameter("destType", destType);
+        }
+        
+        return JAI.create("Jiffle", pb);
+    }
+}
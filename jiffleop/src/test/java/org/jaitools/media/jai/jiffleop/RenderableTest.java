@@ -0,0 +1,168 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.media.jai.jiffleop;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderContext;
+
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderableOp;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.registry.RenderableRegistryMode;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Jiffle operation in the renderable mode.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RenderableTest {
+    
+    private static final double TOL = 1.0e-8;
+    
+    private static final int WIDTH = 40;
+    
+    private static final String SCRIPT = "dest = x() + 1000 * y();" ;
+    
+    @Test
+    public void renderableBounds() throws Exception {
+        System.out.println("   renderable bounds from destBounds parameter");
+        
+        RenderableOp op = createOp(SCRIPT, null);
+        assertEquals(0, op.getMinX(), TOL);
+        assertEquals(0, op.getMinY(), TOL);
+        assertEquals(WIDTH, op.getWidth(), TOL);
+        assertEquals(WIDTH, op.getHeight(), TOL);
+    }
+    
+    @Test
+    public void identityRendering() throws Exception {
+        System.out.println("   identity rendering is the same as rendered mode");
+        
+        RenderedImage image = createOp(SCRIPT, null).createRendering(
+                new RenderContext(new AffineTransform()));
+        
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.setParameter("script", SCRIPT);
+        pb.setParameter("destBounds", new Rectangle(0, 0, WIDTH, WIDTH));
+        RenderedOp rendered = JAI.create("Jiffle", pb);
+        
+        assertEquals(rendered.getBounds(), getBounds(image));
+        Raster expected = rendered.getData();
+        Raster data = image.getData();
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(expected.getSampleDouble(x, y, 0), data.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void reducedScale() throws Exception {
+        System.out.println("   rendering at reduced scale evaluates only its own pixels");
+        
+        RenderedImage image = createOp(SCRIPT, null).createRendering(
+                new RenderContext(AffineTransform.getScaleInstance(0.25, 0.25)));
+        
+        assertEquals(new Rectangle(0, 0, WIDTH / 4, WIDTH / 4), getBounds(image));
+        
+        Raster data = image.getData();
+        for (int y = 0; y < WIDTH / 4; y++) {
+            for (int x = 0; x < WIDTH / 4; x++) {
+                assertEquals(4 * x + 4000 * y, data.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void scaleAndTranslation() throws Exception {
+        System.out.println("   rendering with scale and translation");
+        
+        AffineTransform tr = AffineTransform.getTranslateInstance(100, 50);
+        tr.scale(2, 0.5);
+        RenderedImage image = createOp(SCRIPT, null).createRendering(new RenderContext(tr));
+        
+        assertEquals(new Rectangle(100, 50, 2 * WIDTH, WIDTH / 2), getBounds(image));
+        
+        Raster data = image.getData();
+        for (int y = 50; y < 50 + WIDTH / 2; y++) {
+            for (int x = 100; x < 100 + 2 * WIDTH; x++) {
+                double expected = (x - 100) / 2.0 + 1000 * (y - 50) * 2;
+                assertEquals(expected, data.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void renderableSource() throws Exception {
+        System.out.println("   renderable source rendered at the same scale");
+        
+        RenderableOp source = createOp("dest = x();", null);
+        RenderableOp op = createOp(
+                "options { outside = 0; } dest = src * 2 + src[4, 0];", source);
+        
+        RenderedImage image = op.createRendering(
+                new RenderContext(AffineTransform.getScaleInstance(0.25, 0.25)));
+        assertEquals(new Rectangle(0, 0, WIDTH / 4, WIDTH / 4), getBounds(image));
+        
+        Raster data = image.getData();
+        for (int x = 0; x < WIDTH / 4; x++) {
+            double right = x < WIDTH / 4 - 1 ? 4 * (x + 1) : 0;
+            assertEquals(8 * x + right, data.getSampleDouble(x, 3, 0), TOL);
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void rotationNotSupported() throws Exception {
+        System.out.println("   rotation is not supported");
+        createOp(SCRIPT, null).createRendering(
+                new RenderContext(AffineTransform.getRotateInstance(Math.PI / 6)));
+    }
+    
+    private RenderableOp createOp(String script, RenderableOp source) {
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle", RenderableRegistryMode.MODE_NAME);
+        pb.setParameter("script", script);
+        pb.setParameter("destBounds", new Rectangle(0, 0, WIDTH, WIDTH));
+        if (source != null) {
+            pb.addSource(source);
+        }
+        
+        return JAI.createRenderable("Jiffle", pb);
+    }
+    
+    private Rectangle getBounds(RenderedImage image) {
+        return new Rectangle(image.getMinX(), image.getMinY(), 
+                image.getWidth(), image.getHeight());
+    }
+}
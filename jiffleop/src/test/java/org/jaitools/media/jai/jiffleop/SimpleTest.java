@@ -28,6 +28,11 @@ package org.jaitools.media.jai.jiffleop;
 import java.awt.Dimension;
 import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.media.jai.JAI;
 import javax.media.jai.ParameterBlockJAI;
@@ -35,6 +40,7 @@ import javax.media.jai.RenderedOp;
 import javax.media.jai.iterator.RectIter;
 import javax.media.jai.iterator.RectIterFactory;
 
+import org.jaitools.CollectionFactory;
 import org.jaitools.jiffle.JiffleBuilder;
 
 import org.junit.After;
@@ -82,12 +88,65 @@ public class SimpleTest {
         RenderedOp op = JAI.create("Jiffle", pb);
         RenderedImage result = op.getRendering();
         
-        assertResult(result, script);
+        assertResult(result, script, WIDTH);
+    }
+    
+    @Test
+    public void concurrentTiles() throws Exception {
+        System.out.println("   tiles computed concurrently");
+        
+        final int width = 200;
+        JAI.setDefaultTileSize(new Dimension(16, 16));
+        
+        // the con call and repeated subexpressions use per-object 
+        // fields in the runtime class
+        String script = 
+                  "a = con(x() > y(), x() * y() + 1, (x() * y() + 1) / 2); \n"
+                + "dest = con(a % 3, a, -a);" ;
+        
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.setParameter("script", script);
+        pb.setParameter("destName", "dest");
+        pb.setParameter("destBounds", new Rectangle(0, 0, width, width));
+        
+        final RenderedOp op = JAI.create("Jiffle", pb);
+        
+        // request the tiles from several threads, as JAI's tile scheduler does
+        final int numThreads = 8;
+        ExecutorService service = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Object>> futures = CollectionFactory.list();
+            for (int i = 0; i < numThreads; i++) {
+                final int offset = i;
+                futures.add(service.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        int k = 0;
+                        for (int ty = op.getMinTileY(); ty <= op.getMaxTileY(); ty++) {
+                            for (int tx = op.getMinTileX(); tx <= op.getMaxTileX(); tx++) {
+                                if (k++ % numThreads == offset) {
+                                    op.getTile(tx, ty);
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            
+            for (Future<Object> f : futures) {
+                f.get();
+            }
+            
+        } finally {
+            service.shutdown();
+        }
+        
+        assertResult(op, script, width);
     }
 
-    private void assertResult(RenderedImage resultImage, String script) throws Exception {
+    private void assertResult(RenderedImage resultImage, String script, int width) throws Exception {
         JiffleBuilder builder = new JiffleBuilder();
-        builder.script(script).dest("dest", WIDTH, WIDTH).run();
+        builder.script(script).dest("dest", width, width).run();
         RenderedImage referenceImage = builder.getImage("dest");
 
         RectIter resultIter = RectIterFactory.create(resultImage, null);
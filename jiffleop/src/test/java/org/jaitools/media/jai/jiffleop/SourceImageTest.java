@@ -0,0 +1,210 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.media.jai.jiffleop;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.RenderedImage;
+
+import javax.media.jai.BorderExtender;
+import javax.media.jai.JAI;
+import javax.media.jai.ParameterBlockJAI;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.jiffle.JiffleBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for JiffleOpImage with source images read at neighbouring pixels.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class SourceImageTest {
+    
+    private static final double TOL = 1.0e-8;
+    
+    private static final int WIDTH = 20;
+    
+    private Dimension savedTileSize;
+    private RenderedImage srcImage;
+    
+    @Before
+    public void init() throws Exception {
+        savedTileSize = JAI.getDefaultTileSize();
+        JAI.setDefaultTileSize(new Dimension(8, 8));
+        
+        JiffleBuilder builder = new JiffleBuilder();
+        builder.script("src = y() * width() + x();").dest("src", WIDTH, WIDTH).run();
+        srcImage = builder.getImage("src");
+    }
+    
+    @After
+    public void reset() {
+        JAI.setDefaultTileSize(savedTileSize);
+    }
+    
+    @Test
+    public void sourceRectsFromFootprint() throws Exception {
+        System.out.println("   source and destination rectangles from footprint");
+        
+        RenderedOp op = createOp("dest = src[-1, 0] + src[2, 1];", null);
+        JiffleOpImage image = (JiffleOpImage) op.getRendering();
+        
+        Rectangle r = new Rectangle(8, 8, 8, 8);
+        assertEquals(new Rectangle(7, 8, 11, 9), image.mapDestRect(r, 0));
+        assertEquals(new Rectangle(6, 7, 11, 9), image.mapSourceRect(r, 0));
+        
+        // clipped to the destination bounds
+        Rectangle corner = new Rectangle(0, 0, 4, 4);
+        assertEquals(new Rectangle(0, 0, 5, 4), image.mapSourceRect(corner, 0));
+    }
+    
+    @Test
+    public void absolutePositionNeedsWholeSource() throws Exception {
+        System.out.println("   absolute source position needs whole source");
+        
+        RenderedOp op = createOp("dest = src[$(width() - 1 - x()), $y()];", null);
+        JiffleOpImage image = (JiffleOpImage) op.getRendering();
+        
+        Rectangle r = new Rectangle(8, 8, 8, 8);
+        assertEquals(new Rectangle(0, 0, WIDTH, WIDTH), image.mapDestRect(r, 0));
+        assertEquals(image.getBounds(), image.mapSourceRect(r, 0));
+        
+        assertResult(op, new PixelFunction() {
+            public double get(int x, int y) {
+                return srcValue(WIDTH - 1 - x, y);
+            }
+        });
+    }
+    
+    @Test
+    public void neighbourhoodWithOutsideValue() throws Exception {
+        System.out.println("   neighbourhood with outside value");
+        
+        RenderedOp op = createOp(
+                "options { outside = 1000; } dest = src[-1, 0] + src[1, 1];", null);
+        
+        assertResult(op, new PixelFunction() {
+            public double get(int x, int y) {
+                return srcOrOutside(x - 1, y) + srcOrOutside(x + 1, y + 1);
+            }
+        });
+    }
+    
+    @Test
+    public void neighbourhoodWithBorderExtender() throws Exception {
+        System.out.println("   neighbourhood with border extender hint");
+        
+        RenderingHints hints = new RenderingHints(JAI.KEY_BORDER_EXTENDER, 
+                BorderExtender.createInstance(BorderExtender.BORDER_ZERO));
+        
+        RenderedOp op = createOp(
+                "n = 0; foreach (d in -1:1) { n += src[d, d]; } dest = n;", hints);
+        
+        assertResult(op, new PixelFunction() {
+            public double get(int x, int y) {
+                double n = 0;
+                for (int d = -1; d <= 1; d++) {
+                    n += srcOrZero(x + d, y + d);
+                }
+                return n;
+            }
+        });
+    }
+    
+    @Test
+    public void namedSources() throws Exception {
+        System.out.println("   named source images");
+        
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.addSource(srcImage);
+        pb.addSource(srcImage);
+        pb.setParameter("script", "dest = a - b[0, -1];");
+        pb.setParameter("sourceNames", new String[] {"a", "b"});
+        pb.setParameter("destName", "dest");
+        
+        RenderedOp op = JAI.create("Jiffle", pb, new RenderingHints(
+                JAI.KEY_BORDER_EXTENDER, BorderExtender.createInstance(BorderExtender.BORDER_ZERO)));
+        
+        assertResult(op, new PixelFunction() {
+            public double get(int x, int y) {
+                return srcValue(x, y) - srcOrZero(x, y - 1);
+            }
+        });
+    }
+    
+    private interface PixelFunction {
+        double get(int x, int y);
+    }
+    
+    private RenderedOp createOp(String script, RenderingHints hints) {
+        ParameterBlockJAI pb = new ParameterBlockJAI("Jiffle");
+        pb.addSource(srcImage);
+        pb.setParameter("script", script);
+        pb.setParameter("destName", "dest");
+        
+        return hints == null ? JAI.create("Jiffle", pb) : JAI.create("Jiffle", pb, hints);
+    }
+    
+    private void assertResult(RenderedImage image, PixelFunction expected) {
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(WIDTH, image.getHeight());
+        
+        RandomIter iter = RandomIterFactory.create(image, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(expected.get(x, y), iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    private double srcValue(int x, int y) {
+        return y * WIDTH + x;
+    }
+    
+    private double srcOrOutside(int x, int y) {
+        if (x < 0 || x >= WIDTH || y < 0 || y >= WIDTH) {
+            return 1000;
+        }
+        return srcValue(x, y);
+    }
+    
+    private double srcOrZero(int x, int y) {
+        if (x < 0 || x >= WIDTH || y < 0 || y >= WIDTH) {
+            return 0;
+        }
+        return srcValue(x, y);
+    }
+}
@@ -21,6 +21,12 @@
 /**
  * Jiffle language parser grammar. Generates the primary AST
  * from an input Jiffle script.
+ * <p>
+ * The grammar does not use backtracking (which makes parse time grow
+ * faster than script length and requires large memo tables). Rules 
+ * whose alternatives share an arbitrarily long prefix, such as band and
+ * pixel specifiers, are left-factored instead, with semantic checks where
+ * the factored rule accepts more than the language allows.
  *
  * @author Michael Bedward
  */
@@ -30,8 +36,6 @@ grammar Jiffle;
 options {
     output=AST;
     ASTLabelType = CommonTree;
-    backtrack = true;
-    memoize = true;
 }
 
 tokens {
@@ -57,8 +61,11 @@ tokens {
 
     // Used by later tree parsers
     CONSTANT;
+    CSE_DEF;
     IMAGE_WRITE;
     LIST_NEW;
+    ROW_INVARIANT;
+    RUN_INVARIANT;
     VAR_IMAGE;
     VAR_PIXEL_SCOPE;
     VAR_PROVIDED;
@@ -120,6 +127,23 @@ private void setImageVar(String varName, int type) {
 
 public Map<String, Jiffle.ImageRole> getImageParams() { return imageParams; }
 
+/*
+ * Semantic checks for left-factored rules. These report errors in the
+ * same way as syntax errors.
+ */
+private void checkLoopSet(CommonTree tree, boolean sequence) throws RecognitionException {
+    int type = tree.getType();
+    if (sequence ? type == DECLARED_LIST : type != ID && type != DECLARED_LIST) {
+        throw new FailedPredicateException(input, "loopSet", "list, list variable or sequence");
+    }
+}
+
+private void checkImagePos(CommonTree first, CommonTree second) throws RecognitionException {
+    if (first.getType() != BAND_REF || second.getType() != PIXEL_REF) {
+        throw new FailedPredicateException(input, "imagePos", "[band][x, y]");
+    }
+}
+
 }
 
 
@@ -190,8 +214,10 @@ statement       : ifCall
                 ;
 
 
+// An else binds to the nearest if
 ifCall          : IF LPAR orExpression RPAR s1=statement
-                  ( ELSE s2=statement -> ^(IF orExpression $s1 $s2)
+                  ( options {greedy=true;} 
+                  : ELSE s2=statement -> ^(IF orExpression $s1 $s2)
                   | -> ^(IF orExpression $s1)
                   )
                 ;
@@ -208,9 +234,16 @@ loopCondition   : orExpression
                 ;
 
 
-loopSet         : listLiteral
-                | sequence
-                | ID
+/*
+ * A sequence, list literal or list variable. The first expression is
+ * parsed before deciding between these so that no backtracking is needed
+ * when a sequence starts with a list literal or variable.
+ */
+loopSet         : lo=expression 
+                  ( COLON hi=expression { checkLoopSet($lo.tree, true); } 
+                      -> ^(SEQUENCE $lo $hi)
+                  | { checkLoopSet($lo.tree, false); } -> $lo
+                  )
                 ;
 
 
@@ -218,10 +251,6 @@ expressionList  : (expression (COMMA expression)* )? -> ^(EXPR_LIST expression*)
                 ;
 
 
-sequence        : lo=expression COLON hi=expression -> ^(SEQUENCE $lo $hi)
-                ;
-
-
 /*
  * The "con" function is treated separately from general
  * functions during compilation because we want to ensure lazy evaluation
@@ -334,17 +363,25 @@ arguments       : LPAR! expressionList RPAR!
                 ;
 
 
-imagePos        : bandSpecifier pixelSpecifier
-                | pixelSpecifier
-                | bandSpecifier
-                ;
-
-
-pixelSpecifier  : LSQUARE pixelPos COMMA pixelPos RSQUARE -> ^(PIXEL_REF pixelPos pixelPos)
+/*
+ * Band and pixel specifiers both begin with an expression in square 
+ * brackets, so each is matched by imageSpecifier and the combination
+ * is checked here: either may appear alone, or a band specifier may be
+ * followed by a pixel specifier.
+ */
+imagePos        : s1=imageSpecifier 
+                  ( s2=imageSpecifier { checkImagePos($s1.tree, $s2.tree); } )?
                 ;
 
 
-bandSpecifier   : LSQUARE expression RSQUARE -> ^(BAND_REF expression)
+imageSpecifier  : LSQUARE
+                  ( ABS_POS_PREFIX x=expression COMMA y=pixelPos RSQUARE 
+                      -> ^(PIXEL_REF ^(ABS_POS $x) $y)
+                  | e=expression 
+                    ( COMMA y=pixelPos RSQUARE -> ^(PIXEL_REF ^(REL_POS $e) $y)
+                    | RSQUARE -> ^(BAND_REF $e)
+                    )
+                  )
                 ;
 
 
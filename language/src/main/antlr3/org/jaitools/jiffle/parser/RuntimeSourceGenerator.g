@@ -45,6 +45,37 @@ import org.jaitools.jiffle.runtime.AbstractJiffleRuntime;
 
 private SymbolScopeStack varScope = new SymbolScopeStack();
 
+/* Set when the script assigns to an image-scope variable outside the init block */
+private boolean imageScopeVarsWritten = false;
+
+/* Destination variables in order of first assignment in the script */
+private List<String> destVars = new ArrayList<String>();
+
+/*
+ * Gets the expression which records that destination value _k has been
+ * set and tests whether all values have now been set. Pixel evaluation
+ * ends when this is true. Beyond 63 destinations the test is not made.
+ */
+private String getDestsSetExpr() {
+    int n = destVars.size();
+    if (n <= 1) {
+        return "true";
+    } else if (n < 64) {
+        return "(_destsSet |= 1L << _k) == 0x" + Long.toHexString((1L << n) - 1) + "L";
+    } else {
+        return "false";
+    }
+}
+
+private int getDestIndex(String varName) {
+    int index = destVars.indexOf(varName);
+    if (index < 0) {
+        destVars.add(varName);
+        index = destVars.size() - 1;
+    }
+    return index;
+}
+
 private String getConstantString(String name) {
     String s = String.valueOf(ConstantLookup.getValue(name));
     if ("NaN".equals(s)) {
@@ -67,12 +98,20 @@ generate [String script]
     if (script != null && script.length() > 0) {
         scriptLines = prepareScriptForComments(script);
     }
+    List parts = null;
 }
-                : o+=jiffleOption* v+=varDeclaration* s+=statement+
+                : o+=jiffleOption* v+=varDeclaration* 
+                  r+=runInvariant* w+=rowInvariant* c+=cseDefinition* s+=statement+
+                { parts = getEvaluationParts($s); }
 
                 -> runtime(script={scriptLines}, pkgname={pkgName}, imports={imports},
                            name={className}, base={baseClassName}, 
-                           opts={$o}, fields={$v}, eval={$s})
+                           opts={$o}, fields={$v}, images={imageVars},
+                           tempfields={tempFields}, runinv={$r}, rowinv={$w},
+                           hasinv={$r != null || $w != null}, cse={$c}, eval={$s},
+                           parts={parts}, partcalls={parts != null ? partCalls : null},
+                           writesvars={imageScopeVarsWritten}, dests={destVars},
+                           multidest={destVars.size() > 1}, destsset={getDestsSetExpr()})
                 ;
 
 
@@ -100,6 +139,27 @@ varDeclaration  : ^(DECL VAR_DEST ID)
                 ;
 
 
+runInvariant    : ^(RUN_INVARIANT VAR_PROVIDED e=expression)
+                { tempFields.add("double " + $VAR_PROVIDED.text); }
+                -> invariant(var={$VAR_PROVIDED.text}, expr={$e.st})
+                ;
+
+
+rowInvariant    : ^(ROW_INVARIANT VAR_PROVIDED e=expression)
+                { tempFields.add("double " + $VAR_PROVIDED.text); }
+                -> invariant(var={$VAR_PROVIDED.text}, expr={$e.st})
+                ;
+
+
+cseDefinition   : ^(CSE_DEF VAR_PROVIDED e=expression)
+                {
+                    tempFields.add("double " + $VAR_PROVIDED.text + "Value");
+                    tempFields.add("long " + $VAR_PROVIDED.text + "Pixel");
+                }
+                -> csemethod(name={$VAR_PROVIDED.text}, expr={$e.st})
+                ;
+
+
 block
 @init {
     varScope.addLevel("block");
@@ -129,7 +189,9 @@ simpleStatement : imageWrite -> {$imageWrite.st}
 
 
 imageWrite      : ^(IMAGE_WRITE VAR_DEST expression)
-                -> setdestvalue(var={$VAR_DEST.text}, expr={$expression.st})
+                -> setdestvalue(var={$VAR_DEST.text}, slot={getImageSlot($VAR_DEST.text)}, 
+                                index={getDestIndex($VAR_DEST.text)},
+                                expr={$expression.st}, split={splitEvaluation})
                 ;
 
 
@@ -175,6 +237,11 @@ scope { boolean isNew; }
                     if ($listAssignment::isNew) {
                         addImport("java.util.List", "java.util.ArrayList"); 
                         varScope.addSymbol($VAR_LIST.text, SymbolType.LIST, ScopeType.PIXEL);
+                        
+                        if (splitEvaluation) {
+                            addTempField("List " + $VAR_LIST.text);
+                            $listAssignment::isNew = false;
+                        }
                     }
                 }
 
@@ -189,10 +256,17 @@ scalar returns [boolean newVar]
 }
 @after { 
     String varName = $start.getText();
-    if ($newVar) {
+    if ($newVar && splitEvaluation) {
+        // pixel-scope variables are fields of the runtime class when the
+        // per-pixel code is split into several methods
+        addTempField("double " + varName);
+        $st = %{varName};
+
+    } else if ($newVar) {
         $st = %{"double " + varName};
 
     } else if ($start.getType() == VAR_IMAGE_SCOPE) {
+        imageScopeVarsWritten = true;
         $st = %{getImageScopeVarExpr(varName)};
 
     } else {
@@ -249,22 +323,21 @@ foreachLoop
 
 
 ifCall          : ^(IF expression s1=statement s2=statement?)
-                -> {$s2.st == null}? ifcall(cond={$expression.st}, case={$s1.st})
-                -> ifelsecall(cond={$expression.st}, case1={$s1.st}, case2={$s2.st})
+                -> {$s2.st == null}? ifcall(n={newSignVar()}, cond={$expression.st}, case={$s1.st})
+                -> ifelsecall(n={newSignVar()}, cond={$expression.st}, case1={$s1.st}, case2={$s2.st})
                 ;
 
 
 expression      : ^(FUNC_CALL ID el=expressionList) 
-                -> call(name={getRuntimeExpr($ID.text, $el.argTypes)}, args={$el.templates})
+                -> {getFunctionCall($ID.text, $el.argTypes, $el.templates)}
 
-                | ^(CON_CALL el=expressionList) -> concall(args={$el.templates})
+                | ^(CON_CALL el=expressionList) -> concall(n={newSignVar()}, args={$el.templates})
 
                 | imagePos -> {$imagePos.st}
 
                 | binaryExpression -> {$binaryExpression.st}
 
-                | ^(PREFIX NOT e=expression) 
-                -> call(name={getRuntimeExpr("NOT", "D")}, args={$e.st})
+                | ^(PREFIX NOT ne+=expression) -> {getOperatorCall("NOT", $ne)}
 
                 | ^(PREFIX prefixOp e=expression) -> preop(op={$prefixOp.st}, expr={$e.st})
 
@@ -278,7 +351,7 @@ expression      : ^(FUNC_CALL ID el=expressionList)
 
                 | var -> {$var.st}
 
-                | VAR_SOURCE -> getsourcevalue(var={$VAR_SOURCE.text})
+                | VAR_SOURCE -> getsourcevalue(var={$VAR_SOURCE.text}, slot={getImageSlot($VAR_SOURCE.text)})
 
                 | CONSTANT -> {%{getConstantString($CONSTANT.text)}}
 
@@ -305,35 +378,26 @@ var             : VAR_IMAGE_SCOPE -> {%{getImageScopeVarExpr($VAR_IMAGE_SCOPE.te
                 ;
 
 
-binaryExpression returns [String src]
+binaryExpression
                 : ^(POW x=expression y=expression) -> pow(x={x.st}, y={y.st})
 
-                | ^(OR e+=expression e+=expression) 
-                { $src = getRuntimeExpr("OR", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(OR e+=expression e+=expression) -> {getOperatorCall("OR", $e)}
 
-                | ^(XOR e+=expression e+=expression) 
-                { $src = getRuntimeExpr("XOR", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(XOR e+=expression e+=expression) -> {getOperatorCall("XOR", $e)}
 
-                | ^(AND e+=expression e+=expression) 
-                { $src = getRuntimeExpr("AND", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(AND e+=expression e+=expression) -> {getOperatorCall("AND", $e)}
 
-                | ^(LOGICALEQ e+=expression e+=expression) 
-                { $src = getRuntimeExpr("EQ", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(LOGICALEQ e+=expression e+=expression) -> {getOperatorCall("EQ", $e)}
 
-                | ^(NE e+=expression e+=expression) 
-                { $src = getRuntimeExpr("NE", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(NE e+=expression e+=expression) -> {getOperatorCall("NE", $e)}
 
-                | ^(GT e+=expression e+=expression) 
-                { $src = getRuntimeExpr("GT", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(GT e+=expression e+=expression) -> {getOperatorCall("GT", $e)}
 
-                | ^(GE e+=expression e+=expression) 
-                { $src = getRuntimeExpr("GE", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(GE e+=expression e+=expression) -> {getOperatorCall("GE", $e)}
 
-                | ^(LT e+=expression e+=expression) 
-                { $src = getRuntimeExpr("LT", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(LT e+=expression e+=expression) -> {getOperatorCall("LT", $e)}
 
-                | ^(LE e+=expression e+=expression) 
-                { $src = getRuntimeExpr("LE", "D", "D"); } -> call(name={$src}, args={$e})
+                | ^(LE e+=expression e+=expression) -> {getOperatorCall("LE", $e)}
 
                 | ^(arithmeticOp x=expression y=expression) 
                 -> binaryexpr(lhs={x.st}, op={$arithmeticOp.st}, rhs={y.st})
@@ -356,7 +420,8 @@ literal         : INT_LITERAL -> {%{$INT_LITERAL.text + ".0"}}
 
 
 imagePos        : ^(IMAGE_POS VAR_SOURCE b=bandSpecifier? p=pixelSpecifier?)
-                -> getsourcevalue(var={$VAR_SOURCE.text}, pixel={$p.st}, band={$b.st})
+                -> getsourcevalue(var={$VAR_SOURCE.text}, slot={getImageSlot($VAR_SOURCE.text)},
+                                  pixel={$p.st}, band={$b.st})
                 ;
 
 
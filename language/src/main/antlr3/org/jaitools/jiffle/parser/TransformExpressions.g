@@ -20,7 +20,11 @@
   
  /**
   * Converts calls to proxy functions into the associated variables and
-  * converts ternary conditional expressions to if calls.
+  * converts ternary conditional expressions to if calls. In the same walk
+  * it checks for valid use of variables (assignments to source images or
+  * constants, uninitialized variables) and checks that each remaining 
+  * function call matches a defined function. Previously these checks
+  * were separate passes over the tree.
   *
   * @author Michael Bedward
   */
@@ -41,13 +45,77 @@ package org.jaitools.jiffle.parser;
 
 @members {
 
+private MessageTable msgTable;
+private SymbolScopeStack varScope;
+private boolean checkVars = true;
+
+public TransformExpressions(TreeNodeStream input, MessageTable msgTable) {
+    this(input);
+    if (msgTable == null) {
+        throw new IllegalArgumentException( "msgTable should not be null" );
+    }
+    this.msgTable = msgTable;
+
+    varScope = new SymbolScopeStack();
+}
+
+private void checkAssignment(CommonTree id, CommonTree op) {
+    String varName = id.getText();
+    int idtype = id.getType();
+    switch (idtype) {
+        case CONSTANT:
+            msgTable.add(varName, Message.CONSTANT_LHS);
+            break;
+
+        case VAR_SOURCE:
+            msgTable.add(varName, Message.ASSIGNMENT_TO_SRC_IMAGE); 
+            break;
+
+        default:
+            if (op.getType() == EQ) {
+                if (!varScope.isDefined(varName)) {
+                    varScope.addSymbol(varName, SymbolType.SCALAR, ScopeType.PIXEL);
+                }
+
+            } else if (idtype == VAR_DEST) {
+                msgTable.add(varName, Message.INVALID_ASSIGNMENT_OP_WITH_DEST_IMAGE);
+
+            } else if (!varScope.isDefined(varName)) {
+                msgTable.add(varName, Message.UNINIT_VAR);
+            }
+    }
+}
+
+private void checkVarDefined(String varName, Message msg) {
+    if (checkVars && !varScope.isDefined(varName)) {
+        msgTable.add(varName, msg);
+    }
+}
+
+private void checkFunctionCall(String name, List<String> argTypes) {
+    if (!FunctionLookup.isDefined(name, argTypes)) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name);
+        sb.append("(");
+        int k = 0;
+        for (String s : argTypes) {
+            sb.append(s);
+            if (++k < argTypes.size()) {
+                sb.append(", ");
+            }
+        }
+        sb.append(")");
+        msgTable.add(sb.toString(), Message.UNDEFINED_FUNCTION);
+    }
+}
+
 private boolean isProxy(String name) {
     try {
         return FunctionLookup.getInfo(name, null).isProxy(); 
 
     } catch (UndefinedFunctionException ex) {
         // If the function is not defined we let it pass here. It
-        // will be picked up later by the function checking parser.
+        // will be reported by checkFunctionCall.
         return false;
     }
 }
@@ -65,7 +133,11 @@ private String getRuntimeExpr(String name) {
 }
 
 
-start           : jiffleOption* varDeclaration* statement+
+start
+@init {
+    varScope.addLevel("top");
+}
+                : jiffleOption* varDeclaration* statement+
                 ;
 
 
@@ -76,7 +148,14 @@ jiffleOption    : ^(JIFFLE_OPTION .+)
 varDeclaration  : ^(DECL VAR_DEST ID)
                 | ^(DECL VAR_SOURCE ID)
 
-                |^(DECL id=. expression?)
+                // Initial values of image-scope variables are not checked
+                // for uninitialized variables
+                | ^(DECL VAR_IMAGE_SCOPE 
+                  { 
+                      varScope.addSymbol($VAR_IMAGE_SCOPE.text, SymbolType.SCALAR, ScopeType.IMAGE);
+                      checkVars = false;
+                  } 
+                  expression? { checkVars = true; } )
                 ;
 
 
@@ -89,7 +168,7 @@ statement       : block
                 | assignmentExpression
                 | ^(WHILE loopCondition statement)
                 | ^(UNTIL loopCondition statement)
-                | ^(FOREACH ID loopSet statement)
+                | foreachLoop
                 | ^(BREAKIF expression)
                 | BREAK
                 | expression
@@ -100,6 +179,17 @@ ifCall          : ^(IF expression statement statement?)
                 ;
 
 
+foreachLoop
+@init {
+    varScope.addLevel("foreach");
+}
+@after {
+    varScope.dropLevel();
+}
+                : ^(FOREACH ID {varScope.addSymbol($ID.text, SymbolType.LOOP_VAR, ScopeType.PIXEL);} loopSet statement)
+                ;
+
+
 loopCondition   : expression
                 ;
 
@@ -114,13 +204,15 @@ expressionList returns [List<String> argTypes]
 @init{ $argTypes = new ArrayList<String>(); }
                 : ^(EXPR_LIST (e=expression
                     { 
-                        $argTypes.add($e.start.getType() == VAR_LIST ? "List" : "D");
+                        int ttype = $e.start.getType();
+                        $argTypes.add(ttype == VAR_LIST || ttype == DECLARED_LIST ? "List" : "D");
                     } )* )
                 ;
 
 
 assignmentExpression
                 : ^(assignmentOp identifier expression)
+                { checkAssignment($identifier.start, $assignmentOp.start); }
                 ;
 
 
@@ -135,6 +227,11 @@ assignmentOp    : EQ
 
 expression
                 : ^(FUNC_CALL ID expressionList)
+                  { 
+                      if (!isProxy($ID.text)) {
+                          checkFunctionCall($ID.text, $expressionList.argTypes);
+                      }
+                  }
                   -> {isProxy($ID.text)}? VAR_PROVIDED[ getRuntimeExpr($ID.text) ]
                   -> ^(FUNC_CALL ID expressionList)
                     
@@ -156,10 +253,20 @@ expression
                 | listLiteral
                 | literal
                 | identifier
+                {
+                    switch ($identifier.start.getType()) {
+                        case VAR_IMAGE_SCOPE:
+                        case VAR_PIXEL_SCOPE:
+                        case VAR_LOOP:
+                        case VAR_LIST:
+                            checkVarDefined($identifier.start.getText(), Message.UNINIT_VAR);
+                    }
+                }
                 ;
 
 
 listOperation   : ^(APPEND VAR_LIST expression)
+                { checkVarDefined($VAR_LIST.text, Message.UNDECLARED_LIST_VAR); }
                 ;
 
 
@@ -0,0 +1,276 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * Records the time taken, and memory allocated, by each phase of 
+ * compiling a script and creating its runtime class. An instance is
+ * available from {@link Jiffle#getCompileStats()}. It is reset each time
+ * the script is compiled; the runtime class phases then accumulate over
+ * calls to {@code getRuntimeInstance} and {@code getRuntimeSource} (a
+ * runtime object created from a cached class adds nothing).
+ * <p>
+ * Allocation is measured per thread with the HotSpot extension of
+ * {@link ThreadMXBean}. On JVMs without it, {@link #getAllocatedBytes(Phase)}
+ * returns -1.
+ * <p>
+ * Example:
+ * <pre><code>
+ * Jiffle jiffle = new Jiffle(script, imageParams);
+ * JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+ * System.out.println(jiffle.getCompileStats());
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CompileStats {
+    
+    /**
+     * Compiler phases.
+     */
+    public static enum Phase {
+        /** Converting the script into tokens. */
+        LEX("lex"),
+        
+        /** Parsing the tokens into the primary AST. */
+        PARSE("parse"),
+        
+        /** Reading the options block. */
+        OPTIONS("options"),
+        
+        /** Tagging variables with their types. */
+        TAG_VARS("tag variables"),
+        
+        /** Checking variables and function calls and transforming expressions. */
+        CHECK_AND_TRANSFORM("check and transform"),
+        
+        /** Simplifying constant expressions. */
+        SIMPLIFY("simplify"),
+        
+        /** Hoisting invariant expressions out of the per-pixel code. */
+        HOIST("hoist invariants"),
+        
+        /** Eliminating common sub-expressions. */
+        ELIMINATE_SUBEXPRESSIONS("eliminate subexpressions"),
+        
+        /** Generating the runtime class directly as bytecode. */
+        BYTECODE("bytecode generation"),
+        
+        /** Generating runtime source from the string templates. */
+        SOURCE_GENERATION("source generation"),
+        
+        /** Compiling runtime source (e.g. with Janino). */
+        SOURCE_COMPILE("source compile");
+        
+        private final String label;
+        
+        private Phase(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+    
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final Method ALLOCATED_BYTES_METHOD = getAllocatedBytesMethod();
+
+    private final long[] times = new long[Phase.values().length];
+    private final long[] bytes = new long[Phase.values().length];
+    private final boolean[] recorded = new boolean[Phase.values().length];
+    
+    
+    /**
+     * Tests whether allocated memory is being measured.
+     * 
+     * @return {@code true} if allocation is measured; {@code false} otherwise
+     */
+    public static boolean isAllocationMeasured() {
+        return ALLOCATED_BYTES_METHOD != null;
+    }
+    
+    /**
+     * Tests whether the given phase has been recorded.
+     * 
+     * @param phase the phase
+     * @return {@code true} if recorded; {@code false} otherwise
+     */
+    public synchronized boolean isRecorded(Phase phase) {
+        return recorded[phase.ordinal()];
+    }
+    
+    /**
+     * Gets the wall time taken by a phase.
+     * 
+     * @param phase the phase
+     * @return time in milliseconds (0 if the phase was not recorded)
+     */
+    public synchronized double getTimeMillis(Phase phase) {
+        return times[phase.ordinal()] / 1.0e6;
+    }
+    
+    /**
+     * Gets the memory allocated by a phase.
+     * 
+     * @param phase the phase
+     * @return allocated bytes, or -1 if allocation is not measured
+     */
+    public synchronized long getAllocatedBytes(Phase phase) {
+        return isAllocationMeasured() ? bytes[phase.ordinal()] : -1;
+    }
+    
+    /**
+     * Gets the total wall time of all recorded phases.
+     * 
+     * @return time in milliseconds
+     */
+    public synchronized double getTotalTimeMillis() {
+        long total = 0;
+        for (long t : times) {
+            total += t;
+        }
+        return total / 1.0e6;
+    }
+    
+    /**
+     * Gets the total memory allocated by all recorded phases.
+     * 
+     * @return allocated bytes, or -1 if allocation is not measured
+     */
+    public synchronized long getTotalAllocatedBytes() {
+        if (!isAllocationMeasured()) {
+            return -1;
+        }
+        long total = 0;
+        for (long b : bytes) {
+            total += b;
+        }
+        return total;
+    }
+    
+    /**
+     * Returns a table of the recorded phases with their times and 
+     * allocated memory.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-26s %12s %14s%n", "phase", "time (ms)", "allocated (kB)"));
+        
+        for (Phase phase : Phase.values()) {
+            if (recorded[phase.ordinal()]) {
+                sb.append(String.format("%-26s %12.3f %14s%n", phase, 
+                        getTimeMillis(phase), formatBytes(getAllocatedBytes(phase))));
+            }
+        }
+        
+        sb.append(String.format("%-26s %12.3f %14s%n", "total", 
+                getTotalTimeMillis(), formatBytes(getTotalAllocatedBytes())));
+        return sb.toString();
+    }
+    
+    /**
+     * Marks the start of a phase on the current thread.
+     * 
+     * @return the start values to pass to {@link #end(Phase, long[])}
+     */
+    long[] start() {
+        return new long[] { System.nanoTime(), getThreadAllocatedBytes() };
+    }
+    
+    /**
+     * Records a phase which began with {@link #start()} on the current 
+     * thread.
+     * 
+     * @param phase the phase
+     * @param start the start values
+     */
+    void end(Phase phase, long[] start) {
+        long elapsed = System.nanoTime() - start[0];
+        long allocated = getThreadAllocatedBytes() - start[1];
+        
+        synchronized (this) {
+            int i = phase.ordinal();
+            times[i] += elapsed;
+            bytes[i] += allocated;
+            recorded[i] = true;
+        }
+    }
+    
+    private static String formatBytes(long n) {
+        return n < 0 ? "n/a" : String.format("%.1f", n / 1024.0);
+    }
+
+    private static long getThreadAllocatedBytes() {
+        if (ALLOCATED_BYTES_METHOD != null) {
+            try {
+                return (Long) ALLOCATED_BYTES_METHOD.invoke(
+                        THREAD_BEAN, Thread.currentThread().getId());
+                
+            } catch (Exception ex) {
+                // fall through
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Looks up {@code getThreadAllocatedBytes(long)} on the HotSpot
+     * thread bean, enabling allocation measurement if necessary.
+     */
+    private static Method getAllocatedBytesMethod() {
+        try {
+            Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+            if (!clazz.isInstance(THREAD_BEAN)) {
+                return null;
+            }
+            
+            Method supported = clazz.getMethod("isThreadAllocatedMemorySupported");
+            if (!(Boolean) supported.invoke(THREAD_BEAN)) {
+                return null;
+            }
+            
+            Method enabled = clazz.getMethod("isThreadAllocatedMemoryEnabled");
+            if (!(Boolean) enabled.invoke(THREAD_BEAN)) {
+                clazz.getMethod("setThreadAllocatedMemoryEnabled", boolean.class)
+                        .invoke(THREAD_BEAN, true);
+            }
+            
+            return clazz.getMethod("getThreadAllocatedBytes", long.class);
+            
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.io.StringReader;
+import java.util.Map;
+
+import org.codehaus.janino.ClassLoaderIClassLoader;
+import org.codehaus.janino.DebuggingInformation;
+import org.codehaus.janino.Java;
+import org.codehaus.janino.Parser;
+import org.codehaus.janino.Scanner;
+import org.codehaus.janino.UnitCompiler;
+import org.codehaus.janino.util.ClassFile;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Compiles runtime source with the embedded Janino compiler. This is the 
+ * default {@link RuntimeCompiler}. Unlike Janino's {@code SimpleCompiler},
+ * it gives access to the bytecode so that it can be stored by 
+ * {@link RuntimeDiskCache}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JaninoRuntimeCompiler implements RuntimeCompiler {
+
+    /**
+     * {@inheritDoc}
+     * @return {@code "janino"}
+     */
+    public String getName() {
+        return JiffleProperties.COMPILER_JANINO;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, byte[]> compile(String className, String source, ClassLoader parent)
+            throws JiffleException {
+        try {
+            Scanner scanner = new Scanner(null, new StringReader(source));
+            Java.CompilationUnit unit = new Parser(scanner).parseCompilationUnit();
+
+            UnitCompiler compiler = new UnitCompiler(unit, new ClassLoaderIClassLoader(parent));
+
+            ClassFile[] classFiles = compiler.compileUnit(
+                    DebuggingInformation.DEFAULT_DEBUGGING_INFORMATION);
+
+            Map<String, byte[]> classes = CollectionFactory.map();
+            for (ClassFile cf : classFiles) {
+                classes.put(cf.getThisClassName(), cf.toByteArray());
+            }
+            return classes;
+            
+        } catch (Exception ex) {
+            throw new JiffleException("Janino failed to compile " + className, ex);
+        }
+    }
+    
+}
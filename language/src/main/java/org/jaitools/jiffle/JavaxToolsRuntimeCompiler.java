@@ -0,0 +1,199 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Compiles runtime source in memory with the JDK's system Java compiler
+ * (the {@code javax.tools} API). Unlike Janino, this supports the full
+ * Java language, so generated code may use generics and other modern 
+ * constructs. It requires Jiffle to be running on a JDK rather than a JRE.
+ * <p>
+ * The compiler's class path is made up of the {@code java.class.path}
+ * system property, the URLs of any {@code URLClassLoader} in the parent
+ * class loader chain, and the locations of the Jiffle and JAI classes.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JavaxToolsRuntimeCompiler implements RuntimeCompiler {
+
+    /**
+     * {@inheritDoc}
+     * @return {@code "javac"}
+     */
+    public String getName() {
+        return JiffleProperties.COMPILER_JAVAC;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, byte[]> compile(String className, final String source, ClassLoader parent)
+            throws JiffleException {
+        
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null) {
+            throw new JiffleException(
+                    "No system Java compiler available (running on a JRE rather than a JDK ?)");
+        }
+        
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        StandardJavaFileManager stdManager = javac.getStandardFileManager(diagnostics, null, null);
+        
+        final Map<String, ByteArrayOutputStream> outputs = CollectionFactory.orderedMap();
+        JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(stdManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, 
+                    final String name, JavaFileObject.Kind kind, FileObject sibling) {
+                
+                return new SimpleJavaFileObject(createURI(name, kind), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        outputs.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        
+        JavaFileObject sourceFile = new SimpleJavaFileObject(
+                createURI(className, JavaFileObject.Kind.SOURCE), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        
+        List<String> options = Arrays.asList(
+                "-classpath", getClassPath(parent), "-g", "-proc:none", "-nowarn");
+        
+        Boolean success = javac.getTask(null, manager, diagnostics, options, null, 
+                Collections.singletonList(sourceFile)).call();
+        
+        if (!Boolean.TRUE.equals(success)) {
+            List<String> errors = CollectionFactory.list();
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+                if (d.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.add("line " + d.getLineNumber() + ": " + d.getMessage(null));
+                }
+            }
+            if (errors.isEmpty()) {
+                errors.add("javac failed to compile " + className);
+            }
+            throw new JiffleException(errors);
+        }
+        
+        Map<String, byte[]> classes = CollectionFactory.map();
+        for (Map.Entry<String, ByteArrayOutputStream> e : outputs.entrySet()) {
+            classes.put(e.getKey(), e.getValue().toByteArray());
+        }
+        return classes;
+    }
+    
+    private static URI createURI(String className, JavaFileObject.Kind kind) {
+        return URI.create("mem:///" + className.replace('.', '/') + kind.extension);
+    }
+    
+    /*
+     * Builds the class path passed to the compiler.
+     */
+    private static String getClassPath(ClassLoader parent) {
+        Set<String> entries = CollectionFactory.orderedSet();
+        
+        String sysPath = System.getProperty("java.class.path");
+        if (sysPath != null) {
+            for (String s : sysPath.split(File.pathSeparator)) {
+                if (s.length() > 0) {
+                    entries.add(s);
+                }
+            }
+        }
+        
+        for (ClassLoader loader = parent; loader != null; loader = loader.getParent()) {
+            if (loader instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) loader).getURLs()) {
+                    addLocation(entries, url);
+                }
+            }
+        }
+        
+        for (Class<?> clazz : new Class<?>[] {Jiffle.class, RandomIter.class, CollectionFactory.class}) {
+            CodeSource cs = clazz.getProtectionDomain().getCodeSource();
+            if (cs != null) {
+                addLocation(entries, cs.getLocation());
+            }
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        for (String s : entries) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+    
+    private static void addLocation(Set<String> entries, URL url) {
+        if (url != null && "file".equals(url.getProtocol())) {
+            try {
+                entries.add(new File(url.toURI()).getPath());
+            } catch (Exception ignored) {
+                // not a usable file location
+            }
+        }
+    }
+    
+}
@@ -32,6 +32,11 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.antlr.runtime.ANTLRStringStream;
@@ -40,11 +45,13 @@ import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 
-import org.codehaus.janino.SimpleCompiler;
+import org.codehaus.janino.ByteArrayClassLoader;
 
 import org.jaitools.CollectionFactory;
-import org.jaitools.jiffle.parser.CheckAssignments;
-import org.jaitools.jiffle.parser.CheckFunctionCalls;
+import org.jaitools.DaemonThreadFactory;
+import org.jaitools.jiffle.CompileStats.Phase;
+import org.jaitools.jiffle.parser.ExpressionSimplifier;
+import org.jaitools.jiffle.parser.InvariantHoister;
 import org.jaitools.jiffle.parser.JiffleLexer;
 import org.jaitools.jiffle.parser.JiffleParser;
 import org.jaitools.jiffle.parser.JiffleParserException;
@@ -52,13 +59,20 @@ import org.jaitools.jiffle.parser.Message;
 import org.jaitools.jiffle.parser.MessageTable;
 import org.jaitools.jiffle.parser.OptionsBlockReader;
 import org.jaitools.jiffle.parser.ParsingErrorReporter;
+import org.jaitools.jiffle.parser.RuntimeBytecodeGenerator;
 import org.jaitools.jiffle.parser.RuntimeSourceGenerator;
+import org.jaitools.jiffle.parser.SourceFootprintAnalyzer;
 import org.jaitools.jiffle.parser.SourceGenerator;
+import org.jaitools.jiffle.parser.SubexpressionEliminator;
 import org.jaitools.jiffle.parser.TagVars;
 import org.jaitools.jiffle.parser.TransformExpressions;
+import org.jaitools.jiffle.runtime.AbstractDirectRuntime;
+import org.jaitools.jiffle.runtime.AbstractIndirectRuntime;
+import org.jaitools.jiffle.runtime.InterpretedDirectRuntime;
 import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
 import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
 import org.jaitools.jiffle.runtime.JiffleRuntime;
+import org.jaitools.jiffle.runtime.TieredDirectRuntime;
 
 /**
  * Compiles scripts and generates Java sources and executable bytecode for
@@ -92,8 +106,20 @@ import org.jaitools.jiffle.runtime.JiffleRuntime;
  * <h4>Implementation note</h4>
  * The Jiffle compiler is actually a Jiffle to Java translator.
  * When a client requests a runtime object, the script is translated into 
- * Java source for a runtime class. This source code is then passed to an 
- * embedded Janino compiler which produces the runtime object.
+ * Java source for a runtime class. This source code is then passed to a 
+ * {@link RuntimeCompiler} (by default the embedded Janino compiler) which 
+ * produces the runtime object. For the direct runtime model, the class is 
+ * usually created as bytecode without the intermediate source. Compiled
+ * runtime classes are held in a {@link RuntimeClassCache} so that repeated
+ * requests for the same script do not repeat this work. The time taken by
+ * each compiler phase is available from {@link #getCompileStats()}.
+ *
+ * <h4>Thread safety</h4>
+ * A {@code Jiffle} object holds the state of a single compile (tokens, 
+ * ASTs and messages) and must not be shared between threads while it is
+ * being compiled. Separate {@code Jiffle} objects can be compiled 
+ * concurrently. To compile scripts from many threads, use a 
+ * {@link JiffleCompiler}.
  *
  * @see JiffleBuilder
  * @see org.jaitools.jiffle.runtime.JiffleExecutor
@@ -167,7 +193,7 @@ public class Jiffle {
 
     
     /** Number of Jiffle instances */
-    private static int refCount = 0;
+    private static final AtomicInteger refCount = new AtomicInteger();
     
 
     /**
@@ -184,6 +210,9 @@ public class Jiffle {
         DEST;
     }
 
+    /** Compiles runtime classes in the background for tiered execution. */
+    private static ExecutorService compilerService;
+
     /** A name: either a default or one set by the client */
     private String name;
 
@@ -195,7 +224,9 @@ public class Jiffle {
     private ParsingErrorReporter errorReporter;
     
     private Map<String, ImageRole> imageParams;
+    private Map<String, ImageRole> suppliedImageParams;
     private MessageTable msgTable;
+    private CompileStats compileStats;
     
     /**
      * Creates a new instance.
@@ -379,6 +410,12 @@ public class Jiffle {
         }
         
         clearCompiledObjects();
+        
+        // record the parameters as supplied, before any images block
+        // in the script replaces them, for runtime class cache keys
+        suppliedImageParams = CollectionFactory.map();
+        suppliedImageParams.putAll(imageParams);
+        
         buildPrimaryAST();
         
         if (imageParams.isEmpty()) {
@@ -389,10 +426,21 @@ public class Jiffle {
         reportMessages();
         
         if (!transformAndCheckVars()) {
-            throw new JiffleException(messagesToString());
+            throw new JiffleException(messagesToString(msgTable));
         }
     }
     
+    /**
+     * Gets the times taken and memory allocated by the phases of compiling
+     * the script and creating runtime classes. The statistics are reset 
+     * each time the script is compiled.
+     * 
+     * @return compile statistics
+     */
+    public CompileStats getCompileStats() {
+        return compileStats;
+    }
+    
     /**
      * Tests whether the script has been compiled successfully.
      *
@@ -403,6 +451,26 @@ public class Jiffle {
         return (finalAST != null);
     }
     
+    /**
+     * Gets the footprint of each source image read by the script: the range
+     * of positions, relative to the pixel being evaluated, at which the 
+     * image is read. Clients such as image operators can use this to 
+     * limit the source area needed to evaluate part of the processing
+     * area. Source images which are not read by the script do not appear
+     * in the result.
+     * 
+     * @return footprints keyed by source image variable name
+     * 
+     * @throws JiffleException if the script has not been compiled
+     */
+    public Map<String, SourceFootprint> getSourceFootprints() throws JiffleException {
+        if (!isCompiled()) {
+            throw new JiffleException("The script has not been compiled");
+        }
+        
+        return new SourceFootprintAnalyzer(finalAST).getFootprints();
+    }
+    
     /**
      * Creates an instance of the default runtime class. 
      * <p>
@@ -480,6 +548,74 @@ public class Jiffle {
         return (T) createRuntimeInstance(model, baseClass);
     }
     
+    /**
+     * Gets a factory which creates runtime objects for the direct model
+     * from the compiled runtime class. Unlike 
+     * {@link #getRuntimeInstance()}, which may have to create the class,
+     * the factory creates objects without repeating any compilation and
+     * can be used from several threads to give each its own runtime object.
+     * <p>
+     * The factory always uses a compiled class: if the runtime backend is 
+     * {@code interpreter} the class is created as bytecode, and tiered 
+     * execution is not used.
+     * 
+     * @return the runtime factory
+     * @throws JiffleException if the script has not been compiled or if 
+     *         errors occur in creating the runtime class
+     */
+    public JiffleRuntimeFactory<JiffleDirectRuntime> getRuntimeFactory() throws JiffleException {
+        return createRuntimeFactory(RuntimeModel.DIRECT, 
+                JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+    }
+    
+    /**
+     * Gets a factory which creates runtime objects for the given model
+     * from the compiled runtime class. See {@link #getRuntimeFactory()}.
+     * 
+     * @param model the {@link Jiffle.RuntimeModel}
+     * @return the runtime factory
+     * @throws JiffleException if the script has not been compiled or if 
+     *         errors occur in creating the runtime class
+     */
+    public JiffleRuntimeFactory<JiffleRuntime> getRuntimeFactory(RuntimeModel model) 
+            throws JiffleException {
+        switch (model) {
+            case DIRECT:
+                return createRuntimeFactory(model, 
+                        JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+                
+            case INDIRECT:
+                return createRuntimeFactory(model, 
+                        JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+                
+            default:
+                throw new IllegalArgumentException("Invalid runtime class type: " + model);
+        }
+    }
+    
+    /**
+     * Gets a factory which creates runtime objects, extending the given 
+     * base class, from the compiled runtime class. See 
+     * {@link #getRuntimeFactory()}.
+     * 
+     * @param <T> the runtime base class type
+     * @param baseClass the runtime base class
+     * 
+     * @return the runtime factory
+     * @throws JiffleException if the script has not been compiled or if 
+     *         errors occur in creating the runtime class
+     */
+    public <T extends JiffleRuntime> JiffleRuntimeFactory<T> getRuntimeFactory(Class<T> baseClass) 
+            throws JiffleException {
+        RuntimeModel model = RuntimeModel.get(baseClass);
+        if (model == null) {
+            throw new JiffleException(baseClass.getName() + 
+                    " does not implement a required Jiffle runtime interface");
+        }
+        
+        return createRuntimeFactory(model, baseClass);
+    }
+    
     /**
      * Gets a copy of the Java source for the runtime class. The 
      * script must have been compiled before calling this method.
@@ -523,16 +659,67 @@ public class Jiffle {
                 baseClass = JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
                 break;
         }
-        return createRuntimeSource(model, baseClass.getName(), scriptInDocs);
+        return createRuntimeSource(model, baseClass, null, scriptInDocs);
+    }
+    
+    /**
+     * Creates the bytecode of a runtime class for the compiled script with
+     * the given class name and the default base class for the runtime model.
+     * This is intended for tools which compile scripts ahead of time, so 
+     * that the classes can later be used without the Jiffle compiler (see
+     * {@link PrecompiledRuntimes}). The class is neither loaded nor cached.
+     * <p>
+     * As for runtime objects, the bytecode is created directly if the 
+     * runtime backend allows it and otherwise by compiling the runtime
+     * source with the {@link RuntimeCompiler} given by the 
+     * {@code runtime.compiler} property.
+     * 
+     * @param model the {@link Jiffle.RuntimeModel}
+     * @param className the fully qualified name for the runtime class
+     * 
+     * @return bytecode of the runtime class and any nested classes, keyed 
+     *         by class name
+     * 
+     * @throws JiffleException if the script has not been compiled or if 
+     *         errors occur in creating the runtime class
+     */
+    public Map<String, byte[]> getRuntimeClassBytes(RuntimeModel model, String className)
+            throws JiffleException {
+        
+        if (!isCompiled()) {
+            throw new JiffleException("The script has not been compiled");
+        }
+        if (className == null || className.lastIndexOf('.') <= 0) {
+            throw new IllegalArgumentException(
+                    "className must be a fully qualified class name");
+        }
+        
+        if (model == RuntimeModel.DIRECT 
+                && JiffleProperties.BACKEND_BYTECODE.equals(getRuntimeBackend())) {
+            byte[] bytes = generateBytecode(className);
+            if (bytes != null) {
+                Map<String, byte[]> classes = CollectionFactory.map();
+                classes.put(className, bytes);
+                return classes;
+            }
+        }
+        
+        Class<? extends JiffleRuntime> baseClass = model == RuntimeModel.DIRECT ?
+                JiffleProperties.DEFAULT_DIRECT_BASE_CLASS : 
+                JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
+        
+        String runtimeSource = createRuntimeSource(model, baseClass, className, false);
+        return compileSource(compileStats, getRuntimeCompiler(), 
+                className, runtimeSource, getParentClassLoader());
     }
     
     /**
      * Initializes this object's name and runtime base class.
      */
     private void init() {
-        Jiffle.refCount++ ;
-        name = JiffleProperties.get( JiffleProperties.NAME_KEY ) + refCount;
+        name = JiffleProperties.get( JiffleProperties.NAME_KEY ) + refCount.incrementAndGet();
         imageParams = CollectionFactory.map();
+        compileStats = new CompileStats();
     }
     
     /**
@@ -544,26 +731,27 @@ public class Jiffle {
         tokens = null;
         errorReporter = null;
         msgTable = new MessageTable();
+        compileStats = new CompileStats();
     }
     
     private void reportMessages() throws JiffleException {
         if (msgTable.hasErrors()) {
-            throw new JiffleException(messagesToString());
+            throw new JiffleException(messagesToString(msgTable));
         }
         
         if (msgTable.hasWarnings()) {
             Map<String, List<Message>> messages = msgTable.getMessages();
-            System.err.println(messagesToString());
+            System.err.println(messagesToString(msgTable));
         }
     }
     
     /**
      * Write error messages to a string
      */
-    private String messagesToString() {
+    private String messagesToString(MessageTable table) {
         StringBuilder sb = new StringBuilder();
-        if (msgTable != null) {
-            Map<String, List<Message>> messages = msgTable.getMessages();
+        if (table != null) {
+            Map<String, List<Message>> messages = table.getMessages();
             for (String key : messages.keySet()) {
                 for (Message msg : messages.get(key)) {
                     sb.append(msg.toString());
@@ -587,9 +775,15 @@ public class Jiffle {
             ANTLRStringStream input = new ANTLRStringStream(theScript);
             JiffleLexer lexer = new JiffleLexer(input);
             tokens = new CommonTokenStream(lexer);
+            
+            long[] start = compileStats.start();
+            tokens.fill();
+            compileStats.end(Phase.LEX, start);
 
+            start = compileStats.start();
             JiffleParser parser = new JiffleParser(tokens);
             primaryAST = (CommonTree) parser.prog().getTree();
+            compileStats.end(Phase.PARSE, start);
             
             loadScriptImageParameters(parser.getImageParams());
 
@@ -617,16 +811,36 @@ public class Jiffle {
         }
     }
     
+    /**
+     * Reads the options block. Options can only appear at the top level of
+     * the primary AST so, rather than walking the whole tree, the reader is
+     * only applied to the option nodes.
+     */
     private void checkOptions() {
+        long[] start = compileStats.start();
+        
         CommonTreeNodeStream nodes = new CommonTreeNodeStream(primaryAST);
         nodes.setTokenStream(tokens);
         OptionsBlockReader reader = new OptionsBlockReader(nodes, msgTable);
-        reader.downup(primaryAST);
+        
+        if (primaryAST.isNil()) {
+            for (int i = 0; i < primaryAST.getChildCount(); i++) {
+                CommonTree child = (CommonTree) primaryAST.getChild(i);
+                if (child.getType() == JiffleParser.JIFFLE_OPTION) {
+                    reader.downup(child);
+                }
+            }
+        }
+        
+        compileStats.end(Phase.OPTIONS, start);
     }
 
     /**
-     * Transforms variable tokens to specific types and does some basic
-     * error checking.
+     * Transforms variable tokens to specific types, does some basic
+     * error checking, simplifies constant expressions, moves invariant
+     * expressions out of the per-pixel code and eliminates common
+     * sub-expressions. Checking variable use and function calls is done
+     * in the same tree walk as transforming expressions.
      *  
      * @return {@code true} if no errors; {@code false} otherwise
      * @throws JiffleException on unintercepted parser errors
@@ -635,30 +849,37 @@ public class Jiffle {
         try {
             CommonTree tree = primaryAST;
 
+            long[] start = compileStats.start();
             CommonTreeNodeStream nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
             TagVars tag = new TagVars(nodes, imageParams, msgTable);
             tree = (CommonTree) tag.start().getTree();
+            compileStats.end(Phase.TAG_VARS, start);
             if (msgTable.hasErrors()) return false;
 
+            start = compileStats.start();
             nodes = new CommonTreeNodeStream(tree);
             nodes.setTokenStream(tokens);
-
-            CheckAssignments assignments = new CheckAssignments(nodes, msgTable);
-            assignments.start();
-            if (msgTable.hasErrors()) return false;
-
-            nodes = new CommonTreeNodeStream(tree);
-            nodes.setTokenStream(tokens);
-            TransformExpressions trexpr = new TransformExpressions(nodes);
+            TransformExpressions trexpr = new TransformExpressions(nodes, msgTable);
             tree = (CommonTree) trexpr.start().getTree();
-            
-            nodes = new CommonTreeNodeStream(tree);
-            nodes.setTokenStream(tokens);
-            CheckFunctionCalls calls = new CheckFunctionCalls(nodes, msgTable);
-            calls.downup(tree);
+            compileStats.end(Phase.CHECK_AND_TRANSFORM, start);
             if (msgTable.hasErrors()) return false;
             
+            start = compileStats.start();
+            ExpressionSimplifier simplifier = new ExpressionSimplifier();
+            tree = simplifier.simplify(tree);
+            compileStats.end(Phase.SIMPLIFY, start);
+            
+            start = compileStats.start();
+            InvariantHoister hoister = new InvariantHoister();
+            tree = hoister.hoist(tree);
+            compileStats.end(Phase.HOIST, start);
+            
+            start = compileStats.start();
+            SubexpressionEliminator cse = new SubexpressionEliminator();
+            tree = cse.eliminate(tree);
+            compileStats.end(Phase.ELIMINATE_SUBEXPRESSIONS, start);
+            
             finalAST = tree;
             return true;
 
@@ -673,42 +894,139 @@ public class Jiffle {
     }
 
     /**
-     * Creates an instance of the runtime class. The Java source for the
-     * class is created if not already cached and then compiled using
-     * Janino's {@link SimpleCompiler}.
+     * Creates an instance of the runtime class. If a matching class is
+     * held in the {@link RuntimeClassCache} it is used directly; otherwise
+     * the class is created, either directly as bytecode by 
+     * {@link RuntimeBytecodeGenerator} or by generating Java source and 
+     * compiling it with the {@link RuntimeCompiler} given by 
+     * {@link #getRuntimeCompiler()}, and is added to the cache (and to the 
+     * {@link RuntimeDiskCache} if that is enabled).
+     * <p>
+     * For the direct model with the default base class, the runtime 
+     * object may instead be an {@link InterpretedDirectRuntime} (if the 
+     * runtime backend is {@code interpreter}), or a {@link TieredDirectRuntime}
+     * (if tiered execution is enabled and the class must be compiled from
+     * source).
      * 
      * @throws Exception 
      */
     private JiffleRuntime createRuntimeInstance(RuntimeModel model,
             Class<? extends JiffleRuntime> baseClass) throws JiffleException {
+        return createRuntimeInstance(model, baseClass, true);
+    }
+    
+    /**
+     * Creates an instance of the runtime class, optionally skipping the
+     * cache lookup when the caller has already done it.
+     */
+    JiffleRuntime createRuntimeInstance(RuntimeModel model,
+            Class<? extends JiffleRuntime> baseClass, 
+            boolean checkCache) throws JiffleException {
+        return createRuntimeInstance(model, baseClass, checkCache, true);
+    }
+    
+    /**
+     * Creates a factory for runtime objects of the compiled runtime class.
+     * The class is taken from the runtime class caches if possible and
+     * otherwise created as for {@link #createRuntimeInstance}, except that
+     * it is always compiled: the interpreter backend and tiered execution 
+     * are not used. The script's source footprints are given to the 
+     * factory and stored with the cached class.
+     */
+    <T extends JiffleRuntime> JiffleRuntimeFactory<T> createRuntimeFactory(
+            RuntimeModel model, Class<? extends JiffleRuntime> baseClass) 
+            throws JiffleException {
+        
         if (!isCompiled()) {
             throw new JiffleException("The script has not been compiled");
         }
         
-        String runtimeSource = createRuntimeSource(model, baseClass.getName(), false);
-
-        try {
-            SimpleCompiler compiler = new SimpleCompiler();
-            compiler.cook(runtimeSource);
-            
-            StringBuilder sb = new StringBuilder();
-            sb.append(JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY)).append(".");
+        RuntimeClassCache.Key key = new RuntimeClassCache.Key(
+                theScript, suppliedImageParams, model, baseClass);
+        
+        JiffleRuntime prototype = RuntimeClassCache.getInstance(key);
+        if (prototype == null) {
+            prototype = createRuntimeInstance(model, baseClass, false, false);
+        }
+        
+        JiffleRuntimeFactory<T> factory = 
+                JiffleRuntimeFactory.fromPrototype(prototype, getSourceFootprints());
+        
+        RuntimeClassCache.put(key, factory.getRuntimeClass(), factory.getImageParams(),
+                factory.getSourceFootprints());
+        
+        return factory;
+    }
+    
+    /**
+     * Creates an instance of the runtime class, optionally skipping the
+     * cache lookup and optionally allowing an interpreted or tiered 
+     * runtime object.
+     */
+    private JiffleRuntime createRuntimeInstance(RuntimeModel model,
+            Class<? extends JiffleRuntime> baseClass, 
+            boolean checkCache, boolean allowInterpreted) throws JiffleException {
+        if (!isCompiled()) {
+            throw new JiffleException("The script has not been compiled");
+        }
+        
+        boolean defaultDirect = model == RuntimeModel.DIRECT 
+                && baseClass == JiffleProperties.DEFAULT_DIRECT_BASE_CLASS;
+        
+        String backend = defaultDirect ? getRuntimeBackend() : JiffleProperties.BACKEND_SOURCE;
+        if (JiffleProperties.BACKEND_INTERPRETER.equals(backend)) {
+            if (allowInterpreted) {
+                JiffleRuntime runtime = new InterpretedDirectRuntime(finalAST);
+                runtime.setImageParams(imageParams);
+                return runtime;
+            }
+            backend = JiffleProperties.BACKEND_BYTECODE;
+        }
+        
+        RuntimeClassCache.Key key = new RuntimeClassCache.Key(
+                theScript, suppliedImageParams, model, baseClass);
+        
+        if (checkCache) {
+            JiffleRuntime cached = RuntimeClassCache.getInstance(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        
+        String className = getRuntimeClassName(model);
+        Map<String, byte[]> classes = null;
+        String backendName = JiffleProperties.BACKEND_BYTECODE;
+        long startTime = System.nanoTime();
+        
+        if (JiffleProperties.BACKEND_BYTECODE.equals(backend)) {
+            byte[] bytes = generateBytecode(className);
+            if (bytes != null) {
+                classes = CollectionFactory.map();
+                classes.put(className, bytes);
+            }
+        }
+        
+        if (classes == null) {
+            String runtimeSource = createRuntimeSource(model, baseClass, null, false);
+            RuntimeCompiler compiler = getRuntimeCompiler();
             
-            switch (model) {
-                case DIRECT:
-                    sb.append(JiffleProperties.get(JiffleProperties.DIRECT_CLASS_KEY));
-                    break;
-                    
-                case INDIRECT:
-                    sb.append(JiffleProperties.get(JiffleProperties.INDIRECT_CLASS_KEY));
-                    break;
-                    
-                default:
-                    throw new IllegalArgumentException("Internal compiler error");
+            if (allowInterpreted && defaultDirect && isTieredExecution()) {
+                return createTieredRuntime(key, className, runtimeSource, compiler);
             }
             
-            Class<?> clazz = compiler.getClassLoader().loadClass(sb.toString());
-            JiffleRuntime runtime = (JiffleRuntime) clazz.newInstance();
+            backendName = compiler.getName();
+            classes = compileSource(compileStats, compiler, 
+                    className, runtimeSource, getParentClassLoader());
+        }
+        
+        LOGGER.fine(String.format("Created runtime class with %s in %.2f ms", 
+                backendName, (System.nanoTime() - startTime) / 1.0e6));
+
+        try {
+            Class<? extends JiffleRuntime> clazz = defineRuntimeClass(
+                    key, className, classes, imageParams, getParentClassLoader());
+            
+            JiffleRuntime runtime = clazz.newInstance();
             runtime.setImageParams(imageParams);
             return runtime;
 
@@ -717,28 +1035,307 @@ public class Jiffle {
         }
     }
     
+    /**
+     * Loads a runtime class from its bytecode and adds it to the
+     * runtime class caches.
+     */
+    private static Class<? extends JiffleRuntime> defineRuntimeClass(
+            RuntimeClassCache.Key key, String className, Map<String, byte[]> classes,
+            Map<String, ImageRole> params, ClassLoader parent) throws Exception {
+        
+        ClassLoader loader = new ByteArrayClassLoader(classes, parent);
+        Class<? extends JiffleRuntime> clazz = 
+                (Class<? extends JiffleRuntime>) loader.loadClass(className);
+
+        RuntimeClassCache.put(key, clazz, params);
+        RuntimeDiskCache.store(key, className, classes, params);
+        return clazz;
+    }
+    
+    /**
+     * Creates a runtime object which interprets the script while the 
+     * runtime class is compiled by a background thread, and then switches
+     * to the compiled class. The compiled class is also added to the
+     * runtime class caches.
+     */
+    private JiffleRuntime createTieredRuntime(final RuntimeClassCache.Key key,
+            final String className, final String runtimeSource, 
+            final RuntimeCompiler compiler) {
+        
+        final Map<String, ImageRole> params = CollectionFactory.map();
+        params.putAll(imageParams);
+        final ClassLoader parent = getParentClassLoader();
+        final CompileStats stats = compileStats;
+        
+        Future<Class<? extends JiffleRuntime>> future = getCompilerService().submit(
+                new Callable<Class<? extends JiffleRuntime>>() {
+                    public Class<? extends JiffleRuntime> call() throws Exception {
+                        long startTime = System.nanoTime();
+                        Map<String, byte[]> classes = 
+                                compileSource(stats, compiler, className, runtimeSource, parent);
+                        Class<? extends JiffleRuntime> clazz = 
+                                defineRuntimeClass(key, className, classes, params, parent);
+                        
+                        LOGGER.fine(String.format(
+                                "Created runtime class with %s in background in %.2f ms", 
+                                compiler.getName(), (System.nanoTime() - startTime) / 1.0e6));
+                        return clazz;
+                    }
+                });
+        
+        InterpretedDirectRuntime interpreter = new InterpretedDirectRuntime(finalAST);
+        interpreter.setImageParams(imageParams);
+        return new TieredDirectRuntime(interpreter, future);
+    }
+    
+    /**
+     * Generates the runtime class as bytecode, recording the time taken.
+     * 
+     * @return the bytecode or {@code null} if the script is not supported
+     *         by the bytecode generator
+     */
+    private byte[] generateBytecode(String className) {
+        long[] start = compileStats.start();
+        try {
+            return new RuntimeBytecodeGenerator(finalAST).generate(className);
+        } finally {
+            compileStats.end(Phase.BYTECODE, start);
+        }
+    }
+    
+    /**
+     * Compiles runtime source, recording the time taken. This is static 
+     * so that it can be used for background compiles.
+     */
+    private static Map<String, byte[]> compileSource(CompileStats stats,
+            RuntimeCompiler compiler, String className, String source,
+            ClassLoader parent) throws JiffleException {
+        
+        long[] start = stats.start();
+        try {
+            return compiler.compile(className, source, parent);
+        } finally {
+            stats.end(Phase.SOURCE_COMPILE, start);
+        }
+    }
+    
+    /**
+     * Gets the executor service used to compile runtime classes for
+     * tiered execution. This has a single daemon thread.
+     */
+    private static ExecutorService getCompilerService() {
+        synchronized (Jiffle.class) {
+            if (compilerService == null) {
+                compilerService = Executors.newSingleThreadExecutor(
+                        new DaemonThreadFactory(Thread.NORM_PRIORITY, "jiffle-runtime-compiler"));
+            }
+            return compilerService;
+        }
+    }
+    
+    /**
+     * Gets the runtime backend: the value of the system property
+     * {@link JiffleProperties#BACKEND_SYSTEM_PROPERTY} if set, otherwise
+     * that of the property {@link JiffleProperties#RUNTIME_BACKEND_KEY},
+     * defaulting to {@code bytecode}.
+     */
+    private static String getRuntimeBackend() {
+        String backend = System.getProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        if (backend == null || backend.trim().length() == 0) {
+            backend = JiffleProperties.get(JiffleProperties.RUNTIME_BACKEND_KEY);
+        }
+        if (backend == null || backend.trim().length() == 0) {
+            return JiffleProperties.BACKEND_BYTECODE;
+        }
+        return backend.trim().toLowerCase();
+    }
+    
+    /**
+     * Gets the backend which creates runtime classes for the given model
+     * and base class: the runtime backend for the default direct base
+     * class, except that the interpreter is replaced by {@code bytecode}
+     * since it does not create classes; and {@code source} for all others.
+     * 
+     * @param model the runtime model
+     * @param baseClass the runtime base class
+     * @return the backend name
+     */
+    static String getRuntimeClassBackend(RuntimeModel model, 
+            Class<? extends JiffleRuntime> baseClass) {
+        
+        if (model != RuntimeModel.DIRECT 
+                || baseClass != JiffleProperties.DEFAULT_DIRECT_BASE_CLASS) {
+            return JiffleProperties.BACKEND_SOURCE;
+        }
+        
+        String backend = getRuntimeBackend();
+        return JiffleProperties.BACKEND_INTERPRETER.equals(backend) ?
+                JiffleProperties.BACKEND_BYTECODE : backend;
+    }
+    
+    /**
+     * Tests if tiered execution is enabled by the system property 
+     * {@link JiffleProperties#TIERED_SYSTEM_PROPERTY} or, if that is 
+     * not set, the property {@link JiffleProperties#RUNTIME_TIERED_KEY}.
+     */
+    private static boolean isTieredExecution() {
+        String value = System.getProperty(JiffleProperties.TIERED_SYSTEM_PROPERTY);
+        if (value == null || value.trim().length() == 0) {
+            value = JiffleProperties.get(JiffleProperties.RUNTIME_TIERED_KEY);
+        }
+        return value != null && Boolean.parseBoolean(value.trim());
+    }
+    
+    /**
+     * Gets the fully qualified name of the runtime class for the 
+     * given model.
+     * 
+     * @param model the runtime model
+     * @return the class name
+     */
+    static String getRuntimeClassName(RuntimeModel model) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY)).append(".");
+
+        switch (model) {
+            case DIRECT:
+                sb.append(JiffleProperties.get(JiffleProperties.DIRECT_CLASS_KEY));
+                break;
+
+            case INDIRECT:
+                sb.append(JiffleProperties.get(JiffleProperties.INDIRECT_CLASS_KEY));
+                break;
+
+            default:
+                throw new IllegalArgumentException("Internal compiler error");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Gets the class loader used as the parent of those which define
+     * runtime classes. This is the same as Janino's default: the context
+     * class loader of the current thread.
+     * 
+     * @return the parent class loader
+     */
+    static ClassLoader getParentClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader == null ? Jiffle.class.getClassLoader() : loader;
+    }
+    
+    /**
+     * Gets the name of the compiler used for runtime source: {@code janino}
+     * (the default), {@code javac} or the name of a {@link RuntimeCompiler}
+     * class, as described for {@link #getRuntimeCompiler()}.
+     * 
+     * @return the compiler name
+     */
+    static String getRuntimeCompilerName() {
+        String name = System.getProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY);
+        if (name == null || name.trim().length() == 0) {
+            name = JiffleProperties.get(JiffleProperties.RUNTIME_COMPILER_KEY);
+        }
+        
+        name = name == null ? "" : name.trim();
+        if (name.length() == 0 || JiffleProperties.COMPILER_JANINO.equalsIgnoreCase(name)) {
+            return JiffleProperties.COMPILER_JANINO;
+        }
+        if (JiffleProperties.COMPILER_JAVAC.equalsIgnoreCase(name)) {
+            return JiffleProperties.COMPILER_JAVAC;
+        }
+        return name;
+    }
+    
+    /**
+     * Gets the compiler used for runtime source. This is specified by the
+     * system property {@link JiffleProperties#COMPILER_SYSTEM_PROPERTY} if
+     * set, otherwise by the property {@link JiffleProperties#RUNTIME_COMPILER_KEY}.
+     * The value can be {@code janino}, {@code javac} or the fully qualified
+     * name of a class implementing {@link RuntimeCompiler}.
+     * 
+     * @return a new compiler instance
+     * @throws JiffleException if the compiler class cannot be instantiated
+     */
+    static RuntimeCompiler getRuntimeCompiler() throws JiffleException {
+        String name = getRuntimeCompilerName();
+        if (JiffleProperties.COMPILER_JANINO.equals(name)) {
+            return new JaninoRuntimeCompiler();
+        }
+        if (JiffleProperties.COMPILER_JAVAC.equals(name)) {
+            return new JavaxToolsRuntimeCompiler();
+        }
+        
+        try {
+            Class<?> clazz = Class.forName(name, true, getParentClassLoader());
+            return (RuntimeCompiler) clazz.newInstance();
+            
+        } catch (Exception ex) {
+            throw new JiffleException("Unable to create runtime compiler " + name, ex);
+        }
+    }
+    
     /**
      * Creates the Java source code for the runtime class.
      * 
+     * @param className fully qualified runtime class name or {@code null}
+     *        for the default
      * @param scriptInDocs whether to include the Jiffle script in the class
      *        javadocs
      * 
      * @throws JiffleException if an error occurs generating the source 
      */
     private String createRuntimeSource(RuntimeModel model,
-            String baseClassName, boolean scriptInDocs) throws JiffleException {
+            Class<? extends JiffleRuntime> baseClass, String className,
+            boolean scriptInDocs) 
+            throws JiffleException {
         
         if (!isCompiled()) {
             throw new JiffleException("This instance has not been compiled");
         }
 
+        String s = scriptInDocs ? null : theScript;
+        long[] start = compileStats.start();
+        
+        SourceGenerator generator = createSourceGenerator(model, baseClass, className, false);
+        String source = generator.getSource(s);
+        
+        if (generator.isSplitRequired()) {
+            /*
+             * The per-pixel code is too large for the JIT compiler
+             * so generate the source again, splitting the code into
+             * smaller methods
+             */
+            MessageTable genMessages = new MessageTable();
+            generator = createSourceGenerator(model, baseClass, className, true);
+            generator.setMessageTable(genMessages);
+            source = generator.getSource(s);
+            
+            if (genMessages.hasWarnings()) {
+                System.err.println(messagesToString(genMessages));
+            }
+        }
+        
+        compileStats.end(Phase.SOURCE_GENERATION, start);
+        return source;
+    }
+    
+    private SourceGenerator createSourceGenerator(RuntimeModel model,
+            Class<? extends JiffleRuntime> baseClass, String className, boolean split) {
+        
         CommonTreeNodeStream nodes = new CommonTreeNodeStream(finalAST);
         nodes.setTokenStream(tokens);
         
         SourceGenerator generator = new RuntimeSourceGenerator(nodes);
-        generator.setBaseClassName(baseClassName);
+        generator.setBaseClassName(baseClass.getName());
         generator.setRuntimeModel(model);
-        String s = scriptInDocs ? null : theScript;
-        return generator.getSource(s);
+        if (className != null) {
+            generator.setRuntimeClassName(className);
+        }
+        generator.setImageSlots(AbstractDirectRuntime.class.isAssignableFrom(baseClass)
+                || AbstractIndirectRuntime.class.isAssignableFrom(baseClass));
+        generator.setSplitEvaluation(split);
+        return generator;
     }
 }
@@ -123,6 +123,7 @@ public class JiffleBuilder {
     }
 
     private String script;
+    private String precompiledName;
     private final Map<String, Jiffle.ImageRole> imageParams;
     private final Map<String, ImageRef> images;
     
@@ -147,6 +148,7 @@ public class JiffleBuilder {
         worldInfo = null;
         _defaultTransform = null;
         script = null;
+        precompiledName = null;
         imageParams.clear();
         images.clear();
         transforms.clear();
@@ -221,6 +223,7 @@ public class JiffleBuilder {
      */
     public JiffleBuilder script(String script) {
         this.script = script;
+        precompiledName = null;
         return this;
     }
 
@@ -234,6 +237,27 @@ public class JiffleBuilder {
      */
     public JiffleBuilder script(File scriptFile) throws JiffleException {
         script = readScriptFile(scriptFile);
+        precompiledName = null;
+        return this;
+    }
+
+    /**
+     * Sets the script to be a precompiled one, identified by the name it
+     * was registered with (see {@link PrecompiledRuntimes}). The runtime
+     * object is then created directly from the precompiled class without
+     * using the Jiffle compiler.
+     *
+     * @param name the name of the precompiled script
+     *
+     * @return the instance of this class to allow method chaining
+     * @throws IllegalArgumentException if no script is registered with the name
+     */
+    public JiffleBuilder precompiled(String name) {
+        if (!PrecompiledRuntimes.contains(name)) {
+            throw new IllegalArgumentException("No precompiled script named " + name);
+        }
+        precompiledName = name;
+        script = null;
         return this;
     }
 
@@ -541,6 +565,11 @@ public class JiffleBuilder {
 
     /**
      * Creates a runtime object for the currently set script and images.
+     * If the script has been compiled previously with the same image 
+     * parameters, the cached runtime class is used and the script is not
+     * parsed again (see {@link RuntimeClassCache}). If a precompiled script
+     * was set with {@link #precompiled(String)}, the runtime object is 
+     * created from its class.
      *
      * @return an instance of {@link JiffleDirectRuntime}
      *
@@ -548,12 +577,17 @@ public class JiffleBuilder {
      *         compilation errors occur
      */
     public JiffleDirectRuntime getRuntime() throws JiffleException {
-        if (script == null) {
+        JiffleDirectRuntime runtime;
+        if (precompiledName != null) {
+            runtime = PrecompiledRuntimes.getDirectRuntime(precompiledName);
+            
+        } else if (script == null) {
             throw new IllegalStateException("Jiffle script has not been set yet");
+            
+        } else {
+            runtime = (JiffleDirectRuntime) RuntimeClassCache.getRuntimeInstance(
+                    script, imageParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
         }
-
-        Jiffle jiffle = new Jiffle(script, imageParams);
-        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
         
         runtime.setDefaultTransform(_defaultTransform);
         if (worldInfo != null) {
@@ -591,6 +625,9 @@ public class JiffleBuilder {
      *         compilation errors occur
      */
     public String getRuntimeSource() throws JiffleException {
+        if (precompiledName != null) {
+            throw new IllegalStateException("Source is not available for precompiled scripts");
+        }
         if (script == null) {
             throw new IllegalStateException("Jiffle script has not been set yet");
         }
@@ -0,0 +1,301 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.DaemonThreadFactory;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * A thread-safe service which compiles scripts on a bounded pool of
+ * threads. Each request returns a {@code Future} for a 
+ * {@link JiffleRuntimeFactory} which can create runtime objects for the
+ * script without further compilation.
+ * <p>
+ * Requests are handled as follows:
+ * <ul>
+ * <li>If the runtime class is held by the {@link RuntimeClassCache} 
+ *     (or the precompiled registry or disk cache) it is used without
+ *     compiling the script.</li>
+ * <li>If an identical request (same script, image parameters and runtime
+ *     base class) is already queued or being compiled, the same 
+ *     {@code Future} is returned rather than compiling the script again.
+ *     Cancelling a shared {@code Future} cancels it for all requesters.</li>
+ * <li>Otherwise the script is compiled with a new {@link Jiffle} object 
+ *     on one of the compile threads.</li>
+ * </ul>
+ * Compile errors are reported by the {@code Future} throwing an 
+ * {@code ExecutionException} with a {@link JiffleException} as its cause.
+ * <p>
+ * Example:
+ * <pre><code>
+ * JiffleCompiler compiler = new JiffleCompiler(4);
+ * 
+ * Future&lt;JiffleRuntimeFactory&lt;JiffleDirectRuntime&gt;&gt; future = 
+ *         compiler.submit(script, imageParams);
+ * 
+ * // later, possibly in several threads
+ * JiffleDirectRuntime runtime = future.get().newInstance();
+ * </code></pre>
+ * The compile threads are daemon threads. When the compiler is no longer 
+ * needed it should be shut down.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleCompiler {
+    
+    private final ExecutorService compileService;
+    private final ConcurrentMap<RuntimeClassCache.Key, CompileTask<?>> inFlight;
+    
+    /**
+     * A compile request which removes itself from the in-flight 
+     * requests when done.
+     */
+    private class CompileTask<T extends JiffleRuntime> extends FutureTask<JiffleRuntimeFactory<T>> {
+        private final RuntimeClassCache.Key key;
+
+        CompileTask(final RuntimeClassCache.Key key, final String script,
+                final Map<String, Jiffle.ImageRole> imageParams) {
+            
+            super(new Callable<JiffleRuntimeFactory<T>>() {
+                public JiffleRuntimeFactory<T> call() throws Exception {
+                    return compile(key, script, imageParams);
+                }
+            });
+            this.key = key;
+        }
+
+        /*
+         * The request is removed before the result is set, so that it is 
+         * no longer in flight when callers waiting on it are released.
+         * done() handles cancellation.
+         */
+        @Override
+        protected void set(JiffleRuntimeFactory<T> factory) {
+            inFlight.remove(key, this);
+            super.set(factory);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            inFlight.remove(key, this);
+            super.setException(t);
+        }
+
+        @Override
+        protected void done() {
+            inFlight.remove(key, this);
+        }
+    }
+    
+    /**
+     * Creates a compiler with one compile thread per available processor.
+     */
+    public JiffleCompiler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Creates a compiler with the given number of compile threads.
+     * Requests are queued while all threads are busy.
+     * 
+     * @param numThreads number of compile threads
+     * @throws IllegalArgumentException if {@code numThreads} is less than 1
+     */
+    public JiffleCompiler(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be at least 1");
+        }
+        
+        compileService = Executors.newFixedThreadPool(numThreads, 
+                new DaemonThreadFactory(Thread.NORM_PRIORITY, "jiffle-compiler"));
+        inFlight = new ConcurrentHashMap<RuntimeClassCache.Key, CompileTask<?>>();
+    }
+    
+    /**
+     * Submits a script to be compiled for the direct runtime model with
+     * the default base class.
+     * 
+     * @param script the script
+     * @param imageParams image parameters (may be empty if the script
+     *        has an images block)
+     * 
+     * @return a {@code Future} for the runtime factory
+     */
+    public Future<JiffleRuntimeFactory<JiffleDirectRuntime>> submit(
+            String script, Map<String, Jiffle.ImageRole> imageParams) {
+        
+        return doSubmit(script, imageParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+    }
+    
+    /**
+     * Submits a script to be compiled with the given runtime base class,
+     * which determines the runtime model. If {@code baseClass} is one of the
+     * runtime interfaces ({@link JiffleDirectRuntime} or 
+     * {@link org.jaitools.jiffle.runtime.JiffleIndirectRuntime}) the 
+     * default base class for that model is used.
+     * 
+     * @param <T> the runtime type
+     * @param script the script
+     * @param imageParams image parameters (may be empty if the script
+     *        has an images block)
+     * @param baseClass the runtime base class
+     * 
+     * @return a {@code Future} for the runtime factory
+     * @throws IllegalArgumentException if {@code baseClass} does not
+     *         implement a Jiffle runtime interface
+     */
+    public <T extends JiffleRuntime> Future<JiffleRuntimeFactory<T>> submit(
+            String script, Map<String, Jiffle.ImageRole> imageParams, Class<T> baseClass) {
+        
+        return doSubmit(script, imageParams, baseClass);
+    }
+    
+    /**
+     * Gets the number of requests which are queued or being compiled.
+     * 
+     * @return number of requests in flight
+     */
+    public int getNumInFlight() {
+        return inFlight.size();
+    }
+    
+    /**
+     * Stops accepting requests. Queued requests are still compiled.
+     */
+    public void shutdown() {
+        compileService.shutdown();
+    }
+    
+    /**
+     * Stops accepting requests, cancels queued requests and interrupts
+     * those being compiled.
+     */
+    public void shutdownNow() {
+        compileService.shutdownNow();
+        for (CompileTask<?> task : inFlight.values()) {
+            task.cancel(true);
+        }
+    }
+    
+    /**
+     * Tests if this compiler has been shut down.
+     * 
+     * @return {@code true} if shut down; {@code false} otherwise
+     */
+    public boolean isShutdown() {
+        return compileService.isShutdown();
+    }
+    
+    /**
+     * Waits for requests to complete after a call to {@link #shutdown()}.
+     * 
+     * @param timeout maximum time to wait
+     * @param unit time unit
+     * 
+     * @return {@code true} if all requests completed; {@code false} if the
+     *         timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return compileService.awaitTermination(timeout, unit);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T extends JiffleRuntime> Future<JiffleRuntimeFactory<T>> doSubmit(
+            String script, Map<String, Jiffle.ImageRole> imageParams,
+            Class<? extends JiffleRuntime> baseClass) {
+        
+        if (script == null || script.trim().length() == 0) {
+            throw new IllegalArgumentException("script must not be null or empty");
+        }
+        
+        Jiffle.RuntimeModel model = Jiffle.RuntimeModel.get(baseClass);
+        if (model == null) {
+            throw new IllegalArgumentException(baseClass.getName() + 
+                    " does not implement a required Jiffle runtime interface");
+        }
+        
+        if (baseClass.isInterface()) {
+            baseClass = model == Jiffle.RuntimeModel.DIRECT ?
+                    JiffleProperties.DEFAULT_DIRECT_BASE_CLASS :
+                    JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS;
+        }
+        
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        if (imageParams != null) {
+            params.putAll(imageParams);
+        }
+        
+        RuntimeClassCache.Key key = new RuntimeClassCache.Key(script, params, model, baseClass);
+        CompileTask<T> task = new CompileTask<T>(key, script, params);
+        
+        CompileTask<T> existing = (CompileTask<T>) inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+        
+        try {
+            compileService.execute(task);
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, task);
+            throw ex;
+        }
+        return task;
+    }
+    
+    /**
+     * Gets the runtime class from the caches or by compiling the script,
+     * and creates a factory for it.
+     */
+    private static <T extends JiffleRuntime> JiffleRuntimeFactory<T> compile(
+            RuntimeClassCache.Key key, String script,
+            Map<String, Jiffle.ImageRole> imageParams) throws JiffleException {
+        
+        JiffleRuntime prototype = RuntimeClassCache.getInstance(key);
+        if (prototype != null) {
+            return JiffleRuntimeFactory.fromPrototype(prototype, 
+                    RuntimeClassCache.getSourceFootprints(key));
+        }
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.createRuntimeFactory(key.getRuntimeModel(), key.getBaseClass());
+    }
+    
+}
@@ -79,6 +79,69 @@ public class JiffleProperties {
     /** Key: indirect runtime source generation templates. */
     public static final String INDIRECT_SOURCE_TEMPLATES_KEY = "indirect.source.templates";
 
+    /** 
+     * Key: how runtime classes are created. Either {@code bytecode}, to 
+     * create the bytecode directly where possible, {@code source} to 
+     * always generate Java source and compile it with the 
+     * {@link RuntimeCompiler} given by {@link #RUNTIME_COMPILER_KEY}, or
+     * {@code interpreter} to evaluate direct runtime scripts with an
+     * {@link org.jaitools.jiffle.runtime.InterpretedDirectRuntime} rather 
+     * than creating a class. May be overridden with the system property 
+     * {@link #BACKEND_SYSTEM_PROPERTY}.
+     */
+    public static final String RUNTIME_BACKEND_KEY = "runtime.backend";
+    
+    /** System property used to set the runtime backend. */
+    public static final String BACKEND_SYSTEM_PROPERTY = "jiffle.runtime.backend";
+    
+    /** Runtime backend value: create bytecode directly where possible. */
+    public static final String BACKEND_BYTECODE = "bytecode";
+    
+    /** Runtime backend value: always compile generated source. */
+    public static final String BACKEND_SOURCE = "source";
+    
+    /** Runtime backend value: interpret the script for the direct model. */
+    public static final String BACKEND_INTERPRETER = "interpreter";
+    
+    /** 
+     * Key: whether to use tiered execution for direct runtime objects whose
+     * class must be compiled from source. If {@code true}, the script is
+     * interpreted while the class is compiled in the background, and the
+     * runtime object switches to the compiled class at a row boundary. 
+     * May be overridden with the system property 
+     * {@link #TIERED_SYSTEM_PROPERTY}.
+     */
+    public static final String RUNTIME_TIERED_KEY = "runtime.tiered";
+    
+    /** System property used to enable or disable tiered execution. */
+    public static final String TIERED_SYSTEM_PROPERTY = "jiffle.runtime.tiered";
+    
+    /** 
+     * Key: the {@link RuntimeCompiler} used to compile runtime source. Either
+     * {@code janino}, {@code javac} or the fully qualified name of a class 
+     * implementing {@code RuntimeCompiler}. May be overridden with the system
+     * property {@link #COMPILER_SYSTEM_PROPERTY}.
+     */
+    public static final String RUNTIME_COMPILER_KEY = "runtime.compiler";
+    
+    /** System property used to set the runtime compiler. */
+    public static final String COMPILER_SYSTEM_PROPERTY = "jiffle.runtime.compiler";
+    
+    /** Runtime compiler value: {@link JaninoRuntimeCompiler}. */
+    public static final String COMPILER_JANINO = "janino";
+    
+    /** Runtime compiler value: {@link JavaxToolsRuntimeCompiler}. */
+    public static final String COMPILER_JAVAC = "javac";
+
+    /** Key: maximum number of compiled runtime classes to cache. */
+    public static final String RUNTIME_CACHE_SIZE_KEY = "runtime.cache.size";
+
+    /** 
+     * Key: directory for cached runtime class bytecode. May be overridden
+     * with the system property {@link RuntimeDiskCache#DIR_SYSTEM_PROPERTY}.
+     */
+    public static final String RUNTIME_DISK_CACHE_DIR_KEY = "runtime.disk.cache.dir";
+
     /** Default base class for direct runtime classes. */
     public static final Class<? extends JiffleRuntime> DEFAULT_DIRECT_BASE_CLASS;
 
@@ -0,0 +1,216 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.AbstractJiffleRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * Creates runtime objects from a compiled and loaded runtime class without
+ * repeating any compilation. Runtime objects hold mutable state and must 
+ * not be shared between threads, but a factory can be: it is immutable 
+ * and can be used concurrently to give each thread its own runtime object.
+ * <p>
+ * Factories are obtained from a compiled {@link Jiffle} object with 
+ * {@link Jiffle#getRuntimeFactory()} (or its variants) and are returned 
+ * by {@link JiffleCompiler}.
+ * <p>
+ * Example: setting up a runtime object and then creating a copy of it
+ * for each worker thread
+ * <pre><code>
+ * JiffleRuntimeFactory&lt;JiffleDirectRuntime&gt; factory = jiffle.getRuntimeFactory();
+ * 
+ * JiffleDirectRuntime prototype = factory.newInstance();
+ * prototype.setSourceImage("src", srcImg);
+ * prototype.setDestinationImage("dest", destImg);
+ * 
+ * // in each worker thread
+ * JiffleDirectRuntime runtime = factory.newInstanceLike(prototype);
+ * runtime.evaluateRect(myRect);
+ * </code></pre>
+ * 
+ * @param <T> the runtime type
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleRuntimeFactory<T extends JiffleRuntime> {
+    
+    private final Class<? extends JiffleRuntime> runtimeClass;
+    private final Map<String, Jiffle.ImageRole> imageParams;
+    private final Map<String, SourceFootprint> footprints;
+
+    /**
+     * Creates a factory for the given runtime class.
+     * 
+     * @param runtimeClass the compiled runtime class
+     * @param imageParams image parameters to set for each runtime object
+     * @param footprints the script's source footprints or {@code null}
+     *        if not known
+     */
+    JiffleRuntimeFactory(Class<? extends JiffleRuntime> runtimeClass,
+            Map<String, Jiffle.ImageRole> imageParams,
+            Map<String, SourceFootprint> footprints) {
+        
+        if (runtimeClass == null) {
+            throw new IllegalArgumentException("runtimeClass must not be null");
+        }
+        
+        this.runtimeClass = runtimeClass;
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.putAll(imageParams);
+        this.imageParams = Collections.unmodifiableMap(params);
+        
+        if (footprints == null) {
+            this.footprints = null;
+        } else {
+            Map<String, SourceFootprint> fps = CollectionFactory.map();
+            fps.putAll(footprints);
+            this.footprints = Collections.unmodifiableMap(fps);
+        }
+    }
+    
+    /**
+     * Creates a factory for the class of an existing runtime object, 
+     * taking the image parameters from the object's source and 
+     * destination variable names.
+     * 
+     * @param prototype the runtime object
+     * @param footprints the script's source footprints or {@code null}
+     *        if not known
+     * @return a new factory
+     */
+    static <T extends JiffleRuntime> JiffleRuntimeFactory<T> fromPrototype(
+            JiffleRuntime prototype, Map<String, SourceFootprint> footprints) {
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        for (String name : prototype.getSourceVarNames()) {
+            params.put(name, Jiffle.ImageRole.SOURCE);
+        }
+        for (String name : prototype.getDestinationVarNames()) {
+            params.put(name, Jiffle.ImageRole.DEST);
+        }
+        
+        return new JiffleRuntimeFactory<T>(prototype.getClass(), params, footprints);
+    }
+    
+    /**
+     * Creates a new runtime object. Its image parameters are set but no
+     * images, world bounds or variable values.
+     * 
+     * @return the new runtime object
+     * @throws JiffleException if the object cannot be created
+     */
+    @SuppressWarnings("unchecked")
+    public T newInstance() throws JiffleException {
+        try {
+            JiffleRuntime runtime = runtimeClass.newInstance();
+            runtime.setImageParams(imageParams);
+            return (T) runtime;
+            
+        } catch (Exception ex) {
+            throw new JiffleException("Unable to create runtime object", ex);
+        }
+    }
+    
+    /**
+     * Creates a new runtime object with the state of an existing one: 
+     * image parameters, world bounds and resolution, coordinate transforms,
+     * images (with new iterators) and the values of image-scope variables.
+     * The new object does not share any mutable state with {@code runtime},
+     * so the two can be used in separate threads.
+     * 
+     * @param runtime the runtime object to copy state from; this must 
+     *        extend {@link AbstractJiffleRuntime} and would normally have
+     *        been created by this factory
+     * 
+     * @return the new runtime object
+     * @throws JiffleException if the object cannot be created
+     * @throws IllegalArgumentException if {@code runtime} does not extend
+     *         {@code AbstractJiffleRuntime}
+     */
+    public T newInstanceLike(T runtime) throws JiffleException {
+        if (!(runtime instanceof AbstractJiffleRuntime)) {
+            throw new IllegalArgumentException(
+                    "runtime must extend " + AbstractJiffleRuntime.class.getName());
+        }
+        
+        T copy = newInstance();
+        if (!(copy instanceof AbstractJiffleRuntime)) {
+            throw new JiffleException("State cannot be copied to runtime class " 
+                    + runtimeClass.getName());
+        }
+        
+        ((AbstractJiffleRuntime) runtime).copyStateTo((AbstractJiffleRuntime) copy);
+        return copy;
+    }
+    
+    /**
+     * Gets the runtime class.
+     * 
+     * @return the runtime class
+     */
+    public Class<? extends JiffleRuntime> getRuntimeClass() {
+        return runtimeClass;
+    }
+    
+    /**
+     * Gets the runtime model of the runtime class.
+     * 
+     * @return the runtime model
+     */
+    public Jiffle.RuntimeModel getRuntimeModel() {
+        return Jiffle.RuntimeModel.get(runtimeClass);
+    }
+    
+    /**
+     * Gets the image parameters which are set for each runtime object.
+     * 
+     * @return an unmodifiable map of image parameters
+     */
+    public Map<String, Jiffle.ImageRole> getImageParams() {
+        return imageParams;
+    }
+    
+    /**
+     * Gets the positions at which the script reads each source image
+     * (see {@link Jiffle#getSourceFootprints()}). These are available 
+     * when the factory was created from a compiled script or by
+     * {@link RuntimeClassCache#getRuntimeFactory}, but not always
+     * when it was created from a precompiled or disk cached class.
+     * 
+     * @return an unmodifiable map of footprints keyed by source image 
+     *         variable name, or {@code null} if not known
+     */
+    public Map<String, SourceFootprint> getSourceFootprints() {
+        return footprints;
+    }
+    
+}
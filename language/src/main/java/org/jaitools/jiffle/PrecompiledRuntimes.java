@@ -0,0 +1,368 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * A registry of runtime classes which were compiled ahead of time, e.g. 
+ * by the {@code JiffleAotCompiler} tool in the {@code jt-jiffle-aot}
+ * module, and packaged with an application. Runtime objects are created 
+ * from these classes without parsing or compiling the scripts, so the 
+ * Jiffle compiler and its dependencies (ANTLR, StringTemplate and Janino)
+ * are not used and need not be present on the classpath.
+ * <p>
+ * Each jar or directory holding precompiled classes has a registry file,
+ * {@value #REGISTRY_FILE}, with entries of the form:
+ * <pre>
+ * name.images = dest=DEST;src=SOURCE
+ * name.direct.class = fully qualified class name
+ * name.direct.key = digest of the cache key ({@link RuntimeClassCache.Key#getDigest()})
+ * name.indirect.class = ...
+ * name.indirect.key = ...
+ * </pre>
+ * All registry files found by the context class loader are read when this
+ * class is first used. A script can be obtained by name with 
+ * {@link #getDirectRuntime(String)} or {@link #getIndirectRuntime(String)}.
+ * In addition, {@link RuntimeClassCache} (and so {@link Jiffle} and 
+ * {@link JiffleBuilder}) uses a precompiled class when it is given a script 
+ * and image parameters which match those it was compiled from.
+ * <p>
+ * Example:
+ * <pre><code>
+ * JiffleDirectRuntime runtime = PrecompiledRuntimes.getDirectRuntime("mandelbrot");
+ * runtime.setDestinationImage("result", destImage);
+ * runtime.evaluateAll(null);
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class PrecompiledRuntimes {
+    
+    /** Path of the registry resource. */
+    public static final String REGISTRY_FILE = 
+            "META-INF/org/jaitools/jiffle/PrecompiledRuntimes.properties";
+    
+    /** Registry key suffix: image parameters. */
+    public static final String IMAGES_SUFFIX = ".images";
+    
+    /** Registry key suffix: class name. */
+    public static final String CLASS_SUFFIX = ".class";
+    
+    /** Registry key suffix: script and image parameters digest. */
+    public static final String KEY_SUFFIX = ".key";
+    
+    /*
+     * Same logger as Jiffle.LOGGER, but obtained by name so that using
+     * this class does not initialize the Jiffle compiler class.
+     */
+    private static final Logger LOGGER = Logger.getLogger("org.jaitools.jiffle.Jiffle");
+    
+    private static final Object lock = new Object();
+    
+    private static Map<String, Entry> entriesByName;
+    private static Map<String, Entry> entriesByKey;
+
+    /**
+     * A registered script.
+     */
+    private static class Entry {
+        final String name;
+        final Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.orderedMap();
+        final Map<Jiffle.RuntimeModel, String> classNames = CollectionFactory.map();
+        final Map<Jiffle.RuntimeModel, Class<? extends JiffleRuntime>> classes = 
+                CollectionFactory.map();
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+    
+    /**
+     * Gets the names of the registered scripts.
+     * 
+     * @return an unmodifiable set of names
+     */
+    public static Set<String> getNames() {
+        synchronized (lock) {
+            load();
+            return Collections.unmodifiableSet(entriesByName.keySet());
+        }
+    }
+    
+    /**
+     * Tests if a script is registered with the given name.
+     * 
+     * @param name script name
+     * 
+     * @return {@code true} if registered
+     */
+    public static boolean contains(String name) {
+        synchronized (lock) {
+            load();
+            return entriesByName.containsKey(name);
+        }
+    }
+    
+    /**
+     * Gets the image parameters of a registered script.
+     * 
+     * @param name script name
+     * 
+     * @return a copy of the image parameters
+     * 
+     * @throws IllegalArgumentException if no script is registered with the name
+     */
+    public static Map<String, Jiffle.ImageRole> getImageParams(String name) {
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.orderedMap();
+        params.putAll(getEntry(name).imageParams);
+        return params;
+    }
+    
+    /**
+     * Creates a direct runtime object for a registered script.
+     * 
+     * @param name script name
+     * 
+     * @return a new runtime object
+     * 
+     * @throws IllegalArgumentException if no script is registered with the name
+     * @throws JiffleException if the script was not compiled for the direct
+     *         model or the runtime object cannot be created
+     */
+    public static JiffleDirectRuntime getDirectRuntime(String name) throws JiffleException {
+        return (JiffleDirectRuntime) createInstance(getEntry(name), Jiffle.RuntimeModel.DIRECT);
+    }
+    
+    /**
+     * Creates an indirect runtime object for a registered script.
+     * 
+     * @param name script name
+     * 
+     * @return a new runtime object
+     * 
+     * @throws IllegalArgumentException if no script is registered with the name
+     * @throws JiffleException if the script was not compiled for the indirect
+     *         model or the runtime object cannot be created
+     */
+    public static JiffleIndirectRuntime getIndirectRuntime(String name) throws JiffleException {
+        return (JiffleIndirectRuntime) createInstance(getEntry(name), Jiffle.RuntimeModel.INDIRECT);
+    }
+    
+    /**
+     * Creates a runtime object from a precompiled class matching the given
+     * key, if there is one.
+     * 
+     * @param key script, image parameters, model and base class
+     * 
+     * @return a new runtime object or {@code null} if there is no matching class
+     * 
+     * @throws JiffleException if the runtime object cannot be created
+     */
+    static JiffleRuntime getRuntimeInstance(RuntimeClassCache.Key key) throws JiffleException {
+        Entry e;
+        synchronized (lock) {
+            load();
+            if (entriesByKey.isEmpty()) {
+                return null;
+            }
+            e = entriesByKey.get(key.getDigest());
+        }
+        
+        return e == null ? null : createInstance(e, key.getRuntimeModel());
+    }
+    
+    /**
+     * Discards the registry so that registry files are read again on 
+     * next use. This is only needed if the context class loader, or the
+     * files that it can find, have changed.
+     */
+    public static void reload() {
+        synchronized (lock) {
+            entriesByName = null;
+            entriesByKey = null;
+        }
+    }
+    
+    /**
+     * Formats image parameters as a registry value.
+     * 
+     * @param imageParams image parameters
+     * 
+     * @return registry value
+     */
+    public static String formatImageParams(Map<String, Jiffle.ImageRole> imageParams) {
+        StringBuilder sb = new StringBuilder();
+        for (String name : imageParams.keySet()) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(name).append('=').append(imageParams.get(name).name());
+        }
+        return sb.toString();
+    }
+    
+    private static Entry getEntry(String name) {
+        synchronized (lock) {
+            load();
+            Entry e = entriesByName.get(name);
+            if (e == null) {
+                throw new IllegalArgumentException("No precompiled script named " + name);
+            }
+            return e;
+        }
+    }
+    
+    private static JiffleRuntime createInstance(Entry e, Jiffle.RuntimeModel model)
+            throws JiffleException {
+        
+        try {
+            Class<? extends JiffleRuntime> clazz;
+            synchronized (lock) {
+                clazz = e.classes.get(model);
+                if (clazz == null) {
+                    String className = e.classNames.get(model);
+                    if (className == null) {
+                        throw new JiffleException("Script " + e.name 
+                                + " was not precompiled for the " + model + " runtime model");
+                    }
+                    
+                    clazz = Class.forName(className, true, getClassLoader())
+                            .asSubclass(JiffleRuntime.class);
+                    e.classes.put(model, clazz);
+                }
+            }
+            
+            JiffleRuntime runtime = clazz.newInstance();
+            runtime.setImageParams(e.imageParams);
+            return runtime;
+            
+        } catch (JiffleException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new JiffleException("Unable to create runtime object for precompiled script " 
+                    + e.name, ex);
+        }
+    }
+    
+    /*
+     * Reads all registry files. Must be called while holding the lock.
+     */
+    private static void load() {
+        if (entriesByName != null) {
+            return;
+        }
+        
+        entriesByName = CollectionFactory.orderedMap();
+        entriesByKey = CollectionFactory.map();
+        
+        try {
+            Enumeration<URL> urls = getClassLoader().getResources(REGISTRY_FILE);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                try {
+                    readRegistry(url);
+                } catch (Exception ex) {
+                    LOGGER.warning("Unable to read precompiled runtime registry " 
+                            + url + ": " + ex);
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warning("Unable to find precompiled runtime registries: " + ex);
+        }
+    }
+    
+    private static void readRegistry(URL url) throws IOException {
+        Properties props = new Properties();
+        InputStream in = url.openStream();
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        
+        for (String propName : props.stringPropertyNames()) {
+            if (!propName.endsWith(IMAGES_SUFFIX)) {
+                continue;
+            }
+            
+            String name = propName.substring(0, propName.length() - IMAGES_SUFFIX.length());
+            if (entriesByName.containsKey(name)) {
+                LOGGER.warning("Ignoring duplicate precompiled script " + name 
+                        + " in " + url);
+                continue;
+            }
+            
+            Entry e = new Entry(name);
+            String images = props.getProperty(propName).trim();
+            if (images.length() > 0) {
+                for (String param : images.split(";")) {
+                    String[] parts = param.split("=");
+                    if (parts.length != 2) {
+                        throw new IOException("Invalid image parameter: " + param);
+                    }
+                    e.imageParams.put(parts[0].trim(), 
+                            Jiffle.ImageRole.valueOf(parts[1].trim()));
+                }
+            }
+            
+            for (Jiffle.RuntimeModel model : Jiffle.RuntimeModel.values()) {
+                String prefix = name + "." + model.name().toLowerCase();
+                String className = props.getProperty(prefix + CLASS_SUFFIX);
+                if (className != null) {
+                    e.classNames.put(model, className.trim());
+                    
+                    String key = props.getProperty(prefix + KEY_SUFFIX);
+                    if (key != null) {
+                        entriesByKey.put(key.trim(), e);
+                    }
+                }
+            }
+            
+            entriesByName.put(name, e);
+        }
+    }
+    
+    private static ClassLoader getClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : PrecompiledRuntimes.class.getClassLoader();
+    }
+}
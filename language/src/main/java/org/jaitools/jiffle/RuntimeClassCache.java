@@ -0,0 +1,693 @@
+/*
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this
+ *    list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jaitools.jiffle;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * A process-wide cache of compiled runtime classes. Compiling a script
+ * involves parsing, several tree-walking passes, source generation and
+ * a source compile. When the same script is used repeatedly with the
+ * same image parameters, runtime model, base class, backend and source
+ * compiler, the cached class is used to create a new runtime object
+ * directly, skipping all of those steps.
+ * <p>
+ * The cache is bounded and least-recently-used entries are discarded
+ * when it is full. Classes are held by soft references, so that
+ * entries (and their class loaders) can also be reclaimed when memory
+ * is short. The maximum number of entries defaults to the value of the
+ * {@code runtime.cache.size} property and can be changed with
+ * {@link #setMaxSize(int)}. Setting it to 0 disables caching.
+ * <p>
+ * When a class is not found here, the {@link PrecompiledRuntimes} registry
+ * and then the {@link RuntimeDiskCache} (if enabled) are checked before 
+ * the script is compiled.
+ * <p>
+ * Example:
+ * <pre><code>
+ * Map&lt;String, Jiffle.ImageRole&gt; params = ...
+ * JiffleDirectRuntime runtime = (JiffleDirectRuntime)
+ *         RuntimeClassCache.getRuntimeInstance(script, params,
+ *                 JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+ * </code></pre>
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassCache {
+
+    /**
+     * Identifies a compiled runtime class. Two keys are equal if they
+     * have the same normalized script text, image parameters, runtime
+     * model, base class, backend and source compiler.
+     */
+    public static final class Key {
+        private static final String DIGEST_ALGORITHM = "SHA-1";
+
+        private final String script;
+        private final Map<String, Jiffle.ImageRole> imageParams;
+        private final Jiffle.RuntimeModel model;
+        private final Class<? extends JiffleRuntime> baseClass;
+        private final String backend;
+        private final String compiler;
+        private final int hash;
+
+        /**
+         * Creates a new key for a class created with the current runtime
+         * backend and source compiler settings (see 
+         * {@link JiffleProperties#RUNTIME_BACKEND_KEY} and
+         * {@link JiffleProperties#RUNTIME_COMPILER_KEY}).
+         *
+         * @param script the Jiffle script
+         * @param imageParams image parameters supplied with the script
+         *        (may be empty but not {@code null})
+         * @param model the runtime model
+         * @param baseClass the runtime base class
+         */
+        public Key(String script, Map<String, Jiffle.ImageRole> imageParams,
+                Jiffle.RuntimeModel model, Class<? extends JiffleRuntime> baseClass) {
+
+            this(script, imageParams, model, baseClass,
+                    model == null || baseClass == null ? null :
+                            Jiffle.getRuntimeClassBackend(model, baseClass),
+                    Jiffle.getRuntimeCompilerName());
+        }
+
+        /**
+         * Creates a new key.
+         *
+         * @param script the Jiffle script
+         * @param imageParams image parameters supplied with the script
+         *        (may be empty but not {@code null})
+         * @param model the runtime model
+         * @param baseClass the runtime base class
+         * @param backend name of the backend which creates the class
+         *        ({@code bytecode} or {@code source})
+         * @param compiler name of the source compiler
+         */
+        public Key(String script, Map<String, Jiffle.ImageRole> imageParams,
+                Jiffle.RuntimeModel model, Class<? extends JiffleRuntime> baseClass,
+                String backend, String compiler) {
+
+            if (script == null || imageParams == null || model == null || baseClass == null
+                    || backend == null || compiler == null) {
+                throw new IllegalArgumentException("arguments must not be null");
+            }
+
+            this.script = normalizeScript(script);
+            Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+            params.putAll(imageParams);
+            this.imageParams = Collections.unmodifiableMap(params);
+            this.model = model;
+            this.baseClass = baseClass;
+            this.backend = backend;
+            this.compiler = compiler;
+
+            int h = this.script.hashCode();
+            h = 31 * h + this.imageParams.hashCode();
+            h = 31 * h + model.hashCode();
+            h = 31 * h + baseClass.hashCode();
+            h = 31 * h + backend.hashCode();
+            h = 31 * h + compiler.hashCode();
+            this.hash = h;
+        }
+
+        /**
+         * Gets the normalized script text.
+         *
+         * @return the script
+         */
+        public String getScript() {
+            return script;
+        }
+
+        /**
+         * Gets the image parameters.
+         *
+         * @return an unmodifiable view of the image parameters
+         */
+        public Map<String, Jiffle.ImageRole> getImageParams() {
+            return imageParams;
+        }
+
+        /**
+         * Gets the runtime model.
+         *
+         * @return the runtime model
+         */
+        public Jiffle.RuntimeModel getRuntimeModel() {
+            return model;
+        }
+
+        /**
+         * Gets the runtime base class.
+         *
+         * @return the base class
+         */
+        public Class<? extends JiffleRuntime> getBaseClass() {
+            return baseClass;
+        }
+
+        /**
+         * Gets the name of the backend which creates the class.
+         *
+         * @return the backend name
+         */
+        public String getBackend() {
+            return backend;
+        }
+
+        /**
+         * Gets the name of the source compiler.
+         *
+         * @return the compiler name
+         */
+        public String getCompiler() {
+            return compiler;
+        }
+
+        /**
+         * Gets the text which identifies this key outside the current JVM:
+         * the runtime model, base class name, backend, compiler, sorted 
+         * image parameters and script, one per line.
+         *
+         * @return the key text
+         */
+        public String getText() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(model).append('\n');
+            sb.append(baseClass.getName()).append('\n');
+            sb.append(backend).append('\n');
+            sb.append(compiler).append('\n');
+
+            SortedMap<String, Jiffle.ImageRole> params = CollectionFactory.sortedMap();
+            params.putAll(imageParams);
+            for (String name : params.keySet()) {
+                sb.append(name).append('=').append(params.get(name)).append(';');
+            }
+            sb.append('\n');
+
+            sb.append(script);
+            return sb.toString();
+        }
+
+        /**
+         * Gets a digest of the key text as used to name disk cache files
+         * and to identify precompiled classes.
+         *
+         * @return the SHA-1 digest of {@link #getText()} as a hex string
+         */
+        public String getDigest() {
+            return digest(getText());
+        }
+
+        /**
+         * Calculates the SHA-1 digest of the given text.
+         *
+         * @param text the text
+         * @return the digest as a hex string
+         */
+        static String digest(String text) {
+            try {
+                return digest(text.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException ex) {
+                // UTF-8 is always supported
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Calculates the SHA-1 digest of the given data.
+         *
+         * @param data the data
+         * @return the digest as a hex string
+         */
+        static String digest(byte[] data) {
+            try {
+                byte[] d = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+
+                StringBuilder hex = new StringBuilder(d.length * 2);
+                for (byte b : d) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    hex.append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+
+            } catch (NoSuchAlgorithmException ex) {
+                // every JRE is required to provide SHA-1
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && model == other.model
+                    && baseClass == other.baseClass
+                    && backend.equals(other.backend)
+                    && compiler.equals(other.compiler)
+                    && script.equals(other.script)
+                    && imageParams.equals(other.imageParams);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A cached class together with the image parameters which the
+     * runtime objects should be given. These can differ from those in
+     * the key when the script has its own images block. The script's
+     * source footprints are also held if known.
+     */
+    private static class Entry extends SoftReference<Class<? extends JiffleRuntime>> {
+        final Key key;
+        final Map<String, Jiffle.ImageRole> imageParams;
+        final Map<String, SourceFootprint> footprints;
+
+        Entry(Key key, Class<? extends JiffleRuntime> clazz,
+                Map<String, Jiffle.ImageRole> imageParams,
+                Map<String, SourceFootprint> footprints,
+                ReferenceQueue<Class<? extends JiffleRuntime>> queue) {
+
+            super(clazz, queue);
+            this.key = key;
+            this.imageParams = CollectionFactory.map();
+            this.imageParams.putAll(imageParams);
+            this.footprints = footprints;
+        }
+    }
+
+    private static final int DEFAULT_MAX_SIZE = 100;
+
+    private static final Object lock = new Object();
+
+    private static final ReferenceQueue<Class<? extends JiffleRuntime>> queue =
+            new ReferenceQueue<Class<? extends JiffleRuntime>>();
+
+    private static final LinkedHashMap<Key, Entry> entries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    private static int maxSize;
+    private static long hitCount;
+    private static long missCount;
+    private static long evictionCount;
+
+    static {
+        maxSize = DEFAULT_MAX_SIZE;
+        String value = JiffleProperties.get(JiffleProperties.RUNTIME_CACHE_SIZE_KEY);
+        if (value != null && value.trim().length() > 0) {
+            try {
+                maxSize = Math.max(0, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException ex) {
+                Jiffle.LOGGER.warning("Invalid runtime cache size: " + value);
+            }
+        }
+    }
+
+    /**
+     * Gets a runtime object for the given script, image parameters and
+     * base class. If a matching class is cached it is used to create
+     * the object directly; otherwise the script is compiled (which also
+     * adds the class to the cache).
+     *
+     * @param script the Jiffle script
+     * @param imageParams image parameters
+     * @param baseClass the runtime base class which determines the runtime
+     *        model
+     *
+     * @return a new runtime object
+     *
+     * @throws JiffleException on errors compiling the script or creating
+     *         the runtime object
+     */
+    public static JiffleRuntime getRuntimeInstance(String script,
+            Map<String, Jiffle.ImageRole> imageParams,
+            Class<? extends JiffleRuntime> baseClass) throws JiffleException {
+
+        Jiffle.RuntimeModel model = Jiffle.RuntimeModel.get(baseClass);
+        if (model == null) {
+            throw new JiffleException(baseClass.getName() +
+                    " does not implement a required Jiffle runtime interface");
+        }
+
+        JiffleRuntime runtime = getInstance(new Key(script, imageParams, model, baseClass));
+        if (runtime == null) {
+            Jiffle jiffle = new Jiffle(script, imageParams);
+            runtime = jiffle.createRuntimeInstance(model, baseClass, false);
+        }
+
+        return runtime;
+    }
+
+    /**
+     * Gets a factory for runtime objects of the given script, image 
+     * parameters and base class, which also provides the script's source
+     * footprints (see {@link JiffleRuntimeFactory#getSourceFootprints()}).
+     * The script is only compiled if the runtime class, or its footprints,
+     * are not held in the cache.
+     *
+     * @param <T> the runtime type
+     * @param script the Jiffle script
+     * @param imageParams image parameters
+     * @param baseClass the runtime base class which determines the runtime
+     *        model
+     *
+     * @return a new factory
+     *
+     * @throws JiffleException on errors compiling the script
+     */
+    public static <T extends JiffleRuntime> JiffleRuntimeFactory<T> getRuntimeFactory(
+            String script, Map<String, Jiffle.ImageRole> imageParams,
+            Class<? extends JiffleRuntime> baseClass) throws JiffleException {
+
+        Jiffle.RuntimeModel model = Jiffle.RuntimeModel.get(baseClass);
+        if (model == null) {
+            throw new JiffleException(baseClass.getName() +
+                    " does not implement a required Jiffle runtime interface");
+        }
+
+        Key key = new Key(script, imageParams, model, baseClass);
+        JiffleRuntime prototype = getInstance(key);
+        if (prototype != null) {
+            Map<String, SourceFootprint> footprints = getSourceFootprints(key);
+            if (footprints != null) {
+                return JiffleRuntimeFactory.fromPrototype(prototype, footprints);
+            }
+        }
+
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.createRuntimeFactory(model, baseClass);
+    }
+
+    /**
+     * Creates a new runtime object from the class cached with the given
+     * key, looking for a precompiled class and then in the disk cache 
+     * (if enabled) if the class is not held in memory.
+     *
+     * @param key the cache key
+     *
+     * @return a new runtime object or {@code null} if there is no
+     *         matching class in the cache
+     *
+     * @throws JiffleException if the runtime object cannot be created
+     */
+    public static JiffleRuntime getInstance(Key key) throws JiffleException {
+        Class<? extends JiffleRuntime> clazz = null;
+        Map<String, Jiffle.ImageRole> imageParams = null;
+
+        synchronized (lock) {
+            expungeCleared();
+
+            Entry e = entries.get(key);
+            if (e != null) {
+                clazz = e.get();
+                if (clazz == null) {
+                    entries.remove(key);
+                    evictionCount++ ;
+                } else {
+                    imageParams = e.imageParams;
+                }
+            }
+
+            if (clazz == null) {
+                missCount++ ;
+            } else {
+                hitCount++ ;
+            }
+        }
+
+        if (clazz == null) {
+            JiffleRuntime runtime = PrecompiledRuntimes.getRuntimeInstance(key);
+            if (runtime != null) {
+                return runtime;
+            }
+            
+            RuntimeDiskCache.Result result = RuntimeDiskCache.load(key);
+            if (result == null) {
+                return null;
+            }
+
+            clazz = result.runtimeClass;
+            imageParams = result.imageParams;
+            put(key, clazz, imageParams);
+        }
+
+        try {
+            JiffleRuntime runtime = clazz.newInstance();
+            runtime.setImageParams(imageParams);
+            return runtime;
+
+        } catch (Exception ex) {
+            throw new JiffleException("Unable to create runtime object from cached class", ex);
+        }
+    }
+
+    /**
+     * Adds a compiled runtime class to the cache. If the cache is full
+     * the least recently used entry is discarded.
+     *
+     * @param key the cache key
+     * @param clazz the compiled runtime class
+     * @param imageParams the image parameters to set for runtime objects
+     *        created from the class
+     */
+    public static void put(Key key, Class<? extends JiffleRuntime> clazz,
+            Map<String, Jiffle.ImageRole> imageParams) {
+
+        put(key, clazz, imageParams, null);
+    }
+
+    /**
+     * Adds a compiled runtime class to the cache together with the source
+     * footprints of its script, replacing any existing entry for the key.
+     *
+     * @param key the cache key
+     * @param clazz the compiled runtime class
+     * @param imageParams the image parameters to set for runtime objects
+     *        created from the class
+     * @param footprints the script's source footprints or {@code null}
+     *        if not known
+     */
+    static void put(Key key, Class<? extends JiffleRuntime> clazz,
+            Map<String, Jiffle.ImageRole> imageParams,
+            Map<String, SourceFootprint> footprints) {
+
+        synchronized (lock) {
+            if (maxSize == 0) {
+                return;
+            }
+
+            expungeCleared();
+            entries.put(key, new Entry(key, clazz, imageParams, footprints, queue));
+            trimToSize();
+        }
+    }
+
+    /**
+     * Gets the source footprints held with the class cached for the
+     * given key. This does not count as a cache lookup.
+     *
+     * @param key the cache key
+     * @return the footprints or {@code null} if there is no cached class
+     *         or its footprints are not known
+     */
+    static Map<String, SourceFootprint> getSourceFootprints(Key key) {
+        synchronized (lock) {
+            Entry e = entries.get(key);
+            return e == null || e.get() == null ? null : e.footprints;
+        }
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     *
+     * @return maximum number of entries
+     */
+    public static int getMaxSize() {
+        synchronized (lock) {
+            return maxSize;
+        }
+    }
+
+    /**
+     * Sets the maximum number of entries. If the cache currently holds
+     * more than this number, the least recently used entries are discarded.
+     *
+     * @param size maximum number of entries (0 to disable caching)
+     * @throws IllegalArgumentException if {@code size} is negative
+     */
+    public static void setMaxSize(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+
+        synchronized (lock) {
+            maxSize = size;
+            trimToSize();
+        }
+    }
+
+    /**
+     * Gets the number of entries currently in the cache.
+     *
+     * @return number of entries
+     */
+    public static int size() {
+        synchronized (lock) {
+            expungeCleared();
+            return entries.size();
+        }
+    }
+
+    /**
+     * Removes all entries from the cache. This does not reset the
+     * hit, miss and eviction counts.
+     */
+    public static void clear() {
+        synchronized (lock) {
+            entries.clear();
+            while (queue.poll() != null) ;
+        }
+    }
+
+    /**
+     * Gets the number of lookups which found a cached class.
+     *
+     * @return hit count
+     */
+    public static long getHitCount() {
+        synchronized (lock) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Gets the number of lookups which did not find a cached class.
+     *
+     * @return miss count
+     */
+    public static long getMissCount() {
+        synchronized (lock) {
+            return missCount;
+        }
+    }
+
+    /**
+     * Gets the number of entries discarded, either to keep the cache
+     * within its size limit or because their classes were reclaimed
+     * by the garbage collector.
+     *
+     * @return eviction count
+     */
+    public static long getEvictionCount() {
+        synchronized (lock) {
+            return evictionCount;
+        }
+    }
+
+    /**
+     * Resets the hit, miss and eviction counts to zero.
+     */
+    public static void resetCounts() {
+        synchronized (lock) {
+            hitCount = 0;
+            missCount = 0;
+            evictionCount = 0;
+        }
+    }
+
+    /**
+     * Normalizes script text so that differences in line endings,
+     * indentation, trailing white space and blank lines do not
+     * produce different keys.
+     *
+     * @param script the script
+     * @return normalized script
+     */
+    static String normalizeScript(String script) {
+        StringBuilder sb = new StringBuilder(script.length());
+        String[] lines = script.split("\r\n|\r|\n");
+        for (String line : lines) {
+            line = line.trim();
+            if (line.length() > 0) {
+                sb.append(line).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Removes entries whose classes have been reclaimed by the
+     * garbage collector. Must be called while holding the lock.
+     */
+    private static void expungeCleared() {
+        Object ref;
+        while ((ref = queue.poll()) != null) {
+            Entry e = (Entry) ref;
+            if (entries.get(e.key) == e) {
+                entries.remove(e.key);
+                evictionCount++ ;
+            }
+        }
+    }
+
+    /*
+     * Discards least recently used entries until the cache is within
+     * its size limit. Must be called while holding the lock.
+     */
+    private static void trimToSize() {
+        Iterator<Key> iter = entries.keySet().iterator();
+        while (entries.size() > maxSize && iter.hasNext()) {
+            iter.next();
+            iter.remove();
+            evictionCount++ ;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.util.Map;
+
+/**
+ * Service interface for compilers which turn generated runtime source 
+ * into bytecode. The implementation used by {@link Jiffle} is selected 
+ * with the {@code runtime.compiler} property (see 
+ * {@link JiffleProperties#RUNTIME_COMPILER_KEY}), whose value is either
+ * one of the names {@code janino} or {@code javac}, or the fully qualified
+ * name of a class implementing this interface which has a public no-arg 
+ * constructor.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see JaninoRuntimeCompiler
+ * @see JavaxToolsRuntimeCompiler
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public interface RuntimeCompiler {
+    
+    /**
+     * Gets a short name for this compiler, used when reporting timings.
+     * 
+     * @return the name
+     */
+    String getName();
+    
+    /**
+     * Compiles the source for a runtime class and returns the bytecode 
+     * of the resulting class(es), keyed by binary class name. 
+     * 
+     * @param className fully qualified name of the runtime class
+     * @param source the runtime class source
+     * @param parent class loader from which classes referred to by the
+     *        source can be loaded
+     * 
+     * @return map of class name to bytecode
+     * 
+     * @throws JiffleException on compilation errors
+     */
+    Map<String, byte[]> compile(String className, String source, ClassLoader parent)
+            throws JiffleException;
+    
+}
@@ -0,0 +1,562 @@
+/*
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this
+ *    list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jaitools.jiffle;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.codehaus.janino.ByteArrayClassLoader;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+/**
+ * An optional on-disk cache of runtime class bytecode. When enabled, the
+ * bytecode of each newly compiled runtime class is written to a file in the
+ * cache directory. A later JVM which needs the same runtime class (same
+ * script, image parameters, runtime model, base class, backend and source
+ * compiler) defines it directly from the file, skipping parsing, the
+ * tree-walking passes and Janino compilation.
+ * <p>
+ * The cache is disabled by default. It is enabled by setting the system
+ * property {@code jiffle.runtime.disk.cache.dir} or the Jiffle property
+ * {@code runtime.disk.cache.dir} to a directory path (the system property
+ * takes precedence), or by calling {@link #setDirectory(File)}.
+ * <p>
+ * Each file name is a digest of the cache key together with a signature of
+ * the Jiffle artifact (its Implementation-Version and a digest of the jar
+ * or class directory it was loaded from), so entries written by a different
+ * build of Jiffle are never used. Files carry a checksum and are discarded if found to be corrupt
+ * or if the class cannot be defined. Files are written to a temporary file
+ * and then renamed, so several JVMs can share the same directory.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeDiskCache {
+
+    /** System property used to set the cache directory. */
+    public static final String DIR_SYSTEM_PROPERTY = "jiffle.runtime.disk.cache.dir";
+
+    /** Extension for cache files. */
+    public static final String FILE_EXTENSION = ".jrc";
+
+    private static final int MAGIC = 0x4A524331;  // "JRC1"
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int DIGEST_LENGTH = 20;
+
+    /**
+     * A runtime class defined from a cache file together with the image
+     * parameters for its runtime objects.
+     */
+    static class Result {
+        final Class<? extends JiffleRuntime> runtimeClass;
+        final Map<String, Jiffle.ImageRole> imageParams;
+
+        Result(Class<? extends JiffleRuntime> runtimeClass,
+                Map<String, Jiffle.ImageRole> imageParams) {
+            this.runtimeClass = runtimeClass;
+            this.imageParams = imageParams;
+        }
+    }
+
+    private static final Object lock = new Object();
+
+    private static File directory;
+    private static String compilerSignature;
+
+    private static long hitCount;
+    private static long missCount;
+    private static long writeCount;
+    private static long corruptCount;
+
+    static {
+        String path = System.getProperty(DIR_SYSTEM_PROPERTY);
+        if (path == null || path.trim().length() == 0) {
+            path = JiffleProperties.get(JiffleProperties.RUNTIME_DISK_CACHE_DIR_KEY);
+        }
+
+        if (path != null && path.trim().length() > 0) {
+            setDirectory(new File(path.trim()));
+        }
+    }
+
+    /**
+     * Sets the cache directory. The directory will be created if it does
+     * not exist.
+     *
+     * @param dir the cache directory or {@code null} to disable the cache
+     */
+    public static void setDirectory(File dir) {
+        synchronized (lock) {
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                Jiffle.LOGGER.warning("Unable to create runtime cache directory " + dir
+                        + "; disk cache disabled");
+                dir = null;
+            }
+            directory = dir;
+        }
+    }
+
+    /**
+     * Gets the cache directory.
+     *
+     * @return the directory or {@code null} if the cache is disabled
+     */
+    public static File getDirectory() {
+        synchronized (lock) {
+            return directory;
+        }
+    }
+
+    /**
+     * Tests whether the cache is enabled.
+     *
+     * @return {@code true} if a cache directory has been set
+     */
+    public static boolean isEnabled() {
+        return getDirectory() != null;
+    }
+
+    /**
+     * Deletes all cache files in the cache directory.
+     */
+    public static void clear() {
+        File dir = getDirectory();
+        if (dir != null) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().endsWith(FILE_EXTENSION)) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of runtime classes defined from cache files.
+     *
+     * @return hit count
+     */
+    public static long getHitCount() {
+        synchronized (lock) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * Gets the number of lookups which did not find a usable cache file.
+     *
+     * @return miss count
+     */
+    public static long getMissCount() {
+        synchronized (lock) {
+            return missCount;
+        }
+    }
+
+    /**
+     * Gets the number of cache files written.
+     *
+     * @return write count
+     */
+    public static long getWriteCount() {
+        synchronized (lock) {
+            return writeCount;
+        }
+    }
+
+    /**
+     * Gets the number of cache files which were discarded because they
+     * were corrupt or their classes could not be defined.
+     *
+     * @return corrupt file count
+     */
+    public static long getCorruptCount() {
+        synchronized (lock) {
+            return corruptCount;
+        }
+    }
+
+    /**
+     * Resets the hit, miss, write and corrupt file counts to zero.
+     */
+    public static void resetCounts() {
+        synchronized (lock) {
+            hitCount = 0;
+            missCount = 0;
+            writeCount = 0;
+            corruptCount = 0;
+        }
+    }
+
+    /**
+     * Gets the cache file which would be used for the given key.
+     *
+     * @param key the cache key
+     * @return the file or {@code null} if the cache is disabled
+     */
+    public static File getFile(RuntimeClassCache.Key key) {
+        File dir = getDirectory();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, RuntimeClassCache.Key.digest(getKeyText(key)) + FILE_EXTENSION);
+    }
+
+    /**
+     * Defines a runtime class from the cache file for the given key.
+     *
+     * @param key the cache key
+     * @return the class and image parameters, or {@code null} if the cache
+     *         is disabled or there is no usable file for the key
+     */
+    static Result load(RuntimeClassCache.Key key) {
+        File file = getFile(key);
+        if (file == null) {
+            return null;
+        }
+
+        if (!file.isFile()) {
+            countMiss();
+            return null;
+        }
+
+        try {
+            Result result = readFile(file, getKeyText(key));
+            synchronized (lock) {
+                hitCount++ ;
+            }
+            return result;
+
+        } catch (Throwable t) {
+            // IO errors, bad checksums, class format and linkage errors all
+            // mean that the file is unusable
+            Jiffle.LOGGER.warning("Discarding runtime cache file " + file.getName()
+                    + ": " + t);
+            file.delete();
+            synchronized (lock) {
+                corruptCount++ ;
+                missCount++ ;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes the bytecode for a newly compiled runtime class to the cache
+     * directory. Does nothing if the cache is disabled. Errors are logged
+     * but otherwise ignored.
+     *
+     * @param key the cache key
+     * @param className name of the runtime class
+     * @param classes bytecode of the runtime class and any nested classes,
+     *        keyed by class name
+     * @param imageParams image parameters for runtime objects
+     */
+    static void store(RuntimeClassCache.Key key, String className,
+            Map<String, byte[]> classes, Map<String, Jiffle.ImageRole> imageParams) {
+
+        File file = getFile(key);
+        if (file == null) {
+            return;
+        }
+
+        File tmp = null;
+        try {
+            byte[] content = createContent(getKeyText(key), className, classes, imageParams);
+
+            tmp = File.createTempFile("jiffle", ".tmp", file.getParentFile());
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(content);
+            } finally {
+                out.close();
+            }
+
+            // Another JVM may have written the same entry in the meantime, in
+            // which case the rename can fail (e.g. on Windows). The content is
+            // identical so we just discard our copy (in the finally block) and
+            // do not count it as written.
+            if (tmp.renameTo(file)) {
+                tmp = null;
+                synchronized (lock) {
+                    writeCount++ ;
+                }
+            }
+
+        } catch (IOException ex) {
+            Jiffle.LOGGER.warning("Unable to write runtime cache file: " + ex);
+
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /*
+     * Assembles the file content: header, key text, class name, image
+     * parameters, class bytecode and finally a digest of all of the above.
+     */
+    private static byte[] createContent(String keyText, String className,
+            Map<String, byte[]> classes, Map<String, Jiffle.ImageRole> imageParams)
+            throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, keyText);
+        out.writeUTF(className);
+
+        out.writeInt(imageParams.size());
+        for (String name : imageParams.keySet()) {
+            out.writeUTF(name);
+            out.writeUTF(imageParams.get(name).name());
+        }
+
+        out.writeInt(classes.size());
+        for (String name : classes.keySet()) {
+            byte[] b = classes.get(name);
+            out.writeUTF(name);
+            out.writeInt(b.length);
+            out.write(b);
+        }
+
+        out.flush();
+        out.write(checksum(bytes.toByteArray()));
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Reads and checks a cache file and defines the runtime class.
+     */
+    private static Result readFile(File file, String keyText) throws Exception {
+        byte[] content = readFully(file);
+        if (content.length <= DIGEST_LENGTH) {
+            throw new IOException("file is truncated");
+        }
+
+        int len = content.length - DIGEST_LENGTH;
+        byte[] body = new byte[len];
+        System.arraycopy(content, 0, body, 0, len);
+        byte[] expected = new byte[DIGEST_LENGTH];
+        System.arraycopy(content, len, expected, 0, DIGEST_LENGTH);
+
+        if (!Arrays.equals(expected, checksum(body))) {
+            throw new IOException("checksum mismatch");
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+            throw new IOException("unrecognized file format");
+        }
+
+        if (!keyText.equals(readString(in))) {
+            throw new IOException("key mismatch");
+        }
+
+        String className = in.readUTF();
+
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            imageParams.put(name, Jiffle.ImageRole.valueOf(in.readUTF()));
+        }
+
+        Map<String, byte[]> classes = CollectionFactory.map();
+        n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            classes.put(name, b);
+        }
+
+        ClassLoader loader = new ByteArrayClassLoader(classes, Jiffle.getParentClassLoader());
+        Class<?> clazz = loader.loadClass(className);
+        if (!JiffleRuntime.class.isAssignableFrom(clazz)) {
+            throw new IOException(className + " is not a Jiffle runtime class");
+        }
+
+        // force verification and linking now rather than at first use
+        Class.forName(className, true, loader);
+
+        return new Result((Class<? extends JiffleRuntime>) clazz, imageParams);
+    }
+
+    /*
+     * Creates the text from which the file name digest is calculated. This
+     * is also stored in the file and checked when reading.
+     */
+    private static String getKeyText(RuntimeClassCache.Key key) {
+        return getCompilerSignature() + '\n' + key.getText();
+    }
+
+    /*
+     * Calculates (once) a signature of the Jiffle artifact: its
+     * Implementation-Version together with a digest of the jar (or
+     * class directory) from which it was loaded, and the Java version.
+     * Any change to the compiler, its templates or properties therefore
+     * gives a new signature. If the code source cannot be read, the
+     * signature is unique to this JVM so that files are not shared.
+     */
+    private static String getCompilerSignature() {
+        synchronized (lock) {
+            if (compilerSignature == null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    Package pkg = Jiffle.class.getPackage();
+                    String version = pkg == null ? null : pkg.getImplementationVersion();
+                    bytes.write(String.valueOf(version).getBytes("UTF-8"));
+                    bytes.write(System.getProperty("java.version", "").getBytes("UTF-8"));
+
+                    File codeSource = getCodeSource();
+                    if (codeSource == null) {
+                        throw new IOException("Jiffle code source is not a local file");
+                    }
+                    writeFileDigests(codeSource, codeSource.getName(), bytes);
+
+                } catch (Exception ex) {
+                    Jiffle.LOGGER.warning("Unable to read Jiffle code source (" + ex
+                            + "); runtime cache files will not be reused by other JVMs");
+                    byte[] unique = (System.currentTimeMillis() + "@" 
+                            + System.identityHashCode(lock)).getBytes();
+                    bytes.write(unique, 0, unique.length);
+                }
+
+                compilerSignature = RuntimeClassCache.Key.digest(bytes.toByteArray());
+            }
+            return compilerSignature;
+        }
+    }
+
+    /*
+     * Gets the jar file or class directory from which the Jiffle 
+     * classes were loaded, or null if it is not a local file.
+     */
+    private static File getCodeSource() throws Exception {
+        ProtectionDomain domain = Jiffle.class.getProtectionDomain();
+        CodeSource cs = domain == null ? null : domain.getCodeSource();
+        URL url = cs == null ? null : cs.getLocation();
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        return new File(url.toURI());
+    }
+
+    /*
+     * Writes the path and checksum of a file, or of each file within a
+     * directory (in name order), to the output stream.
+     */
+    private static void writeFileDigests(File file, String path, ByteArrayOutputStream out)
+            throws IOException {
+
+        if (file.isDirectory()) {
+            String[] names = file.list();
+            if (names == null) {
+                throw new IOException("Unable to list " + file);
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                writeFileDigests(new File(file, name), path + "/" + name, out);
+            }
+
+        } else {
+            out.write(path.getBytes("UTF-8"));
+            out.write(checksum(readFully(file)));
+        }
+    }
+
+    private static void countMiss() {
+        synchronized (lock) {
+            missCount++ ;
+        }
+    }
+
+    private static byte[] checksum(byte[] data) {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(data);
+        } catch (NoSuchAlgorithmException ex) {
+            // every JRE is required to provide SHA-1
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+            copy(in, bytes);
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+    }
+}
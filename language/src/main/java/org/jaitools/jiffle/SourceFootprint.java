@@ -0,0 +1,263 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.awt.Rectangle;
+
+/**
+ * Describes the positions, relative to the pixel being evaluated, at 
+ * which a script reads a source image. A script which reads {@code src} and
+ * {@code src[-1, 0]} and {@code src[1, 2]} has a footprint for {@code src}
+ * with X offsets from -1 to 1 and Y offsets from 0 to 2. Offsets are in 
+ * processing area units, which are pixels when the processing area is 
+ * the same as the image bounds.
+ * <p>
+ * A footprint is unbounded if the script reads the image at absolute 
+ * positions (e.g. {@code src[$0, $0]}) or at relative positions which 
+ * cannot be determined when the script is compiled.
+ * <p>
+ * Footprints are available from {@link Jiffle#getSourceFootprints()}.
+ * Instances are immutable.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public final class SourceFootprint {
+    
+    /** A footprint for a script that only reads the pixel being evaluated. */
+    public static final SourceFootprint CENTRE = new SourceFootprint(true, 0, 0, 0, 0);
+    
+    /** A footprint for a script which can read any position in an image. */
+    public static final SourceFootprint UNBOUNDED = new SourceFootprint(false, 0, 0, 0, 0);
+    
+    private final boolean bounded;
+    private final int minDX;
+    private final int maxDX;
+    private final int minDY;
+    private final int maxDY;
+
+    /**
+     * Creates a bounded footprint.
+     * 
+     * @param minDX minimum X offset
+     * @param maxDX maximum X offset
+     * @param minDY minimum Y offset
+     * @param maxDY maximum Y offset
+     * 
+     * @return the new footprint
+     * 
+     * @throws IllegalArgumentException if a minimum offset is greater than
+     *         the corresponding maximum
+     */
+    public static SourceFootprint bounded(int minDX, int maxDX, int minDY, int maxDY) {
+        if (minDX > maxDX || minDY > maxDY) {
+            throw new IllegalArgumentException("minimum offset greater than maximum");
+        }
+        return new SourceFootprint(true, minDX, maxDX, minDY, maxDY);
+    }
+    
+    private SourceFootprint(boolean bounded, int minDX, int maxDX, int minDY, int maxDY) {
+        this.bounded = bounded;
+        this.minDX = minDX;
+        this.maxDX = maxDX;
+        this.minDY = minDY;
+        this.maxDY = maxDY;
+    }
+
+    /**
+     * Tests whether this footprint is bounded.
+     * 
+     * @return {@code true} if bounded
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Gets the minimum X offset.
+     * 
+     * @return the offset
+     * @throws IllegalStateException if the footprint is unbounded
+     */
+    public int getMinDX() {
+        checkBounded();
+        return minDX;
+    }
+
+    /**
+     * Gets the maximum X offset.
+     * 
+     * @return the offset
+     * @throws IllegalStateException if the footprint is unbounded
+     */
+    public int getMaxDX() {
+        checkBounded();
+        return maxDX;
+    }
+
+    /**
+     * Gets the minimum Y offset.
+     * 
+     * @return the offset
+     * @throws IllegalStateException if the footprint is unbounded
+     */
+    public int getMinDY() {
+        checkBounded();
+        return minDY;
+    }
+
+    /**
+     * Gets the maximum Y offset.
+     * 
+     * @return the offset
+     * @throws IllegalStateException if the footprint is unbounded
+     */
+    public int getMaxDY() {
+        checkBounded();
+        return maxDY;
+    }
+    
+    /**
+     * Creates a footprint which covers this footprint and another.
+     * 
+     * @param other the other footprint
+     * 
+     * @return the combined footprint
+     */
+    public SourceFootprint union(SourceFootprint other) {
+        if (!bounded || !other.bounded) {
+            return UNBOUNDED;
+        }
+        
+        return new SourceFootprint(true, 
+                Math.min(minDX, other.minDX), Math.max(maxDX, other.maxDX),
+                Math.min(minDY, other.minDY), Math.max(maxDY, other.maxDY));
+    }
+
+    /**
+     * Creates a footprint with offsets in image pixels for a processing
+     * area whose units are scaled to pixels by the given factors. Scaled
+     * offsets are rounded outwards, so the result covers every pixel that
+     * might be read.
+     *
+     * @param xscale pixels per processing area unit in the X direction
+     * @param yscale pixels per processing area unit in the Y direction
+     *
+     * @return the scaled footprint
+     *
+     * @throws IllegalArgumentException if either scale is not positive
+     */
+    public SourceFootprint scale(double xscale, double yscale) {
+        if (!(xscale > 0 && yscale > 0)) {
+            throw new IllegalArgumentException("scale factors must be positive");
+        }
+        if (!bounded) {
+            return UNBOUNDED;
+        }
+
+        return new SourceFootprint(true,
+                (int) Math.floor(minDX * xscale), (int) Math.ceil(maxDX * xscale),
+                (int) Math.floor(minDY * yscale), (int) Math.ceil(maxDY * yscale));
+    }
+
+    /**
+     * Gets the source area read when evaluating the given area.
+     * 
+     * @param destRect the area being evaluated
+     * 
+     * @return the source area or {@code null} if this footprint is unbounded
+     */
+    public Rectangle getSourceRect(Rectangle destRect) {
+        if (!bounded) {
+            return null;
+        }
+        
+        return new Rectangle(destRect.x + minDX, destRect.y + minDY, 
+                destRect.width + maxDX - minDX, destRect.height + maxDY - minDY);
+    }
+
+    /**
+     * Gets the area whose values depend on the given source area.
+     * 
+     * @param sourceRect the source area
+     * 
+     * @return the dependent area or {@code null} if this footprint is unbounded
+     */
+    public Rectangle getDestRect(Rectangle sourceRect) {
+        if (!bounded) {
+            return null;
+        }
+        
+        return new Rectangle(sourceRect.x - maxDX, sourceRect.y - maxDY, 
+                sourceRect.width + maxDX - minDX, sourceRect.height + maxDY - minDY);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SourceFootprint)) {
+            return false;
+        }
+        
+        SourceFootprint other = (SourceFootprint) obj;
+        if (!bounded || !other.bounded) {
+            return bounded == other.bounded;
+        }
+        return minDX == other.minDX && maxDX == other.maxDX 
+                && minDY == other.minDY && maxDY == other.maxDY;
+    }
+
+    @Override
+    public int hashCode() {
+        if (!bounded) {
+            return -1;
+        }
+        
+        int hash = 7;
+        hash = 31 * hash + minDX;
+        hash = 31 * hash + maxDX;
+        hash = 31 * hash + minDY;
+        hash = 31 * hash + maxDY;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        if (!bounded) {
+            return "SourceFootprint(unbounded)";
+        }
+        return String.format("SourceFootprint(dx %d:%d, dy %d:%d)", minDX, maxDX, minDY, maxDY);
+    }
+    
+    private void checkBounded() {
+        if (!bounded) {
+            throw new IllegalStateException("Footprint is unbounded");
+        }
+    }
+}
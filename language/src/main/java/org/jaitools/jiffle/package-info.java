@@ -29,11 +29,23 @@
  * of Java and JAI boiler-plate code.
  * <p>
  * Jiffle scripts are compiled to bytecode. The compiler first
- * translates the script into Java source which is then passed to an
- * embedded Janino compiler to produce executable bytecode in memory. The
+ * translates the script into Java source which is then passed to a
+ * {@link org.jaitools.jiffle.RuntimeCompiler} (by default the embedded 
+ * Janino compiler) to produce executable bytecode in memory. The
  * resulting run-time object can then be used by client code as a normal
  * compiled java class.
  * <p>
+ * Alternatively, scripts for direct evaluation can be run by the
+ * interpreter {@link org.jaitools.jiffle.runtime.InterpretedDirectRuntime},
+ * either on its own or as the first tier of a 
+ * {@link org.jaitools.jiffle.runtime.TieredDirectRuntime} which switches to
+ * the compiled class once it has been created in the background.
+ * <p>
+ * Applications which compile many scripts concurrently can use a
+ * {@link org.jaitools.jiffle.JiffleCompiler}, which compiles scripts on a
+ * bounded thread pool and returns 
+ * {@link org.jaitools.jiffle.JiffleRuntimeFactory} objects.
+ * <p>
  * For an introduction to Jiffle see the User Guide at:
  * http://jaitools.org/docs/jiffle/latest/userguide/html/index.html
  */
@@ -36,6 +36,7 @@ import org.antlr.runtime.RecognizerSharedState;
 import org.antlr.runtime.RuleReturnScope;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.tree.TreeNodeStream;
+import org.antlr.stringtemplate.StringTemplate;
 import org.antlr.stringtemplate.StringTemplateGroup;
 
 import org.jaitools.CollectionFactory;
@@ -43,6 +44,7 @@ import org.jaitools.jiffle.Jiffle;
 import org.jaitools.jiffle.JiffleException;
 import org.jaitools.jiffle.JiffleProperties;
 import org.jaitools.jiffle.parser.CommentFinder;
+import org.jaitools.numeric.CompareOp;
 
 /**
  * Base class for tree parsers that generate Jiffle runtime source.
@@ -75,6 +77,53 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
     /** A counter used in naming variables inserted into the runtime source. */
     protected int varIndex = 0;
     
+    /** 
+     * Declarations (type and name) of the fields used to hold intermediate 
+     * values such as the sign of conditions in con calls and if statements.
+     */
+    protected List<String> tempFields = CollectionFactory.list();
+    
+    /** The templates used for source generation. */
+    protected StringTemplateGroup templates;
+    
+    /** Whether images are accessed by slot index in the runtime class. */
+    protected boolean useImageSlots = false;
+    
+    /** 
+     * Image variable names in the order of their slot indices in
+     * the runtime class.
+     */
+    protected List<String> imageVars = CollectionFactory.list();
+    
+    /**
+     * The maximum size, in bytes of bytecode, of a method that the HotSpot
+     * JIT compiler will compile (see the {@code DontCompileHugeMethods} JVM
+     * option).
+     */
+    public static final int MAX_METHOD_SIZE = 8000;
+    
+    /** 
+     * The approximate number of non-whitespace characters of generated source 
+     * for each byte of bytecode. Used to estimate method size from source.
+     * The value errs on the low side so that estimates are generous.
+     */
+    protected static final double SOURCE_CHARS_PER_BYTE = 1.5;
+    
+    /** Whether the per-pixel code is to be split into several methods. */
+    protected boolean splitEvaluation = false;
+    
+    /** Whether the per-pixel code was found to exceed the maximum method size. */
+    protected boolean splitRequired = false;
+    
+    /** 
+     * Calls to the methods holding the per-pixel code when it is split, in 
+     * order of execution.
+     */
+    protected List<StringTemplate> partCalls = CollectionFactory.list();
+    
+    /** Table for warnings issued during source generation; may be null. */
+    protected MessageTable msgTable;
+    
 
     /**
      * Constructor called by ANTLR.
@@ -123,6 +172,30 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the package differs from the default runtime package, the latter
+     * is imported so that the generated source can refer to its classes 
+     * by simple name.
+     */
+    public void setRuntimeClassName(String qualifiedName) {
+        int pos = qualifiedName.lastIndexOf('.');
+        if (pos <= 0 || pos == qualifiedName.length() - 1) {
+            throw new IllegalArgumentException(
+                    "Runtime class name must include a package: " + qualifiedName);
+        }
+        
+        String runtimePkg = JiffleProperties.get(JiffleProperties.RUNTIME_PACKAGE_KEY);
+        pkgName = qualifiedName.substring(0, pos);
+        className = qualifiedName.substring(pos + 1);
+        
+        String runtimeImport = runtimePkg + ".*";
+        if (!pkgName.equals(runtimePkg) && !imports.contains(runtimeImport)) {
+            imports.add(runtimeImport);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -130,6 +203,34 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
         this.baseClassName = baseClassName;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void setImageSlots(boolean b) {
+        this.useImageSlots = b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setSplitEvaluation(boolean b) {
+        this.splitEvaluation = b;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isSplitRequired() {
+        return splitRequired;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setMessageTable(MessageTable msgTable) {
+        this.msgTable = msgTable;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -163,6 +264,7 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
             reader = new InputStreamReader(strm);
             StringTemplateGroup modelSTG = new StringTemplateGroup(reader);
             setTemplateLib(modelSTG);
+            templates = modelSTG;
             reader.close();
             
         } catch (Exception ex) {
@@ -235,6 +337,57 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
     }
     
     
+    /**
+     * Creates the template for a function call. Intrinsic functions 
+     * (Jiffle's logical and comparison operators) are expanded inline;
+     * other functions are formatted as a method call.
+     * 
+     * @param name function name
+     * @param argTypes argument type names; null or empty for no-arg functions
+     * @param args argument templates
+     * 
+     * @return the function call template
+     */
+    protected StringTemplate getFunctionCall(String name, List<String> argTypes, List args) {
+        FunctionInfo info;
+        try {
+            info = FunctionLookup.getInfo(name, argTypes);
+        } catch (UndefinedFunctionException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+        
+        StringTemplate st;
+        if (info.isIntrinsic()) {
+            st = templates.getInstanceOf(info.getRuntimeExpr());
+            st.setAttribute("n", newOperandVars(args.size()));
+            st.setAttribute("tol", String.valueOf(CompareOp.DTOL));
+        } else {
+            st = templates.getInstanceOf("call");
+            st.setAttribute("name", info.getRuntimeExpr());
+        }
+        st.setAttribute("args", args);
+        return st;
+    }
+    
+    
+    /**
+     * Creates the template for a Jiffle operator which is implemented 
+     * as a function taking scalar arguments.
+     * 
+     * @param name operator function name (e.g. "GT")
+     * @param args argument templates
+     * 
+     * @return the function call template
+     */
+    protected StringTemplate getOperatorCall(String name, List args) {
+        List<String> argTypes = CollectionFactory.list();
+        for (int i = 0; i < args.size(); i++) {
+            argTypes.add("D");
+        }
+        return getFunctionCall(name, argTypes, args);
+    }
+    
+    
     /**
      * Gets the runtime source for a script option name:value pair.
      * 
@@ -273,6 +426,145 @@ public abstract class AbstractSourceGenerator extends ErrorHandlingTreeParser im
         }
     }
 
+    /**
+     * Gets the slot index for an image variable in the runtime class,
+     * allocating a new index if this is the first reference to the variable.
+     * 
+     * @param varName image variable name
+     * 
+     * @return the slot index or {@code null} if slot access is not being used
+     */
+    protected Integer getImageSlot(String varName) {
+        if (!useImageSlots) {
+            return null;
+        }
+        
+        int index = imageVars.indexOf(varName);
+        if (index < 0) {
+            imageVars.add(varName);
+            index = imageVars.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Allocates a new int field for the sign of a condition in a con call
+     * or if statement.
+     * 
+     * @return the index of the field
+     */
+    protected int newSignVar() {
+        tempFields.add("int _sgn" + (++varIndex));
+        return varIndex;
+    }
+    
+    /**
+     * Allocates new double fields for the operands of an intrinsic operator.
+     * 
+     * @param numOperands number of operands (1 or 2)
+     * 
+     * @return the index of the fields
+     */
+    protected int newOperandVars(int numOperands) {
+        ++varIndex;
+        tempFields.add("double _lhs" + varIndex);
+        if (numOperands > 1) {
+            tempFields.add("double _rhs" + varIndex);
+        }
+        return varIndex;
+    }
+
+    /**
+     * Adds a field declaration to the list of temporary fields if it is
+     * not already present.
+     * 
+     * @param decl the declaration (type and name)
+     */
+    protected void addTempField(String decl) {
+        if (!tempFields.contains(decl)) {
+            tempFields.add(decl);
+        }
+    }
+
+    /**
+     * Estimates the size of the per-pixel code and, if splitting is enabled,
+     * groups the statements into methods which are each under the maximum 
+     * method size. The calls to the methods, in order, are added to 
+     * {@link #partCalls}. A warning is added to the message table for any 
+     * method which cannot be brought under the limit because it holds a
+     * single large statement.
+     * 
+     * @param stmts templates for the top-level statements
+     * 
+     * @return templates for the methods, or {@code null} if splitting is
+     *         not enabled
+     */
+    protected List<StringTemplate> getEvaluationParts(List stmts) {
+        int[] sizes = new int[stmts.size()];
+        int total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = estimateSize(stmts.get(i));
+            total += sizes[i];
+        }
+        
+        splitRequired = total > MAX_METHOD_SIZE;
+        if (!splitEvaluation) {
+            return null;
+        }
+        
+        List<StringTemplate> parts = CollectionFactory.list();
+        List partStmts = CollectionFactory.list();
+        int partSize = 0;
+        
+        for (int i = 0; i < sizes.length; i++) {
+            if (!partStmts.isEmpty() && partSize + sizes[i] > MAX_METHOD_SIZE) {
+                parts.add(createEvaluationPart(parts.size(), partStmts, partSize, false));
+                partStmts = CollectionFactory.list();
+                partSize = 0;
+            }
+            partStmts.add(stmts.get(i));
+            partSize += sizes[i];
+        }
+        parts.add(createEvaluationPart(parts.size(), partStmts, partSize, true));
+        
+        return parts;
+    }
+    
+    private StringTemplate createEvaluationPart(int n, List stmts, int size, boolean last) {
+        if (size > MAX_METHOD_SIZE && msgTable != null) {
+            msgTable.add("evaluation method " + n, Message.METHOD_TOO_LARGE);
+        }
+        
+        StringTemplate call = templates.getInstanceOf("evalpartcall");
+        call.setAttribute("n", n);
+        call.setAttribute("lastpart", last);
+        partCalls.add(call);
+        
+        StringTemplate part = templates.getInstanceOf("evalpart");
+        part.setAttribute("n", n);
+        part.setAttribute("stmts", stmts);
+        part.setAttribute("lastpart", last);
+        return part;
+    }
+    
+    /**
+     * Estimates the bytecode size of a block of generated code.
+     * 
+     * @param code the code (a template or string)
+     * 
+     * @return estimated size in bytes
+     */
+    protected int estimateSize(Object code) {
+        String src = code.toString();
+        int n = 0;
+        for (int i = 0; i < src.length(); i++) {
+            if (!Character.isWhitespace(src.charAt(i))) {
+                n++ ;
+            }
+        }
+        return (int) (n / SOURCE_CHARS_PER_BYTE);
+    }
+
     /**
      * Prepares the Jiffle source for inclusion in the run-time class javadocs.
      * Comments are stripped from the script and it is split into lines.
@@ -0,0 +1,419 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.jiffle.runtime.JiffleFunctions;
+import org.jaitools.numeric.CompareOp;
+
+/**
+ * Simplifies the final AST prior to runtime source generation. This pass
+ * runs after {@link TransformExpressions} (which also checks function calls)
+ * and does the following:
+ * <ul>
+ * <li>Evaluates arithmetic, logical and comparison operations whose operands 
+ *     are literals or named constants (e.g. {@code M_PI}) and replaces them 
+ *     with the resulting value.</li>
+ * <li>Replaces {@code x^2} with {@code x*x} when {@code x} is a simple 
+ *     variable.</li>
+ * <li>Replaces a {@code con} call having a constant condition with the
+ *     selected alternative.</li>
+ * <li>Removes the dead branch of an {@code if} statement having a constant
+ *     condition.</li>
+ * </ul>
+ * The results of folding follow the same rules as the runtime code, including
+ * the treatment of NaN and the tolerance used for logical comparisons. An 
+ * operation is left unchanged if folding would result in an infinite value.
+ * Function calls are never folded.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ExpressionSimplifier {
+
+    private final JiffleFunctions fn = new JiffleFunctions();
+
+    /**
+     * Simplifies the given tree in place.
+     * 
+     * @param tree the AST (as returned by the last tree parser)
+     * 
+     * @return the simplified tree
+     */
+    public CommonTree simplify(CommonTree tree) {
+        return (CommonTree) visit(tree);
+    }
+
+    /**
+     * Simplifies the children of a node and then the node itself.
+     * 
+     * @param node the node
+     * 
+     * @return the node or its replacement
+     */
+    private Tree visit(Tree node) {
+        if (node.getType() == JiffleParser.JIFFLE_OPTION) {
+            return node;
+        }
+
+        int i = 0;
+        while (i < node.getChildCount()) {
+            Tree child = node.getChild(i);
+            Tree replacement = visit(child);
+
+            if (replacement == null) {
+                node.deleteChild(i);
+                node.freshenParentAndChildIndexes();
+
+            } else {
+                if (replacement != child) {
+                    node.setChild(i, replacement);
+                }
+                i++ ;
+            }
+        }
+
+        return simplifyNode(node);
+    }
+
+    /**
+     * Simplifies a single node whose children have already been simplified.
+     * 
+     * @param node the node
+     * 
+     * @return the node, its replacement, or {@code null} if the node is
+     *         a statement that should be removed
+     */
+    private Tree simplifyNode(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.PAR:
+                return simplifyPar(node);
+
+            case JiffleParser.PREFIX:
+                return simplifyPrefix(node);
+
+            case JiffleParser.POW:
+                return simplifyPow(node);
+
+            case JiffleParser.CON_CALL:
+                return simplifyCon(node);
+
+            case JiffleParser.IF:
+                return simplifyIf(node);
+
+            case JiffleParser.OR:
+            case JiffleParser.AND:
+                return simplifyShortCircuit(node);
+
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.XOR:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+                return simplifyBinary(node);
+
+            default:
+                return node;
+        }
+    }
+
+    private Tree simplifyPar(Tree node) {
+        Tree expr = node.getChild(0);
+        Double value = getConstantValue(expr);
+        if (value != null) {
+            return createValueNode(value, node);
+        }
+        return node;
+    }
+
+    private Tree simplifyPrefix(Tree node) {
+        Double value = getConstantValue(node.getChild(1));
+        if (value == null) {
+            return node;
+        }
+
+        switch (node.getChild(0).getType()) {
+            case JiffleParser.PLUS:
+                return createValueNode(value, node);
+
+            case JiffleParser.MINUS:
+                return createValueNode(-value, node);
+
+            case JiffleParser.NOT:
+                return createValueNode(fn.NOT(value), node);
+
+            default:
+                return node;
+        }
+    }
+
+    private Tree simplifyPow(Tree node) {
+        Double x = getConstantValue(node.getChild(0));
+        Double y = getConstantValue(node.getChild(1));
+
+        if (y != null) {
+            if (x != null) {
+                return createValueNode(Math.pow(x, y), node);
+            }
+
+            if (y == 2.0 && isSimpleVar(node.getChild(0))) {
+                Tree base = node.getChild(0);
+                Tree times = createNode(JiffleParser.TIMES, "*", node);
+                times.addChild(base);
+                times.addChild(base.dupNode());
+
+                Tree par = createNode(JiffleParser.PAR, "PAR", node);
+                par.addChild(times);
+                return par;
+            }
+        }
+
+        return node;
+    }
+
+    private Tree simplifyCon(Tree node) {
+        Tree args = node.getChild(0);
+        Double value = getConstantValue(args.getChild(0));
+        if (value == null) {
+            return node;
+        }
+
+        int sign = fn.sign(value);
+        if (sign == JiffleFunctions.SIGN_NAN) {
+            return createValueNode(Double.NaN, node);
+        }
+
+        switch (args.getChildCount()) {
+            case 1:
+                return createValueNode(sign != 0 ? 1.0 : 0.0, node);
+
+            case 2:
+                return sign != 0 ? wrap(args.getChild(1)) : createValueNode(0.0, node);
+
+            case 3:
+                return wrap(args.getChild(sign != 0 ? 1 : 2));
+
+            case 4:
+                return wrap(args.getChild(sign == 1 ? 1 : (sign == 0 ? 2 : 3)));
+
+            default:
+                return node;
+        }
+    }
+
+    private Tree simplifyIf(Tree node) {
+        Double value = getConstantValue(node.getChild(0));
+        if (value == null) {
+            return node;
+        }
+
+        int sign = fn.sign(value);
+        if (sign != 0 && sign != JiffleFunctions.SIGN_NAN) {
+            return node.getChild(1);
+
+        } else if (node.getChildCount() > 2) {
+            return node.getChild(2);
+        }
+
+        // Remove the statement if it is within a block; otherwise
+        // replace it with an empty block
+        Tree parent = node.getParent();
+        if (parent != null && parent.getType() == JiffleParser.BLOCK) {
+            return null;
+        }
+        return createNode(JiffleParser.BLOCK, "BLOCK", node);
+    }
+
+    /*
+     * The runtime code for AND and OR only evaluates the second operand
+     * when required, so these can sometimes be folded when only the
+     * first operand is constant.
+     */
+    private Tree simplifyShortCircuit(Tree node) {
+        Double x = getConstantValue(node.getChild(0));
+        if (x == null) {
+            return node;
+        }
+        if (Double.isNaN(x)) {
+            return createValueNode(Double.NaN, node);
+        }
+
+        boolean isAnd = node.getType() == JiffleParser.AND;
+        if (isAnd == CompareOp.isZero(x)) {
+            return createValueNode(isAnd ? 0.0 : 1.0, node);
+        }
+
+        Double y = getConstantValue(node.getChild(1));
+        if (y == null) {
+            return node;
+        }
+        if (Double.isNaN(y)) {
+            return createValueNode(Double.NaN, node);
+        }
+        return createValueNode(CompareOp.isZero(y) ? 0.0 : 1.0, node);
+    }
+
+    private Tree simplifyBinary(Tree node) {
+        if (node.getChildCount() != 2) {
+            return node;
+        }
+
+        Double x = getConstantValue(node.getChild(0));
+        Double y = getConstantValue(node.getChild(1));
+        if (x == null || y == null) {
+            return node;
+        }
+
+        double value;
+        switch (node.getType()) {
+            case JiffleParser.PLUS: value = x + y; break;
+            case JiffleParser.MINUS: value = x - y; break;
+            case JiffleParser.TIMES: value = x * y; break;
+            case JiffleParser.DIV: value = x / y; break;
+            case JiffleParser.MOD: value = x % y; break;
+            case JiffleParser.XOR: value = fn.XOR(x, y); break;
+            case JiffleParser.GT: value = fn.GT(x, y); break;
+            case JiffleParser.GE: value = fn.GE(x, y); break;
+            case JiffleParser.LT: value = fn.LT(x, y); break;
+            case JiffleParser.LE: value = fn.LE(x, y); break;
+            case JiffleParser.LOGICALEQ: value = fn.EQ(x, y); break;
+            case JiffleParser.NE: value = fn.NE(x, y); break;
+            default:
+                return node;
+        }
+
+        return createValueNode(value, node);
+    }
+
+    /**
+     * Gets the value of a node if it is a literal or named constant,
+     * possibly in parentheses.
+     * 
+     * @param node the node
+     * 
+     * @return the value or {@code null} if the node is not constant
+     */
+    private Double getConstantValue(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                return Double.valueOf(node.getText());
+
+            case JiffleParser.CONSTANT:
+                return ConstantLookup.getValue(node.getText());
+
+            case JiffleParser.PAR:
+                return getConstantValue(node.getChild(0));
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Tests if a node is a variable which can safely be evaluated twice 
+     * at little cost.
+     */
+    private boolean isSimpleVar(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.VAR_IMAGE_SCOPE:
+            case JiffleParser.VAR_PIXEL_SCOPE:
+            case JiffleParser.VAR_LOOP:
+            case JiffleParser.VAR_PROVIDED:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Creates a node for a constant value. If the value is infinite the
+     * original node is returned since it cannot be written as a literal.
+     * Negative values are enclosed in parentheses.
+     * 
+     * @param value the value
+     * @param original the node being replaced
+     * 
+     * @return the new node
+     */
+    private Tree createValueNode(double value, Tree original) {
+        if (Double.isInfinite(value)) {
+            return original;
+        }
+
+        if (Double.isNaN(value)) {
+            return createNode(JiffleParser.CONSTANT, "NaN", original);
+        }
+
+        String text = String.valueOf(value);
+        Tree literal = createNode(JiffleParser.FLOAT_LITERAL, text, original);
+        if (text.startsWith("-")) {
+            Tree par = createNode(JiffleParser.PAR, "PAR", original);
+            par.addChild(literal);
+            return par;
+        }
+        return literal;
+    }
+
+    /**
+     * Encloses an expression in parentheses unless it is a literal,
+     * constant or already parenthesized.
+     */
+    private Tree wrap(Tree expr) {
+        switch (expr.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+            case JiffleParser.CONSTANT:
+            case JiffleParser.PAR:
+                return expr;
+
+            default:
+                Tree par = createNode(JiffleParser.PAR, "PAR", expr);
+                par.addChild(expr);
+                return par;
+        }
+    }
+
+    private Tree createNode(int type, String text, Tree original) {
+        CommonToken token = new CommonToken(type, text);
+        token.setLine(original.getLine());
+        token.setCharPositionInLine(original.getCharPositionInLine());
+        return new CommonTree(token);
+    }
+
+}
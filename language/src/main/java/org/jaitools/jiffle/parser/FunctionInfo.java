@@ -48,7 +48,12 @@ public class FunctionInfo {
         /** Indicates a function provided by java.lang.Math */
         MATH("math"),
         /** Indicates a function that is a proxy for a runtime class variable */
-        PROXY("proxy");
+        PROXY("proxy"),
+        /** 
+         * Indicates a function (e.g. a logical operator) that is expanded 
+         * inline in the runtime class source using a named template
+         */
+        INTRINSIC("intrinsic");
 
         private String name;
         private Provider(String name) {
@@ -88,7 +93,8 @@ public class FunctionInfo {
      * @param runtimeName Java name used in runtime class source
      * 
      * @param provider the provider: one of {@link Provider#JIFFLE}, 
-     *        {@link Provider#MATH} or {@link Provider#PROXY}
+     *        {@link Provider#MATH}, {@link Provider#PROXY} or
+     *        {@link Provider#INTRINSIC}
      * 
      * @param isVolatile {@code true} if the function returns a new value on each
      *        invocation regardless of pixel position (e.g. rand()); {@code false}
@@ -125,7 +131,8 @@ public class FunctionInfo {
 
     /**
      * Gets the Java source for the function provider and name used
-     * in the runtime class.
+     * in the runtime class. For an intrinsic function this is the name
+     * of the source generation template which expands it.
      *
      * @return runtime class source for the function
      */
@@ -137,6 +144,7 @@ public class FunctionInfo {
                 // _FN is the instance of JiffleFunctions in AbstractJiffleRuntime
                 return "_FN." + runtimeName;
             case PROXY:
+            case INTRINSIC:
                 return runtimeName;
             default:
                 throw new IllegalStateException("Internal compiler error: getRuntimeExpr");
@@ -173,6 +181,17 @@ public class FunctionInfo {
         return provider == Provider.PROXY;
     }
     
+    /**
+     * Tests if this is an intrinsic function, ie. one that is expanded 
+     * inline in the runtime class source rather than called as a method.
+     * Jiffle's logical and comparison operators are intrinsic functions.
+     *
+     * @return {@code true} if intrinsic; {@code false} otherwise
+     */
+    public boolean isIntrinsic() {
+        return provider == Provider.INTRINSIC;
+    }
+    
     /**
      * Gets the function return type.
      * 
@@ -28,13 +28,16 @@ package org.jaitools.jiffle.parser;
 import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.jaitools.CollectionFactory;
 
 /**
  * A lookup service used by the Jiffle compiler when parsing function
- * calls in scripts.
+ * calls in scripts. Functions are indexed by name. The index is built
+ * when the class is loaded and is not modified afterwards, so lookups
+ * are safe from concurrent compiles.
  * 
  * @author Michael Bedward
  * @since 0.1
@@ -45,7 +48,8 @@ public class FunctionLookup {
     private static final String PROPERTIES_FILE = 
             "META-INF/org/jaitools/jiffle/FunctionLookup.properties";
 
-    private static final List<FunctionInfo> lookup = CollectionFactory.list();
+    /* Functions keyed by script name; overloads in properties file order */
+    private static final Map<String, List<FunctionInfo>> lookup = CollectionFactory.map();
     
     // Indices of attributes in properties file record
     private static final int JIFFLE_NAME = 0;
@@ -92,7 +96,12 @@ public class FunctionLookup {
                     argTypes[i] = attr[k];
                 }
 
-                lookup.add( new FunctionInfo(
+                List<FunctionInfo> overloads = lookup.get(attr[JIFFLE_NAME]);
+                if (overloads == null) {
+                    overloads = CollectionFactory.list();
+                    lookup.put(attr[JIFFLE_NAME], overloads);
+                }
+                overloads.add( new FunctionInfo(
                         attr[JIFFLE_NAME], attr[RUNTIME_NAME], 
                         provider, isVolatile, attr[RETURN], argTypes) );
             }
@@ -139,13 +148,15 @@ public class FunctionLookup {
     public static FunctionInfo getInfo(String jiffleName, List<String> argTypes)
             throws UndefinedFunctionException {
 
-        for (FunctionInfo info : lookup) {
-            if (info.matches(jiffleName, argTypes)) {
-                return info;
+        List<FunctionInfo> overloads = lookup.get(jiffleName);
+        if (overloads != null) {
+            for (FunctionInfo info : overloads) {
+                if (info.matches(jiffleName, argTypes)) {
+                    return info;
+                }
             }
         }
         
-        // should never get here
         throw new UndefinedFunctionException("Unrecognized function: " + jiffleName);
     }
     
@@ -178,10 +189,9 @@ public class FunctionLookup {
      * @throws UndefinedFunctionException if the name is not matched 
      */
     public static String getReturnType(String jiffleName) throws UndefinedFunctionException {
-        for (FunctionInfo info : lookup) {
-            if (info.getJiffleName().equals(jiffleName)) {
-                return info.getReturnType();
-            }
+        List<FunctionInfo> overloads = lookup.get(jiffleName);
+        if (overloads != null) {
+            return overloads.get(0).getReturnType();
         }
         
         throw new UndefinedFunctionException(jiffleName);
@@ -0,0 +1,389 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Moves expressions which do not vary from pixel to pixel out of the 
+ * per-pixel code. This pass runs on the final AST after 
+ * {@link ExpressionSimplifier}.
+ * <p>
+ * Each expression is classed by the values it depends on:
+ * <ul>
+ * <li>{@link Dependency#RUN}: literals, constants, image-scope variables
+ *     which are not assigned in the script body and proxy functions such
+ *     as {@code width()} and {@code xres()}</li>
+ * <li>{@link Dependency#ROW}: as above plus {@code y()}</li>
+ * <li>{@link Dependency#PIXEL}: anything else, including image values, 
+ *     pixel-scope and loop variables, lists and volatile functions</li>
+ * </ul>
+ * Each non-trivial expression which depends on fewer values than its 
+ * enclosing expression is replaced by a runtime class field, and a 
+ * {@code RUN_INVARIANT} or {@code ROW_INVARIANT} node with the field name
+ * and the original expression is added to the top level of the tree, 
+ * ahead of the script statements. The source generator then creates code
+ * to set per-run fields once before processing and per-row fields once 
+ * for each row. Identical expressions share the same field.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InvariantHoister {
+
+    /**
+     * Classes of expression by the values they depend on.
+     */
+    public enum Dependency {
+        /** Constant over the processing area. */
+        RUN,
+        /** Constant along a row of the processing area. */
+        ROW,
+        /** Varies between pixels. */
+        PIXEL;
+        
+        private Dependency max(Dependency other) {
+            return other.ordinal() > ordinal() ? other : this;
+        }
+    }
+    
+    /** Prefix for the names of runtime class fields holding hoisted values. */
+    public static final String FIELD_PREFIX = "_inv";
+
+    private final String xExpr;
+    private final String yExpr;
+    
+    private final Set<String> assignedVars = CollectionFactory.set();
+    private final Map<String, String> fieldNames = CollectionFactory.map();
+    private final List<Tree> runInvariants = CollectionFactory.list();
+    private final List<Tree> rowInvariants = CollectionFactory.list();
+
+    /**
+     * Creates a new instance.
+     */
+    public InvariantHoister() {
+        try {
+            xExpr = FunctionLookup.getRuntimeExpr("x", null);
+            yExpr = FunctionLookup.getRuntimeExpr("y", null);
+            
+        } catch (UndefinedFunctionException ex) {
+            // getting here means a problem with the function definitions
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Hoists invariant expressions from the given tree.
+     * 
+     * @param tree the AST (as returned by {@link ExpressionSimplifier})
+     * 
+     * @return the modified tree, which may have a new root node
+     */
+    public CommonTree hoist(CommonTree tree) {
+        findAssignedVars(tree, assignedVars);
+        
+        List<Tree> header = CollectionFactory.list();
+        List<Tree> statements = CollectionFactory.list();
+
+        if (tree.isNil()) {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                Tree child = tree.getChild(i);
+                int type = child.getType();
+                if (type == JiffleParser.JIFFLE_OPTION || type == JiffleParser.DECL) {
+                    header.add(child);
+                } else {
+                    visit(child);
+                    statements.add(child);
+                }
+            }
+        } else {
+            visit(tree);
+            statements.add(tree);
+        }
+        
+        if (runInvariants.isEmpty() && rowInvariants.isEmpty()) {
+            return tree;
+        }
+
+        CommonTree root = new CommonTree();
+        for (Tree t : header) root.addChild(t);
+        for (Tree t : runInvariants) root.addChild(t);
+        for (Tree t : rowInvariants) root.addChild(t);
+        for (Tree t : statements) root.addChild(t);
+        return root;
+    }
+
+    /**
+     * Finds the image-scope variables which are assigned to in the
+     * script body.
+     * 
+     * @param node the root node of the tree to search
+     * @param vars set to receive the variable names
+     */
+    static void findAssignedVars(Tree node, Set<String> vars) {
+        switch (node.getType()) {
+            case JiffleParser.DECL:
+            case JiffleParser.JIFFLE_OPTION:
+                return;
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                addIfImageScopeVar(node.getChild(0), vars);
+                break;
+                
+            case JiffleParser.PREFIX:
+            case JiffleParser.POSTFIX:
+                int opType = node.getChild(0).getType();
+                if (opType == JiffleParser.INCR || opType == JiffleParser.DECR) {
+                    addIfImageScopeVar(node.getChild(1), vars);
+                }
+                break;
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            findAssignedVars(node.getChild(i), vars);
+        }
+    }
+
+    private static void addIfImageScopeVar(Tree node, Set<String> vars) {
+        if (node.getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+            vars.add(node.getText());
+        }
+    }
+
+    /**
+     * Classifies a node and hoists any of its children which depend on
+     * fewer values.
+     * 
+     * @param node the node
+     * 
+     * @return the dependency class of the node
+     */
+    private Dependency visit(Tree node) {
+        int n = node.getChildCount();
+        Dependency[] childDeps = new Dependency[n];
+        Dependency maxChildDep = Dependency.RUN;
+        for (int i = 0; i < n; i++) {
+            childDeps[i] = visit(node.getChild(i));
+            maxChildDep = maxChildDep.max(childDeps[i]);
+        }
+
+        Dependency dep = classify(node, maxChildDep);
+
+        for (int i = 0; i < n; i++) {
+            if (childDeps[i].ordinal() < dep.ordinal() && 
+                    !isStatementPosition(node, i) &&
+                    isWorthHoisting(node.getChild(i))) {
+                
+                node.setChild(i, createFieldRef(node.getChild(i), childDeps[i]));
+            }
+        }
+        
+        return dep;
+    }
+
+    /**
+     * Gets the dependency class of a node given the highest class of its
+     * children. Nodes which are not expressions are classed as 
+     * {@code PIXEL}.
+     */
+    private Dependency classify(Tree node, Dependency maxChildDep) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+            case JiffleParser.CONSTANT:
+                return Dependency.RUN;
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                return assignedVars.contains(node.getText()) ? 
+                        Dependency.PIXEL : Dependency.RUN;
+                
+            case JiffleParser.VAR_PROVIDED:
+                if (xExpr.equals(node.getText())) {
+                    return Dependency.PIXEL;
+                } else if (yExpr.equals(node.getText())) {
+                    return Dependency.ROW;
+                }
+                return Dependency.RUN;
+                
+            case JiffleParser.FUNC_CALL:
+                return isPureFunction(node) ? maxChildDep : Dependency.PIXEL;
+                
+            case JiffleParser.PREFIX:
+                int opType = node.getChild(0).getType();
+                if (opType == JiffleParser.INCR || opType == JiffleParser.DECR) {
+                    return Dependency.PIXEL;
+                }
+                return maxChildDep;
+                
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+            case JiffleParser.NOT:
+                // also used as prefix operator tokens with no children
+                return maxChildDep;
+                
+            case JiffleParser.ID:
+            case JiffleParser.EXPR_LIST:
+            case JiffleParser.CON_CALL:
+            case JiffleParser.PAR:
+            case JiffleParser.POW:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+                return maxChildDep;
+                
+            default:
+                return Dependency.PIXEL;
+        }
+    }
+
+    /**
+     * Tests if a function call node refers to a non-volatile function
+     * which returns a scalar value.
+     * 
+     * @param node a {@code FUNC_CALL} node
+     * 
+     * @return {@code true} if the function is pure
+     */
+    static boolean isPureFunction(Tree node) {
+        Tree args = node.getChild(1);
+        List<String> argTypes = CollectionFactory.list();
+        for (int i = 0; i < args.getChildCount(); i++) {
+            argTypes.add(args.getChild(i).getType() == JiffleParser.VAR_LIST ? "List" : "D");
+        }
+        
+        try {
+            FunctionInfo info = FunctionLookup.getInfo(node.getChild(0).getText(), argTypes);
+            return !info.isVolatile() && "D".equals(info.getReturnType());
+            
+        } catch (UndefinedFunctionException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Tests if a child node is in a position where a statement rather
+     * than an expression is expected.
+     */
+    private boolean isStatementPosition(Tree parent, int index) {
+        switch (parent.getType()) {
+            case JiffleParser.BLOCK:
+                return true;
+                
+            case JiffleParser.IF:
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+                return index > 0;
+                
+            case JiffleParser.FOREACH:
+                return index == parent.getChildCount() - 1;
+                
+            default:
+                return parent.isNil();
+        }
+    }
+
+    /**
+     * Tests if an expression is worth replacing with a field, ie. it is
+     * more than a literal, constant, simple variable or operator token.
+     */
+    private boolean isWorthHoisting(Tree node) {
+        if (node.getChildCount() == 0) {
+            return false;
+        }
+        
+        switch (node.getType()) {
+            case JiffleParser.EXPR_LIST:
+                return false;
+                
+            case JiffleParser.PAR:
+                return isWorthHoisting(node.getChild(0));
+                
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Creates a node referring to the field which will hold the value of 
+     * an invariant expression. If an identical expression has already been
+     * hoisted its field is reused.
+     */
+    private Tree createFieldRef(Tree expr, Dependency dep) {
+        String key = dep + ":" + expr.toStringTree();
+        String name = fieldNames.get(key);
+        
+        if (name == null) {
+            name = FIELD_PREFIX + fieldNames.size();
+            fieldNames.put(key, name);
+            
+            int type = dep == Dependency.RUN ? 
+                    JiffleParser.RUN_INVARIANT : JiffleParser.ROW_INVARIANT;
+            
+            Tree invariant = createNode(type, dep.toString(), expr);
+            invariant.addChild(createNode(JiffleParser.VAR_PROVIDED, name, expr));
+            invariant.addChild(expr);
+            
+            if (dep == Dependency.RUN) {
+                runInvariants.add(invariant);
+            } else {
+                rowInvariants.add(invariant);
+            }
+        }
+        
+        return createNode(JiffleParser.VAR_PROVIDED, name, expr);
+    }
+
+    private Tree createNode(int type, String text, Tree original) {
+        CommonToken token = new CommonToken(type, text);
+        token.setLine(original.getLine());
+        token.setCharPositionInLine(original.getCharPositionInLine());
+        return new CommonTree(token);
+    }
+
+}
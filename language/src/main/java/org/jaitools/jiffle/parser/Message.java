@@ -105,6 +105,13 @@ public enum Message {
     INVALID_OPTION_VALUE(Level.WARNING,
             "Invalid option value ignored"),
     
+    /**
+     * Warning: a generated runtime method is too large to be compiled by
+     * the JIT compiler and will run in interpreted mode.
+     */
+    METHOD_TOO_LARGE(Level.WARNING,
+            "Generated code is too large to be JIT compiled and will run slowly"),
+    
     /**
      * Error: Image position syntax cannot be used with a destination image
      * variable.
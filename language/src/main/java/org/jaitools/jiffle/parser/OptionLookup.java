@@ -33,6 +33,8 @@ import org.jaitools.CollectionFactory;
 
 /**
  * A lookup service used by the Jiffle compiler when parsing script options.
+ * Options are indexed by lower-case name and the tables are not modified
+ * after the class is loaded.
  * 
  * @author Michael Bedward
  * @since 0.1
@@ -40,12 +42,12 @@ import org.jaitools.CollectionFactory;
  */
 public class OptionLookup {
 
-    private static final List<OptionInfo> options;
+    private static final Map<String, OptionInfo> options;
     private static final Map<String, String> activeRuntimeExpr;
     private static final List<String> names;
     
     static {
-        options = CollectionFactory.list();
+        options = CollectionFactory.map();
         names = CollectionFactory.list();
         activeRuntimeExpr = CollectionFactory.map();
         
@@ -57,7 +59,7 @@ public class OptionLookup {
         info = new OptionInfo(name,
                 new String[] { OptionInfo.ANY_NUMBER, OptionInfo.NULL_KEYWORD });
         
-        options.add(info);
+        options.put(name, info);
         names.add(name);
         
         activeRuntimeExpr.put(name, 
@@ -130,13 +132,13 @@ public class OptionLookup {
      * @throws UndefinedOptionException if the name is not recognized
      */
     private static OptionInfo getInfo(String optionName) throws UndefinedOptionException {
-        for (OptionInfo info : options) {
-            if (info.getName().equalsIgnoreCase(optionName)) {
-                return info;
-            }
-        }
+        OptionInfo info = optionName == null ? 
+                null : options.get(optionName.toLowerCase());
         
-        throw new UndefinedOptionException(optionName);
+        if (info == null) {
+            throw new UndefinedOptionException(optionName);
+        }
+        return info;
     }
 
 }
@@ -0,0 +1,1351 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.AbstractDirectRuntime;
+import org.jaitools.jiffle.runtime.AbstractJiffleRuntime;
+import org.jaitools.jiffle.runtime.JiffleFunctions;
+import org.jaitools.numeric.CompareOp;
+
+/**
+ * Creates the bytecode of a direct runtime class from the final AST, as an
+ * alternative to generating Java source and compiling it with Janino.
+ * The class has the same behaviour as that compiled from the source
+ * created by {@link RuntimeSourceGenerator} with the default direct
+ * runtime base class.
+ * <p>
+ * Not all scripts are supported: those using lists or the increment and
+ * decrement operators, or whose per-pixel code would be too large to be
+ * JIT compiled, are left to the source generator. In these cases
+ * {@link #generate(String)} returns {@code null}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeBytecodeGenerator implements Opcodes {
+    
+    private static final String BASE_CLASS = Type.getInternalName(AbstractDirectRuntime.class);
+    private static final String IMAGE_SCOPE_VAR = Type.getInternalName(AbstractJiffleRuntime.ImageScopeVar.class);
+    private static final String FUNCTIONS = Type.getInternalName(JiffleFunctions.class);
+    private static final String MATH = Type.getInternalName(Math.class);
+    
+    private static final String VARS_DESC = "[L" + IMAGE_SCOPE_VAR + ";";
+    private static final String FUNCTIONS_DESC = "L" + FUNCTIONS + ";";
+    private static final String PIXEL_METHOD_DESC = "(DD)D";
+    
+    private static final Pattern INVARIANT_FIELD = Pattern.compile(
+            InvariantHoister.FIELD_PREFIX + "\\d+");
+    
+    private static final Pattern CSE_CALL = Pattern.compile(
+            "(" + SubexpressionEliminator.METHOD_PREFIX + "\\d+)\\(_x, _y\\)");
+    
+    private static final Pattern PROXY = Pattern.compile(
+            "(\\(double\\))?(_x|_y|(\\w+)\\(\\))");
+    
+    /*
+     * Thrown when the tree contains something that this class does not
+     * support. It is caught by the generate method.
+     */
+    private static class UnsupportedException extends RuntimeException {
+        UnsupportedException(String msg) {
+            super(msg);
+        }
+    }
+    
+    private final CommonTree tree;
+    
+    private final List<Tree> options = CollectionFactory.list();
+    private final List<Tree> imageScopeVars = CollectionFactory.list();
+    private final List<Tree> runInvariants = CollectionFactory.list();
+    private final List<Tree> rowInvariants = CollectionFactory.list();
+    private final List<Tree> cseDefinitions = CollectionFactory.list();
+    private final List<Tree> statements = CollectionFactory.list();
+    
+    /* Image variable names in the order of their slot indices */
+    private final List<String> imageVars = CollectionFactory.list();
+    
+    private String className;
+    private ClassWriter cw;
+    private String unsupportedReason;
+    
+    /* Set when the script assigns to an image-scope variable outside the init block */
+    private boolean imageScopeVarsWritten;
+
+    
+    /**
+     * Creates a new generator for the given tree.
+     * 
+     * @param tree the final AST
+     */
+    public RuntimeBytecodeGenerator(CommonTree tree) {
+        this.tree = tree;
+    }
+    
+    /**
+     * Creates the bytecode for the runtime class. 
+     * 
+     * @param className fully qualified name of the class
+     * 
+     * @return the class bytecode or {@code null} if the script uses
+     *         features not supported by this generator
+     */
+    public byte[] generate(String className) {
+        this.className = className.replace('.', '/');
+        
+        try {
+            sortRootNodes();
+            
+            cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            cw.visit(V1_5, ACC_PUBLIC | ACC_SUPER, this.className, null, BASE_CLASS, null);
+            
+            createFields();
+            createEvaluatePixel();
+            createEvaluate();
+            createInvariantMethods();
+            createCseMethods();
+            createInitOptionVars();
+            createGetDefaultValue();
+            createWritesImageScopeVars();
+            
+            // the constructor is created last so that all image variables
+            // have been given slots
+            createConstructor();
+            
+            cw.visitEnd();
+            return cw.toByteArray();
+            
+        } catch (UnsupportedException ex) {
+            unsupportedReason = ex.getMessage();
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the reason that the last call to {@link #generate(String)}
+     * returned {@code null}.
+     * 
+     * @return the reason or {@code null} if the class was generated
+     */
+    public String getUnsupportedReason() {
+        return unsupportedReason;
+    }
+
+    /**
+     * Sorts the nodes at the root of the tree by their role.
+     */
+    private void sortRootNodes() {
+        List<Tree> roots = CollectionFactory.list();
+        if (tree.isNil()) {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                roots.add(tree.getChild(i));
+            }
+        } else {
+            roots.add(tree);
+        }
+        
+        for (Tree node : roots) {
+            switch (node.getType()) {
+                case JiffleParser.JIFFLE_OPTION:
+                    options.add(node);
+                    break;
+                    
+                case JiffleParser.DECL:
+                    if (node.getChild(0).getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+                        imageScopeVars.add(node);
+                    }
+                    break;
+                    
+                case JiffleParser.RUN_INVARIANT:
+                    runInvariants.add(node);
+                    break;
+                    
+                case JiffleParser.ROW_INVARIANT:
+                    rowInvariants.add(node);
+                    break;
+                    
+                case JiffleParser.CSE_DEF:
+                    cseDefinitions.add(node);
+                    break;
+                    
+                default:
+                    statements.add(node);
+            }
+        }
+    }
+    
+    private void createFields() {
+        for (Tree node : runInvariants) {
+            createField(node.getChild(0).getText(), "D");
+        }
+        for (Tree node : rowInvariants) {
+            createField(node.getChild(0).getText(), "D");
+        }
+        if (!rowInvariants.isEmpty()) {
+            createField("_invariantRowY", "D");
+        }
+        
+        if (!cseDefinitions.isEmpty()) {
+            createField("_pixelIndex", "J");
+            for (Tree node : cseDefinitions) {
+                String name = node.getChild(0).getText();
+                createField(name + "Value", "D");
+                createField(name + "Pixel", "J");
+            }
+        }
+    }
+    
+    private void createField(String name, String desc) {
+        cw.visitField(ACC_PRIVATE, name, desc, null, null).visitEnd();
+    }
+    
+    private void createConstructor() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, BASE_CLASS, "<init>", "()V", false);
+        
+        if (!rowInvariants.isEmpty()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitLdcInsn(Double.NaN);
+            mv.visitFieldInsn(PUTFIELD, className, "_invariantRowY", "D");
+        }
+        
+        for (Tree node : imageScopeVars) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitLdcInsn(node.getChild(0).getText());
+            mv.visitInsn(node.getChildCount() > 1 ? ICONST_1 : ICONST_0);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "registerVar", "(Ljava/lang/String;Z)V", false);
+        }
+        
+        for (String name : imageVars) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitLdcInsn(name);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "registerImage", "(Ljava/lang/String;)I", false);
+            mv.visitInsn(POP);
+        }
+        
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private void createInitOptionVars() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "initOptionVars", "()V", null, null);
+        mv.visitCode();
+        
+        for (Tree node : options) {
+            if (!"outside".equalsIgnoreCase(node.getChild(0).getText())) {
+                throw new UnsupportedException("option " + node.getChild(0).getText());
+            }
+            
+            Tree valueNode = node.getChild(1);
+            double value;
+            switch (valueNode.getType()) {
+                case JiffleParser.CONSTANT:
+                    value = ConstantLookup.getValue(valueNode.getText());
+                    break;
+                    
+                case JiffleParser.INT_LITERAL:
+                case JiffleParser.FLOAT_LITERAL:
+                    value = Double.parseDouble(valueNode.getText());
+                    break;
+                    
+                default:
+                    throw new UnsupportedException("option value " + valueNode.getText());
+            }
+            
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(ICONST_1);
+            mv.visitFieldInsn(PUTFIELD, className, "_outsideValueSet", "Z");
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitLdcInsn(value);
+            mv.visitFieldInsn(PUTFIELD, className, "_outsideValue", "D");
+        }
+        
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    /*
+     * Overrides the base class method, which assumes that image-scope
+     * variables are written, when the script does not write them. Must
+     * be called after the evaluation code has been created.
+     */
+    private void createWritesImageScopeVars() {
+        if (imageScopeVarsWritten) {
+            return;
+        }
+        
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "writesImageScopeVars", "()Z", null, null);
+        mv.visitCode();
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private void createGetDefaultValue() {
+        MethodVisitor mv = cw.visitMethod(ACC_PROTECTED, "getDefaultValue", 
+                "(I)Ljava/lang/Double;", null, null);
+        mv.visitCode();
+        
+        CodeWriter code = new CodeWriter(mv, 2, -1, -1);
+        for (int i = 0; i < imageScopeVars.size(); i++) {
+            Tree node = imageScopeVars.get(i);
+            if (node.getChildCount() > 1) {
+                Label next = new Label();
+                mv.visitVarInsn(ILOAD, 1);
+                code.pushInt(i);
+                mv.visitJumpInsn(IF_ICMPNE, next);
+                code.expression(node.getChild(1));
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", false);
+                mv.visitInsn(ARETURN);
+                mv.visitLabel(next);
+            }
+        }
+        
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private void createEvaluate() {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(DD)V", null, null);
+        mv.visitCode();
+        
+        Label label = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "isWorldSet", "()Z", false);
+        mv.visitJumpInsn(IFNE, label);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "setDefaultBounds", "()V", false);
+        mv.visitLabel(label);
+        
+        label = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, className, "_imageScopeVarsInitialized", "Z");
+        mv.visitJumpInsn(IFNE, label);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKEVIRTUAL, className, "initImageScopeVars", "()V", false);
+        mv.visitLabel(label);
+        
+        if (hasInvariants()) {
+            label = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_invariantsInitialized", "Z");
+            mv.visitJumpInsn(IFNE, label);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESPECIAL, className, "initInvariants", "()V", false);
+            mv.visitLabel(label);
+        }
+        
+        if (!rowInvariants.isEmpty()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(DLOAD, 3);
+            mv.visitMethodInsn(INVOKESPECIAL, className, "initRowInvariants", "(D)V", false);
+        }
+        
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(DLOAD, 1);
+        mv.visitVarInsn(DLOAD, 3);
+        mv.visitMethodInsn(INVOKESPECIAL, className, "evaluatePixel", "(DD)V", false);
+        
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private boolean hasInvariants() {
+        return !(runInvariants.isEmpty() && rowInvariants.isEmpty());
+    }
+    
+    private void createEvaluatePixel() {
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, "evaluatePixel", "(DD)V", null, null);
+        mv.visitCode();
+        CodeWriter code = new CodeWriter(mv, 5, 1, 3);
+        
+        if (!cseDefinitions.isEmpty()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, className, "_pixelIndex", "J");
+            mv.visitInsn(LCONST_1);
+            mv.visitInsn(LADD);
+            mv.visitFieldInsn(PUTFIELD, className, "_pixelIndex", "J");
+        }
+        
+        code.declarePixelVars(statements);
+        for (Tree node : statements) {
+            code.statement(node);
+        }
+        
+        mv.visitInsn(RETURN);
+        Label end = new Label();
+        mv.visitLabel(end);
+        if (end.getOffset() > AbstractSourceGenerator.MAX_METHOD_SIZE) {
+            throw new UnsupportedException("per-pixel code too large for one method");
+        }
+        
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+    
+    private void createInvariantMethods() {
+        if (!hasInvariants()) {
+            return;
+        }
+        
+        MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, "initInvariants", "()V", null, null);
+        mv.visitCode();
+        CodeWriter code = new CodeWriter(mv, 1, -1, -1);
+        for (Tree node : runInvariants) {
+            code.invariant(node);
+        }
+        if (!rowInvariants.isEmpty()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitLdcInsn(Double.NaN);
+            mv.visitFieldInsn(PUTFIELD, className, "_invariantRowY", "D");
+        }
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitFieldInsn(PUTFIELD, className, "_invariantsInitialized", "Z");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        
+        if (!rowInvariants.isEmpty()) {
+            mv = cw.visitMethod(ACC_PRIVATE, "initRowInvariants", "(D)V", null, null);
+            mv.visitCode();
+            code = new CodeWriter(mv, 3, -1, 1);
+            
+            Label end = new Label();
+            mv.visitVarInsn(DLOAD, 1);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_invariantRowY", "D");
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(IFEQ, end);
+            
+            for (Tree node : rowInvariants) {
+                code.invariant(node);
+            }
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(DLOAD, 1);
+            mv.visitFieldInsn(PUTFIELD, className, "_invariantRowY", "D");
+            
+            mv.visitLabel(end);
+            mv.visitInsn(RETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+    
+    private void createCseMethods() {
+        for (Tree node : cseDefinitions) {
+            String name = node.getChild(0).getText();
+            MethodVisitor mv = cw.visitMethod(ACC_PRIVATE, name, PIXEL_METHOD_DESC, null, null);
+            mv.visitCode();
+            CodeWriter code = new CodeWriter(mv, 5, 1, 3);
+            
+            Label cached = new Label();
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, name + "Pixel", "J");
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_pixelIndex", "J");
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFEQ, cached);
+            
+            mv.visitVarInsn(ALOAD, 0);
+            code.expression(node.getChild(1));
+            mv.visitFieldInsn(PUTFIELD, className, name + "Value", "D");
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_pixelIndex", "J");
+            mv.visitFieldInsn(PUTFIELD, className, name + "Pixel", "J");
+            
+            mv.visitLabel(cached);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, name + "Value", "D");
+            mv.visitInsn(DRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+    }
+    
+    /**
+     * Gets the slot index of an image variable, allocating a new slot if
+     * the variable has not been seen before.
+     */
+    private int getImageSlot(String varName) {
+        int index = imageVars.indexOf(varName);
+        if (index < 0) {
+            imageVars.add(varName);
+            index = imageVars.size() - 1;
+        }
+        return index;
+    }
+    
+    private int getImageScopeVarIndex(String varName) {
+        for (int i = 0; i < imageScopeVars.size(); i++) {
+            if (imageScopeVars.get(i).getChild(0).getText().equals(varName)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Internal compiler error: unknown variable " + varName);
+    }
+    
+
+    /**
+     * Writes the code for statements and expressions within a method. 
+     * Pixel-scope variables and intermediate values are held in local
+     * variables.
+     */
+    private class CodeWriter {
+        
+        private final MethodVisitor mv;
+        private final int xSlot;
+        private final int ySlot;
+        private int nextLocal;
+        
+        private final Map<String, Integer> pixelVars = CollectionFactory.map();
+        
+        /*
+         * Local variable indices of loop variables. A value v >= 0 is an 
+         * int variable; a value v < 0 is a double variable at index -v - 1.
+         */
+        private final Map<String, Integer> loopVars = CollectionFactory.map();
+        private final LinkedList<Label> loopExits = new LinkedList<Label>();
+        
+        /**
+         * Creates a new writer.
+         * 
+         * @param mv the method visitor
+         * @param firstLocal index of the first free local variable
+         * @param xSlot local variable index of _x or -1 if not available
+         * @param ySlot local variable index of _y or -1 if not available
+         */
+        CodeWriter(MethodVisitor mv, int firstLocal, int xSlot, int ySlot) {
+            this.mv = mv;
+            this.nextLocal = firstLocal;
+            this.xSlot = xSlot;
+            this.ySlot = ySlot;
+        }
+        
+        private int newLocal(int size) {
+            int index = nextLocal;
+            nextLocal += size;
+            return index;
+        }
+        
+        /**
+         * Allocates local variables for pixel-scope variables assigned
+         * in the given statements and initializes them to zero so that
+         * every path through the method sees an initialized value.
+         */
+        void declarePixelVars(List<Tree> stmts) {
+            for (Tree node : stmts) {
+                declarePixelVars(node);
+            }
+        }
+        
+        private void declarePixelVars(Tree node) {
+            if (node.getType() == JiffleParser.VAR_PIXEL_SCOPE 
+                    && !pixelVars.containsKey(node.getText())) {
+                
+                int index = newLocal(2);
+                pixelVars.put(node.getText(), index);
+                mv.visitInsn(DCONST_0);
+                mv.visitVarInsn(DSTORE, index);
+            }
+            for (int i = 0; i < node.getChildCount(); i++) {
+                declarePixelVars(node.getChild(i));
+            }
+        }
+        
+        void invariant(Tree node) {
+            mv.visitVarInsn(ALOAD, 0);
+            expression(node.getChild(1));
+            mv.visitFieldInsn(PUTFIELD, className, node.getChild(0).getText(), "D");
+        }
+        
+        void statement(Tree node) {
+            switch (node.getType()) {
+                case JiffleParser.BLOCK:
+                    for (int i = 0; i < node.getChildCount(); i++) {
+                        statement(node.getChild(i));
+                    }
+                    break;
+                    
+                case JiffleParser.IMAGE_WRITE:
+                    mv.visitVarInsn(ALOAD, 0);
+                    pushInt(getImageSlot(node.getChild(0).getText()));
+                    loadPosition(xSlot);
+                    loadPosition(ySlot);
+                    mv.visitInsn(ICONST_0);
+                    expression(node.getChild(1));
+                    mv.visitMethodInsn(INVOKEVIRTUAL, className, "writeToImage", "(IDDID)V", false);
+                    break;
+                    
+                case JiffleParser.EQ:
+                    assignment(node.getChild(0), node.getChild(1), -1);
+                    break;
+                    
+                case JiffleParser.TIMESEQ:
+                    assignment(node.getChild(0), node.getChild(1), DMUL);
+                    break;
+                    
+                case JiffleParser.DIVEQ:
+                    assignment(node.getChild(0), node.getChild(1), DDIV);
+                    break;
+                    
+                case JiffleParser.MODEQ:
+                    assignment(node.getChild(0), node.getChild(1), DREM);
+                    break;
+                    
+                case JiffleParser.PLUSEQ:
+                    assignment(node.getChild(0), node.getChild(1), DADD);
+                    break;
+                    
+                case JiffleParser.MINUSEQ:
+                    assignment(node.getChild(0), node.getChild(1), DSUB);
+                    break;
+                    
+                case JiffleParser.IF:
+                    ifStatement(node);
+                    break;
+                    
+                case JiffleParser.WHILE:
+                case JiffleParser.UNTIL:
+                    conditionalLoop(node);
+                    break;
+                    
+                case JiffleParser.FOREACH:
+                    foreachLoop(node);
+                    break;
+                    
+                case JiffleParser.BREAKIF:
+                    // if (_FN.sign(cond) == 1) break
+                    signOf(node.getChild(0));
+                    mv.visitInsn(ICONST_1);
+                    mv.visitJumpInsn(IF_ICMPEQ, getLoopExit());
+                    break;
+                    
+                case JiffleParser.BREAK:
+                    mv.visitJumpInsn(GOTO, getLoopExit());
+                    break;
+                    
+                default:
+                    // expression statement: evaluate and discard the value
+                    expression(node);
+                    mv.visitInsn(POP2);
+            }
+        }
+        
+        private Label getLoopExit() {
+            if (loopExits.isEmpty()) {
+                throw new UnsupportedException("break outside loop");
+            }
+            return loopExits.getFirst();
+        }
+        
+        /**
+         * Assigns to a scalar variable. If op is not -1 it is the opcode
+         * of a compound assignment operator.
+         */
+        private void assignment(Tree var, Tree expr, int op) {
+            switch (var.getType()) {
+                case JiffleParser.VAR_PIXEL_SCOPE:
+                    int index = pixelVars.get(var.getText());
+                    if (op >= 0) {
+                        mv.visitVarInsn(DLOAD, index);
+                        expression(expr);
+                        mv.visitInsn(op);
+                    } else {
+                        expression(expr);
+                    }
+                    mv.visitVarInsn(DSTORE, index);
+                    break;
+                    
+                case JiffleParser.VAR_IMAGE_SCOPE:
+                    imageScopeVarsWritten = true;
+                    loadImageScopeVar(var.getText());
+                    if (op >= 0) {
+                        mv.visitInsn(DUP);
+                        mv.visitFieldInsn(GETFIELD, IMAGE_SCOPE_VAR, "value", "D");
+                        expression(expr);
+                        mv.visitInsn(op);
+                    } else {
+                        expression(expr);
+                    }
+                    mv.visitFieldInsn(PUTFIELD, IMAGE_SCOPE_VAR, "value", "D");
+                    break;
+                    
+                default:
+                    throw new UnsupportedException("assignment to " + var.getText());
+            }
+        }
+        
+        /*
+         * Pushes the ImageScopeVar object for the given variable.
+         */
+        private void loadImageScopeVar(String name) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_vars", VARS_DESC);
+            pushInt(getImageScopeVarIndex(name));
+            mv.visitInsn(AALOAD);
+        }
+        
+        private void ifStatement(Tree node) {
+            Label elseLabel = new Label();
+            Label end = new Label();
+            
+            int sign = signOfIntoLocal(node.getChild(0));
+            jumpIfNotTrue(sign, elseLabel);
+            
+            statement(node.getChild(1));
+            if (node.getChildCount() > 2) {
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(elseLabel);
+                statement(node.getChild(2));
+            } else {
+                mv.visitLabel(elseLabel);
+            }
+            mv.visitLabel(end);
+        }
+        
+        /*
+         * Jumps to the label unless the sign held in the local variable
+         * is non-zero and not NaN.
+         */
+        private void jumpIfNotTrue(int sign, Label label) {
+            mv.visitVarInsn(ILOAD, sign);
+            mv.visitJumpInsn(IFEQ, label);
+            mv.visitVarInsn(ILOAD, sign);
+            pushInt(JiffleFunctions.SIGN_NAN);
+            mv.visitJumpInsn(IF_ICMPEQ, label);
+        }
+        
+        private void conditionalLoop(Tree node) {
+            Label start = new Label();
+            Label exit = new Label();
+            
+            mv.visitLabel(start);
+            signOf(node.getChild(0));
+            mv.visitInsn(ICONST_1);
+            // while: exit unless the sign is 1; until: exit if it is 1
+            mv.visitJumpInsn(node.getType() == JiffleParser.WHILE ? IF_ICMPNE : IF_ICMPEQ, exit);
+            
+            loopExits.addFirst(exit);
+            statement(node.getChild(1));
+            loopExits.removeFirst();
+            
+            mv.visitJumpInsn(GOTO, start);
+            mv.visitLabel(exit);
+        }
+        
+        private void foreachLoop(Tree node) {
+            String varName = node.getChild(0).getText();
+            Tree set = node.getChild(1);
+            Tree body = node.getChild(2);
+            
+            Label start = new Label();
+            Label exit = new Label();
+            
+            Integer outerVar = loopVars.get(varName);
+            int var;
+            
+            switch (set.getType()) {
+                case JiffleParser.SEQUENCE:
+                    // int lo = (int)(expr); int hi = (int)(expr);
+                    // for (int var = lo; var <= hi; var++) body
+                    int hi = newLocal(1);
+                    var = newLocal(1);
+                    expression(set.getChild(0));
+                    mv.visitInsn(D2I);
+                    expression(set.getChild(1));
+                    mv.visitInsn(D2I);
+                    mv.visitVarInsn(ISTORE, hi);
+                    mv.visitVarInsn(ISTORE, var);
+                    
+                    mv.visitLabel(start);
+                    mv.visitVarInsn(ILOAD, var);
+                    mv.visitVarInsn(ILOAD, hi);
+                    mv.visitJumpInsn(IF_ICMPGT, exit);
+                    
+                    loopVars.put(varName, var);
+                    loopExits.addFirst(exit);
+                    statement(body);
+                    loopExits.removeFirst();
+                    
+                    mv.visitIincInsn(var, 1);
+                    mv.visitJumpInsn(GOTO, start);
+                    break;
+                    
+                case JiffleParser.DECLARED_LIST:
+                    // the values are evaluated before the loop starts
+                    Tree values = set.getChild(0);
+                    int n = values.getChildCount();
+                    int array = newLocal(1);
+                    int index = newLocal(1);
+                    
+                    pushInt(n);
+                    mv.visitIntInsn(NEWARRAY, T_DOUBLE);
+                    for (int i = 0; i < n; i++) {
+                        mv.visitInsn(DUP);
+                        pushInt(i);
+                        expression(values.getChild(i));
+                        mv.visitInsn(DASTORE);
+                    }
+                    mv.visitVarInsn(ASTORE, array);
+                    mv.visitInsn(ICONST_0);
+                    mv.visitVarInsn(ISTORE, index);
+                    
+                    mv.visitLabel(start);
+                    mv.visitVarInsn(ILOAD, index);
+                    pushInt(n);
+                    mv.visitJumpInsn(IF_ICMPGE, exit);
+                    
+                    // the loop variable is held as a double in this case
+                    var = newLocal(2);
+                    mv.visitVarInsn(ALOAD, array);
+                    mv.visitVarInsn(ILOAD, index);
+                    mv.visitInsn(DALOAD);
+                    mv.visitVarInsn(DSTORE, var);
+                    
+                    loopVars.put(varName, -var - 1);
+                    loopExits.addFirst(exit);
+                    statement(body);
+                    loopExits.removeFirst();
+                    
+                    mv.visitIincInsn(index, 1);
+                    mv.visitJumpInsn(GOTO, start);
+                    break;
+                    
+                default:
+                    throw new UnsupportedException("foreach over list variable");
+            }
+            
+            mv.visitLabel(exit);
+            if (outerVar == null) {
+                loopVars.remove(varName);
+            } else {
+                loopVars.put(varName, outerVar);
+            }
+        }
+        
+        /**
+         * Pushes the double value of an expression.
+         */
+        void expression(Tree node) {
+            switch (node.getType()) {
+                case JiffleParser.INT_LITERAL:
+                case JiffleParser.FLOAT_LITERAL:
+                    pushDouble(Double.parseDouble(node.getText()));
+                    break;
+                    
+                case JiffleParser.CONSTANT:
+                    pushDouble(ConstantLookup.getValue(node.getText()));
+                    break;
+                    
+                case JiffleParser.PAR:
+                    expression(node.getChild(0));
+                    break;
+                    
+                case JiffleParser.VAR_PIXEL_SCOPE:
+                    mv.visitVarInsn(DLOAD, pixelVars.get(node.getText()));
+                    break;
+                    
+                case JiffleParser.VAR_IMAGE_SCOPE:
+                    loadImageScopeVar(node.getText());
+                    mv.visitFieldInsn(GETFIELD, IMAGE_SCOPE_VAR, "value", "D");
+                    break;
+                    
+                case JiffleParser.VAR_LOOP:
+                    int var = loopVars.get(node.getText());
+                    if (var >= 0) {
+                        mv.visitVarInsn(ILOAD, var);
+                        mv.visitInsn(I2D);
+                    } else {
+                        mv.visitVarInsn(DLOAD, -var - 1);
+                    }
+                    break;
+                    
+                case JiffleParser.VAR_PROVIDED:
+                    providedVar(node.getText());
+                    break;
+                    
+                case JiffleParser.VAR_SOURCE:
+                    readImage(node.getText(), null, null);
+                    break;
+                    
+                case JiffleParser.IMAGE_POS:
+                    imagePos(node);
+                    break;
+                    
+                case JiffleParser.PLUS:
+                    binary(node, DADD);
+                    break;
+                    
+                case JiffleParser.MINUS:
+                    binary(node, DSUB);
+                    break;
+                    
+                case JiffleParser.TIMES:
+                    binary(node, DMUL);
+                    break;
+                    
+                case JiffleParser.DIV:
+                    binary(node, DDIV);
+                    break;
+                    
+                case JiffleParser.MOD:
+                    binary(node, DREM);
+                    break;
+                    
+                case JiffleParser.POW:
+                    expression(node.getChild(0));
+                    expression(node.getChild(1));
+                    mv.visitMethodInsn(INVOKESTATIC, MATH, "pow", "(DD)D", false);
+                    break;
+                    
+                case JiffleParser.PREFIX:
+                    prefix(node);
+                    break;
+                    
+                case JiffleParser.AND:
+                case JiffleParser.OR:
+                    shortCircuit(node);
+                    break;
+                    
+                case JiffleParser.XOR:
+                    operatorCall("XOR", node);
+                    break;
+                    
+                case JiffleParser.GT:
+                    operatorCall("GT", node);
+                    break;
+                    
+                case JiffleParser.GE:
+                    operatorCall("GE", node);
+                    break;
+                    
+                case JiffleParser.LT:
+                    operatorCall("LT", node);
+                    break;
+                    
+                case JiffleParser.LE:
+                    operatorCall("LE", node);
+                    break;
+                    
+                case JiffleParser.LOGICALEQ:
+                    operatorCall("EQ", node);
+                    break;
+                    
+                case JiffleParser.NE:
+                    operatorCall("NE", node);
+                    break;
+                    
+                case JiffleParser.CON_CALL:
+                    conCall(node.getChild(0));
+                    break;
+                    
+                case JiffleParser.FUNC_CALL:
+                    functionCall(node);
+                    break;
+                    
+                default:
+                    throw new UnsupportedException("node " + node.getText());
+            }
+        }
+        
+        private void binary(Tree node, int op) {
+            expression(node.getChild(0));
+            expression(node.getChild(1));
+            mv.visitInsn(op);
+        }
+        
+        private void prefix(Tree node) {
+            Tree op = node.getChild(0);
+            switch (op.getType()) {
+                case JiffleParser.PLUS:
+                    expression(node.getChild(1));
+                    break;
+                    
+                case JiffleParser.MINUS:
+                    expression(node.getChild(1));
+                    mv.visitInsn(DNEG);
+                    break;
+                    
+                case JiffleParser.NOT:
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitFieldInsn(GETFIELD, className, "_FN", FUNCTIONS_DESC);
+                    expression(node.getChild(1));
+                    mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTIONS, "NOT", "(D)D", false);
+                    break;
+                    
+                default:
+                    throw new UnsupportedException("prefix operator " + op.getText());
+            }
+        }
+        
+        /*
+         * Calls the JiffleFunctions method for an operator whose operands
+         * are both evaluated.
+         */
+        private void operatorCall(String name, Tree node) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_FN", FUNCTIONS_DESC);
+            expression(node.getChild(0));
+            expression(node.getChild(1));
+            mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTIONS, name, "(DD)D", false);
+        }
+        
+        /*
+         * AND and OR only evaluate their second operand if it is 
+         * required. This follows the opand and opor templates.
+         */
+        private void shortCircuit(Tree node) {
+            boolean isAnd = node.getType() == JiffleParser.AND;
+            Label nan = new Label();
+            Label zero = new Label();
+            Label one = new Label();
+            Label end = new Label();
+            
+            int lhs = newLocal(2);
+            expression(node.getChild(0));
+            mv.visitVarInsn(DSTORE, lhs);
+            jumpIfNaN(lhs, nan);
+            jumpIfTrue(lhs, isAnd ? null : one, isAnd ? zero : null);
+            
+            int rhs = newLocal(2);
+            expression(node.getChild(1));
+            mv.visitVarInsn(DSTORE, rhs);
+            jumpIfNaN(rhs, nan);
+            jumpIfTrue(rhs, one, zero);
+            
+            mv.visitLabel(nan);
+            pushDouble(Double.NaN);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(zero);
+            mv.visitInsn(DCONST_0);
+            mv.visitJumpInsn(GOTO, end);
+            mv.visitLabel(one);
+            mv.visitInsn(DCONST_1);
+            mv.visitLabel(end);
+        }
+        
+        private void jumpIfNaN(int local, Label label) {
+            mv.visitVarInsn(DLOAD, local);
+            mv.visitVarInsn(DLOAD, local);
+            mv.visitInsn(DCMPL);
+            mv.visitJumpInsn(IFNE, label);
+        }
+        
+        /*
+         * Jumps to ifTrue if Math.abs(value) >= tolerance, otherwise to
+         * ifFalse. Either label may be null to fall through instead.
+         */
+        private void jumpIfTrue(int local, Label ifTrue, Label ifFalse) {
+            mv.visitVarInsn(DLOAD, local);
+            mv.visitMethodInsn(INVOKESTATIC, MATH, "abs", "(D)D", false);
+            pushDouble(CompareOp.DTOL);
+            mv.visitInsn(DCMPG);
+            if (ifTrue != null) {
+                mv.visitJumpInsn(IFGE, ifTrue);
+                if (ifFalse != null) {
+                    mv.visitJumpInsn(GOTO, ifFalse);
+                }
+            } else {
+                mv.visitJumpInsn(IFLT, ifFalse);
+            }
+        }
+        
+        /*
+         * Pushes the int sign of an expression as given by JiffleFunctions.sign.
+         */
+        private void signOf(Tree node) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, className, "_FN", FUNCTIONS_DESC);
+            expression(node);
+            mv.visitMethodInsn(INVOKEVIRTUAL, FUNCTIONS, "sign", "(D)I", false);
+        }
+        
+        private int signOfIntoLocal(Tree node) {
+            int sign = newLocal(1);
+            signOf(node);
+            mv.visitVarInsn(ISTORE, sign);
+            return sign;
+        }
+        
+        /*
+         * Follows the con1 - con4 templates.
+         */
+        private void conCall(Tree args) {
+            int n = args.getChildCount();
+            Label nan = new Label();
+            Label end = new Label();
+            
+            int sign = signOfIntoLocal(args.getChild(0));
+            mv.visitVarInsn(ILOAD, sign);
+            pushInt(JiffleFunctions.SIGN_NAN);
+            mv.visitJumpInsn(IF_ICMPEQ, nan);
+            
+            Label alt = new Label();
+            mv.visitVarInsn(ILOAD, sign);
+            if (n < 4) {
+                // non-zero selects the first alternative
+                mv.visitJumpInsn(IFEQ, alt);
+                if (n == 1) {
+                    mv.visitInsn(DCONST_1);
+                } else {
+                    expression(args.getChild(1));
+                }
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(alt);
+                if (n == 3) {
+                    expression(args.getChild(2));
+                } else {
+                    mv.visitInsn(DCONST_0);
+                }
+                
+            } else {
+                // positive, zero and negative each select an alternative
+                Label negative = new Label();
+                mv.visitInsn(ICONST_1);
+                mv.visitJumpInsn(IF_ICMPNE, alt);
+                expression(args.getChild(1));
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(alt);
+                mv.visitVarInsn(ILOAD, sign);
+                mv.visitJumpInsn(IFNE, negative);
+                expression(args.getChild(2));
+                mv.visitJumpInsn(GOTO, end);
+                mv.visitLabel(negative);
+                expression(args.getChild(3));
+            }
+            mv.visitJumpInsn(GOTO, end);
+            
+            mv.visitLabel(nan);
+            pushDouble(Double.NaN);
+            mv.visitLabel(end);
+        }
+        
+        private void functionCall(Tree node) {
+            String name = node.getChild(0).getText();
+            Tree args = node.getChild(1);
+            int n = args.getChildCount();
+            
+            List<String> argTypes = CollectionFactory.list();
+            for (int i = 0; i < n; i++) {
+                argTypes.add("D");
+            }
+            
+            FunctionInfo info;
+            try {
+                info = FunctionLookup.getInfo(name, argTypes);
+            } catch (UndefinedFunctionException ex) {
+                throw new UnsupportedException("function " + name);
+            }
+            
+            if (info.isIntrinsic() || info.isProxy()) {
+                throw new UnsupportedException("function " + name);
+            }
+            
+            String expr = info.getRuntimeExpr();
+            String methodName = expr.substring(expr.indexOf('.') + 1);
+            boolean isStatic = expr.startsWith("Math.");
+            
+            Class<?>[] paramTypes = new Class<?>[n];
+            for (int i = 0; i < n; i++) {
+                paramTypes[i] = double.class;
+            }
+            
+            Method method;
+            try {
+                method = (isStatic ? Math.class : JiffleFunctions.class).getMethod(methodName, paramTypes);
+            } catch (NoSuchMethodException ex) {
+                throw new UnsupportedException("function " + name);
+            }
+            
+            if (!isStatic) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, "_FN", FUNCTIONS_DESC);
+            }
+            for (int i = 0; i < n; i++) {
+                expression(args.getChild(i));
+            }
+            mv.visitMethodInsn(isStatic ? INVOKESTATIC : INVOKEVIRTUAL, 
+                    isStatic ? MATH : FUNCTIONS,
+                    methodName, Type.getMethodDescriptor(method), false);
+            toDouble(method.getReturnType());
+        }
+        
+        /*
+         * Handles the runtime source text of a VAR_PROVIDED node.
+         */
+        private void providedVar(String text) {
+            if (INVARIANT_FIELD.matcher(text).matches()) {
+                mv.visitVarInsn(ALOAD, 0);
+                mv.visitFieldInsn(GETFIELD, className, text, "D");
+                return;
+            }
+            
+            Matcher m = CSE_CALL.matcher(text);
+            if (m.matches()) {
+                mv.visitVarInsn(ALOAD, 0);
+                loadPosition(xSlot);
+                loadPosition(ySlot);
+                mv.visitMethodInsn(INVOKESPECIAL, className, m.group(1), PIXEL_METHOD_DESC, false);
+                return;
+            }
+            
+            m = PROXY.matcher(text);
+            if (m.matches()) {
+                if ("_x".equals(m.group(2))) {
+                    loadPosition(xSlot);
+                } else if ("_y".equals(m.group(2))) {
+                    loadPosition(ySlot);
+                } else {
+                    Method method;
+                    try {
+                        method = AbstractDirectRuntime.class.getMethod(m.group(3));
+                    } catch (NoSuchMethodException ex) {
+                        throw new UnsupportedException("provided variable " + text);
+                    }
+                    mv.visitVarInsn(ALOAD, 0);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, className, method.getName(), 
+                            Type.getMethodDescriptor(method), false);
+                    toDouble(method.getReturnType());
+                }
+                return;
+            }
+            
+            throw new UnsupportedException("provided variable " + text);
+        }
+        
+        private void imagePos(Tree node) {
+            String varName = node.getChild(0).getText();
+            Tree band = null;
+            Tree pixel = null;
+            for (int i = 1; i < node.getChildCount(); i++) {
+                Tree child = node.getChild(i);
+                if (child.getType() == JiffleParser.BAND_REF) {
+                    band = child.getChild(0);
+                } else {
+                    pixel = child;
+                }
+            }
+            readImage(varName, pixel, band);
+        }
+        
+        private void readImage(String varName, Tree pixel, Tree band) {
+            mv.visitVarInsn(ALOAD, 0);
+            pushInt(getImageSlot(varName));
+            if (pixel == null) {
+                loadPosition(xSlot);
+                loadPosition(ySlot);
+            } else {
+                pixelPos(pixel.getChild(0), xSlot);
+                pixelPos(pixel.getChild(1), ySlot);
+            }
+            if (band == null) {
+                mv.visitInsn(ICONST_0);
+            } else {
+                expression(band);
+                mv.visitInsn(D2I);
+            }
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, "readFromImage", "(IDDI)D", false);
+        }
+        
+        private void pixelPos(Tree node, int posSlot) {
+            if (node.getType() == JiffleParser.ABS_POS) {
+                expression(node.getChild(0));
+            } else {
+                loadPosition(posSlot);
+                expression(node.getChild(0));
+                mv.visitInsn(DADD);
+            }
+        }
+        
+        private void loadPosition(int slot) {
+            if (slot < 0) {
+                throw new UnsupportedException("pixel position outside per-pixel code");
+            }
+            mv.visitVarInsn(DLOAD, slot);
+        }
+        
+        private void toDouble(Class<?> type) {
+            if (type == int.class) {
+                mv.visitInsn(I2D);
+            } else if (type == long.class) {
+                mv.visitInsn(L2D);
+            } else if (type == float.class) {
+                mv.visitInsn(F2D);
+            } else if (type != double.class) {
+                throw new UnsupportedException("return type " + type.getName());
+            }
+        }
+        
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+        
+        private void pushDouble(double value) {
+            if (value == 0.0 && 1 / value > 0) {
+                mv.visitInsn(DCONST_0);
+            } else if (value == 1.0) {
+                mv.visitInsn(DCONST_1);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+    }
+}
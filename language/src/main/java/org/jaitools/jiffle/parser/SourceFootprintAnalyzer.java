@@ -0,0 +1,296 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import java.util.Map;
+
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.SourceFootprint;
+
+/**
+ * Finds the {@link SourceFootprint} of each source image read by a script.
+ * This works on the final AST, after {@link ExpressionSimplifier} has 
+ * folded constant expressions.
+ * <p>
+ * A relative pixel position gives a bounded footprint if its offsets 
+ * can be reduced to a range of values when the script is compiled. The
+ * offsets can be literals and constants, and variables of enclosing 
+ * {@code foreach} loops over a sequence or list of such values, combined
+ * with the +, - and * operators. For example, the following script has a
+ * footprint of -1 to 1 in each direction:
+ * <pre><code>
+ * n = 0;
+ * foreach (dy in -1:1) {
+ *   foreach (dx in -1:1) {
+ *     n += src[dx, dy];
+ *   }
+ * }
+ * dest = n;
+ * </code></pre>
+ * Any other offset expression, or an absolute pixel position, gives an
+ * unbounded footprint.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class SourceFootprintAnalyzer {
+    
+    /* 
+     * The range of values of an offset expression. A null 
+     * range means that the values are unknown.
+     */
+    private static class Range {
+        final double min;
+        final double max;
+
+        Range(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+    
+    private final Tree tree;
+    
+    /* Ranges of the variables of the foreach loops enclosing the current node */
+    private final Map<String, Range> loopVars = CollectionFactory.map();
+    
+    private final Map<String, SourceFootprint> footprints = CollectionFactory.orderedMap();
+    
+    private boolean analyzed;
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param tree the final AST
+     */
+    public SourceFootprintAnalyzer(Tree tree) {
+        this.tree = tree;
+    }
+    
+    /**
+     * Gets the footprints of the source images read by the script. Source 
+     * images which are declared but not read do not appear in the result.
+     * 
+     * @return footprints keyed by source image variable name
+     */
+    public Map<String, SourceFootprint> getFootprints() {
+        if (!analyzed) {
+            visit(tree);
+            analyzed = true;
+        }
+        
+        Map<String, SourceFootprint> copy = CollectionFactory.orderedMap();
+        copy.putAll(footprints);
+        return copy;
+    }
+
+    private void visit(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.FOREACH:
+                visitForeach(node);
+                return;
+                
+            case JiffleParser.IMAGE_POS:
+                addFootprint(node.getChild(0).getText(), getFootprint(node));
+                
+                // band and position expressions can also read images
+                for (int i = 1; i < node.getChildCount(); i++) {
+                    visit(node.getChild(i));
+                }
+                return;
+                
+            case JiffleParser.VAR_SOURCE:
+                addFootprint(node.getText(), SourceFootprint.CENTRE);
+                break;
+        }
+        
+        for (int i = 0; i < node.getChildCount(); i++) {
+            visit(node.getChild(i));
+        }
+    }
+
+    private void visitForeach(Tree node) {
+        String name = node.getChild(0).getText();
+        Tree loopSet = node.getChild(1);
+        
+        visit(loopSet);
+        
+        Range range = null;
+        switch (loopSet.getType()) {
+            case JiffleParser.SEQUENCE:
+                Range lo = getRange(loopSet.getChild(0));
+                Range hi = getRange(loopSet.getChild(1));
+                if (lo != null && hi != null) {
+                    range = new Range(lo.min, hi.max);
+                }
+                break;
+                
+            case JiffleParser.DECLARED_LIST:
+                range = getRange(loopSet.getChild(0));
+                break;
+        }
+        
+        Range previous = loopVars.put(name, range);
+        visit(node.getChild(2));
+        
+        if (previous == null) {
+            loopVars.remove(name);
+        } else {
+            loopVars.put(name, previous);
+        }
+    }
+    
+    private void addFootprint(String varName, SourceFootprint fp) {
+        SourceFootprint existing = footprints.get(varName);
+        footprints.put(varName, existing == null ? fp : existing.union(fp));
+    }
+
+    /*
+     * Gets the footprint for an IMAGE_POS node.
+     */
+    private SourceFootprint getFootprint(Tree node) {
+        Tree pixelRef = null;
+        for (int i = 1; i < node.getChildCount(); i++) {
+            if (node.getChild(i).getType() == JiffleParser.PIXEL_REF) {
+                pixelRef = node.getChild(i);
+            }
+        }
+        
+        if (pixelRef == null) {
+            return SourceFootprint.CENTRE;
+        }
+        
+        Range dx = getOffsetRange(pixelRef.getChild(0));
+        Range dy = getOffsetRange(pixelRef.getChild(1));
+        if (dx == null || dy == null) {
+            return SourceFootprint.UNBOUNDED;
+        }
+        
+        return SourceFootprint.bounded(
+                (int) Math.floor(dx.min), (int) Math.ceil(dx.max), 
+                (int) Math.floor(dy.min), (int) Math.ceil(dy.max));
+    }
+    
+    /*
+     * Gets the range of a REL_POS or ABS_POS node, or null for an 
+     * absolute position or unknown relative position.
+     */
+    private Range getOffsetRange(Tree pos) {
+        if (pos.getType() != JiffleParser.REL_POS) {
+            return null;
+        }
+        
+        Range r = getRange(pos.getChild(0));
+        if (r == null || Double.isInfinite(r.min) || Double.isInfinite(r.max)) {
+            return null;
+        }
+        return r;
+    }
+
+    /*
+     * Gets the range of values of an expression (or of all expressions
+     * in an EXPR_LIST node), or null if unknown.
+     */
+    private Range getRange(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+                double value = Double.parseDouble(node.getText());
+                return new Range(value, value);
+                
+            case JiffleParser.CONSTANT:
+                value = ConstantLookup.getValue(node.getText());
+                return Double.isNaN(value) ? null : new Range(value, value);
+                
+            case JiffleParser.PAR:
+                return getRange(node.getChild(0));
+                
+            case JiffleParser.VAR_LOOP:
+                return loopVars.get(node.getText());
+                
+            case JiffleParser.PREFIX:
+                Range r = getRange(node.getChild(1));
+                if (r == null) {
+                    return null;
+                }
+                switch (node.getChild(0).getType()) {
+                    case JiffleParser.PLUS:
+                        return r;
+                    case JiffleParser.MINUS:
+                        return new Range(-r.max, -r.min);
+                    default:
+                        return null;
+                }
+                
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+            case JiffleParser.TIMES:
+                Range a = getRange(node.getChild(0));
+                Range b = getRange(node.getChild(1));
+                if (a == null || b == null) {
+                    return null;
+                }
+                return combine(node.getType(), a, b);
+                
+            case JiffleParser.EXPR_LIST:
+                Range all = null;
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    Range item = getRange(node.getChild(i));
+                    if (item == null) {
+                        return null;
+                    }
+                    all = all == null ? item : 
+                            new Range(Math.min(all.min, item.min), Math.max(all.max, item.max));
+                }
+                return all;
+                
+            default:
+                return null;
+        }
+    }
+
+    private Range combine(int op, Range a, Range b) {
+        switch (op) {
+            case JiffleParser.PLUS:
+                return new Range(a.min + b.min, a.max + b.max);
+                
+            case JiffleParser.MINUS:
+                return new Range(a.min - b.max, a.max - b.min);
+                
+            default:
+                double p1 = a.min * b.min;
+                double p2 = a.min * b.max;
+                double p3 = a.max * b.min;
+                double p4 = a.max * b.max;
+                return new Range(
+                        Math.min(Math.min(p1, p2), Math.min(p3, p4)),
+                        Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+        }
+    }
+}
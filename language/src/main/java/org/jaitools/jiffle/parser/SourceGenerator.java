@@ -51,6 +51,52 @@ public interface SourceGenerator {
      * @param baseClassName base class name
      */
     void setBaseClassName(String baseClassName);
+    
+    /**
+     * Sets the fully qualified name of the runtime class, replacing the
+     * default name for the runtime model. This must be called after
+     * {@link #setRuntimeModel(Jiffle.RuntimeModel)}.
+     * 
+     * @param qualifiedName runtime class name including package
+     */
+    void setRuntimeClassName(String qualifiedName);
+    
+    /**
+     * Sets whether the runtime class should access images by slot index
+     * rather than by variable name. Slot access requires a base class derived
+     * from {@link org.jaitools.jiffle.runtime.AbstractDirectRuntime}. The 
+     * default is {@code false}.
+     * 
+     * @param b {@code true} to use slot access
+     */
+    void setImageSlots(boolean b);
+    
+    /**
+     * Sets whether the per-pixel code should be split into a number of 
+     * private methods, each small enough to be compiled by the JIT compiler.
+     * When set, pixel-scope variables are held in fields of the runtime class
+     * rather than in local variables. The default is {@code false}.
+     * 
+     * @param b {@code true} to split the code
+     * @see #isSplitRequired()
+     */
+    void setSplitEvaluation(boolean b);
+    
+    /**
+     * Tests if the per-pixel code created by the last call to {@link #getSource}
+     * is estimated to exceed {@link AbstractSourceGenerator#MAX_METHOD_SIZE}. 
+     * If so, the source should be generated again with splitting enabled.
+     * 
+     * @return {@code true} if the per-pixel code should be split
+     */
+    boolean isSplitRequired();
+    
+    /**
+     * Sets the table to receive warnings issued during source generation.
+     * 
+     * @param msgTable the message table; may be {@code null}
+     */
+    void setMessageTable(MessageTable msgTable);
 
     /**
      * Returns the source for the runtime class. The runtime model and base class
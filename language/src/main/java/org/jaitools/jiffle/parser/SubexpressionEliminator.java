@@ -0,0 +1,338 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.tree.CommonTree;
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+
+/**
+ * Finds expressions which occur more than once in the per-pixel code and
+ * arranges for each to be evaluated at most once per pixel. This pass runs
+ * on the final AST after {@link InvariantHoister}.
+ * <p>
+ * Only pure expressions are considered: those made up of image reads, 
+ * literals, constants, proxy functions, image-scope variables which are 
+ * not assigned in the script body, non-volatile functions and operators.
+ * The value of such an expression cannot change during the evaluation of
+ * a pixel. Expressions involving pixel-scope variables, loop variables, 
+ * lists or volatile functions such as {@code rand} are left unchanged.
+ * <p>
+ * Each repeated expression is replaced by a call to a runtime class method
+ * which evaluates the expression on its first call for a given pixel and
+ * returns the cached value on subsequent calls. This preserves the lazy
+ * evaluation of {@code con} alternatives and {@code if} branches. A
+ * {@code CSE_DEF} node with the method name and the original expression is
+ * added to the top level of the tree, ahead of the script statements.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class SubexpressionEliminator {
+
+    /** Prefix for the names of runtime class methods returning cached values. */
+    public static final String METHOD_PREFIX = "_cse";
+    
+    private final Set<String> assignedVars = CollectionFactory.set();
+    private final Map<String, Integer> counts = CollectionFactory.map();
+    private final Map<String, String> methodNames = CollectionFactory.map();
+    private final List<Tree> definitions = CollectionFactory.list();
+
+    /**
+     * Eliminates common subexpressions from the given tree.
+     * 
+     * @param tree the AST (as returned by {@link InvariantHoister})
+     * 
+     * @return the modified tree, which may have a new root node
+     */
+    public CommonTree eliminate(CommonTree tree) {
+        InvariantHoister.findAssignedVars(tree, assignedVars);
+        
+        List<Tree> header = CollectionFactory.list();
+        List<Tree> statements = CollectionFactory.list();
+
+        if (tree.isNil()) {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                Tree child = tree.getChild(i);
+                if (isHeaderNode(child)) {
+                    header.add(child);
+                } else {
+                    statements.add(child);
+                }
+            }
+        } else {
+            statements.add(tree);
+        }
+        
+        for (Tree t : statements) count(t, true);
+        
+        // a single statement root could itself be replaced, so we 
+        // give it a temporary parent
+        CommonTree parent = new CommonTree();
+        for (Tree t : statements) parent.addChild(t);
+        replace(parent);
+
+        if (definitions.isEmpty()) {
+            return tree;
+        }
+        
+        CommonTree root = new CommonTree();
+        for (Tree t : header) root.addChild(t);
+        for (Tree t : definitions) root.addChild(t);
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            root.addChild(parent.getChild(i));
+        }
+        return root;
+    }
+    
+    private boolean isHeaderNode(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.JIFFLE_OPTION:
+            case JiffleParser.DECL:
+            case JiffleParser.RUN_INVARIANT:
+            case JiffleParser.ROW_INVARIANT:
+                return true;
+                
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Counts occurrences of pure expressions.
+     * 
+     * @param node the node
+     * @param countable whether the node can be counted; this is {@code false} 
+     *        for the image variable in an image position expression
+     * 
+     * @return the key of the node if it is a pure expression,
+     *         otherwise {@code null}
+     */
+    private String count(Tree node, boolean countable) {
+        int n = node.getChildCount();
+        String[] childKeys = new String[n];
+        boolean childrenPure = true;
+        for (int i = 0; i < n; i++) {
+            childKeys[i] = count(node.getChild(i), !isImageVarPosition(node, i));
+            childrenPure &= childKeys[i] != null;
+        }
+        
+        if (!childrenPure || !isPureNode(node)) {
+            return null;
+        }
+        
+        String key = getKey(node, childKeys);
+        
+        // parentheses do not change the value so the enclosed
+        // expression has already been counted
+        if (countable && node.getType() != JiffleParser.PAR && isWorthCaching(node)) {
+            Integer k = counts.get(key);
+            counts.put(key, k == null ? 1 : k + 1);
+        }
+        return key;
+    }
+
+    /**
+     * Replaces repeated expressions below the given node with calls to
+     * the methods which will return the cached values.
+     * 
+     * @return the key of the node if it is a pure expression,
+     *         otherwise {@code null}
+     */
+    private String replace(Tree node) {
+        int n = node.getChildCount();
+        String[] childKeys = new String[n];
+        boolean childrenPure = true;
+        for (int i = 0; i < n; i++) {
+            childKeys[i] = replace(node.getChild(i));
+            childrenPure &= childKeys[i] != null;
+        }
+        
+        String key = null;
+        if (childrenPure && isPureNode(node)) {
+            key = getKey(node, childKeys);
+        }
+
+        // children are replaced after their own children have been 
+        // processed so that the cached expressions can also use the
+        // cached values of their sub-expressions
+        for (int i = 0; i < n; i++) {
+            Tree child = node.getChild(i);
+            String childKey = childKeys[i];
+            
+            if (childKey != null && 
+                    !isImageVarPosition(node, i) &&
+                    child.getType() != JiffleParser.PAR &&
+                    isWorthCaching(child) &&
+                    counts.get(childKey) > 1) {
+                
+                node.setChild(i, createMethodCall(child, childKey));
+            }
+        }
+        
+        return key;
+    }
+
+    /**
+     * Tests if a child node is the image variable in an image position
+     * expression, which must be left in place.
+     */
+    private boolean isImageVarPosition(Tree parent, int index) {
+        return parent.getType() == JiffleParser.IMAGE_POS && index == 0;
+    }
+
+    /**
+     * Creates a key for a pure expression node from its type, text and
+     * the keys of its children. Identical expressions have equal keys.
+     */
+    private String getKey(Tree node, String[] childKeys) {
+        if (node.getType() == JiffleParser.PAR) {
+            return childKeys[0];
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(node.getType()).append(':').append(node.getText());
+        if (childKeys.length > 0) {
+            sb.append('(');
+            for (String key : childKeys) {
+                sb.append(key).append(' ');
+            }
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Tests if a node, whose children are known to be pure, is itself pure.
+     */
+    private boolean isPureNode(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+            case JiffleParser.CONSTANT:
+            case JiffleParser.VAR_PROVIDED:
+            case JiffleParser.VAR_SOURCE:
+            case JiffleParser.IMAGE_POS:
+            case JiffleParser.BAND_REF:
+            case JiffleParser.PIXEL_REF:
+            case JiffleParser.ABS_POS:
+            case JiffleParser.REL_POS:
+            case JiffleParser.ID:
+            case JiffleParser.EXPR_LIST:
+            case JiffleParser.CON_CALL:
+            case JiffleParser.PAR:
+            case JiffleParser.POW:
+            case JiffleParser.PLUS:
+            case JiffleParser.MINUS:
+            case JiffleParser.TIMES:
+            case JiffleParser.DIV:
+            case JiffleParser.MOD:
+            case JiffleParser.NOT:
+            case JiffleParser.OR:
+            case JiffleParser.XOR:
+            case JiffleParser.AND:
+            case JiffleParser.LOGICALEQ:
+            case JiffleParser.NE:
+            case JiffleParser.GT:
+            case JiffleParser.GE:
+            case JiffleParser.LT:
+            case JiffleParser.LE:
+                return true;
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                return !assignedVars.contains(node.getText());
+                
+            case JiffleParser.FUNC_CALL:
+                return InvariantHoister.isPureFunction(node);
+                
+            case JiffleParser.PREFIX:
+                int opType = node.getChild(0).getType();
+                return opType != JiffleParser.INCR && opType != JiffleParser.DECR;
+                
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Tests if an expression is worth caching, ie. it reads an image value
+     * or is more than a literal, constant, simple variable or operator token.
+     */
+    private boolean isWorthCaching(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.VAR_SOURCE:
+            case JiffleParser.IMAGE_POS:
+                return true;
+                
+            case JiffleParser.ID:
+            case JiffleParser.EXPR_LIST:
+            case JiffleParser.BAND_REF:
+            case JiffleParser.PIXEL_REF:
+            case JiffleParser.ABS_POS:
+            case JiffleParser.REL_POS:
+                return false;
+                
+            default:
+                return node.getChildCount() > 0;
+        }
+    }
+
+    /**
+     * Creates a node for the call to the method returning the cached value
+     * of an expression. The method definition is created on the first call
+     * for a given expression.
+     */
+    private Tree createMethodCall(Tree expr, String key) {
+        String name = methodNames.get(key);
+        
+        if (name == null) {
+            name = METHOD_PREFIX + methodNames.size();
+            methodNames.put(key, name);
+            
+            Tree def = createNode(JiffleParser.CSE_DEF, "CSE_DEF", expr);
+            def.addChild(createNode(JiffleParser.VAR_PROVIDED, name, expr));
+            def.addChild(expr);
+            definitions.add(def);
+        }
+        
+        return createNode(JiffleParser.VAR_PROVIDED, name + "(_x, _y)", expr);
+    }
+
+    private Tree createNode(int type, String text, Tree original) {
+        CommonToken token = new CommonToken(type, text);
+        token.setLine(original.getLine());
+        token.setCharPositionInLine(original.getCharPositionInLine());
+        return new CommonTree(token);
+    }
+
+}
@@ -27,16 +27,30 @@ package org.jaitools.jiffle.runtime;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRenderedImage;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.jai.iterator.RandomIter;
 import javax.media.jai.iterator.RandomIterFactory;
 import javax.media.jai.iterator.WritableRandomIter;
 
+import org.jaitools.CollectionFactory;
+import org.jaitools.DaemonThreadFactory;
+import org.jaitools.jiffle.Jiffle;
 import org.jaitools.jiffle.JiffleException;
 
 
@@ -50,8 +64,6 @@ import org.jaitools.jiffle.JiffleException;
  */
 public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implements JiffleDirectRuntime {
 
-    private static final double EPS = 1.0e-10d;
-    
     /* 
      * Note: not using generics here because they are not
      * supported by the Janino compiler.
@@ -75,6 +87,71 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
      * image iterators ({@link WritableRandomIter}).
      */
     protected Map writers = new LinkedHashMap();
+    
+    private static final int SLOT_ARRAY_CHUNK = 10;
+    
+    /* Target number of rectangles per thread for parallel evaluation */
+    private static final int RECTS_PER_THREAD = 4;
+    
+    /* Interval at which progress is checked during parallel evaluation */
+    private static final long PROGRESS_POLL_MILLIS = 50;
+    
+    /**
+     * Holds an image variable's image, iterator and coordinate transform 
+     * so that they can be accessed by index from the generated runtime
+     * code rather than by name. Slots do not refer to the runtime object
+     * and are filled in by it when images are bound.
+     * <p>
+     * This class is only public to work around a problem in the 
+     * Janino compiler involving private nested classes. It is
+     * not intended for use outside of this package.
+     */
+    public static class ImageSlot {
+        /** Variable name. */
+        public String name;
+        
+        /** The image, or {@code null} if not yet set. */
+        public RenderedImage image;
+        
+        /** Iterator for a source image. */
+        public RandomIter reader;
+        
+        /** Iterator for a destination image. */
+        public WritableRandomIter writer;
+        
+        /** Coordinate transform for the image. */
+        public CoordinateTransform transform;
+        
+        /** Image bounds: min X (inclusive). */
+        public int minX;
+        
+        /** Image bounds: min Y (inclusive). */
+        public int minY;
+        
+        /** Image bounds: max X (exclusive). */
+        public int maxX;
+        
+        /** Image bounds: max Y (exclusive). */
+        public int maxY;
+        
+        /** Re-used to receive image coordinates from the transform. */
+        public Point pos = new Point();
+
+        /**
+         * Creates a new, empty slot.
+         * 
+         * @param name variable name
+         */
+        public ImageSlot(String name) {
+            this.name = name;
+        }
+    }
+    
+    /** Image slots indexed by the values used in the generated runtime code. */
+    protected ImageSlot[] _imageSlots = new ImageSlot[SLOT_ARRAY_CHUNK];
+    
+    /** Number of image slots in use. */
+    protected int _numImageSlots;
 
     /**
      * Creates a new instance and initializes script-option variables.
@@ -113,9 +190,14 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
     private void doSetDestinationImage(String varName, WritableRenderedImage image, 
             CoordinateTransform tr) throws WorldNotSetException {
         
+        WritableRandomIter iter = RandomIterFactory.createWritable(image, null);
         images.put(varName, image);
-        writers.put(varName, RandomIterFactory.createWritable(image, null));
+        writers.put(varName, iter);
         setTransform(varName, tr);
+        
+        ImageSlot slot = bindImageSlot(varName, image);
+        slot.reader = null;
+        slot.writer = iter;
     }
     
     /**
@@ -147,9 +229,88 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
     private void doSetSourceImage(String varName, RenderedImage image, CoordinateTransform tr)
             throws WorldNotSetException {
         
+        RandomIter iter = RandomIterFactory.create(image, null);
         images.put(varName, image);
-        readers.put(varName, RandomIterFactory.create(image, null));
+        readers.put(varName, iter);
         setTransform(varName, tr);
+        
+        ImageSlot slot = bindImageSlot(varName, image);
+        slot.reader = iter;
+        slot.writer = null;
+    }
+    
+    /**
+     * Registers an image variable and returns its slot index. This is 
+     * called from the constructor of the generated runtime class for each
+     * image variable referred to in the script, in the order that matches
+     * the slot indices used in the generated code.
+     * 
+     * @param varName image variable name
+     * 
+     * @return the slot index
+     * 
+     * @throws JiffleRuntimeException if the variable is already registered
+     */
+    protected int registerImage(String varName) {
+        if (getImageSlot(varName) >= 0) {
+            throw new JiffleRuntimeException("Image variable already defined: " + varName);
+        }
+        
+        if (_numImageSlots == _imageSlots.length) {
+            ImageSlot[] temp = _imageSlots;
+            _imageSlots = new ImageSlot[temp.length + SLOT_ARRAY_CHUNK];
+            System.arraycopy(temp, 0, _imageSlots, 0, temp.length);
+        }
+        
+        _imageSlots[_numImageSlots] = new ImageSlot(varName);
+        return _numImageSlots++ ;
+    }
+    
+    /**
+     * Gets the slot index of an image variable.
+     * 
+     * @param varName image variable name
+     * 
+     * @return the slot index or -1 if the variable is not registered
+     */
+    protected int getImageSlot(String varName) {
+        for (int i = 0; i < _numImageSlots; i++) {
+            if (_imageSlots[i].name.equals(varName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private ImageSlot bindImageSlot(String varName, RenderedImage image) {
+        int index = getImageSlot(varName);
+        if (index < 0) {
+            index = registerImage(varName);
+        }
+        
+        ImageSlot slot = _imageSlots[index];
+        slot.image = image;
+        slot.transform = getTransform(varName);
+        slot.minX = image.getMinX();
+        slot.minY = image.getMinY();
+        slot.maxX = slot.minX + image.getWidth();
+        slot.maxY = slot.minY + image.getHeight();
+        return slot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDefaultTransform(CoordinateTransform tr) throws JiffleException {
+        super.setDefaultTransform(tr);
+        
+        for (int i = 0; i < _numImageSlots; i++) {
+            ImageSlot slot = _imageSlots[i];
+            if (slot.image != null) {
+                slot.transform = getTransform(slot.name);
+            }
+        }
     }
 
     /**
@@ -170,71 +331,485 @@ public abstract class AbstractDirectRuntime extends AbstractJiffleRuntime implem
         final long updateInterval = listener.getUpdateInterval();
         
         final double minX = getMinX();
-        final double maxX = getMaxX();
         final double resX = getXRes();
+        final int numCols = getNumSteps(minX, getMaxX(), resX);
         
         final double minY = getMinY();
-        final double maxY = getMaxY();
         final double resY = getYRes();
+        final int numRows = getNumSteps(minY, getMaxY(), resY);
         
         listener.start();
-        for (double y = minY; y < maxY - EPS; y += resY) {
-            for (double x = minX; x < maxX - EPS; x += resX) {
-                evaluate(x, y);
+        for (int row = 0; row < numRows; row++) {
+            evaluateRow(minY + row * resY, minX, numCols);
+            
+            count += numCols;
+            sinceLastUpdate += numCols;
+            if (sinceLastUpdate >= updateInterval) {
+                listener.update( count );
+                sinceLastUpdate = 0;
+            }
+        }
+        listener.finish();
+    }
+    
+    /**
+     * Evaluates the script for all pixels in the processing area using
+     * up to {@code parallelism} threads. The area is divided into 
+     * rectangles aligned with the tile grids of all destination images,
+     * leaving out any column boundary that would split a data element of
+     * a packed sample model. Rows within each column of tiles are further
+     * divided if necessary to give each thread enough work. 
+     * Each thread processes a series of rectangles with its own copy of 
+     * this object (see {@link #copy()}), so the source and destination 
+     * images must support concurrent access by separate iterators 
+     * (as do JAI's {@code TiledImage} and Java's {@code BufferedImage}).
+     * Coordinate transforms are shared by the copies, so custom transforms
+     * must be thread-safe.
+     * <p>
+     * The listener is only called from the calling thread, which waits
+     * for processing to finish. Progress is accumulated from the worker 
+     * threads without locking, so the number of pixels reported at each 
+     * update is approximate.
+     * <p>
+     * The script is evaluated in this thread, exactly as by
+     * {@link #evaluateAll(JiffleProgressListener)}, if any of the 
+     * following apply:
+     * <ul>
+     * <li>{@code parallelism} is 1</li>
+     * <li>the script assigns to image-scope variables while evaluating
+     *     pixels (see {@link #writesImageScopeVars()}), so its results 
+     *     depend on the order in which pixels are processed</li>
+     * <li>the processing area does not map one-to-one onto the pixels
+     *     of each destination image, in which case separate threads could
+     *     write to the same destination pixel</li>
+     * <li>the processing area is too small to divide</li>
+     * </ul>
+     * If evaluation fails in any thread, the remaining threads stop at 
+     * the end of their current row and the first failure is thrown from
+     * this method. Destination pixels written before the failure are
+     * not restored.
+     * 
+     * @param pl an optional progress listener (may be {@code null})
+     * @param parallelism maximum number of threads to use
+     * 
+     * @throws IllegalArgumentException if {@code parallelism} is less than 1
+     * @throws JiffleRuntimeException if evaluation fails
+     */
+    public void evaluateAll(JiffleProgressListener pl, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        
+        if (!isWorldSet()) {
+            setDefaultBounds();
+        }
+        
+        List<Rectangle> rects = null;
+        if (parallelism > 1) {
+            if (writesImageScopeVars()) {
+                Jiffle.LOGGER.fine("Script writes image-scope variables: evaluating serially");
+            } else {
+                rects = getParallelRects(parallelism);
+            }
+        }
+        
+        if (rects == null || rects.size() < 2) {
+            evaluateAll(pl);
+        } else {
+            evaluateAllParallel(pl, rects, Math.min(parallelism, rects.size()));
+        }
+    }
+    
+    private void evaluateAllParallel(JiffleProgressListener pl, 
+            final List<Rectangle> rects, int numThreads) {
+        
+        JiffleProgressListener listener = pl == null ? new NullProgressListener() : pl;
+        listener.setTaskSize(getNumPixels());
+        final long updateInterval = listener.getUpdateInterval();
+        
+        // initialize image-scope variables once so that every copy 
+        // starts with the same values
+        if (!_imageScopeVarsInitialized) {
+            initImageScopeVars();
+        }
+        
+        final AtomicInteger nextRect = new AtomicInteger();
+        final AtomicLong count = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        
+        ExecutorService service = Executors.newFixedThreadPool(numThreads, 
+                new DaemonThreadFactory(Thread.NORM_PRIORITY, "jiffle-evaluate"));
+        
+        listener.start();
+        try {
+            CompletionService<Object> completion = new ExecutorCompletionService<Object>(service);
+            for (int i = 0; i < numThreads; i++) {
+                final AbstractDirectRuntime worker = (AbstractDirectRuntime) copy();
+                completion.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            worker.evaluateRects(rects, nextRect, count, failure);
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                }, null);
+            }
+            
+            long lastUpdate = 0;
+            int numFinished = 0;
+            while (numFinished < numThreads) {
+                if (completion.poll(PROGRESS_POLL_MILLIS, TimeUnit.MILLISECONDS) != null) {
+                    numFinished++ ;
+                }
                 
-                count++ ;
-                sinceLastUpdate++;
-                if (sinceLastUpdate >= updateInterval) {
-                    listener.update( count );
-                    sinceLastUpdate = 0;
+                long done = count.get();
+                if (done - lastUpdate >= updateInterval && failure.get() == null) {
+                    listener.update(done);
+                    lastUpdate = done;
                 }
             }
+            
+        } catch (InterruptedException ex) {
+            failure.compareAndSet(null, ex);
+            Thread.currentThread().interrupt();
+            
+        } finally {
+            service.shutdownNow();
+        }
+        
+        Throwable t = failure.get();
+        if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t instanceof JiffleRuntimeException) {
+            throw (JiffleRuntimeException) t;
+        } else if (t != null) {
+            throw new JiffleRuntimeException("Parallel evaluation failed", t);
         }
+        
         listener.finish();
     }
     
     /**
-     * {@inheritDoc}
+     * Called by each worker thread (on its own copy of the runtime object)
+     * to evaluate rectangles from the shared list until there are none
+     * left or another worker has failed.
      */
-    public double readFromImage(String srcImageName, double x, double y, int band) {
-        boolean inside = true;
-        RenderedImage img = (RenderedImage) images.get(srcImageName);
-        CoordinateTransform tr = getTransform(srcImageName);
+    private void evaluateRects(List<Rectangle> rects, AtomicInteger nextRect, 
+            AtomicLong count, AtomicReference<Throwable> failure) {
         
-        Point imgPos = tr.worldToImage(x, y, null);
+        final double minX = getMinX();
+        final double resX = getXRes();
+        final double minY = getMinY();
+        final double resY = getYRes();
         
-        int xx = imgPos.x - img.getMinX();
-        if (xx < 0 || xx >= img.getWidth()) {
-            inside = false;
-        } else {
-            int yy = imgPos.y - img.getMinY();
-            if (yy < 0 || yy >= img.getHeight()) {
-                inside = false;
+        int index;
+        while ((index = nextRect.getAndIncrement()) < rects.size()) {
+            Rectangle r = rects.get(index);
+            final double x0 = minX + r.x * resX;
+            for (int row = r.y, maxRow = r.y + r.height; row < maxRow; row++) {
+                if (failure.get() != null) {
+                    return;
+                }
+                evaluateRow(minY + row * resY, x0, r.width);
+                count.addAndGet(r.width);
+            }
+        }
+    }
+    
+    /**
+     * Divides the processing area, in pixel units relative to its origin,
+     * into rectangles for parallel evaluation. Returns {@code null} if
+     * the area does not map one-to-one onto the pixels of each destination
+     * image. This method is package-private for unit testing.
+     */
+    List<Rectangle> getParallelRects(int parallelism) {
+        final double minX = getMinX();
+        final double resX = getXRes();
+        final int numCols = getNumSteps(minX, getMaxX(), resX);
+        
+        final double minY = getMinY();
+        final double resY = getYRes();
+        final int numRows = getNumSteps(minY, getMaxY(), resY);
+        
+        if (numCols < 1 || numRows < 1) {
+            return null;
+        }
+        
+        // Column boundaries follow the tile grids of the destination 
+        // images so that no two threads write to the same tile column. 
+        // This matters for sample models which pack several pixels in 
+        // one data element, for which any break that falls inside a data
+        // element of a destination row is dropped. Rows never share data 
+        // elements.
+        SortedSet<Integer> colBreakSet = CollectionFactory.sortedSet();
+        SortedSet<Integer> rowBreakSet = CollectionFactory.sortedSet();
+        List<ImageSlot> packedSlots = CollectionFactory.list();
+        List<Point> packedOrigins = CollectionFactory.list();
+        
+        for (Object oname : writers.keySet()) {
+            String name = (String) oname;
+            ImageSlot slot = _imageSlots[getImageSlot(name)];
+            Point origin = slot.transform.worldToImage(minX, minY, null);
+            
+            Point p = slot.transform.worldToImage(minX + (numCols - 1) * resX, minY, null);
+            if (p.x != origin.x + numCols - 1 || p.y != origin.y) {
+                return null;
+            }
+            p = slot.transform.worldToImage(minX, minY + (numRows - 1) * resY, null);
+            if (p.x != origin.x || p.y != origin.y + numRows - 1) {
+                return null;
+            }
+            
+            RenderedImage image = slot.image;
+            addTileBreaks(colBreakSet, origin.x - image.getTileGridXOffset(), 
+                    image.getTileWidth(), numCols);
+            addTileBreaks(rowBreakSet, origin.y - image.getTileGridYOffset(), 
+                    image.getTileHeight(), numRows);
+            
+            if (image.getSampleModel() instanceof MultiPixelPackedSampleModel) {
+                packedSlots.add(slot);
+                packedOrigins.add(origin);
+            }
+        }
+        
+        List<Integer> colBreaks = CollectionFactory.list();
+        colBreaks.add(0);
+        for (Integer pos : colBreakSet) {
+            boolean ok = true;
+            for (int i = 0; ok && i < packedSlots.size(); i++) {
+                ok = !splitsDataElement(packedSlots.get(i).image, 
+                        packedOrigins.get(i).x + pos);
+            }
+            if (ok) {
+                colBreaks.add(pos);
+            }
+        }
+        colBreaks.add(numCols);
+        
+        List<Integer> tileRowBreaks = CollectionFactory.list();
+        tileRowBreaks.add(0);
+        tileRowBreaks.addAll(rowBreakSet);
+        tileRowBreaks.add(numRows);
+        
+        // Divide each row of tiles into bands to aim for several 
+        // rectangles per thread
+        final int numTiles = (colBreaks.size() - 1) * (tileRowBreaks.size() - 1);
+        final int bandsPerTileRow = Math.max(1, 
+                (RECTS_PER_THREAD * parallelism + numTiles - 1) / numTiles);
+        
+        List<Rectangle> rects = CollectionFactory.list();
+        for (int j = 1; j < tileRowBreaks.size(); j++) {
+            int y0 = tileRowBreaks.get(j - 1);
+            int h = tileRowBreaks.get(j) - y0;
+            int numBands = Math.min(bandsPerTileRow, h);
+            
+            for (int b = 0; b < numBands; b++) {
+                int by0 = y0 + (int) ((long) h * b / numBands);
+                int by1 = y0 + (int) ((long) h * (b + 1) / numBands);
+                
+                for (int i = 1; i < colBreaks.size(); i++) {
+                    int x0 = colBreaks.get(i - 1);
+                    rects.add(new Rectangle(x0, by0, colBreaks.get(i) - x0, by1 - by0));
+                }
             }
         }
         
-        if (!inside) {
+        return rects;
+    }
+    
+    /**
+     * Adds the positions, relative to the start of the processing area,
+     * at which tile boundaries fall within the area.
+     * 
+     * @param breaks set to receive positions
+     * @param offset position of the area start relative to the tile grid
+     * @param tileSize tile width or height
+     * @param n area width or height
+     */
+    private static void addTileBreaks(SortedSet<Integer> breaks, int offset, int tileSize, int n) {
+        int pos = tileSize - (int) (((offset % tileSize) + tileSize) % tileSize);
+        for (; pos < n; pos += tileSize) {
+            breaks.add(pos);
+        }
+    }
+    
+    /**
+     * Tests whether the pixel at image column {@code x} shares a data 
+     * element with the pixel to its left in an image with a 
+     * {@code MultiPixelPackedSampleModel}.
+     * 
+     * @param image the image
+     * @param x image column
+     * 
+     * @return {@code true} if a break at {@code x} would split a data element
+     */
+    private static boolean splitsDataElement(RenderedImage image, int x) {
+        int tileWidth = image.getTileWidth();
+        int offset = x - image.getTileGridXOffset();
+        int tileX = ((offset % tileWidth) + tileWidth) % tileWidth;
+        if (tileX == 0) {
+            return false;
+        }
+        
+        MultiPixelPackedSampleModel sm = (MultiPixelPackedSampleModel) image.getSampleModel();
+        return sm.getBitOffset(tileX) != 0;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation calls {@link #evaluate(double, double)} for each
+     * pixel. Generated runtime classes override it with a loop that does
+     * not repeat the per-call initialization checks.
+     */
+    public void evaluateRow(double y, double x0, int n) {
+        if (!isWorldSet()) {
+            setDefaultBounds();
+        }
+        
+        final double resX = getXRes();
+        for (int i = 0; i < n; i++) {
+            evaluate(x0 + i * resX, y);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation calls {@link #evaluateRow(double, double, int)}
+     * for each row.
+     */
+    public void evaluateRect(Rectangle rect) {
+        if (!isWorldSet()) {
+            setDefaultBounds();
+        }
+        
+        final double resX = getXRes();
+        final double resY = getYRes();
+        final double x0 = getMinX() + rect.x * resX;
+        final double y0 = getMinY() + rect.y * resY;
+        for (int row = 0; row < rect.height; row++) {
+            evaluateRow(y0 + row * resY, x0, rect.width);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public double readFromImage(String srcImageName, double x, double y, int band) {
+        return readFromImage(getBoundSlot(srcImageName), x, y, band);
+    }
+    
+    /**
+     * Reads a value from a source image. This is the method used by
+     * the generated runtime code.
+     * 
+     * @param slot the image slot index
+     * @param x world X position
+     * @param y world Y position
+     * @param band image band
+     * 
+     * @return the image value or the outside value if set
+     * 
+     * @throws JiffleRuntimeException if the position is outside the image
+     *         and no outside value has been set
+     */
+    protected double readFromImage(int slot, double x, double y, int band) {
+        ImageSlot s = _imageSlots[slot];
+        Point imgPos = s.transform.worldToImage(x, y, s.pos);
+        
+        if (imgPos.x < s.minX || imgPos.x >= s.maxX ||
+            imgPos.y < s.minY || imgPos.y >= s.maxY) {
+            
             if (_outsideValueSet) {
                 return _outsideValue;
             } else {
                 throw new JiffleRuntimeException( String.format(
                         "Position %.4f %.4f is outside bounds of image: %s", 
-                        x, y, srcImageName));
+                        x, y, s.name));
             }
         }
         
-        RandomIter iter = (RandomIter) readers.get(srcImageName);
-        return iter.getSampleDouble(imgPos.x, imgPos.y, band);
+        return s.reader.getSampleDouble(imgPos.x, imgPos.y, band);
     }
     
     /**
      * {@inheritDoc}
      */
     public void writeToImage(String destImageName, double x, double y, int band, double value) {
-        WritableRandomIter iter = (WritableRandomIter) writers.get(destImageName);
-        CoordinateTransform tr = getTransform(destImageName);
-        Point imgPos = tr.worldToImage(x, y, null);
-        iter.setSample(imgPos.x, imgPos.y, band, value);
+        writeToImage(getBoundSlot(destImageName), x, y, band, value);
+    }
+    
+    /**
+     * Writes a value to a destination image. This is the method used by
+     * the generated runtime code.
+     * 
+     * @param slot the image slot index
+     * @param x world X position
+     * @param y world Y position
+     * @param band image band
+     * @param value the value to write
+     */
+    protected void writeToImage(int slot, double x, double y, int band, double value) {
+        ImageSlot s = _imageSlots[slot];
+        Point imgPos = s.transform.worldToImage(x, y, s.pos);
+        s.writer.setSample(imgPos.x, imgPos.y, band, value);
+    }
+    
+    private int getBoundSlot(String varName) {
+        int index = getImageSlot(varName);
+        if (index < 0 || _imageSlots[index].image == null) {
+            throw new JiffleRuntimeException("No image set for variable: " + varName);
+        }
+        return index;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JiffleDirectRuntime copy() {
+        return (JiffleDirectRuntime) super.copy();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation also sets the images of this object for the
+     * target when it is a direct runtime object. The target gets its own 
+     * image iterators, which are not safe to share between threads.
+     */
+    @Override
+    public void copyStateTo(AbstractJiffleRuntime target) {
+        super.copyStateTo(target);
+        
+        if (target instanceof AbstractDirectRuntime) {
+            AbstractDirectRuntime direct = (AbstractDirectRuntime) target;
+            
+            for (Object oname : readers.keySet()) {
+                String name = (String) oname;
+                RenderedImage image = (RenderedImage) images.get(name);
+                direct.images.put(name, image);
+                direct.readers.put(name, RandomIterFactory.create(image, null));
+            }
+            
+            for (Object oname : writers.keySet()) {
+                String name = (String) oname;
+                WritableRenderedImage image = (WritableRenderedImage) images.get(name);
+                direct.images.put(name, image);
+                direct.writers.put(name, RandomIterFactory.createWritable(image, null));
+            }
+            
+            for (int i = 0; i < _numImageSlots; i++) {
+                ImageSlot slot = _imageSlots[i];
+                if (slot.image != null) {
+                    ImageSlot copy = direct.bindImageSlot(slot.name, slot.image);
+                    copy.reader = (RandomIter) direct.readers.get(slot.name);
+                    copy.writer = (WritableRandomIter) direct.writers.get(slot.name);
+                }
+            }
+        }
     }
 
     /**
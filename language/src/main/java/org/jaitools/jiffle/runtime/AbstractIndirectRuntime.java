@@ -25,9 +25,23 @@
 
 package org.jaitools.jiffle.runtime;
 
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferDouble;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.media.jai.BorderExtender;
+import javax.media.jai.PlanarImage;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
 import org.jaitools.jiffle.JiffleException;
 
 
@@ -47,6 +61,116 @@ public abstract class AbstractIndirectRuntime extends AbstractJiffleRuntime impl
      */
     List sourceImageNames = new ArrayList();
     String destImageName;
+    
+    /* Data type (a DataBuffer constant) to which row values are converted */
+    int destDataType = DataBuffer.TYPE_DOUBLE;
+    
+    /**
+     * Holds an image variable's coordinate transform and the data from
+     * which its values are read, so that they can be accessed by index
+     * from the generated runtime code rather than by name. The data are
+     * either samples copied into a pixel-interleaved array, which is 
+     * re-used each time new data are set, or an iterator which reads
+     * the image on demand.
+     */
+    private static final class SourceSlot {
+        final String name;
+        CoordinateTransform transform;
+        
+        /* Whether data have been set */
+        boolean hasData;
+        
+        /* Bounds of the data: the area copied or the image bounds */
+        int minX;
+        int minY;
+        int width;
+        int height;
+        int numBands;
+        
+        /* Copied samples, or null if reading from an image */
+        double[] samples;
+        
+        /* Image and iterator when reading on demand, otherwise null */
+        RenderedImage image;
+        RandomIter iter;
+
+        SourceSlot(String name) {
+            this.name = name;
+        }
+        
+        /* 
+         * Sets the area for copied samples, growing the sample array if
+         * it is too small.
+         */
+        void setArea(Rectangle area, int nb) {
+            minX = area.x;
+            minY = area.y;
+            width = area.width;
+            height = area.height;
+            numBands = nb;
+            
+            int n = width * height * numBands;
+            if (samples == null || samples.length < n) {
+                samples = new double[n];
+            }
+            image = null;
+            iter = null;
+            hasData = true;
+        }
+        
+        /* Sets an image to be read on demand */
+        void setImage(RenderedImage image) {
+            minX = image.getMinX();
+            minY = image.getMinY();
+            width = image.getWidth();
+            height = image.getHeight();
+            numBands = image.getSampleModel().getNumBands();
+            
+            samples = null;
+            this.image = image;
+            iter = RandomIterFactory.create(image, null);
+            hasData = true;
+        }
+        
+        /* Creates a raster which writes to the sample array */
+        WritableRaster createRaster() {
+            int[] bandOffsets = new int[numBands];
+            for (int b = 0; b < numBands; b++) {
+                bandOffsets[b] = b;
+            }
+            
+            SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_DOUBLE,
+                    width, height, numBands, width * numBands, bandOffsets);
+            
+            DataBuffer db = new DataBufferDouble(samples, width * height * numBands);
+            return Raster.createWritableRaster(sm, db, new Point(minX, minY));
+        }
+        
+        /* 
+         * Copies the data to another slot. Samples are copied rather than 
+         * shared, and an image gets a new iterator, so that the slots can
+         * be used in different threads.
+         */
+        void copyDataTo(SourceSlot target) {
+            if (iter != null) {
+                target.setImage(image);
+            } else if (hasData) {
+                target.setArea(new Rectangle(minX, minY, width, height), numBands);
+                System.arraycopy(samples, 0, target.samples, 0, width * height * numBands);
+            }
+        }
+    }
+    
+    private static final int SLOT_ARRAY_CHUNK = 10;
+    
+    /* Slots indexed by the values used in the generated runtime code */
+    private SourceSlot[] sourceSlots = new SourceSlot[SLOT_ARRAY_CHUNK];
+    
+    /* Number of slots in use */
+    private int numSourceSlots;
+    
+    /* Re-used to receive image coordinates from transforms */
+    private final Point imagePos = new Point();
 
     /**
      * Creates a new instance and initializes script-option variables.
@@ -106,6 +230,436 @@ public abstract class AbstractIndirectRuntime extends AbstractJiffleRuntime impl
         
         sourceImageNames.add(varName);
         setTransform(varName, tr);
+        getSourceSlot(varName).transform = getTransform(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDefaultTransform(CoordinateTransform tr) throws JiffleException {
+        super.setDefaultTransform(tr);
+        for (int i = 0; i < numSourceSlots; i++) {
+            SourceSlot slot = sourceSlots[i];
+            if (sourceImageNames.contains(slot.name)) {
+                slot.transform = getTransform(slot.name);
+            }
+        }
+    }
+    
+    /**
+     * Registers an image variable and returns its slot index. This is 
+     * called from the constructor of the generated runtime class for each
+     * image variable referred to in the script, in the order that matches
+     * the slot indices used in the generated code.
+     * 
+     * @param varName image variable name
+     * 
+     * @return the slot index
+     * 
+     * @throws JiffleRuntimeException if the variable is already registered
+     */
+    protected int registerImage(String varName) {
+        if (getImageSlot(varName) >= 0) {
+            throw new JiffleRuntimeException("Image variable already defined: " + varName);
+        }
+        
+        if (numSourceSlots == sourceSlots.length) {
+            SourceSlot[] temp = sourceSlots;
+            sourceSlots = new SourceSlot[temp.length + SLOT_ARRAY_CHUNK];
+            System.arraycopy(temp, 0, sourceSlots, 0, temp.length);
+        }
+        
+        sourceSlots[numSourceSlots] = new SourceSlot(varName);
+        return numSourceSlots++ ;
+    }
+    
+    /**
+     * Gets the slot index of an image variable.
+     * 
+     * @param varName image variable name
+     * 
+     * @return the slot index or -1 if the variable is not registered
+     */
+    protected int getImageSlot(String varName) {
+        for (int i = 0; i < numSourceSlots; i++) {
+            if (sourceSlots[i].name.equals(varName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /*
+     * Gets the slot for an image variable, registering the variable
+     * if this has not been done by the generated constructor.
+     */
+    private SourceSlot getSourceSlot(String varName) {
+        int index = getImageSlot(varName);
+        if (index < 0) {
+            index = registerImage(varName);
+        }
+        return sourceSlots[index];
+    }
+
+    /**
+     * Sets the raster from which values are read for a source image 
+     * variable. The raster may hold all of the source image or only the
+     * part that will be read when evaluating some part of the processing
+     * area. It can be replaced between calls to the evaluation methods.
+     * <p>
+     * The raster's samples are copied into an array when this method is
+     * called, and values are then read from the array. Later changes to 
+     * the raster's data are not seen by this runtime object. The array is
+     * re-used, without allocating a new one, when data of the same or
+     * smaller size are set again.
+     * 
+     * @param varName the source image variable
+     * @param raster the raster
+     * 
+     * @throws IllegalArgumentException if {@code varName} has not been 
+     *         set as a source image with {@link #setSourceImage(String)}
+     */
+    public void setSourceRaster(String varName, Raster raster) {
+        setSourceRaster(varName, raster, raster.getBounds());
+    }
+    
+    /**
+     * Sets the raster from which values are read for a source image 
+     * variable, using only the given area of the raster. Positions outside
+     * the area are treated as being outside the raster. This allows, for
+     * example, a tile of the source image to be used without first copying
+     * the needed area from it.
+     * 
+     * @param varName the source image variable
+     * @param raster the raster
+     * @param area the area of the raster to use
+     * 
+     * @throws IllegalArgumentException if {@code varName} has not been 
+     *         set as a source image with {@link #setSourceImage(String)},
+     *         or {@code area} is empty or not within the raster bounds
+     */
+    public void setSourceRaster(String varName, Raster raster, Rectangle area) {
+        SourceSlot slot = getDataSlot(varName);
+        if (area.isEmpty() || !raster.getBounds().contains(area)) {
+            throw new IllegalArgumentException("Area must be within the raster bounds");
+        }
+        
+        slot.setArea(area, raster.getNumBands());
+        raster.getPixels(area.x, area.y, area.width, area.height, slot.samples);
+    }
+    
+    /**
+     * Sets an image from which values are read on demand for a source
+     * image variable. No samples are copied: values are read through an
+     * iterator, so only the tiles which the script reads are computed. 
+     * This suits a script which reads the source at positions that are 
+     * not known in advance. Positions outside the image bounds are 
+     * treated as being outside the image.
+     * 
+     * @param varName the source image variable
+     * @param image the image
+     * 
+     * @throws IllegalArgumentException if {@code varName} has not been 
+     *         set as a source image with {@link #setSourceImage(String)}
+     */
+    public void setSourceData(String varName, RenderedImage image) {
+        getDataSlot(varName).setImage(image);
+    }
+    
+    /**
+     * Sets the area of an image from which values are read for a source
+     * image variable. The samples in the area are copied from the image's
+     * tiles into an array, which is re-used when data are set again, and
+     * values are then read from the array.
+     * <p>
+     * If a {@link BorderExtender} is given, the parts of the area beyond 
+     * the image bounds are filled by it. Otherwise only the part of the 
+     * area within the image bounds is used, and positions outside it are
+     * treated as being outside the image.
+     * 
+     * @param varName the source image variable
+     * @param image the image
+     * @param area the area to copy
+     * @param extender used to fill parts of the area beyond the image 
+     *        bounds, or {@code null} for none
+     * 
+     * @throws IllegalArgumentException if {@code varName} has not been 
+     *         set as a source image with {@link #setSourceImage(String)}
+     */
+    public void setSourceData(String varName, RenderedImage image, Rectangle area,
+            BorderExtender extender) {
+        
+        SourceSlot slot = getDataSlot(varName);
+        
+        Rectangle bounds = new Rectangle(
+                image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        
+        Rectangle r = extender == null ? area.intersection(bounds) : area;
+        if (r.isEmpty()) {
+            // all reads will be outside the data
+            r = new Rectangle(area.x, area.y, 0, 0);
+        }
+        
+        slot.setArea(r, image.getSampleModel().getNumBands());
+        if (!r.isEmpty()) {
+            WritableRaster raster = slot.createRaster();
+            PlanarImage planarImage = PlanarImage.wrapRenderedImage(image);
+            
+            if (r.intersects(bounds)) {
+                planarImage.copyData(raster);
+            }
+            if (extender != null) {
+                extender.extend(raster, planarImage);
+            }
+        }
+    }
+    
+    /*
+     * Gets the slot for a source image variable to which data are 
+     * being given.
+     */
+    private SourceSlot getDataSlot(String varName) {
+        if (!sourceImageNames.contains(varName)) {
+            throw new IllegalArgumentException("Not a source image variable: " + varName);
+        }
+        return getSourceSlot(varName);
+    }
+    
+    /**
+     * Reads a value from the raster set for a source image variable.
+     * 
+     * @param srcImageName the source image variable
+     * @param x world X position
+     * @param y world Y position
+     * @param band image band
+     * 
+     * @return the image value or the outside value if set
+     * 
+     * @throws JiffleRuntimeException if no raster has been set for the 
+     *         variable, the band is invalid, or the position is outside 
+     *         the raster and no outside value has been set
+     */
+    public double readFromImage(String srcImageName, double x, double y, int band) {
+        int index = getImageSlot(srcImageName);
+        if (index < 0) {
+            throw new JiffleRuntimeException("No raster set for source image: " + srcImageName);
+        }
+        return readFromImage(index, x, y, band);
+    }
+    
+    /**
+     * Reads a value from the raster set for a source image variable. This
+     * is the method used by the generated runtime code.
+     * 
+     * @param slot the image slot index
+     * @param x world X position
+     * @param y world Y position
+     * @param band image band
+     * 
+     * @return the image value or the outside value if set
+     * 
+     * @throws JiffleRuntimeException if no raster has been set for the 
+     *         variable, the band is invalid, or the position is outside 
+     *         the raster and no outside value has been set
+     */
+    protected double readFromImage(int slot, double x, double y, int band) {
+        SourceSlot s = sourceSlots[slot];
+        if (!s.hasData) {
+            throw new JiffleRuntimeException("No raster set for source image: " + s.name);
+        }
+        
+        if (band < 0 || band >= s.numBands) {
+            throw new JiffleRuntimeException( String.format(
+                    "Invalid band %d for image: %s", band, s.name));
+        }
+        
+        Point pos = s.transform.worldToImage(x, y, imagePos);
+        int dx = pos.x - s.minX;
+        int dy = pos.y - s.minY;
+        if (dx < 0 || dx >= s.width || dy < 0 || dy >= s.height) {
+            
+            if (_outsideValueSet) {
+                return _outsideValue;
+            } else {
+                throw new JiffleRuntimeException( String.format(
+                        "Position %.4f %.4f is outside bounds of raster for image: %s", 
+                        x, y, s.name));
+            }
+        }
+        
+        if (s.iter != null) {
+            return s.iter.getSampleDouble(pos.x, pos.y, band);
+        }
+        return s.samples[(dy * s.width + dx) * s.numBands + band];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public JiffleIndirectRuntime copy() {
+        return (JiffleIndirectRuntime) super.copy();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation also copies the source and destination image
+     * names, and the source data, when the target is an indirect runtime
+     * object. Copied samples are not shared, and a source image which is
+     * read on demand gets a new iterator in the target.
+     */
+    @Override
+    public void copyStateTo(AbstractJiffleRuntime target) {
+        super.copyStateTo(target);
+        
+        if (target instanceof AbstractIndirectRuntime) {
+            AbstractIndirectRuntime indirect = (AbstractIndirectRuntime) target;
+            indirect.sourceImageNames.clear();
+            indirect.sourceImageNames.addAll(sourceImageNames);
+            indirect.destImageName = destImageName;
+            indirect.destDataType = destDataType;
+            
+            for (int i = 0; i < numSourceSlots; i++) {
+                SourceSlot slot = sourceSlots[i];
+                SourceSlot copy = indirect.getSourceSlot(slot.name);
+                slot.copyDataTo(copy);
+                if (slot.transform != null) {
+                    copy.transform = indirect.getTransform(slot.name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the data type of the destination image. Values returned by
+     * {@link #evaluateRow(double, double, int, double[])} and
+     * {@link #evaluateRowAll(double, double, int, double[])} are converted 
+     * to the range and precision of this type, so that they can be stored 
+     * in a raster of the type without further conversion:
+     * <ul>
+     * <li>For integral types, values are rounded to the nearest integer
+     *     (halves upwards) and clamped to the type's range. NaN (null)
+     *     values become 0.</li>
+     * <li>For {@code TYPE_FLOAT}, values are clamped to the float range
+     *     and rounded to float precision. NaN values are kept.</li>
+     * <li>For {@code TYPE_DOUBLE} (the default), values are unchanged.</li>
+     * </ul>
+     * Values returned by the single pixel {@code evaluate} methods are 
+     * never converted.
+     * 
+     * @param dataType a {@link DataBuffer} data type constant
+     * 
+     * @throws IllegalArgumentException if {@code dataType} is not one of 
+     *         the standard data types
+     */
+    public void setDestinationDataType(int dataType) {
+        switch (dataType) {
+            case DataBuffer.TYPE_BYTE:
+            case DataBuffer.TYPE_SHORT:
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_INT:
+            case DataBuffer.TYPE_FLOAT:
+            case DataBuffer.TYPE_DOUBLE:
+                destDataType = dataType;
+                break;
+                
+            default:
+                throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+    }
+    
+    /**
+     * Gets the data type of the destination image.
+     * 
+     * @return a {@link DataBuffer} data type constant
+     * @see #setDestinationDataType(int)
+     */
+    public int getDestinationDataType() {
+        return destDataType;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Values are converted to the destination data type as described
+     * for {@link #setDestinationDataType(int)}.
+     * <p>
+     * This implementation calls {@link #evaluate(double, double)} for each
+     * pixel. Generated runtime classes override it with a loop that does
+     * not repeat the per-call initialization checks.
+     */
+    public void evaluateRow(double y, double x0, int n, double[] out) {
+        if (!isWorldSet()) {
+            throw new JiffleRuntimeException("Processing area has not been set");
+        }
+        
+        final double resX = getXRes();
+        for (int i = 0; i < n; i++) {
+            out[i] = evaluate(x0 + i * resX, y);
+        }
+        convertToDestinationType(out, n);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This implementation converts values as described for
+     * {@link #setDestinationDataType(int)}.
+     */
+    @Override
+    protected void convertToDestinationType(double[] values, int n) {
+        double min;
+        double max;
+        
+        switch (destDataType) {
+            case DataBuffer.TYPE_DOUBLE:
+                return;
+                
+            case DataBuffer.TYPE_FLOAT:
+                for (int i = 0; i < n; i++) {
+                    double v = values[i];
+                    if (v > Float.MAX_VALUE) {
+                        values[i] = Float.MAX_VALUE;
+                    } else if (v < -Float.MAX_VALUE) {
+                        values[i] = -Float.MAX_VALUE;
+                    } else {
+                        values[i] = (float) v;
+                    }
+                }
+                return;
+                
+            case DataBuffer.TYPE_BYTE:
+                min = 0;
+                max = 255;
+                break;
+                
+            case DataBuffer.TYPE_SHORT:
+                min = Short.MIN_VALUE;
+                max = Short.MAX_VALUE;
+                break;
+                
+            case DataBuffer.TYPE_USHORT:
+                min = 0;
+                max = 65535;
+                break;
+                
+            default:  // TYPE_INT
+                min = Integer.MIN_VALUE;
+                max = Integer.MAX_VALUE;
+        }
+        
+        for (int i = 0; i < n; i++) {
+            double v = values[i];
+            if (v != v) {
+                // NaN
+                values[i] = 0;
+            } else {
+                v = Math.floor(v + 0.5);
+                values[i] = v < min ? min : (v > max ? max : v);
+            }
+        }
     }
 
 }
@@ -46,6 +46,9 @@ import org.jaitools.jiffle.JiffleException;
  */
 public abstract class AbstractJiffleRuntime implements JiffleRuntime {
     private static final double EPS = 1.0e-8d;
+    
+    /* Tolerance used when counting pixel positions along an axis */
+    private static final double STEP_EPS = 1.0e-10d;
 
     private enum Dim { XDIM, YDIM };
     
@@ -120,6 +123,13 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
     /** Whether the image-scope variables have been initialized. */
     protected boolean _imageScopeVarsInitialized;
 
+    /** 
+     * Whether fields holding the values of expressions which do not vary 
+     * between pixels have been initialized. These depend on the processing
+     * area and image-scope variable values.
+     */
+    protected boolean _invariantsInitialized;
+
     /** The number of image-scope variables defined. */
     protected int _numVars;
     
@@ -135,11 +145,6 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
      */
     protected double _outsideValue;
 
-    /** 
-     * A stack of integer values used in the evaluation of if statements.
-     */
-    protected IntegerStack _stk;
-    
     /** 
      * Provides runtime function support.
      */
@@ -147,11 +152,10 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
 
     /**
      * Creates a new instance of this class and initializes its 
-     * {@link JiffleFunctions} and {@link IntegerStack} objects.
+     * {@link JiffleFunctions} object.
      */
     public AbstractJiffleRuntime() {
         _FN = new JiffleFunctions();
-        _stk = new IntegerStack();
         
         _transformLookup = new HashMap<String, TransformInfo>();
         _xres = Double.NaN;
@@ -420,6 +424,8 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
             _vars[index].value = value;
             _vars[index].isSet = true;
         }
+        
+        _invariantsInitialized = false;
     }
 
     /**
@@ -437,6 +443,108 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
         return -1;
     }
 
+    /**
+     * Tests whether the script assigns values to image-scope variables
+     * while evaluating pixels (as opposed to only in its init block).
+     * Such a script depends on the order in which pixels are processed,
+     * so it cannot be evaluated in parallel by copies of this object.
+     * <p>
+     * This implementation returns {@code true}, which is always safe.
+     * Generated runtime classes override it when the script does not
+     * assign to image-scope variables.
+     *
+     * @return {@code true} if image-scope variables are written during
+     *         evaluation
+     */
+    public boolean writesImageScopeVars() {
+        return true;
+    }
+
+    /**
+     * Creates a new runtime object of the same class with a copy of this
+     * object's state (see {@link #copyStateTo(AbstractJiffleRuntime)}).
+     * The copy does not share any mutable state with this object, so the
+     * two can be used in separate threads. This is much cheaper than 
+     * compiling the script again.
+     * 
+     * @return the new runtime object
+     * @throws JiffleRuntimeException if the object cannot be created
+     */
+    public JiffleRuntime copy() {
+        AbstractJiffleRuntime target = newRuntime();
+        copyStateTo(target);
+        return target;
+    }
+    
+    /**
+     * Converts a row of values returned to the caller by an indirect 
+     * runtime to the destination data type. Generated indirect runtime 
+     * classes call this after evaluating a row. This implementation does 
+     * nothing; {@link AbstractIndirectRuntime} overrides it.
+     * 
+     * @param values the values to convert in place
+     * @param n the number of values
+     */
+    protected void convertToDestinationType(double[] values, int n) {
+    }
+    
+    /**
+     * Creates a new runtime object of the same class, without copying 
+     * any state. Used by {@link #copy()}. This implementation calls the
+     * no-argument constructor; subclasses without one must override it.
+     * 
+     * @return the new runtime object
+     * @throws JiffleRuntimeException if the object cannot be created
+     */
+    protected AbstractJiffleRuntime newRuntime() {
+        try {
+            return getClass().newInstance();
+            
+        } catch (Exception ex) {
+            throw new JiffleRuntimeException(
+                    "Unable to create new instance of " + getClass().getName(), ex);
+        }
+    }
+
+    /**
+     * Copies the image parameters, processing area, coordinate transforms
+     * and image-scope variable values of this object to another runtime
+     * object for the same script. This is used by {@link TieredDirectRuntime}
+     * to switch from one runtime object to another part way through
+     * processing, and by {@link #copy()}. Invariant values are not copied: 
+     * the target object recalculates them.
+     * 
+     * @param target the runtime object to receive the state
+     */
+    public void copyStateTo(AbstractJiffleRuntime target) {
+        if (_imageParams != null) {
+            target.setImageParams(_imageParams);
+        }
+        
+        if (_worldSet) {
+            target.doSetWorld(_worldBounds, _xres, _yres);
+        }
+        
+        target._defaultTransform = _defaultTransform;
+        target._transformLookup.clear();
+        for (Map.Entry<String, TransformInfo> e : _transformLookup.entrySet()) {
+            TransformInfo info = target.new TransformInfo();
+            info.transform = e.getValue().transform;
+            info.isDefault = e.getValue().isDefault;
+            target._transformLookup.put(e.getKey(), info);
+        }
+        
+        for (int i = 0; i < _numVars; i++) {
+            int index = target.getVarIndex(_vars[i].name);
+            if (index >= 0) {
+                target._vars[index].value = _vars[i].value;
+                target._vars[index].isSet = _vars[i].isSet;
+            }
+        }
+        target._imageScopeVarsInitialized = _imageScopeVarsInitialized;
+        target._invariantsInitialized = false;
+    }
+
     /**
      * Initializes image-scope variables. These are fields in the runtime class.
      * They are initialized in a separate method rather than the constructor
@@ -501,6 +609,20 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
         System.arraycopy(temp, 0, _vars, 0, temp.length);
     }
 
+    /**
+     * Gets the number of pixel positions from {@code min} (inclusive)
+     * to {@code max} (exclusive) with step {@code res}.
+     * 
+     * @param min start position
+     * @param max end position
+     * @param res step size
+     * 
+     * @return number of positions
+     */
+    protected static int getNumSteps(double min, double max, double res) {
+        return Math.max(0, (int) Math.ceil((max - STEP_EPS - min) / res));
+    }
+
     /**
      * Helper for {@link #setWorldByNumPixels(Rectangle2D, int, int)} and
      * {@link #setWorldByResolution(Rectangle2D, double, double)} methods.
@@ -520,7 +642,11 @@ public abstract class AbstractJiffleRuntime implements JiffleRuntime {
         _xres = xres;
         _yres = yres;
         
+        _numPixels = (long) getNumSteps(bounds.getMinX(), bounds.getMaxX(), xres)
+                * getNumSteps(bounds.getMinY(), bounds.getMaxY(), yres);
+        
         _worldSet = true;
+        _invariantsInitialized = false;
     }
     
     /**
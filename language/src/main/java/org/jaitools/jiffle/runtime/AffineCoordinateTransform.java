@@ -27,18 +27,18 @@ package org.jaitools.jiffle.runtime;
 
 import java.awt.Point;
 import java.awt.geom.AffineTransform;
-import java.awt.geom.Point2D;
 
 /**
  * Wraps an AffineTransform object for use as a Jiffle {@link CoordinateTransform}.
+ * Instances hold no mutable state and can be shared between threads.
  *
  * @author Michael Bedward
  * @since 0.1
  * @version $Id$
  */
 public class AffineCoordinateTransform implements CoordinateTransform {
-    private final AffineTransform affine;
-    private Point2D p2D;
+    private final double m00, m01, m02;
+    private final double m10, m11, m12;
 
     /**
      * Creates a new instance to wrap the given {@code AffineTransform}. If
@@ -48,22 +48,27 @@ public class AffineCoordinateTransform implements CoordinateTransform {
      * @param affine the transform
      */
     public AffineCoordinateTransform(AffineTransform affine) {
-        this.affine = affine == null ? new AffineTransform() : new AffineTransform(affine);
-        p2D = new Point2D.Double();
+        AffineTransform tr = affine == null ? new AffineTransform() : affine;
+        m00 = tr.getScaleX();
+        m01 = tr.getShearX();
+        m02 = tr.getTranslateX();
+        m10 = tr.getShearY();
+        m11 = tr.getScaleY();
+        m12 = tr.getTranslateY();
     }
 
     /**
      * {@inheritDoc}
      */
     public Point worldToImage(double x, double y, Point p) {
-        p2D.setLocation(x, y);
-        affine.transform(p2D, p2D);
+        int xi = (int) Math.round(m00 * x + m01 * y + m02);
+        int yi = (int) Math.round(m10 * x + m11 * y + m12);
         
         if (p != null) {
-            p.x = (int) Math.round(p2D.getX());
-            p.y = (int) Math.round(p2D.getY());
+            p.x = xi;
+            p.y = yi;
         } else {
-            p = new Point((int) Math.round(p2D.getX()), (int) Math.round(p2D.getY()));
+            p = new Point(xi, yi);
         }
         
         return p;
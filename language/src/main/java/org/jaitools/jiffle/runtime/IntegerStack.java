@@ -26,7 +26,7 @@
 package org.jaitools.jiffle.runtime;
 
 /**
- * A simple, array-based stack for Integer values used by {@link AbstractJiffleRuntime}.
+ * A simple, array-based stack for Integer values.
  * This class is here to avoid using generic collections (which the Janino compiler
  * does not support) or littering the runtime source code with casts.
  * 
@@ -0,0 +1,927 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.antlr.runtime.tree.Tree;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.parser.ConstantLookup;
+import org.jaitools.jiffle.parser.FunctionInfo;
+import org.jaitools.jiffle.parser.FunctionLookup;
+import org.jaitools.jiffle.parser.InvariantHoister;
+import org.jaitools.jiffle.parser.JiffleParser;
+import org.jaitools.jiffle.parser.SubexpressionEliminator;
+import org.jaitools.jiffle.parser.UndefinedFunctionException;
+import org.jaitools.numeric.CompareOp;
+
+/**
+ * A direct runtime which evaluates a script by walking its final AST 
+ * rather than by running a class compiled from it. It is ready to use as
+ * soon as the script has been compiled to the AST, but processes pixels
+ * more slowly than a compiled runtime class. 
+ * <p>
+ * Instances are used by {@link TieredDirectRuntime} while the runtime
+ * class is compiled in the background, or on their own when the 
+ * {@code runtime.backend} property is set to {@code interpreter}. The 
+ * results are the same as those of a runtime class compiled from the
+ * source created by the runtime source generator.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InterpretedDirectRuntime extends AbstractDirectRuntime {
+    
+    private static final Pattern CSE_CALL = Pattern.compile(
+            "(" + SubexpressionEliminator.METHOD_PREFIX + "\\d+)\\(_x, _y\\)");
+    
+    private static final Pattern PROXY = Pattern.compile(
+            "(\\(double\\))?(_x|_y|(\\w+)\\(\\))");
+    
+    /*
+     * Source of a value referred to by a VAR_PROVIDED node.
+     */
+    private interface ProvidedValue {
+        double get();
+    }
+    
+    /*
+     * A function resolved from FunctionLookup.
+     */
+    private static class Function {
+        Method method;
+        boolean isStatic;
+    }
+    
+    /* The final AST of the script */
+    private final Tree tree;
+    
+    private List<Tree> options;
+    private final List<Tree> imageScopeVars = CollectionFactory.list();
+    private final List<Tree> runInvariants = CollectionFactory.list();
+    private final List<Tree> rowInvariants = CollectionFactory.list();
+    private final List<Tree> statements = CollectionFactory.list();
+    
+    private final Map<String, Integer> invariantIndices = CollectionFactory.map();
+    private double[] invariantValues;
+    private double invariantRowY = Double.NaN;
+    
+    private final List<Tree> cseDefinitions = CollectionFactory.list();
+    private final Map<String, Integer> cseIndices = CollectionFactory.map();
+    private double[] cseValues;
+    private long[] csePixels;
+    private long pixelIndex;
+    
+    private final Map<String, Integer> pixelVarIndices = CollectionFactory.map();
+    private double[] pixelVars;
+    
+    private final Map<String, Integer> listVarIndices = CollectionFactory.map();
+    private List[] listVars;
+    
+    private final Map<String, double[]> loopVars = CollectionFactory.map();
+    
+    private final Map<String, Integer> imageSlots = CollectionFactory.map();
+    private final Map<String, Integer> imageScopeVarIndices = CollectionFactory.map();
+    
+    private final Map<String, ProvidedValue> providedValues = CollectionFactory.map();
+    
+    /* Set when the script assigns to an image-scope variable outside the init block */
+    private boolean imageScopeVarsWritten;
+    private final Map<Tree, Double> literals = new IdentityHashMap<Tree, Double>();
+    private final Map<Tree, Function> functions = new IdentityHashMap<Tree, Function>();
+    
+    /* The current pixel position */
+    private double x;
+    private double y;
+
+    
+    /**
+     * Creates a new runtime object for a script.
+     * 
+     * @param tree the final AST of the script
+     */
+    public InterpretedDirectRuntime(Tree tree) {
+        this.tree = tree;
+        options = CollectionFactory.list();
+        sortRootNodes(tree);
+        
+        for (Tree node : imageScopeVars) {
+            String name = node.getChild(0).getText();
+            registerVar(name, node.getChildCount() > 1);
+            imageScopeVarIndices.put(name, getVarIndex(name));
+        }
+        
+        for (Tree node : statements) {
+            scanVars(node);
+        }
+        pixelVars = new double[pixelVarIndices.size()];
+        listVars = new List[listVarIndices.size()];
+        
+        int n = 0;
+        for (Tree node : runInvariants) {
+            invariantIndices.put(node.getChild(0).getText(), n++);
+        }
+        for (Tree node : rowInvariants) {
+            invariantIndices.put(node.getChild(0).getText(), n++);
+        }
+        invariantValues = new double[n];
+        
+        n = 0;
+        for (Tree node : cseDefinitions) {
+            cseIndices.put(node.getChild(0).getText(), n++);
+            scanVars(node.getChild(1));
+        }
+        cseValues = new double[n];
+        csePixels = new long[n];
+        
+        // option values were not available when the base class
+        // constructor called this method
+        initOptionVars();
+    }
+    
+    /**
+     * Sorts the nodes at the root of the tree by their role.
+     */
+    private void sortRootNodes(Tree tree) {
+        List<Tree> roots = CollectionFactory.list();
+        if (tree.isNil()) {
+            for (int i = 0; i < tree.getChildCount(); i++) {
+                roots.add(tree.getChild(i));
+            }
+        } else {
+            roots.add(tree);
+        }
+        
+        for (Tree node : roots) {
+            switch (node.getType()) {
+                case JiffleParser.JIFFLE_OPTION:
+                    options.add(node);
+                    break;
+                    
+                case JiffleParser.DECL:
+                    if (node.getChild(0).getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+                        imageScopeVars.add(node);
+                    }
+                    break;
+                    
+                case JiffleParser.RUN_INVARIANT:
+                    runInvariants.add(node);
+                    break;
+                    
+                case JiffleParser.ROW_INVARIANT:
+                    rowInvariants.add(node);
+                    break;
+                    
+                case JiffleParser.CSE_DEF:
+                    cseDefinitions.add(node);
+                    break;
+                    
+                default:
+                    statements.add(node);
+            }
+        }
+    }
+    
+    /**
+     * Records the pixel-scope scalar and list variables, and the image
+     * variables, found in the given tree.
+     */
+    private void scanVars(Tree node) {
+        String name = node.getText();
+        switch (node.getType()) {
+            case JiffleParser.VAR_PIXEL_SCOPE:
+                if (!pixelVarIndices.containsKey(name)) {
+                    pixelVarIndices.put(name, pixelVarIndices.size());
+                }
+                break;
+                
+            case JiffleParser.VAR_LIST:
+                if (!listVarIndices.containsKey(name)) {
+                    listVarIndices.put(name, listVarIndices.size());
+                }
+                break;
+                
+            case JiffleParser.VAR_SOURCE:
+            case JiffleParser.VAR_DEST:
+                if (!imageSlots.containsKey(name)) {
+                    imageSlots.put(name, registerImage(name));
+                }
+                break;
+                
+            case JiffleParser.EQ:
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                if (node.getChild(0).getType() == JiffleParser.VAR_IMAGE_SCOPE) {
+                    imageScopeVarsWritten = true;
+                }
+                break;
+        }
+        
+        for (int i = 0; i < node.getChildCount(); i++) {
+            scanVars(node.getChild(i));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean writesImageScopeVars() {
+        return imageScopeVarsWritten;
+    }
+
+    /**
+     * Creates a new interpreter for the same script.
+     */
+    @Override
+    protected AbstractJiffleRuntime newRuntime() {
+        return new InterpretedDirectRuntime(tree);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void initOptionVars() {
+        // this method is first called from the base class constructor
+        // before the options have been read
+        if (options == null) {
+            return;
+        }
+        
+        for (Tree node : options) {
+            if ("outside".equalsIgnoreCase(node.getChild(0).getText())) {
+                _outsideValueSet = true;
+                _outsideValue = literal(node.getChild(1));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected Double getDefaultValue(int index) {
+        Tree node = imageScopeVars.get(index);
+        return node.getChildCount() > 1 ? Double.valueOf(eval(node.getChild(1))) : null;
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void evaluate(double x, double y) {
+        if (!isWorldSet()) {
+            setDefaultBounds();
+        }
+        if (!_imageScopeVarsInitialized) {
+            initImageScopeVars();
+        }
+        if (!_invariantsInitialized) {
+            initInvariants();
+        }
+        
+        this.x = x;
+        this.y = y;
+        
+        if (!rowInvariants.isEmpty() && y != invariantRowY) {
+            int index = runInvariants.size();
+            for (Tree node : rowInvariants) {
+                invariantValues[index++] = eval(node.getChild(1));
+            }
+            invariantRowY = y;
+        }
+        
+        pixelIndex++ ;
+        Arrays.fill(pixelVars, 0.0);
+        Arrays.fill(listVars, null);
+        
+        for (Tree node : statements) {
+            statement(node);
+        }
+    }
+    
+    private void initInvariants() {
+        int index = 0;
+        for (Tree node : runInvariants) {
+            invariantValues[index++] = eval(node.getChild(1));
+        }
+        invariantRowY = Double.NaN;
+        _invariantsInitialized = true;
+    }
+    
+    /**
+     * Executes a statement.
+     * 
+     * @return {@code true} if a break was executed
+     */
+    private boolean statement(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.BLOCK:
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    if (statement(node.getChild(i))) {
+                        return true;
+                    }
+                }
+                return false;
+                
+            case JiffleParser.IMAGE_WRITE:
+                writeToImage(imageSlots.get(node.getChild(0).getText()), x, y, 0, 
+                        eval(node.getChild(1)));
+                return false;
+                
+            case JiffleParser.EQ:
+                if (node.getChild(0).getType() == JiffleParser.VAR_LIST) {
+                    listVars[listVarIndices.get(node.getChild(0).getText())] = 
+                            evalList(node.getChild(1));
+                } else {
+                    setScalar(node.getChild(0), eval(node.getChild(1)));
+                }
+                return false;
+                
+            case JiffleParser.TIMESEQ:
+            case JiffleParser.DIVEQ:
+            case JiffleParser.MODEQ:
+            case JiffleParser.PLUSEQ:
+            case JiffleParser.MINUSEQ:
+                compoundAssignment(node);
+                return false;
+                
+            case JiffleParser.IF:
+                if (isTrue(_FN.sign(eval(node.getChild(0))))) {
+                    return statement(node.getChild(1));
+                } else if (node.getChildCount() > 2) {
+                    return statement(node.getChild(2));
+                }
+                return false;
+                
+            case JiffleParser.WHILE:
+            case JiffleParser.UNTIL:
+                conditionalLoop(node);
+                return false;
+                
+            case JiffleParser.FOREACH:
+                foreachLoop(node);
+                return false;
+                
+            case JiffleParser.BREAKIF:
+                return _FN.sign(eval(node.getChild(0))) == 1;
+                
+            case JiffleParser.BREAK:
+                return true;
+                
+            case JiffleParser.APPEND:
+                append(node);
+                return false;
+                
+            default:
+                // expression statement: evaluate and discard the value
+                eval(node);
+                return false;
+        }
+    }
+    
+    private static boolean isTrue(int sign) {
+        return sign != 0 && sign != JiffleFunctions.SIGN_NAN;
+    }
+    
+    private void compoundAssignment(Tree node) {
+        Tree var = node.getChild(0);
+        double lhs = eval(var);
+        double rhs = eval(node.getChild(1));
+        
+        switch (node.getType()) {
+            case JiffleParser.TIMESEQ:
+                setScalar(var, lhs * rhs);
+                break;
+                
+            case JiffleParser.DIVEQ:
+                setScalar(var, lhs / rhs);
+                break;
+                
+            case JiffleParser.MODEQ:
+                setScalar(var, lhs % rhs);
+                break;
+                
+            case JiffleParser.PLUSEQ:
+                setScalar(var, lhs + rhs);
+                break;
+                
+            default:
+                setScalar(var, lhs - rhs);
+        }
+    }
+    
+    private void setScalar(Tree var, double value) {
+        switch (var.getType()) {
+            case JiffleParser.VAR_PIXEL_SCOPE:
+                pixelVars[pixelVarIndices.get(var.getText())] = value;
+                break;
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                _vars[imageScopeVarIndices.get(var.getText())].value = value;
+                break;
+                
+            case JiffleParser.VAR_LOOP:
+                loopVars.get(var.getText())[0] = value;
+                break;
+                
+            default:
+                throw new JiffleRuntimeException("Invalid assignment to " + var.getText());
+        }
+    }
+    
+    private void conditionalLoop(Tree node) {
+        boolean isWhile = node.getType() == JiffleParser.WHILE;
+        while (true) {
+            int sign = _FN.sign(eval(node.getChild(0)));
+            if (isWhile ? sign != 1 : sign == 1) {
+                break;
+            }
+            if (statement(node.getChild(1))) {
+                break;
+            }
+        }
+    }
+    
+    private void foreachLoop(Tree node) {
+        String varName = node.getChild(0).getText();
+        Tree set = node.getChild(1);
+        Tree body = node.getChild(2);
+        
+        double[] var = new double[1];
+        double[] outerVar = loopVars.put(varName, var);
+        
+        try {
+            switch (set.getType()) {
+                case JiffleParser.SEQUENCE:
+                    int lo = (int) eval(set.getChild(0));
+                    int hi = (int) eval(set.getChild(1));
+                    for (int i = lo; i <= hi; i++) {
+                        var[0] = i;
+                        if (statement(body)) {
+                            break;
+                        }
+                        i = (int) var[0];
+                    }
+                    break;
+
+                case JiffleParser.DECLARED_LIST:
+                    // the values are evaluated before the loop starts
+                    Tree values = set.getChild(0);
+                    double[] array = new double[values.getChildCount()];
+                    for (int i = 0; i < array.length; i++) {
+                        array[i] = eval(values.getChild(i));
+                    }
+                    for (int i = 0; i < array.length; i++) {
+                        var[0] = array[i];
+                        if (statement(body)) {
+                            break;
+                        }
+                    }
+                    break;
+
+                default:
+                    Iterator iter = listVars[listVarIndices.get(set.getText())].iterator();
+                    while (iter.hasNext()) {
+                        var[0] = ((Number) iter.next()).doubleValue();
+                        if (statement(body)) {
+                            break;
+                        }
+                    }
+            }
+            
+        } finally {
+            if (outerVar == null) {
+                loopVars.remove(varName);
+            } else {
+                loopVars.put(varName, outerVar);
+            }
+        }
+    }
+    
+    private void append(Tree node) {
+        listVars[listVarIndices.get(node.getChild(0).getText())].add(eval(node.getChild(1)));
+    }
+    
+    /**
+     * Evaluates a scalar expression.
+     */
+    private double eval(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.INT_LITERAL:
+            case JiffleParser.FLOAT_LITERAL:
+            case JiffleParser.CONSTANT:
+                return literal(node);
+                
+            case JiffleParser.PAR:
+                return eval(node.getChild(0));
+                
+            case JiffleParser.VAR_PIXEL_SCOPE:
+                return pixelVars[pixelVarIndices.get(node.getText())];
+                
+            case JiffleParser.VAR_IMAGE_SCOPE:
+                return _vars[imageScopeVarIndices.get(node.getText())].value;
+                
+            case JiffleParser.VAR_LOOP:
+                return loopVars.get(node.getText())[0];
+                
+            case JiffleParser.VAR_PROVIDED:
+                return getProvidedValue(node.getText()).get();
+                
+            case JiffleParser.VAR_SOURCE:
+                return readFromImage(imageSlots.get(node.getText()), x, y, 0);
+                
+            case JiffleParser.IMAGE_POS:
+                return imagePos(node);
+                
+            case JiffleParser.PLUS:
+                return eval(node.getChild(0)) + eval(node.getChild(1));
+                
+            case JiffleParser.MINUS:
+                return eval(node.getChild(0)) - eval(node.getChild(1));
+                
+            case JiffleParser.TIMES:
+                return eval(node.getChild(0)) * eval(node.getChild(1));
+                
+            case JiffleParser.DIV:
+                return eval(node.getChild(0)) / eval(node.getChild(1));
+                
+            case JiffleParser.MOD:
+                return eval(node.getChild(0)) % eval(node.getChild(1));
+                
+            case JiffleParser.POW:
+                return Math.pow(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.PREFIX:
+                return prefix(node);
+                
+            case JiffleParser.POSTFIX:
+                return incdec(node.getChild(1), node.getChild(0).getType(), true);
+                
+            case JiffleParser.AND:
+                return and(node);
+                
+            case JiffleParser.OR:
+                return or(node);
+                
+            case JiffleParser.XOR:
+                return _FN.XOR(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.GT:
+                return _FN.GT(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.GE:
+                return _FN.GE(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.LT:
+                return _FN.LT(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.LE:
+                return _FN.LE(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.LOGICALEQ:
+                return _FN.EQ(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.NE:
+                return _FN.NE(eval(node.getChild(0)), eval(node.getChild(1)));
+                
+            case JiffleParser.CON_CALL:
+                return con(node.getChild(0));
+                
+            case JiffleParser.FUNC_CALL:
+                return ((Number) call(node)).doubleValue();
+                
+            default:
+                throw new JiffleRuntimeException("Unsupported expression: " + node.getText());
+        }
+    }
+    
+    /**
+     * Evaluates a list-valued expression.
+     */
+    private List evalList(Tree node) {
+        switch (node.getType()) {
+            case JiffleParser.VAR_LIST:
+                return listVars[listVarIndices.get(node.getText())];
+                
+            case JiffleParser.DECLARED_LIST:
+                Tree values = node.getChild(0);
+                List list = new ArrayList();
+                for (int i = 0; i < values.getChildCount(); i++) {
+                    list.add(eval(values.getChild(i)));
+                }
+                return list;
+                
+            case JiffleParser.PAR:
+                return evalList(node.getChild(0));
+                
+            case JiffleParser.FUNC_CALL:
+                return (List) call(node);
+                
+            default:
+                throw new JiffleRuntimeException("Expected a list: " + node.getText());
+        }
+    }
+    
+    private double literal(Tree node) {
+        Double value = literals.get(node);
+        if (value == null) {
+            value = node.getType() == JiffleParser.CONSTANT ?
+                    ConstantLookup.getValue(node.getText()) :
+                    Double.parseDouble(node.getText());
+            literals.put(node, value);
+        }
+        return value;
+    }
+    
+    private double prefix(Tree node) {
+        Tree op = node.getChild(0);
+        switch (op.getType()) {
+            case JiffleParser.PLUS:
+                return eval(node.getChild(1));
+                
+            case JiffleParser.MINUS:
+                return -eval(node.getChild(1));
+                
+            case JiffleParser.NOT:
+                return _FN.NOT(eval(node.getChild(1)));
+                
+            default:
+                return incdec(node.getChild(1), op.getType(), false);
+        }
+    }
+    
+    /*
+     * Increments or decrements a variable, returning its new value or, 
+     * for postfix operators, its old value.
+     */
+    private double incdec(Tree var, int op, boolean postfix) {
+        double value = eval(var);
+        double newValue = op == JiffleParser.INCR ? value + 1 : value - 1;
+        setScalar(var, newValue);
+        return postfix ? value : newValue;
+    }
+    
+    /*
+     * AND and OR only evaluate their second operand if it is required.
+     * This follows the opand and opor templates.
+     */
+    private double and(Tree node) {
+        double lhs = eval(node.getChild(0));
+        if (Double.isNaN(lhs)) {
+            return Double.NaN;
+        }
+        if (Math.abs(lhs) < CompareOp.DTOL) {
+            return 0.0;
+        }
+        double rhs = eval(node.getChild(1));
+        if (Double.isNaN(rhs)) {
+            return Double.NaN;
+        }
+        return Math.abs(rhs) >= CompareOp.DTOL ? 1.0 : 0.0;
+    }
+    
+    private double or(Tree node) {
+        double lhs = eval(node.getChild(0));
+        if (Double.isNaN(lhs)) {
+            return Double.NaN;
+        }
+        if (Math.abs(lhs) >= CompareOp.DTOL) {
+            return 1.0;
+        }
+        double rhs = eval(node.getChild(1));
+        if (Double.isNaN(rhs)) {
+            return Double.NaN;
+        }
+        return Math.abs(rhs) >= CompareOp.DTOL ? 1.0 : 0.0;
+    }
+    
+    /*
+     * Follows the con1 - con4 templates.
+     */
+    private double con(Tree args) {
+        int n = args.getChildCount();
+        int sign = _FN.sign(eval(args.getChild(0)));
+        if (sign == JiffleFunctions.SIGN_NAN) {
+            return Double.NaN;
+        }
+        
+        switch (n) {
+            case 1:
+                return sign != 0 ? 1.0 : 0.0;
+                
+            case 2:
+                return sign != 0 ? eval(args.getChild(1)) : 0.0;
+                
+            case 3:
+                return sign != 0 ? eval(args.getChild(1)) : eval(args.getChild(2));
+                
+            default:
+                return sign == 1 ? eval(args.getChild(1)) :
+                        sign == 0 ? eval(args.getChild(2)) : eval(args.getChild(3));
+        }
+    }
+    
+    private double imagePos(Tree node) {
+        int slot = imageSlots.get(node.getChild(0).getText());
+        int band = 0;
+        double xpos = x;
+        double ypos = y;
+        
+        for (int i = 1; i < node.getChildCount(); i++) {
+            Tree child = node.getChild(i);
+            if (child.getType() == JiffleParser.BAND_REF) {
+                band = (int) eval(child.getChild(0));
+            } else {
+                xpos = pixelPos(child.getChild(0), x);
+                ypos = pixelPos(child.getChild(1), y);
+            }
+        }
+        
+        return readFromImage(slot, xpos, ypos, band);
+    }
+    
+    private double pixelPos(Tree node, double pos) {
+        double value = eval(node.getChild(0));
+        return node.getType() == JiffleParser.ABS_POS ? value : pos + value;
+    }
+    
+    /*
+     * Calls a function, returning a Number or a List.
+     */
+    private Object call(Tree node) {
+        Tree args = node.getChild(1);
+        int n = args.getChildCount();
+        
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            Tree arg = args.getChild(i);
+            values[i] = isList(arg) ? evalList(arg) : (Object) eval(arg);
+        }
+        
+        Function fn = getFunction(node);
+        try {
+            return fn.method.invoke(fn.isStatic ? null : _FN, values);
+            
+        } catch (InvocationTargetException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new JiffleRuntimeException(ex.getCause().toString());
+            
+        } catch (IllegalAccessException ex) {
+            throw new JiffleRuntimeException(ex.toString());
+        }
+    }
+    
+    private static boolean isList(Tree node) {
+        return node.getType() == JiffleParser.VAR_LIST || node.getType() == JiffleParser.DECLARED_LIST;
+    }
+    
+    private Function getFunction(Tree node) {
+        Function fn = functions.get(node);
+        if (fn == null) {
+            String name = node.getChild(0).getText();
+            Tree args = node.getChild(1);
+            
+            List<String> argTypes = CollectionFactory.list();
+            Class<?>[] paramTypes = new Class<?>[args.getChildCount()];
+            for (int i = 0; i < paramTypes.length; i++) {
+                boolean list = isList(args.getChild(i));
+                argTypes.add(list ? "List" : "D");
+                paramTypes[i] = list ? List.class : double.class;
+            }
+            
+            try {
+                FunctionInfo info = FunctionLookup.getInfo(name, argTypes);
+                String expr = info.getRuntimeExpr();
+                
+                fn = new Function();
+                fn.isStatic = expr.startsWith("Math.");
+                fn.method = (fn.isStatic ? Math.class : JiffleFunctions.class).getMethod(
+                        expr.substring(expr.indexOf('.') + 1), paramTypes);
+                
+            } catch (UndefinedFunctionException ex) {
+                throw new JiffleRuntimeException("Undefined function: " + name);
+                
+            } catch (NoSuchMethodException ex) {
+                throw new JiffleRuntimeException("Undefined function: " + name);
+            }
+            
+            functions.put(node, fn);
+        }
+        return fn;
+    }
+    
+    /*
+     * Gets the source of the value for a VAR_PROVIDED node. These are 
+     * invariant fields, subexpression methods and proxy functions.
+     */
+    private ProvidedValue getProvidedValue(final String text) {
+        ProvidedValue value = providedValues.get(text);
+        if (value != null) {
+            return value;
+        }
+        
+        Matcher m = CSE_CALL.matcher(text);
+        final Integer cse = m.matches() ? cseIndices.get(m.group(1)) : null;
+        final Integer invariant = invariantIndices.get(text);
+        
+        if (invariant != null) {
+            value = new ProvidedValue() {
+                public double get() {
+                    return invariantValues[invariant];
+                }
+            };
+            
+        } else if (cse != null) {
+            value = new ProvidedValue() {
+                public double get() {
+                    if (csePixels[cse] != pixelIndex) {
+                        cseValues[cse] = eval(cseDefinitions.get(cse).getChild(1));
+                        csePixels[cse] = pixelIndex;
+                    }
+                    return cseValues[cse];
+                }
+            };
+            
+        } else if ((m = PROXY.matcher(text)).matches()) {
+            if ("_x".equals(m.group(2))) {
+                value = new ProvidedValue() {
+                    public double get() {
+                        return x;
+                    }
+                };
+                
+            } else if ("_y".equals(m.group(2))) {
+                value = new ProvidedValue() {
+                    public double get() {
+                        return y;
+                    }
+                };
+                
+            } else {
+                final Method method;
+                try {
+                    method = AbstractDirectRuntime.class.getMethod(m.group(3));
+                } catch (NoSuchMethodException ex) {
+                    throw new JiffleRuntimeException("Unknown value: " + text);
+                }
+                
+                value = new ProvidedValue() {
+                    public double get() {
+                        try {
+                            return ((Number) method.invoke(InterpretedDirectRuntime.this)).doubleValue();
+                        } catch (Exception ex) {
+                            throw new JiffleRuntimeException(ex.toString());
+                        }
+                    }
+                };
+            }
+            
+        } else {
+            throw new JiffleRuntimeException("Unknown value: " + text);
+        }
+        
+        providedValues.put(text, value);
+        return value;
+    }
+    
+}
@@ -25,6 +25,7 @@
 
 package org.jaitools.jiffle.runtime;
 
+import java.awt.Rectangle;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRenderedImage;
 import java.util.Map;
@@ -123,6 +124,26 @@ public interface JiffleDirectRuntime extends JiffleRuntime {
      * @param y world position Y ordinate
      */
     void evaluate(double x, double y);
+    
+    /**
+     * Evaluates the script for a row of pixels. The X ordinate of each
+     * successive pixel is incremented by the processing area's X resolution.
+     * 
+     * @param y world position Y ordinate
+     * @param x0 world position X ordinate of the first pixel
+     * @param n number of pixels to evaluate
+     */
+    void evaluateRow(double y, double x0, int n);
+    
+    /**
+     * Evaluates the script for a rectangular block of pixels. The rectangle
+     * is defined by pixel column and row indices within the processing area,
+     * where column 0 is at the processing area's min X ordinate and row 0 is
+     * at its min Y ordinate.
+     * 
+     * @param rect pixel bounds within the processing area
+     */
+    void evaluateRect(Rectangle rect);
 
     /**
      * Evaluates the script for all pixel locations within the world bounds.
@@ -44,6 +44,12 @@ import static org.jaitools.numeric.CompareOp.isZero;
  */
 public class JiffleFunctions {
     
+    /** 
+     * The value returned by {@link #sign(double)} when its argument
+     * is {@code Double.NaN}.
+     */
+    public static final int SIGN_NAN = 2;
+    
     private Random rr = new Random();
     
     /**
@@ -58,19 +64,35 @@ public class JiffleFunctions {
 
     /**
      * Return the sign of {@code x} as an integer. This method is used 
-     * by Jiffle to implement its various {@code if} functions.
-     * <p>
+     * by Jiffle to implement its various {@code if} functions and 
+     * conditional loops.
+     * 
+     * @param x test value
+     * 
+     * @return -1 if x is negative; 0 if x is 0; 1 if x is positive; 
+     *         or {@link #SIGN_NAN} if x is NaN
+     */
+    public int sign(double x) {
+        if (!Double.isNaN(x)) {
+            return acompare(x, 0);
+        }
+        return SIGN_NAN;
+    }
+    
+    /**
+     * Return the sign of {@code x}. This method implements the Jiffle
+     * {@code sign} function.
      * 
      * @param x test value
      * 
      * @return -1 if x is negative; 0 if x is 0; 1 if x is positive; 
-     *         or {@code null} if x is NaN
+     *         or {@code Double.NaN} if x is NaN
      */
-    public Integer sign(double x) {
+    public double signum(double x) {
         if (!Double.isNaN(x)) {
             return acompare(x, 0);
         }
-        return null;
+        return Double.NaN;
     }
     
     /**
@@ -30,9 +30,16 @@ import org.jaitools.jiffle.JiffleException;
 
 /**
  * Defines methods implemented by runtime classes adopting the indirect 
- * evaluation model. In this model, there is only a single destination image
- * and the {@link #evaluate(double, double)} method passes values back to the caller 
- * rather than writing them to the destination image directly.
+ * evaluation model. In this model, the evaluate methods pass destination 
+ * values back to the caller rather than writing them to destination images
+ * directly. A script may have several destination variables: the values 
+ * of all of them for a pixel are returned by 
+ * {@link #evaluate(double, double, double[])}, in the order given by
+ * {@link #getOutputVarNames()}, while {@link #evaluate(double, double)}
+ * returns the value of the first.
+ * <p>
+ * Evaluation of a pixel ends as soon as every destination variable has 
+ * been assigned a value, so statements after that point are not executed.
  *
  * @author Michael Bedward
  * @since 0.1
@@ -101,14 +108,72 @@ public interface JiffleIndirectRuntime extends JiffleRuntime {
      */
     void setSourceImage(String varName);
 
+    /**
+     * Gets the names of the destination variables whose values are 
+     * returned by the evaluate methods, in the order in which the values 
+     * are returned. This is the order in which the variables are first 
+     * assigned in the script. Destination variables which the script 
+     * never assigns are not included.
+     * 
+     * @return variable names; may be empty but not {@code null}
+     */
+    String[] getOutputVarNames();
+
     /**
      * Evaluates the script for the given world position.
      * 
      * @param x world position X ordinate
      * @param y world position Y ordinate
      * 
-     * @return the result
+     * @return the value of the first destination variable (see
+     *         {@link #getOutputVarNames()}), or {@code Double.NaN} 
+     *         if there are none
      */
     double evaluate(double x, double y);
+    
+    /**
+     * Evaluates the script for the given world position, placing the 
+     * value of each destination variable in the given array. A 
+     * destination variable which is not assigned for this position has
+     * the value {@code Double.NaN} (null).
+     * 
+     * @param x world position X ordinate
+     * @param y world position Y ordinate
+     * @param out array to receive the results, in the order given by
+     *        {@link #getOutputVarNames()}
+     */
+    void evaluate(double x, double y, double[] out);
+    
+    /**
+     * Evaluates the script for a row of pixels, placing the results in
+     * the given array. The X ordinate of each successive pixel is incremented
+     * by the processing area's X resolution.
+     * 
+     * @param y world position Y ordinate
+     * @param x0 world position X ordinate of the first pixel
+     * @param n number of pixels to evaluate
+     * @param out array to receive the results (length at least {@code n})
+     * 
+     * @throws JiffleRuntimeException if the processing area has not been set
+     */
+    void evaluateRow(double y, double x0, int n, double[] out);
+    
+    /**
+     * Evaluates the script for a row of pixels, placing the values of all
+     * destination variables in the given array. Values are pixel 
+     * interleaved: for {@code k} destination variables, the values for 
+     * pixel {@code i} are at positions {@code i*k} to {@code i*k + k - 1},
+     * in the order given by {@link #getOutputVarNames()}. This matches
+     * the layout used by {@code WritableRaster.setPixels}.
+     * 
+     * @param y world position Y ordinate
+     * @param x0 world position X ordinate of the first pixel
+     * @param n number of pixels to evaluate
+     * @param out array to receive the results (length at least 
+     *        {@code n} times the number of destination variables)
+     * 
+     * @throws JiffleRuntimeException if the processing area has not been set
+     */
+    void evaluateRowAll(double y, double x0, int n, double[] out);
 
 }
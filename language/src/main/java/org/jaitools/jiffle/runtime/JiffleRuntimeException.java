@@ -43,4 +43,14 @@ public class JiffleRuntimeException extends RuntimeException {
         super(msg);
     }
 
+    /**
+     * Creates a new instance.
+     * 
+     * @param msg error message
+     * @param cause the cause of the error
+     */
+    public JiffleRuntimeException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
+
 }
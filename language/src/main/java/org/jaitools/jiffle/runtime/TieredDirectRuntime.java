@@ -0,0 +1,431 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRenderedImage;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleException;
+
+/**
+ * A direct runtime object which starts evaluating a script with an
+ * {@link InterpretedDirectRuntime} while the runtime class is compiled
+ * by a background thread. When the compiled class is ready, a new 
+ * instance of it takes over the state of the interpreter (images, 
+ * coordinate transforms, world bounds and image-scope variables) at the 
+ * next row boundary and is used for all later evaluation.
+ * <p>
+ * If the compiled class cannot be created, evaluation continues with
+ * the interpreter.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class TieredDirectRuntime extends AbstractDirectRuntime {
+    
+    private final Future<Class<? extends JiffleRuntime>> compiledClass;
+    
+    private AbstractDirectRuntime current;
+    
+    private boolean switched;
+    
+    private boolean failed;
+
+    /**
+     * Creates a new instance.
+     * 
+     * @param interpreter runtime object used until the compiled class is ready
+     * @param compiledClass the compiled class
+     */
+    public TieredDirectRuntime(InterpretedDirectRuntime interpreter, 
+            Future<Class<? extends JiffleRuntime>> compiledClass) {
+        this.current = interpreter;
+        this.compiledClass = compiledClass;
+    }
+    
+    /**
+     * Tests if this object has switched from the interpreter to an instance
+     * of the compiled runtime class.
+     * 
+     * @return {@code true} if using the compiled class
+     */
+    public boolean isUsingCompiledClass() {
+        return switched;
+    }
+    
+    /**
+     * Waits for the compiled runtime class to be ready and switches to it.
+     * This is intended for use between calls to the evaluation methods.
+     * 
+     * @param timeout maximum time to wait in milliseconds
+     * 
+     * @return {@code true} if this object is now using the compiled class
+     */
+    public boolean awaitCompiledClass(long timeout) {
+        if (!switched && !failed) {
+            try {
+                compiledClass.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                return false;
+            } catch (Exception ex) {
+                // reported by switchToCompiledClass
+            }
+            switchToCompiledClass();
+        }
+        return switched;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Before evaluating the row, this implementation switches to the
+     * compiled runtime class if it has become available.
+     */
+    @Override
+    public void evaluateRow(double y, double x0, int n) {
+        if (!switched && !failed && compiledClass.isDone()) {
+            switchToCompiledClass();
+        }
+        current.evaluateRow(y, x0, n);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Serial evaluation proceeds row by row, as for {@link #evaluateAll},
+     * so that the compiled runtime class can take over part way through. 
+     * For parallel evaluation, this implementation switches to the compiled 
+     * class if it has become available and then delegates to the current 
+     * runtime object, with no switch part way through processing.
+     */
+    @Override
+    public void evaluateAll(JiffleProgressListener pl, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        
+        if (parallelism == 1 || writesImageScopeVars()) {
+            super.evaluateAll(pl);
+            
+        } else {
+            if (!switched && !failed && compiledClass.isDone()) {
+                switchToCompiledClass();
+            }
+            current.evaluateAll(pl, parallelism);
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean writesImageScopeVars() {
+        return current.writesImageScopeVars();
+    }
+    
+    private void switchToCompiledClass() {
+        try {
+            AbstractDirectRuntime runtime = 
+                    (AbstractDirectRuntime) compiledClass.get().newInstance();
+            current.copyStateTo(runtime);
+            current = runtime;
+            switched = true;
+            
+        } catch (Exception ex) {
+            failed = true;
+            Jiffle.LOGGER.log(Level.WARNING, 
+                    "Unable to create compiled runtime class; continuing with interpreter", ex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void evaluate(double x, double y) {
+        current.evaluate(x, y);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setImageParams(Map imageParams) {
+        current.setImageParams(imageParams);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getSourceVarNames() {
+        return current.getSourceVarNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getDestinationVarNames() {
+        return current.getDestinationVarNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWorldByResolution(Rectangle2D bounds, double xres, double yres) {
+        current.setWorldByResolution(bounds, xres, yres);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setWorldByNumPixels(Rectangle2D bounds, int numX, int numY) {
+        current.setWorldByNumPixels(bounds, numX, numY);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isWorldSet() {
+        return current.isWorldSet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Double getVar(String varName) {
+        return current.getVar(varName);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setVar(String varName, Double value) throws JiffleRuntimeException {
+        current.setVar(varName, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getVarNames() {
+        return current.getVarNames();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMinX() {
+        return current.getMinX();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMaxX() {
+        return current.getMaxX();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMinY() {
+        return current.getMinY();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getMaxY() {
+        return current.getMaxY();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getWidth() {
+        return current.getWidth();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getHeight() {
+        return current.getHeight();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getXRes() {
+        return current.getXRes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getYRes() {
+        return current.getYRes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getNumPixels() {
+        return current.getNumPixels();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDefaultTransform(CoordinateTransform tr) throws JiffleException {
+        current.setDefaultTransform(tr);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDestinationImage(String varName, WritableRenderedImage image) {
+        current.setDestinationImage(varName, image);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDestinationImage(String varName, WritableRenderedImage image, 
+            CoordinateTransform tr) throws JiffleException {
+        current.setDestinationImage(varName, image, tr);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSourceImage(String varName, RenderedImage image) {
+        current.setSourceImage(varName, image);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSourceImage(String varName, RenderedImage image, 
+            CoordinateTransform tr) throws JiffleException {
+        current.setSourceImage(varName, image, tr);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setDefaultBounds() {
+        current.setDefaultBounds();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double readFromImage(String srcImageName, double x, double y, int band) {
+        return current.readFromImage(srcImageName, x, y, band);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToImage(String destImageName, double x, double y, int band, double value) {
+        current.writeToImage(destImageName, x, y, band, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map getImages() {
+        return current.getImages();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The copy is not tiered: it is a copy of the current runtime object, 
+     * which is the interpreter until the compiled class is available.
+     */
+    @Override
+    public JiffleDirectRuntime copy() {
+        return current.copy();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void copyStateTo(AbstractJiffleRuntime target) {
+        current.copyStateTo(target);
+    }
+
+    /**
+     * Not used: all evaluation is done by the current runtime object.
+     */
+    @Override
+    protected Double getDefaultValue(int index) {
+        return null;
+    }
+
+    /**
+     * Not used: all evaluation is done by the current runtime object.
+     */
+    @Override
+    protected void initOptionVars() {
+    }
+}
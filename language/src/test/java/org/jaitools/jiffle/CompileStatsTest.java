@@ -0,0 +1,144 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.CompileStats.Phase;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for compile statistics and for the error checks done in the
+ * combined check and transform pass.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CompileStatsTest {
+    
+    private Map<String, Jiffle.ImageRole> imageParams;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void compilePhasesRecorded() throws Exception {
+        System.out.println("   compile phases recorded");
+        
+        Jiffle jiffle = new Jiffle("options { outside = 0; } n = src[0, -1]; dest = n + 1;", imageParams);
+        CompileStats stats = jiffle.getCompileStats();
+        
+        Phase[] compilePhases = {
+            Phase.LEX, Phase.PARSE, Phase.OPTIONS, Phase.TAG_VARS,
+            Phase.CHECK_AND_TRANSFORM, Phase.SIMPLIFY, Phase.HOIST,
+            Phase.ELIMINATE_SUBEXPRESSIONS
+        };
+        for (Phase phase : compilePhases) {
+            assertTrue(phase.toString(), stats.isRecorded(phase));
+            assertTrue(stats.getTimeMillis(phase) >= 0);
+        }
+        
+        assertFalse(stats.isRecorded(Phase.BYTECODE));
+        assertFalse(stats.isRecorded(Phase.SOURCE_GENERATION));
+        assertFalse(stats.isRecorded(Phase.SOURCE_COMPILE));
+        assertTrue(stats.getTotalTimeMillis() > 0);
+        
+        if (CompileStats.isAllocationMeasured()) {
+            assertTrue(stats.getAllocatedBytes(Phase.PARSE) > 0);
+        } else {
+            assertEquals(-1, stats.getTotalAllocatedBytes());
+        }
+    }
+    
+    @Test
+    public void runtimePhasesRecorded() throws Exception {
+        System.out.println("   runtime class phases recorded");
+        
+        Jiffle jiffle = new Jiffle("dest = src + 1;", imageParams);
+        jiffle.getRuntimeInstance();
+        jiffle.getRuntimeSource(false);
+        
+        CompileStats stats = jiffle.getCompileStats();
+        assertTrue(stats.isRecorded(Phase.BYTECODE));
+        assertTrue(stats.isRecorded(Phase.SOURCE_GENERATION));
+        assertTrue(stats.toString().contains(Phase.SOURCE_GENERATION.toString()));
+    }
+    
+    @Test
+    public void statsResetOnCompile() throws Exception {
+        System.out.println("   stats reset when script is compiled");
+        
+        Jiffle jiffle = new Jiffle("dest = src + 1;", imageParams);
+        jiffle.getRuntimeSource(false);
+        CompileStats first = jiffle.getCompileStats();
+        
+        jiffle.compile();
+        CompileStats second = jiffle.getCompileStats();
+        assertNotSame(first, second);
+        assertTrue(second.isRecorded(Phase.PARSE));
+        assertFalse(second.isRecorded(Phase.SOURCE_GENERATION));
+    }
+    
+    @Test
+    public void assignmentAndFunctionErrorsReported() throws Exception {
+        System.out.println("   assignment and function call errors reported together");
+        
+        try {
+            new Jiffle("src = 1; dest = sqrt(1, 2);", imageParams);
+            fail("Expected a JiffleException");
+            
+        } catch (JiffleException ex) {
+            assertTrue(ex.getMessage().contains("src"));
+            assertTrue(ex.getMessage().contains("sqrt(D, D)"));
+        }
+    }
+    
+    @Test(expected=JiffleException.class)
+    public void uninitializedVariable() throws Exception {
+        System.out.println("   uninitialized variable");
+        
+        new Jiffle("n += 1; dest = n;", imageParams);
+    }
+    
+    @Test
+    public void loopVariableIsDefined() throws Exception {
+        System.out.println("   loop variable is defined within loop");
+        
+        Jiffle jiffle = new Jiffle("n = 0; foreach (i in 1:3) n += i; dest = n;", imageParams);
+        assertTrue(jiffle.isCompiled());
+    }
+    
+}
@@ -0,0 +1,208 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.awt.Rectangle;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.jai.TiledImage;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the concurrent compilation service.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleCompilerTest {
+
+    private static final int WIDTH = 10;
+    private static final double TOL = 1.0e-8;
+
+    private Map<String, Jiffle.ImageRole> imageParams;
+    private JiffleCompiler compiler;
+
+    @Before
+    public void setup() {
+        RuntimeClassCache.clear();
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        if (compiler != null) {
+            compiler.shutdownNow();
+        }
+        RuntimeClassCache.clear();
+    }
+
+    @Test
+    public void compileAndRun() throws Exception {
+        System.out.println("   compile script and run factory instance");
+        compiler = new JiffleCompiler(2);
+        
+        Future<JiffleRuntimeFactory<JiffleDirectRuntime>> future = 
+                compiler.submit("dest = x() + 2 * y();", imageParams);
+        
+        JiffleRuntimeFactory<JiffleDirectRuntime> factory = future.get(30, TimeUnit.SECONDS);
+        assertEquals(Jiffle.RuntimeModel.DIRECT, factory.getRuntimeModel());
+        assertEquals(Jiffle.ImageRole.DEST, factory.getImageParams().get("dest"));
+        
+        JiffleDirectRuntime r1 = factory.newInstance();
+        JiffleDirectRuntime r2 = factory.newInstance();
+        assertNotSame(r1, r2);
+        assertSame(r1.getClass(), r2.getClass());
+        
+        assertImage(r1, 2);
+    }
+
+    @Test
+    public void indirectModel() throws Exception {
+        System.out.println("   compile for indirect runtime");
+        compiler = new JiffleCompiler(1);
+        
+        JiffleRuntimeFactory<JiffleIndirectRuntime> factory = compiler.submit(
+                "dest = x() + 3 * y();", imageParams, JiffleIndirectRuntime.class)
+                .get(30, TimeUnit.SECONDS);
+        
+        JiffleIndirectRuntime runtime = factory.newInstance();
+        runtime.setWorldByResolution(new Rectangle(0, 0, WIDTH, WIDTH), 1, 1);
+        assertEquals(2 + 3 * 1, runtime.evaluate(2, 1), TOL);
+    }
+
+    @Test
+    public void identicalRequestsShareFuture() throws Exception {
+        System.out.println("   identical in-flight requests share a future");
+        compiler = new JiffleCompiler(1);
+        
+        // occupy the single compile thread
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("v").append(i).append(" = x() * ").append(i).append(";\n");
+        }
+        sb.append("dest = v199;");
+        Future<?> blocker = compiler.submit(sb.toString(), imageParams);
+        
+        String script = "dest = x() - y();";
+        Future<JiffleRuntimeFactory<JiffleDirectRuntime>> f1 = compiler.submit(script, imageParams);
+        Future<JiffleRuntimeFactory<JiffleDirectRuntime>> f2 = compiler.submit(script, imageParams);
+        
+        assertSame(f1, f2);
+        
+        blocker.get(30, TimeUnit.SECONDS);
+        f1.get(30, TimeUnit.SECONDS);
+        
+        // completed requests are no longer in flight
+        assertEquals(0, compiler.getNumInFlight());
+    }
+
+    @Test
+    public void concurrentRequests() throws Exception {
+        System.out.println("   concurrent requests from several threads");
+        compiler = new JiffleCompiler(4);
+        
+        final int numScripts = 20;
+        ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<JiffleRuntimeFactory<JiffleDirectRuntime>>> results = 
+                    CollectionFactory.list();
+            
+            for (int i = 0; i < numScripts * 2; i++) {
+                final int k = i % numScripts;
+                Future<Future<JiffleRuntimeFactory<JiffleDirectRuntime>>> submitted = 
+                        clients.submit(new Callable<Future<JiffleRuntimeFactory<JiffleDirectRuntime>>>() {
+                    public Future<JiffleRuntimeFactory<JiffleDirectRuntime>> call() {
+                        return compiler.submit("dest = x() + " + k + " * y();", imageParams);
+                    }
+                });
+                results.add(submitted.get());
+            }
+            
+            for (int i = 0; i < results.size(); i++) {
+                JiffleDirectRuntime runtime = results.get(i).get(60, TimeUnit.SECONDS).newInstance();
+                assertImage(runtime, i % numScripts);
+            }
+            
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void compileErrorReported() throws Exception {
+        System.out.println("   compile error reported by future");
+        compiler = new JiffleCompiler(1);
+        
+        Future<JiffleRuntimeFactory<JiffleDirectRuntime>> future = 
+                compiler.submit("dest = foo;", imageParams);
+        
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail("Expected an ExecutionException");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof JiffleException);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidThreadCount() {
+        System.out.println("   invalid number of threads");
+        new JiffleCompiler(0);
+    }
+
+    private void assertImage(JiffleDirectRuntime runtime, int yMultiplier) {
+        TiledImage destImg = ImageUtils.createConstantImage(WIDTH, WIDTH, 0d);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null);
+        
+        RandomIter iter = RandomIterFactory.create(destImg, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + yMultiplier * y, iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.awt.Rectangle;
+import java.util.Map;
+
+import javax.media.jai.TiledImage;
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.runtime.AbstractDirectRuntime;
+import org.jaitools.jiffle.runtime.CoordinateTransforms;
+import org.jaitools.jiffle.runtime.InterpretedDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for runtime factories and copying runtime objects.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class JiffleRuntimeFactoryTest {
+
+    private static final int WIDTH = 10;
+    private static final double TOL = 1.0e-8;
+
+    private Map<String, Jiffle.ImageRole> imageParams;
+
+    @Before
+    public void setup() {
+        RuntimeClassCache.clear();
+        imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+
+    @Test
+    public void factoryInstances() throws Exception {
+        System.out.println("   factory creates instances of one class");
+        
+        Jiffle jiffle = new Jiffle("dest = src + 1;", imageParams);
+        JiffleRuntimeFactory<JiffleDirectRuntime> factory = jiffle.getRuntimeFactory();
+        
+        JiffleDirectRuntime r1 = factory.newInstance();
+        JiffleDirectRuntime r2 = factory.newInstance();
+        assertNotSame(r1, r2);
+        assertSame(factory.getRuntimeClass(), r1.getClass());
+        assertSame(r1.getClass(), r2.getClass());
+        assertEquals(1, r1.getSourceVarNames().length);
+        assertEquals(1, r1.getDestinationVarNames().length);
+        
+        // a second factory uses the cached class
+        assertSame(factory.getRuntimeClass(), jiffle.getRuntimeFactory().getRuntimeClass());
+    }
+
+    @Test
+    public void newInstanceLikeCopiesState() throws Exception {
+        System.out.println("   newInstanceLike copies world, transforms, images and variables");
+        
+        imageParams.remove("src");
+        Jiffle jiffle = new Jiffle("init { k = 0; } dest = x() + k;", imageParams);
+        JiffleRuntimeFactory<JiffleDirectRuntime> factory = jiffle.getRuntimeFactory();
+        
+        TiledImage destImg = ImageUtils.createConstantImage(WIDTH, WIDTH, 0d);
+        JiffleDirectRuntime prototype = factory.newInstance();
+        prototype.setWorldByResolution(new Rectangle(0, 0, 2 * WIDTH, 2 * WIDTH), 2, 2);
+        prototype.setDestinationImage("dest", destImg, CoordinateTransforms.scale(0.5, 0.5));
+        prototype.setVar("k", 100.0);
+        
+        JiffleDirectRuntime copy = factory.newInstanceLike(prototype);
+        assertNotSame(prototype, copy);
+        assertTrue(copy.isWorldSet());
+        assertEquals(prototype.getXRes(), copy.getXRes(), TOL);
+        assertEquals(prototype.getNumPixels(), copy.getNumPixels());
+        assertEquals(100.0, copy.getVar("k"), TOL);
+        assertSame(destImg, copy.getImages().get("dest"));
+        
+        copy.evaluateAll(null);
+        
+        RandomIter iter = RandomIterFactory.create(destImg, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(2 * x + 100, iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+
+    @Test
+    public void copiesRunInSeparateThreads() throws Exception {
+        System.out.println("   copies evaluate parts of an image in separate threads");
+        
+        Jiffle jiffle = new Jiffle("dest = src * 2;", imageParams);
+        JiffleRuntimeFactory<JiffleDirectRuntime> factory = jiffle.getRuntimeFactory();
+        JiffleDirectRuntime prototype = factory.newInstance();
+        
+        TiledImage srcImg = ImageUtils.createConstantImage(WIDTH, WIDTH, 0d);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                srcImg.setSample(x, y, 0, x + y * WIDTH);
+            }
+        }
+        TiledImage destImg = ImageUtils.createConstantImage(WIDTH, WIDTH, 0d);
+        prototype.setSourceImage("src", srcImg);
+        prototype.setDestinationImage("dest", destImg);
+        prototype.setDefaultBounds();
+        
+        Thread[] threads = new Thread[2];
+        final Throwable[] errors = new Throwable[threads.length];
+        for (int i = 0; i < threads.length; i++) {
+            final JiffleDirectRuntime runtime = factory.newInstanceLike(prototype);
+            final int y0 = i * WIDTH / threads.length;
+            final int y1 = (i + 1) * WIDTH / threads.length;
+            final int index = i;
+            
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int y = y0; y < y1; y++) {
+                            runtime.evaluateRow(y, 0, WIDTH);
+                        }
+                    } catch (Throwable t) {
+                        errors[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+        
+        RandomIter iter = RandomIterFactory.create(destImg, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(2 * (x + y * WIDTH), iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+
+    @Test
+    public void copyInterpreter() throws Exception {
+        System.out.println("   copy interpreted runtime");
+        
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_INTERPRETER);
+        
+        imageParams.remove("src");
+        Jiffle jiffle = new Jiffle("dest = x() + y();", imageParams);
+        JiffleDirectRuntime runtime = jiffle.getRuntimeInstance();
+        assertTrue(runtime instanceof InterpretedDirectRuntime);
+        
+        TiledImage destImg = ImageUtils.createConstantImage(WIDTH, WIDTH, 0d);
+        runtime.setDestinationImage("dest", destImg);
+        
+        JiffleDirectRuntime copy = ((AbstractDirectRuntime) runtime).copy();
+        assertTrue(copy instanceof InterpretedDirectRuntime);
+        copy.evaluateAll(null);
+        assertEquals(3 + 4, destImg.getSampleDouble(3, 4, 0), TOL);
+        
+        // factories always use a compiled class
+        JiffleRuntime fromFactory = jiffle.getRuntimeFactory().newInstance();
+        assertFalse(fromFactory instanceof InterpretedDirectRuntime);
+    }
+
+    @Test
+    public void indirectFactory() throws Exception {
+        System.out.println("   indirect runtime factory and copy");
+        
+        imageParams.remove("src");
+        Jiffle jiffle = new Jiffle("dest = x() - y();", imageParams);
+        JiffleRuntimeFactory<JiffleRuntime> factory = 
+                jiffle.getRuntimeFactory(Jiffle.RuntimeModel.INDIRECT);
+        assertEquals(Jiffle.RuntimeModel.INDIRECT, factory.getRuntimeModel());
+        
+        JiffleIndirectRuntime prototype = (JiffleIndirectRuntime) factory.newInstance();
+        prototype.setWorldByResolution(new Rectangle(0, 0, WIDTH, WIDTH), 1, 1);
+        prototype.setDestinationImage("dest");
+        
+        JiffleIndirectRuntime copy = (JiffleIndirectRuntime) factory.newInstanceLike(prototype);
+        assertEquals(2 - 1, copy.evaluate(2, 1), TOL);
+    }
+
+}
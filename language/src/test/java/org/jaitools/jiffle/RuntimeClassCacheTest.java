@@ -0,0 +1,265 @@
+/*
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this
+ *    list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jaitools.jiffle;
+
+import java.awt.image.RenderedImage;
+import java.util.Map;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleDirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the runtime class cache.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeClassCacheTest {
+
+    private static final int WIDTH = 10;
+    private static final double TOL = 1.0e-8;
+
+    private Map<String, Jiffle.ImageRole> imageParams;
+    private int savedMaxSize;
+
+    @Before
+    public void setup() {
+        savedMaxSize = RuntimeClassCache.getMaxSize();
+        RuntimeClassCache.setMaxSize(10);
+        RuntimeClassCache.clear();
+        RuntimeClassCache.resetCounts();
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+
+    @After
+    public void cleanup() {
+        RuntimeClassCache.clear();
+        RuntimeClassCache.setMaxSize(savedMaxSize);
+    }
+
+    @Test
+    public void missThenHit() throws Exception {
+        String script = "dest = x() + y();";
+
+        Class<?> first = getDirect(script).getClass();
+        assertEquals(1, RuntimeClassCache.getMissCount());
+        assertEquals(0, RuntimeClassCache.getHitCount());
+
+        Class<?> second = getDirect(script).getClass();
+        assertEquals(1, RuntimeClassCache.getMissCount());
+        assertEquals(1, RuntimeClassCache.getHitCount());
+        assertSame(first, second);
+    }
+
+    @Test
+    public void scriptIsNormalized() throws Exception {
+        Class<?> first = getDirect("dest = x() + y();").getClass();
+        Class<?> second = getDirect("\n   dest = x() + y();  \r\n\n").getClass();
+
+        assertSame(first, second);
+        assertEquals(1, RuntimeClassCache.size());
+    }
+
+    @Test
+    public void differentScripts() throws Exception {
+        Class<?> first = getDirect("dest = x();").getClass();
+        Class<?> second = getDirect("dest = y();").getClass();
+
+        assertNotSame(first, second);
+        assertEquals(2, RuntimeClassCache.getMissCount());
+    }
+
+    @Test
+    public void differentRuntimeModels() throws Exception {
+        String script = "dest = 42;";
+
+        JiffleRuntime direct = RuntimeClassCache.getRuntimeInstance(
+                script, imageParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+
+        JiffleRuntime indirect = RuntimeClassCache.getRuntimeInstance(
+                script, imageParams, JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+
+        assertTrue(direct instanceof JiffleDirectRuntime);
+        assertTrue(indirect instanceof JiffleIndirectRuntime);
+        assertEquals(2, RuntimeClassCache.size());
+    }
+
+    @Test
+    public void differentImageParams() throws Exception {
+        String script = "dest = 42;";
+        getDirect(script);
+
+        Map<String, Jiffle.ImageRole> otherParams = CollectionFactory.map();
+        otherParams.put("dest", Jiffle.ImageRole.DEST);
+        otherParams.put("src", Jiffle.ImageRole.SOURCE);
+
+        RuntimeClassCache.getRuntimeInstance(
+                script, otherParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+
+        assertEquals(2, RuntimeClassCache.getMissCount());
+        assertEquals(0, RuntimeClassCache.getHitCount());
+    }
+
+    @Test
+    public void differentBackendsAndCompilers() throws Exception {
+        String script = "dest = 42;";
+        Jiffle.RuntimeModel model = Jiffle.RuntimeModel.DIRECT;
+        Class<? extends JiffleRuntime> baseClass = JiffleProperties.DEFAULT_DIRECT_BASE_CLASS;
+
+        RuntimeClassCache.Key bytecode = new RuntimeClassCache.Key(script, imageParams, 
+                model, baseClass, JiffleProperties.BACKEND_BYTECODE, JiffleProperties.COMPILER_JANINO);
+        RuntimeClassCache.Key janino = new RuntimeClassCache.Key(script, imageParams, 
+                model, baseClass, JiffleProperties.BACKEND_SOURCE, JiffleProperties.COMPILER_JANINO);
+        RuntimeClassCache.Key javac = new RuntimeClassCache.Key(script, imageParams, 
+                model, baseClass, JiffleProperties.BACKEND_SOURCE, JiffleProperties.COMPILER_JAVAC);
+
+        assertFalse(bytecode.equals(janino));
+        assertFalse(janino.equals(javac));
+        
+        try {
+            System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                    JiffleProperties.BACKEND_SOURCE);
+            assertEquals(janino, new RuntimeClassCache.Key(script, imageParams, model, baseClass));
+            
+            System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, 
+                    JiffleProperties.COMPILER_JAVAC);
+            assertEquals(javac, new RuntimeClassCache.Key(script, imageParams, model, baseClass));
+            
+        } finally {
+            System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+            System.clearProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY);
+        }
+    }
+
+    @Test
+    public void factoryFootprintsAreCached() throws Exception {
+        String script = "dest = src[-1, 0] + src[1, 2];";
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("src", Jiffle.ImageRole.SOURCE);
+        params.put("dest", Jiffle.ImageRole.DEST);
+
+        JiffleRuntimeFactory<JiffleIndirectRuntime> first = RuntimeClassCache.getRuntimeFactory(
+                script, params, JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+        long hits = RuntimeClassCache.getHitCount();
+
+        JiffleRuntimeFactory<JiffleIndirectRuntime> second = RuntimeClassCache.getRuntimeFactory(
+                script, params, JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+
+        // a second lookup would mean that the script was compiled again
+        assertEquals(hits + 1, RuntimeClassCache.getHitCount());
+        assertSame(first.getRuntimeClass(), second.getRuntimeClass());
+        assertEquals(SourceFootprint.bounded(-1, 1, 0, 2), 
+                second.getSourceFootprints().get("src"));
+    }
+
+    @Test
+    public void jiffleInstancesShareCache() throws Exception {
+        String script = "dest = 42;";
+        Class<?> first = new Jiffle(script, imageParams).getRuntimeInstance().getClass();
+        Class<?> second = new Jiffle(script, imageParams).getRuntimeInstance().getClass();
+
+        assertSame(first, second);
+        assertEquals(1, RuntimeClassCache.getHitCount());
+    }
+
+    @Test
+    public void leastRecentlyUsedEviction() throws Exception {
+        RuntimeClassCache.setMaxSize(2);
+
+        getDirect("dest = 1;");
+        getDirect("dest = 2;");
+        getDirect("dest = 1;");
+        getDirect("dest = 3;");
+
+        assertEquals(2, RuntimeClassCache.size());
+        assertEquals(1, RuntimeClassCache.getEvictionCount());
+
+        // "dest = 2;" was least recently used and should have been evicted
+        getDirect("dest = 1;");
+        assertEquals(2, RuntimeClassCache.getHitCount());
+        getDirect("dest = 2;");
+        assertEquals(4, RuntimeClassCache.getMissCount());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        RuntimeClassCache.setMaxSize(0);
+
+        getDirect("dest = 1;");
+        getDirect("dest = 1;");
+
+        assertEquals(0, RuntimeClassCache.size());
+        assertEquals(0, RuntimeClassCache.getHitCount());
+    }
+
+    @Test
+    public void builderUsesCache() throws Exception {
+        String script = "dest = x() + y() * width();";
+
+        JiffleBuilder builder = new JiffleBuilder();
+        builder.script(script).dest("dest", WIDTH, WIDTH).run();
+        assertImage(builder.getImage("dest"));
+
+        builder.clear();
+        builder.script(script).dest("dest", WIDTH, WIDTH).run();
+        assertImage(builder.getImage("dest"));
+
+        assertEquals(1, RuntimeClassCache.getMissCount());
+        assertEquals(1, RuntimeClassCache.getHitCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void negativeMaxSize() {
+        RuntimeClassCache.setMaxSize(-1);
+    }
+
+    private JiffleRuntime getDirect(String script) throws JiffleException {
+        return RuntimeClassCache.getRuntimeInstance(
+                script, imageParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+    }
+
+    private void assertImage(RenderedImage image) {
+        RandomIter iter = RandomIterFactory.create(image, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + y * WIDTH, iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *  are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ *  - Redistributions in binary form must reproduce the above copyright notice, this
+ *    list of conditions and the following disclaimer in the documentation and/or
+ *    other materials provided with the distribution.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jaitools.jiffle;
+
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import javax.media.jai.iterator.RandomIter;
+import javax.media.jai.iterator.RandomIterFactory;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.JiffleRuntime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the on-disk runtime class cache.
+ *
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeDiskCacheTest {
+
+    private static final int WIDTH = 10;
+    private static final double TOL = 1.0e-8;
+
+    private static final String SCRIPT = "dest = x() + y() * width();";
+
+    private Map<String, Jiffle.ImageRole> imageParams;
+    private File savedDir;
+    private File cacheDir;
+
+    @Before
+    public void setup() throws Exception {
+        savedDir = RuntimeDiskCache.getDirectory();
+
+        cacheDir = File.createTempFile("jiffle", "cache");
+        cacheDir.delete();
+        RuntimeDiskCache.setDirectory(cacheDir);
+        RuntimeDiskCache.resetCounts();
+        RuntimeClassCache.clear();
+
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+
+    @After
+    public void cleanup() {
+        RuntimeDiskCache.clear();
+        cacheDir.delete();
+        RuntimeDiskCache.setDirectory(savedDir);
+        RuntimeClassCache.clear();
+    }
+
+    @Test
+    public void writeThenRead() throws Exception {
+        getRuntime();
+        assertEquals(1, RuntimeDiskCache.getWriteCount());
+        assertTrue(getCacheFile().isFile());
+
+        // simulate a new JVM by discarding the in-memory cache
+        RuntimeClassCache.clear();
+
+        JiffleBuilder builder = new JiffleBuilder();
+        builder.script(SCRIPT).dest("dest", WIDTH, WIDTH).run();
+        assertImage(builder.getImage("dest"));
+
+        assertEquals(1, RuntimeDiskCache.getHitCount());
+        assertEquals(1, RuntimeDiskCache.getWriteCount());
+    }
+
+    @Test
+    public void corruptFileIsDiscarded() throws Exception {
+        getRuntime();
+        File file = getCacheFile();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() / 2);
+        int b = raf.read();
+        raf.seek(raf.length() / 2);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        RuntimeClassCache.clear();
+        JiffleRuntime runtime = getRuntime();
+        assertNotNull(runtime);
+
+        assertEquals(1, RuntimeDiskCache.getCorruptCount());
+        assertEquals(0, RuntimeDiskCache.getHitCount());
+
+        // the file should have been rewritten
+        assertEquals(2, RuntimeDiskCache.getWriteCount());
+        assertTrue(file.isFile());
+    }
+
+    @Test
+    public void truncatedFileIsDiscarded() throws Exception {
+        getRuntime();
+        File file = getCacheFile();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(10);
+        raf.close();
+
+        RuntimeClassCache.clear();
+        assertNotNull(getRuntime());
+        assertEquals(1, RuntimeDiskCache.getCorruptCount());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        RuntimeDiskCache.setDirectory(null);
+        getRuntime();
+
+        assertEquals(0, RuntimeDiskCache.getWriteCount());
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    @Test
+    public void failedRenameNotCounted() throws Exception {
+        // a non-empty directory in place of the cache file makes the
+        // rename of the temporary file fail
+        File file = getCacheFile();
+        File blocker = new File(file, "blocker");
+        assertTrue(blocker.mkdirs());
+
+        try {
+            assertNotNull(getRuntime());
+            assertEquals(0, RuntimeDiskCache.getWriteCount());
+            assertEquals(1, cacheDir.list().length);
+
+        } finally {
+            blocker.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void differentKeysUseDifferentFiles() throws Exception {
+        RuntimeClassCache.Key k1 = new RuntimeClassCache.Key(SCRIPT, imageParams,
+                Jiffle.RuntimeModel.DIRECT, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+
+        RuntimeClassCache.Key k2 = new RuntimeClassCache.Key(SCRIPT, imageParams,
+                Jiffle.RuntimeModel.INDIRECT, JiffleProperties.DEFAULT_INDIRECT_BASE_CLASS);
+
+        assertFalse(RuntimeDiskCache.getFile(k1).equals(RuntimeDiskCache.getFile(k2)));
+    }
+
+    private JiffleRuntime getRuntime() throws JiffleException {
+        return RuntimeClassCache.getRuntimeInstance(
+                SCRIPT, imageParams, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS);
+    }
+
+    private File getCacheFile() {
+        return RuntimeDiskCache.getFile(new RuntimeClassCache.Key(SCRIPT, imageParams,
+                Jiffle.RuntimeModel.DIRECT, JiffleProperties.DEFAULT_DIRECT_BASE_CLASS));
+    }
+
+    private void assertImage(RenderedImage image) {
+        RandomIter iter = RandomIterFactory.create(image, null);
+        for (int y = 0; y < WIDTH; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(x + y * WIDTH, iter.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+}
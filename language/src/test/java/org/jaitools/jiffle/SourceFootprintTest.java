@@ -0,0 +1,239 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.runtime.AbstractIndirectRuntime;
+import org.jaitools.jiffle.runtime.JiffleRuntimeException;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for source image footprints and for reading a footprint raster 
+ * with an indirect runtime object.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class SourceFootprintTest {
+    
+    private Map<String, Jiffle.ImageRole> imageParams;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("other", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+    
+    @Test
+    public void centreOnly() throws Exception {
+        System.out.println("   source read at current pixel only");
+        
+        Map<String, SourceFootprint> fps = getFootprints("dest = src + 1;");
+        assertEquals(SourceFootprint.CENTRE, fps.get("src"));
+        assertFalse(fps.containsKey("other"));
+    }
+    
+    @Test
+    public void constantOffsets() throws Exception {
+        System.out.println("   constant relative offsets");
+        
+        String script = "dest = src[-2, 0] + src[1, 3] + src[0, -1];" ;
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        assertEquals(SourceFootprint.bounded(-2, 1, -1, 3), fps.get("src"));
+    }
+    
+    @Test
+    public void constantExpressionOffsets() throws Exception {
+        System.out.println("   constant expression offsets");
+        
+        String script = "dest = src + src[-(1 + 2), 2 * 2];" ;
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        assertEquals(SourceFootprint.bounded(-3, 0, 0, 4), fps.get("src"));
+    }
+    
+    @Test
+    public void foreachSequenceOffsets() throws Exception {
+        System.out.println("   offsets from foreach sequence variables");
+        
+        String script = 
+                  "n = 0; \n"
+                + "foreach (dy in -1:2) { \n"
+                + "  foreach (dx in -3:1) { n += src[dx, dy]; } \n"
+                + "} \n"
+                + "dest = n;" ;
+        
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        assertEquals(SourceFootprint.bounded(-3, 1, -1, 2), fps.get("src"));
+    }
+    
+    @Test
+    public void foreachListOffsets() throws Exception {
+        System.out.println("   offsets from foreach list variables");
+        
+        String script = 
+                  "n = 0; \n"
+                + "foreach (d in [-2, 0, 5]) { n += src[d, 1] + other[0, d]; } \n"
+                + "dest = n;" ;
+        
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        assertEquals(SourceFootprint.bounded(-2, 5, 1, 1), fps.get("src"));
+        assertEquals(SourceFootprint.bounded(0, 0, -2, 5), fps.get("other"));
+    }
+    
+    @Test
+    public void absolutePositionIsUnbounded() throws Exception {
+        System.out.println("   absolute position gives unbounded footprint");
+        
+        String script = "dest = src[$0, $0] + other[1, 0];" ;
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        
+        assertFalse(fps.get("src").isBounded());
+        assertNull(fps.get("src").getSourceRect(new Rectangle(0, 0, 10, 10)));
+        assertEquals(SourceFootprint.bounded(1, 1, 0, 0), fps.get("other"));
+    }
+    
+    @Test
+    public void variableOffsetIsUnbounded() throws Exception {
+        System.out.println("   offset depending on pixel values gives unbounded footprint");
+        
+        String script = "d = other; dest = src[d, 0];" ;
+        Map<String, SourceFootprint> fps = getFootprints(script);
+        
+        assertFalse(fps.get("src").isBounded());
+        assertEquals(SourceFootprint.CENTRE, fps.get("other"));
+    }
+    
+    @Test
+    public void rectangles() throws Exception {
+        System.out.println("   source and destination rectangles");
+        
+        SourceFootprint fp = SourceFootprint.bounded(-2, 1, -1, 3);
+        Rectangle r = new Rectangle(10, 20, 5, 6);
+        
+        assertEquals(new Rectangle(8, 19, 8, 10), fp.getSourceRect(r));
+        assertEquals(new Rectangle(9, 17, 8, 10), fp.getDestRect(r));
+        assertEquals(r, SourceFootprint.CENTRE.getSourceRect(r));
+    }
+    
+    @Test
+    public void union() throws Exception {
+        System.out.println("   footprint union");
+        
+        SourceFootprint a = SourceFootprint.bounded(-2, 0, 1, 1);
+        SourceFootprint b = SourceFootprint.bounded(-1, 3, -4, 0);
+        
+        assertEquals(SourceFootprint.bounded(-2, 3, -4, 1), a.union(b));
+        assertFalse(a.union(SourceFootprint.UNBOUNDED).isBounded());
+    }
+    
+    @Test
+    public void scale() throws Exception {
+        System.out.println("   footprint scaled to image pixels");
+
+        SourceFootprint fp = SourceFootprint.bounded(-3, 2, 0, 5);
+        assertEquals(fp, fp.scale(1, 1));
+        assertEquals(SourceFootprint.bounded(-1, 1, 0, 2), fp.scale(0.25, 0.4));
+        assertEquals(SourceFootprint.bounded(-6, 4, 0, 10), fp.scale(2, 2));
+        assertFalse(SourceFootprint.UNBOUNDED.scale(0.5, 0.5).isBounded());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidBounds() throws Exception {
+        System.out.println("   invalid footprint bounds");
+        SourceFootprint.bounded(1, 0, 0, 0);
+    }
+    
+    @Test(expected=JiffleException.class)
+    public void notCompiled() throws Exception {
+        System.out.println("   footprints requested before compiling");
+        new Jiffle().getSourceFootprints();
+    }
+    
+    @Test
+    public void indirectRuntimeReadsFootprintRaster() throws Exception {
+        System.out.println("   indirect runtime reads a raster covering the footprint");
+        
+        imageParams.remove("other");
+        Jiffle jiffle = new Jiffle("dest = src[-1, 0] + src[0, 1];", imageParams);
+        SourceFootprint fp = jiffle.getSourceFootprints().get("src");
+        
+        AbstractIndirectRuntime runtime = (AbstractIndirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        
+        Rectangle world = new Rectangle(0, 0, 10, 10);
+        runtime.setWorldByResolution(world, 1, 1);
+        runtime.setSourceImage("src");
+        
+        // a raster for the source area needed to evaluate one row
+        Rectangle destRect = new Rectangle(1, 4, 8, 1);
+        Rectangle srcRect = fp.getSourceRect(destRect);
+        assertEquals(new Rectangle(0, 4, 9, 2), srcRect);
+        
+        WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_DOUBLE, srcRect.width, srcRect.height, 1), 
+                srcRect.getLocation());
+        for (int y = srcRect.y; y < srcRect.y + srcRect.height; y++) {
+            for (int x = srcRect.x; x < srcRect.x + srcRect.width; x++) {
+                raster.setSample(x, y, 0, y * world.width + x);
+            }
+        }
+        runtime.setSourceRaster("src", raster);
+        
+        double[] values = new double[destRect.width];
+        runtime.evaluateRow(destRect.y, destRect.x, destRect.width, values);
+        for (int i = 0; i < values.length; i++) {
+            int x = destRect.x + i;
+            double expected = (destRect.y * world.width + x - 1) 
+                    + ((destRect.y + 1) * world.width + x);
+            assertEquals(expected, values[i], 1.0e-8);
+        }
+        
+        // reading outside the raster fails when there is no outside value
+        try {
+            runtime.evaluate(0, 4);
+            fail("Expected an exception");
+        } catch (JiffleRuntimeException ex) {
+            // expected
+        }
+    }
+    
+    private Map<String, SourceFootprint> getFootprints(String script) throws Exception {
+        return new Jiffle(script, imageParams).getSourceFootprints();
+    }
+}
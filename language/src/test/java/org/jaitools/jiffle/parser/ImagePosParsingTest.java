@@ -0,0 +1,159 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for parsing image positions (band and pixel specifiers).
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ImagePosParsingTest extends ParserTestBase {
+
+    @Test
+    public void bandOnly() throws Exception {
+        System.out.println("   band specifier");
+        
+        CommonTreeNodeStream ast = getAST("dest = src[1];");
+        
+        int[] expected = {
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.IMAGE_POS,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.BAND_REF,
+            Token.DOWN,
+            JiffleParser.INT_LITERAL,
+            Token.UP,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void pixelOnly() throws Exception {
+        System.out.println("   pixel specifier with absolute and relative positions");
+        
+        CommonTreeNodeStream ast = getAST("dest = src[$x(), -1];");
+        
+        int[] expected = {
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.IMAGE_POS,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.PIXEL_REF,
+            Token.DOWN,
+            JiffleParser.ABS_POS,
+            Token.DOWN,
+            JiffleParser.FUNC_CALL,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.EXPR_LIST,
+            Token.UP,
+            Token.UP,
+            JiffleParser.REL_POS,
+            Token.DOWN,
+            JiffleParser.PREFIX,
+            Token.DOWN,
+            JiffleParser.MINUS,
+            JiffleParser.INT_LITERAL,
+            Token.UP,
+            Token.UP,
+            Token.UP,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void bandAndPixel() throws Exception {
+        System.out.println("   band and pixel specifiers");
+        
+        CommonTreeNodeStream ast = getAST("dest = src[b][1, $0];");
+        
+        int[] expected = {
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.IMAGE_POS,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.BAND_REF,
+            Token.DOWN,
+            JiffleParser.ID,
+            Token.UP,
+            JiffleParser.PIXEL_REF,
+            Token.DOWN,
+            JiffleParser.REL_POS,
+            Token.DOWN,
+            JiffleParser.INT_LITERAL,
+            Token.UP,
+            JiffleParser.ABS_POS,
+            Token.DOWN,
+            JiffleParser.INT_LITERAL,
+            Token.UP,
+            Token.UP,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void invalidCombinations() throws Exception {
+        System.out.println("   invalid specifier combinations");
+        
+        assertSyntaxError("dest = src[1][2];");
+        assertSyntaxError("dest = src[1, 2][0];");
+        assertSyntaxError("dest = src[1, 2][3, 4];");
+        assertSyntaxError("dest = src[$1];");
+    }
+    
+    private void assertSyntaxError(String script) throws Exception {
+        JiffleParser parser = new JiffleParser(new CommonTokenStream(
+                new JiffleLexer(new ANTLRStringStream(script))));
+        parser.prog();
+        assertTrue(script, parser.getNumberOfSyntaxErrors() > 0);
+    }
+}
@@ -0,0 +1,141 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.parser;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.CommonTreeNodeStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for parsing the sequence, list or list variable in foreach loops.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class LoopSetParsingTest extends ParserTestBase {
+
+    @Test
+    public void sequence() throws Exception {
+        System.out.println("   sequence");
+        
+        CommonTreeNodeStream ast = getAST("foreach (i in n:x()) dest = i;");
+        
+        int[] expected = {
+            JiffleParser.FOREACH,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.SEQUENCE,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.FUNC_CALL,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.EXPR_LIST,
+            Token.UP,
+            Token.UP,
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.ID,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void listLiteral() throws Exception {
+        System.out.println("   list literal");
+        
+        CommonTreeNodeStream ast = getAST("foreach (i in [1, n]) dest = i;");
+        
+        int[] expected = {
+            JiffleParser.FOREACH,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.DECLARED_LIST,
+            Token.DOWN,
+            JiffleParser.EXPR_LIST,
+            Token.DOWN,
+            JiffleParser.INT_LITERAL,
+            JiffleParser.ID,
+            Token.UP,
+            Token.UP,
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.ID,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void listVariable() throws Exception {
+        System.out.println("   list variable");
+        
+        CommonTreeNodeStream ast = getAST("foreach (i in L) dest = i;");
+        
+        int[] expected = {
+            JiffleParser.FOREACH,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.ID,
+            JiffleParser.EQ,
+            Token.DOWN,
+            JiffleParser.ID,
+            JiffleParser.ID,
+            Token.UP,
+            Token.UP
+        };
+        
+        assertAST(ast, expected);
+    }
+    
+    @Test
+    public void invalidLoopSets() throws Exception {
+        System.out.println("   invalid loop sets");
+        
+        assertSyntaxError("foreach (i in 5) dest = i;");
+        assertSyntaxError("foreach (i in L << 3) dest = i;");
+        assertSyntaxError("foreach (i in [1, 2]:3) dest = i;");
+    }
+    
+    private void assertSyntaxError(String script) throws Exception {
+        JiffleParser parser = new JiffleParser(new CommonTokenStream(
+                new JiffleLexer(new ANTLRStringStream(script))));
+        parser.prog();
+        assertTrue(script, parser.getNumberOfSyntaxErrors() > 0);
+    }
+}
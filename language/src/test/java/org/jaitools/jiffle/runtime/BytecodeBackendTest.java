@@ -0,0 +1,128 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.lang.reflect.Method;
+
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for runtime classes created directly as bytecode, checking
+ * that they give the same results as classes compiled from source.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class BytecodeBackendTest extends RuntimeTestBase {
+    
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void simpleStatements() throws Exception {
+        System.out.println("   simple statements");
+        assertSameResults("a = src * 2; dest = a + x() - y() % 3;", true);
+    }
+    
+    @Test
+    public void conditionals() throws Exception {
+        System.out.println("   if-else, con and logical operators");
+        assertSameResults(
+                  "if (src > 50 && x() != 3) { dest = 1; } \n"
+                + "else if (src < 10 || !(y() == 5)) { dest = con(src % 2, 2, 3); } \n"
+                + "else { dest = src ^| 4; }", true);
+    }
+    
+    @Test
+    public void loops() throws Exception {
+        System.out.println("   loops with break and breakif");
+        assertSameResults(
+                  "n = 0; \n"
+                + "foreach (i in -2:x()) { n += i; breakif(n > 20); } \n"
+                + "foreach (k in [1, 2, src]) n += k; \n"
+                + "n = abs(n) + 1; \n"
+                + "while (n < 100) { n *= 2; if (n > 90) break; } \n"
+                + "dest = n;", true);
+    }
+    
+    @Test
+    public void functionsAndOptions() throws Exception {
+        System.out.println("   functions, image-scope vars and options");
+        assertSameResults(
+                  "options { outside = 0; } \n"
+                + "init { k = 3; } \n"
+                + "dest = round(sqrt(src) * k) + max(src, width()) + src[1, 0];", true);
+    }
+    
+    @Test
+    public void listScriptFallsBackToSource() throws Exception {
+        System.out.println("   script with list falls back to source compilation");
+        assertSameResults("L = [src, 2]; dest = sum(L);", false);
+    }
+    
+    @Test
+    public void sourceBackend() throws Exception {
+        System.out.println("   source backend selected with system property");
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_SOURCE);
+        
+        assertFalse(isBytecodeRuntime(createRuntime("dest = src + 1;")));
+    }
+
+    /*
+     * Runs the script with each backend and checks that the destination
+     * images are equal.
+     */
+    private void assertSameResults(String script, boolean expectBytecode) throws Exception {
+        JiffleDirectRuntime[] runtimes = assertSameResults(script, 
+                JiffleProperties.BACKEND_BYTECODE, JiffleProperties.BACKEND_SOURCE);
+        
+        assertEquals(expectBytecode, isBytecodeRuntime(runtimes[0]));
+        assertFalse(isBytecodeRuntime(runtimes[1]));
+    }
+    
+    /*
+     * Classes compiled from source declare their own evaluateRow method
+     * whereas bytecode classes inherit it from the base class.
+     */
+    private boolean isBytecodeRuntime(JiffleRuntime runtime) {
+        for (Method m : runtime.getClass().getDeclaredMethods()) {
+            if (m.getName().equals("evaluateRow")) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
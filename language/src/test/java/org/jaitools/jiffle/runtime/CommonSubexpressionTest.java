@@ -0,0 +1,142 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the evaluation of repeated expressions and image reads
+ * once per pixel.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class CommonSubexpressionTest extends RuntimeTestBase {
+    
+    @Test
+    public void repeatedReads() throws Exception {
+        System.out.println("   repeated image reads");
+        String script = 
+                  "options { outside = 0; } \n"
+                + "dest = (src - src[0, -1]) / (src + src[0, -1] + 1);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double above = y > 0 ? val - IMG_WIDTH : 0;
+                move();
+                return (val - above) / (val + above + 1);
+            }
+        };
+        
+        testScript(script, e);
+        assertTrue(getSource(script).contains("_cse1"));
+    }
+    
+    @Test
+    public void readsInBranchAreLazy() throws Exception {
+        System.out.println("   repeated reads in conditional branch");
+        String script = "dest = x() > 0 ? src[-1, 0] + 2 * src[-1, 0] : 0;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double z = x > 0 ? 3 * (val - 1) : 0;
+                move();
+                return z;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void repeatedExpression() throws Exception {
+        System.out.println("   repeated expression");
+        String script = 
+                  "z = sqrt(src + 1); \n"
+                + "if (src > 10) z = 2 * sqrt(src + 1); \n"
+                + "dest = z;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return (val > 10 ? 2 : 1) * Math.sqrt(val + 1);
+            }
+        };
+        
+        testScript(script, e);
+        assertTrue(getSource(script).contains("_cse"));
+    }
+    
+    @Test
+    public void pixelVarsNotCached() throws Exception {
+        System.out.println("   expressions with pixel-scope vars are not cached");
+        String script = 
+                  "a = src; \n"
+                + "a = a + 1; \n"
+                + "b = a * 2; \n"
+                + "a = a + 1; \n"
+                + "dest = a * 2 + b;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return (val + 2) * 2 + (val + 1) * 2;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void assignedImageScopeVarNotCached() throws Exception {
+        System.out.println("   expressions with assigned image-scope vars are not cached");
+        String script = 
+                  "init { n = 0; } \n"
+                + "a = n * src; \n"
+                + "n += 1; \n"
+                + "dest = a + n * src;" ;
+        
+        Evaluator e = new Evaluator() {
+            int n = 0;
+            public double eval(double val) {
+                double z = n * val + (n + 1) * val;
+                n++ ;
+                return z;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void volatileFunctionNotCached() throws Exception {
+        System.out.println("   volatile function calls are not cached");
+        String script = "dest = src + rand(src) - rand(src);" ;
+        
+        String source = getSource(script);
+        assertEquals(2, source.split("_FN.rand").length - 1);
+    }
+}
@@ -99,6 +99,19 @@ public class ConStatementsTest extends RuntimeTestBase {
         });
     }
     
+    @Test
+    public void conNullCondition() throws Exception {
+        String script = "dest = con(src / src, 1, 2, 3);";
+        System.out.println("   " + script);
+        
+        testScript(script, new Evaluator() {
+
+            public double eval(double val) {
+                return val == 0 ? Double.NaN : 1;
+            }
+        });
+    }
+    
     @Test
     public void nestedCon() throws Exception {
         String script = "dest = con(src1, con(src1 > src2, 1, null), null);" ;
@@ -0,0 +1,193 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the simplification of constant expressions and
+ * dead branches by the compiler.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ConstantFoldingTest extends RuntimeTestBase {
+    
+    @Test
+    public void arithmeticWithConstants() throws Exception {
+        System.out.println("   arithmetic with constants is folded");
+        String script = "dest = src + 2 * M_PI;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + 2 * Math.PI;
+            }
+        };
+        
+        testScript(script, e);
+        assertTrue(getSource(script).contains(String.valueOf(2 * Math.PI)));
+    }
+    
+    @Test
+    public void negativeResult() throws Exception {
+        System.out.println("   folded negative value");
+        String script = "dest = src - (1 - 3) * -2;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val - 4;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void logicalWithConstants() throws Exception {
+        System.out.println("   logical operations with constants are folded");
+        String script = "dest = src * (M_PI > 3 && !(1 == 2));" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val;
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("_lhs"));
+    }
+    
+    @Test
+    public void shortCircuitWithConstant() throws Exception {
+        System.out.println("   short-circuit operation with constant first operand");
+        String script = "dest = (0 && src) + (1 || src);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return 1;
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("_lhs"));
+    }
+    
+    @Test
+    public void divisionByZeroNotFolded() throws Exception {
+        System.out.println("   division by zero is left to the runtime");
+        String script = "dest = src > 0 ? 1 / 0 : -1 / 0;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val > 0 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void squareOfVariable() throws Exception {
+        System.out.println("   x^2 is replaced by x*x");
+        String script = "x = src; dest = 3 / x^2;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return 3 / (val * val);
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("Math.pow"));
+    }
+    
+    @Test
+    public void conWithConstantCondition() throws Exception {
+        System.out.println("   con with constant condition");
+        String script = "dest = 1 + con(M_PI < 3, src, -src, 0);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return 1 - val;
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("_sgn"));
+    }
+    
+    @Test
+    public void conWithNullCondition() throws Exception {
+        System.out.println("   con with null condition");
+        String script = "dest = con(null, src, 0);" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return Double.NaN;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void deadIfBranch() throws Exception {
+        System.out.println("   dead if branch is removed");
+        String script = 
+                  "z = 0; \n"
+                + "if (M_PI < 3) z = 1; else z = src; \n"
+                + "dest = z;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val;
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("_sgn"));
+    }
+    
+    @Test
+    public void deadIfWithoutElse() throws Exception {
+        System.out.println("   dead if statement without else is removed");
+        String script = 
+                  "z = src; \n"
+                + "if (null) { z = 1; } \n"
+                + "while (z < src + 2) { if (false) z = 0; z++ ; } \n"
+                + "dest = z;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + 2;
+            }
+        };
+        
+        testScript(script, e);
+    }
+}
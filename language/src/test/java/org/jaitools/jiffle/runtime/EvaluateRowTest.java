@@ -0,0 +1,218 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for row and rectangle evaluation methods.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class EvaluateRowTest extends RuntimeTestBase {
+    
+    private static final String SCRIPT = "init { n = 0; } n += 1; dest = x() + 100 * y() + n;" ;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+
+    @Test
+    public void directRow() throws Exception {
+        System.out.println("   direct evaluateRow");
+        
+        JiffleDirectRuntime runtime = getDirectRuntime();
+        TiledImage dest = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, -1.0);
+        runtime.setDestinationImage("dest", dest);
+        
+        runtime.evaluateRow(3, 2, 5);
+        
+        for (int x = 0; x < IMG_WIDTH; x++) {
+            double expected = x >= 2 && x < 7 ? x + 300 + (x - 1) : -1.0;
+            assertEquals(expected, dest.getSampleDouble(x, 3, 0), TOL);
+        }
+        assertEquals(-1.0, dest.getSampleDouble(3, 2, 0), TOL);
+    }
+
+    @Test
+    public void directRect() throws Exception {
+        System.out.println("   direct evaluateRect");
+        
+        JiffleDirectRuntime runtime = getDirectRuntime();
+        TiledImage dest = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, -1.0);
+        runtime.setDestinationImage("dest", dest);
+        
+        Rectangle rect = new Rectangle(1, 2, 3, 4);
+        runtime.evaluateRect(rect);
+        
+        int n = 0;
+        for (int y = 0; y < IMG_WIDTH; y++) {
+            for (int x = 0; x < IMG_WIDTH; x++) {
+                double expected = -1.0;
+                if (rect.contains(x, y)) {
+                    expected = x + 100 * y + (++n);
+                }
+                assertEquals(expected, dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void directRectWithWorldUnits() throws Exception {
+        System.out.println("   direct evaluateRect with world resolution");
+        
+        JiffleDirectRuntime runtime = getDirectRuntime();
+        TiledImage dest = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, -1.0);
+        runtime.setWorldByResolution(new Rectangle(0, 0, 2 * IMG_WIDTH, 2 * IMG_WIDTH), 2, 2);
+        runtime.setDestinationImage("dest", dest, 
+                CoordinateTransforms.scale(0.5, 0.5));
+        
+        runtime.evaluateRect(new Rectangle(0, 0, IMG_WIDTH, IMG_WIDTH));
+        
+        int n = 0;
+        for (int y = 0; y < IMG_WIDTH; y++) {
+            for (int x = 0; x < IMG_WIDTH; x++) {
+                double expected = 2 * x + 200 * y + (++n);
+                assertEquals(expected, dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+
+    @Test
+    public void indirectRow() throws Exception {
+        System.out.println("   indirect evaluateRow");
+        
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        JiffleIndirectRuntime runtime = 
+                (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        runtime.setWorldByResolution(new Rectangle(0, 0, IMG_WIDTH, IMG_WIDTH), 1, 1);
+        
+        double[] out = new double[IMG_WIDTH];
+        runtime.evaluateRow(4, 0, IMG_WIDTH, out);
+        for (int x = 0; x < IMG_WIDTH; x++) {
+            assertEquals(x + 400 + (x + 1), out[x], TOL);
+        }
+    }
+    
+    @Test(expected=JiffleRuntimeException.class)
+    public void indirectRowWithoutWorld() throws Exception {
+        System.out.println("   indirect evaluateRow without processing area");
+        
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        JiffleIndirectRuntime runtime = 
+                (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        
+        runtime.evaluateRow(0, 0, IMG_WIDTH, new double[IMG_WIDTH]);
+    }
+    
+    @Test
+    public void indirectRowConvertedToByte() throws Exception {
+        System.out.println("   indirect evaluateRow with byte destination");
+        
+        // values from -3.0 to 296.5 in steps of 2.5, and null at x = 3
+        AbstractIndirectRuntime runtime = getIndirectRuntime(
+                "dest = con(x() == 3, null, x() * 2.5 - 3);", DataBuffer.TYPE_BYTE);
+        
+        int n = 121;
+        double[] out = new double[n];
+        runtime.evaluateRow(0, 0, n, out);
+        for (int x = 0; x < n; x++) {
+            double expected = x == 3 ? 0 : Math.max(0, Math.min(255, Math.floor(x * 2.5 - 3 + 0.5)));
+            assertEquals(expected, out[x], TOL);
+        }
+        
+        // halves round upwards
+        assertEquals(10.0, out[5], TOL);
+    }
+    
+    @Test
+    public void indirectRowConvertedToShort() throws Exception {
+        System.out.println("   indirect evaluateRow with short destination");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(
+                "dest = (x() - 2) * 20000 + 0.4;", DataBuffer.TYPE_SHORT);
+        
+        double[] out = new double[5];
+        runtime.evaluateRow(0, 0, out.length, out);
+        assertArrayEquals(new double[] {-32768, -20000, 0, 20000, 32767}, out, TOL);
+        
+        // single pixel evaluation is not converted
+        assertEquals(40000.4, runtime.evaluate(4, 0), TOL);
+    }
+    
+    @Test
+    public void indirectRowConvertedToFloat() throws Exception {
+        System.out.println("   indirect evaluateRow with float destination");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(
+                "dest = con(x() == 0, 10^300, con(x() == 1, null, M_PI));", DataBuffer.TYPE_FLOAT);
+        
+        double[] out = new double[3];
+        runtime.evaluateRow(0, 0, out.length, out);
+        assertEquals(Float.MAX_VALUE, out[0], TOL);
+        assertTrue(Double.isNaN(out[1]));
+        assertEquals((float) Math.PI, out[2], 0);
+        
+        // copies keep the data type
+        AbstractIndirectRuntime copy = (AbstractIndirectRuntime) runtime.copy();
+        assertEquals(DataBuffer.TYPE_FLOAT, copy.getDestinationDataType());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidDestinationDataType() throws Exception {
+        System.out.println("   invalid destination data type");
+        getIndirectRuntime(SCRIPT, DataBuffer.TYPE_UNDEFINED);
+    }
+    
+    private AbstractIndirectRuntime getIndirectRuntime(String script, int dataType) throws Exception {
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        AbstractIndirectRuntime runtime = 
+                (AbstractIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        runtime.setWorldByResolution(new Rectangle(0, 0, 200, 1), 1, 1);
+        runtime.setDestinationDataType(dataType);
+        return runtime;
+    }
+    
+    private JiffleDirectRuntime getDirectRuntime() throws Exception {
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        return jiffle.getRuntimeInstance();
+    }
+}
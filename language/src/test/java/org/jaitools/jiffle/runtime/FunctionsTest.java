@@ -379,6 +379,20 @@ public class FunctionsTest extends RuntimeTestBase {
         testScript(script, e);
     }
     
+    @Test
+    public void sign() throws Exception {
+        String script = "dest = sign((src - 50) * src / src);" ;
+        System.out.println("   " + script);
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val == 0 ? Double.NaN : Math.signum(val - 50);
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
     @Test
     public void sin() throws Exception {
         String script = "dest = sin(src);" ;
@@ -0,0 +1,150 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.RenderedImage;
+
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for image access by slot index in runtime classes.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ImageSlotsTest extends RuntimeTestBase {
+    
+    private static final String SCRIPT = 
+              "images { a=read; b=read; dest=write; } \n"
+            + "dest = a + 2 * b[0, -1];" ;
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+    }
+
+    @Test
+    public void multipleSources() throws Exception {
+        System.out.println("   script with multiple sources");
+        
+        JiffleDirectRuntime runtime = getRuntime(SCRIPT);
+        
+        RenderedImage a = createSequenceImage();
+        RenderedImage b = createRowValueImage();
+        TiledImage dest = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        
+        runtime.setSourceImage("a", a);
+        runtime.setSourceImage("b", b);
+        runtime.setDestinationImage("dest", dest);
+        
+        // skip the first row because of the relative position in b
+        runtime.setWorldByResolution(new Rectangle(0, 1, IMG_WIDTH, IMG_WIDTH - 1), 1, 1);
+        runtime.evaluateAll(null);
+        
+        for (int y = 1; y < IMG_WIDTH; y++) {
+            for (int x = 0; x < IMG_WIDTH; x++) {
+                double expected = (x + y * IMG_WIDTH) + 2 * (y - 1);
+                assertEquals(expected, dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void directSourceUsesSlots() throws Exception {
+        System.out.println("   direct runtime source uses image slots");
+        
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        String src = jiffle.getRuntimeSource(Jiffle.RuntimeModel.DIRECT, false);
+        
+        assertTrue(src.contains("registerImage(\"a\");"));
+        assertTrue(src.contains("registerImage(\"b\");"));
+        assertTrue(src.contains("registerImage(\"dest\");"));
+        assertFalse(src.contains("readFromImage(\""));
+        assertFalse(src.contains("writeToImage(\""));
+    }
+    
+    @Test
+    public void indirectSourceUsesSlots() throws Exception {
+        System.out.println("   indirect runtime source uses image slots");
+        
+        Jiffle jiffle = new Jiffle(SCRIPT, imageParams);
+        String src = jiffle.getRuntimeSource(Jiffle.RuntimeModel.INDIRECT, false);
+        
+        assertTrue(src.contains("registerImage(\"a\");"));
+        assertTrue(src.contains("registerImage(\"b\");"));
+        assertFalse(src.contains("readFromImage(\""));
+    }
+    
+    @Test
+    public void readByName() throws Exception {
+        System.out.println("   reading by variable name");
+        
+        JiffleDirectRuntime runtime = getRuntime(SCRIPT);
+        runtime.setSourceImage("a", createSequenceImage());
+        runtime.setSourceImage("b", createRowValueImage());
+        runtime.setDestinationImage("dest", 
+                ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0));
+        runtime.setDefaultBounds();
+        
+        assertEquals(23.0, runtime.readFromImage("a", 3, 2, 0), TOL);
+        assertEquals(2.0, runtime.readFromImage("b", 3, 2, 0), TOL);
+    }
+    
+    @Test
+    public void imageNotInScript() throws Exception {
+        System.out.println("   setting an image not referred to in the script");
+        
+        JiffleDirectRuntime runtime = getRuntime(SCRIPT);
+        RenderedImage other = createRowValueImage();
+        runtime.setSourceImage("other", other);
+        
+        assertEquals(4.0, runtime.readFromImage("other", 0, 4, 0), TOL);
+        assertSame(other, runtime.getImages().get("other"));
+    }
+    
+    @Test(expected=JiffleRuntimeException.class)
+    public void imageNotSet() throws Exception {
+        System.out.println("   reading from an image that has not been set");
+        
+        JiffleDirectRuntime runtime = getRuntime(SCRIPT);
+        runtime.readFromImage("a", 0, 0, 0);
+    }
+    
+    private JiffleDirectRuntime getRuntime(String script) throws Exception {
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeInstance();
+    }
+}
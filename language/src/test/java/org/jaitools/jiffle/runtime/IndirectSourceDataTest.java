@@ -0,0 +1,212 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.BandedSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+import javax.media.jai.BorderExtender;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for providing source data to indirect runtime objects.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class IndirectSourceDataTest extends RuntimeTestBase {
+    
+    private static final String SCRIPT = "options { outside = 500; } dest = src;";
+    
+    @Before
+    public void setup() {
+        imageParams = CollectionFactory.map();
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+    }
+    
+    @Test
+    public void readOnDemand() throws Exception {
+        System.out.println("   source image read on demand");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("src", createSequenceImage());
+        
+        assertEquals(32.0, runtime.readFromImage("src", 2, 3, 0), TOL);
+        assertEquals(99.0, runtime.readFromImage("src", 9, 9, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", -1, 0, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", 0, IMG_WIDTH, 0), TOL);
+        
+        double[] values = new double[IMG_WIDTH];
+        runtime.evaluateRow(4, 0, IMG_WIDTH, values);
+        for (int x = 0; x < IMG_WIDTH; x++) {
+            assertEquals(40 + x, values[x], TOL);
+        }
+    }
+    
+    @Test
+    public void areaBufferReused() throws Exception {
+        System.out.println("   successive source areas");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(0, 0, 5, 2), null);
+        assertEquals(13.0, runtime.readFromImage("src", 3, 1, 0), TOL);
+        
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(5, 7, 5, 2), null);
+        assertEquals(86.0, runtime.readFromImage("src", 6, 8, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", 3, 1, 0), TOL);
+    }
+    
+    @Test
+    public void areaClippedWithoutExtender() throws Exception {
+        System.out.println("   source area clipped to image bounds");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(-2, -2, 5, 5), null);
+        
+        assertEquals(11.0, runtime.readFromImage("src", 1, 1, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", -1, 0, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", 3, 0, 0), TOL);
+    }
+    
+    @Test
+    public void areaOutsideImage() throws Exception {
+        System.out.println("   source area outside image bounds");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(20, 20, 5, 5), null);
+        
+        assertEquals(500.0, runtime.readFromImage("src", 21, 21, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", 1, 1, 0), TOL);
+    }
+    
+    @Test
+    public void areaWithExtender() throws Exception {
+        System.out.println("   source area with border extender");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(-2, -2, 5, 5), 
+                BorderExtender.createInstance(BorderExtender.BORDER_ZERO));
+        
+        assertEquals(11.0, runtime.readFromImage("src", 1, 1, 0), TOL);
+        assertEquals(0.0, runtime.readFromImage("src", -1, 0, 0), TOL);
+        assertEquals(0.0, runtime.readFromImage("src", 2, -2, 0), TOL);
+        assertEquals(500.0, runtime.readFromImage("src", 3, 0, 0), TOL);
+    }
+    
+    @Test
+    public void copyHasOwnData() throws Exception {
+        System.out.println("   runtime copy keeps its own source data");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("src", createSequenceImage(), new Rectangle(0, 0, 5, 5), null);
+        
+        AbstractIndirectRuntime copy = (AbstractIndirectRuntime) runtime.copy();
+        runtime.setSourceData("src", createRowValueImage(), new Rectangle(0, 0, 5, 5), null);
+        
+        assertEquals(23.0, copy.readFromImage("src", 3, 2, 0), TOL);
+        assertEquals(2.0, runtime.readFromImage("src", 3, 2, 0), TOL);
+    }
+    
+    @Test
+    public void indirectRuntimeReadsRasterArea() throws Exception {
+        System.out.println("   indirect runtime reads an area of a multi-band raster");
+
+        Jiffle jiffle = new Jiffle(
+                "options { outside = 500; } dest = src[0][1, 0] * 100 + src[2];", imageParams);
+
+        AbstractIndirectRuntime runtime = (AbstractIndirectRuntime)
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        runtime.setWorldByResolution(new Rectangle(0, 0, 10, 10), 1, 1);
+        runtime.setSourceImage("src");
+
+        WritableRaster raster = Raster.createWritableRaster(
+                new BandedSampleModel(DataBuffer.TYPE_DOUBLE, 10, 10, 3), null);
+        for (int y = 0; y < 10; y++) {
+            for (int x = 0; x < 10; x++) {
+                for (int b = 0; b < 3; b++) {
+                    raster.setSample(x, y, b, b * 1000 + y * 10 + x);
+                }
+            }
+        }
+
+        // positions outside this area are treated as outside the raster
+        Rectangle area = new Rectangle(2, 3, 4, 1);
+        runtime.setSourceRaster("src", raster, area);
+
+        double[] values = new double[4];
+        runtime.evaluateRow(3, 2, values.length, values);
+        for (int i = 0; i < values.length; i++) {
+            int x = 2 + i;
+            double right = x + 1 < area.x + area.width ? 30 + x + 1 : 500;
+            assertEquals(right * 100 + 2030 + x, values[i], TOL);
+        }
+
+        Jiffle badBand = new Jiffle("dest = src[3];", imageParams);
+        runtime = (AbstractIndirectRuntime)
+                badBand.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        runtime.setWorldByResolution(new Rectangle(0, 0, 10, 10), 1, 1);
+        runtime.setSourceImage("src");
+        runtime.setSourceRaster("src", raster);
+
+        try {
+            runtime.evaluate(0, 0);
+            fail("Expected an exception for an invalid band");
+        } catch (JiffleRuntimeException ex) {
+            // expected
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void notSourceVar() throws Exception {
+        System.out.println("   source data for a destination var");
+        
+        AbstractIndirectRuntime runtime = getIndirectRuntime(SCRIPT);
+        runtime.setSourceData("dest", createSequenceImage());
+    }
+    
+    private AbstractIndirectRuntime getIndirectRuntime(String script) throws Exception {
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        AbstractIndirectRuntime runtime = (AbstractIndirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        
+        runtime.setWorldByResolution(new Rectangle(0, 0, IMG_WIDTH, IMG_WIDTH), 1, 1);
+        runtime.setSourceImage("src");
+        runtime.setDestinationImage("dest");
+        return runtime;
+    }
+}
@@ -0,0 +1,153 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+
+import javax.media.jai.iterator.RectIter;
+import javax.media.jai.iterator.RectIterFactory;
+
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for {@link InterpretedDirectRuntime}, checking that it gives
+ * the same results as runtime classes compiled from source.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InterpreterTest extends RuntimeTestBase {
+    
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void interpreterBackend() throws Exception {
+        System.out.println("   interpreter backend selected with system property");
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_INTERPRETER);
+        
+        assertTrue(createRuntime("dest = src + 1;") instanceof InterpretedDirectRuntime);
+    }
+    
+    @Test
+    public void simpleStatements() throws Exception {
+        System.out.println("   simple statements");
+        assertSameResults("a = src * 2; a += 1; dest = a + x() - y() % 3 + 2^3;");
+    }
+    
+    @Test
+    public void conditionals() throws Exception {
+        System.out.println("   if-else, con and logical operators");
+        assertSameResults(
+                  "if (src > 50 && x() != 3) { dest = 1; } \n"
+                + "else if (src < 10 || !(y() == 5)) { dest = con(src % 2, 2, 3); } \n"
+                + "else { dest = src ^| 4; }");
+    }
+    
+    @Test
+    public void loops() throws Exception {
+        System.out.println("   loops with break and breakif");
+        assertSameResults(
+                  "n = 0; \n"
+                + "foreach (i in -2:x()) { n += i; breakif(n > 20); } \n"
+                + "foreach (k in [1, 2, src]) n += k; \n"
+                + "n = abs(n) + 1; \n"
+                + "while (n < 100) { n *= 2; if (n > 90) break; } \n"
+                + "until (n > 200) n++; \n"
+                + "dest = n;");
+    }
+    
+    @Test
+    public void lists() throws Exception {
+        System.out.println("   lists");
+        assertSameResults(
+                  "L = [src, x(), 2]; \n"
+                + "L << y(); \n"
+                + "n = 0; \n"
+                + "foreach (v in L) n += v; \n"
+                + "dest = n + sum(L) + max(L) + median(L);");
+    }
+    
+    @Test
+    public void functionsAndOptions() throws Exception {
+        System.out.println("   functions, image-scope vars and options");
+        assertSameResults(
+                  "options { outside = 0; } \n"
+                + "init { k = 3; } \n"
+                + "dest = round(sqrt(src) * k) + max(src, width()) + src[1, 0] + src[$(x() - 1), 0];");
+    }
+    
+    @Test
+    public void invariantsAndCommonSubexpressions() throws Exception {
+        System.out.println("   invariant and repeated expressions");
+        assertSameResults(
+                  "a = sqrt(width() * height()) + y() * 2; \n"
+                + "dest = (src + a) * (src + a) + log(src + 1) / log(src + 1 + x());");
+    }
+    
+    @Test
+    public void imageScopeVarUpdatedAcrossPixels() throws Exception {
+        System.out.println("   image-scope var updated across pixels");
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_INTERPRETER);
+        
+        JiffleDirectRuntime runtime = createRuntime("init { n = 0; } n += 1; dest = n;");
+        RenderedImage img = run(runtime, createSequenceImage());
+        
+        RectIter iter = RectIterFactory.create(img, null);
+        double expected = 1;
+        do {
+            do {
+                assertEquals(expected++, iter.getSampleDouble(), TOL);
+            } while (!iter.nextPixelDone());
+            iter.startPixels();
+        } while (!iter.nextLineDone());
+        
+        assertEquals(IMG_WIDTH * IMG_WIDTH, runtime.getVar("n"), TOL);
+    }
+
+    /*
+     * Runs the script with the interpreter and with a class compiled
+     * from source and checks that the destination images are equal.
+     */
+    private void assertSameResults(String script) throws Exception {
+        JiffleDirectRuntime[] runtimes = assertSameResults(script, 
+                JiffleProperties.BACKEND_INTERPRETER, JiffleProperties.BACKEND_SOURCE);
+        
+        assertTrue(runtimes[0] instanceof InterpretedDirectRuntime);
+        assertFalse(runtimes[1] instanceof InterpretedDirectRuntime);
+    }
+}
@@ -0,0 +1,151 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the evaluation of expressions which do not vary 
+ * between pixels or along rows.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class InvariantHoistingTest extends RuntimeTestBase {
+    
+    @Test
+    public void runInvariant() throws Exception {
+        System.out.println("   expression with constant value over image");
+        String script = "dest = src + sqrt(width() * height());" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val + IMG_WIDTH;
+            }
+        };
+        
+        testScript(script, e);
+        
+        String source = getSource(script);
+        assertTrue(source.contains("initInvariants()"));
+        assertFalse(source.contains("initRowInvariants"));
+    }
+    
+    @Test
+    public void rowInvariant() throws Exception {
+        System.out.println("   expression with constant value along rows");
+        String script = "dest = src * (y() + width());" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double z = val * (y + IMG_WIDTH);
+                move();
+                return z;
+            }
+        };
+        
+        testScript(script, e);
+        assertTrue(getSource(script).contains("initRowInvariants"));
+    }
+    
+    @Test
+    public void invariantInConditional() throws Exception {
+        System.out.println("   invariant expressions in conditional code");
+        String script = 
+                  "init { k = 2; } \n"
+                + "dest = x() > width() / 2 ? src * k^2 : -src; \n"
+                + "if (y() < height() / 2) dest = 0;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double z = y < IMG_WIDTH / 2 ? 0 : (x > IMG_WIDTH / 2 ? val * 4 : -val);
+                move();
+                return z;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void imageScopeVarAssignedInScript() throws Exception {
+        System.out.println("   image-scope var assigned in script is not invariant");
+        String script = 
+                  "init { n = 0; } \n"
+                + "n += 1; \n"
+                + "dest = n * (width() - 1);" ;
+        
+        Evaluator e = new Evaluator() {
+            int n = 0;
+            public double eval(double val) {
+                return ++n * (IMG_WIDTH - 1);
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void imageScopeVarChanged() throws Exception {
+        System.out.println("   invariants updated when image-scope var is set");
+        String script = 
+                  "init { k = 1; } \n"
+                + "dest = src * (k + 1);" ;
+        
+        RenderedImage srcImg = createSequenceImage();
+        testScript(script, srcImg, new Evaluator() {
+            public double eval(double val) {
+                return val * 2;
+            }
+        });
+        
+        runtimeInstance.setVar("k", 2.0);
+        testRuntime(srcImg, runtimeInstance, new Evaluator() {
+            public double eval(double val) {
+                return val * 3;
+            }
+        });
+    }
+    
+    @Test
+    public void volatileFunctionNotHoisted() throws Exception {
+        System.out.println("   volatile function call is not invariant");
+        String script = "dest = src + rand(width()) * 0;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return val;
+            }
+        };
+        
+        testScript(script, e);
+        assertFalse(getSource(script).contains("initInvariants"));
+    }
+}
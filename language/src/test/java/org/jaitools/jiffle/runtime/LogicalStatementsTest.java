@@ -24,9 +24,12 @@
  */   
 package org.jaitools.jiffle.runtime;
 
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
 import org.jaitools.numeric.CompareOp;
 
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 
 /**
@@ -166,4 +169,73 @@ public class LogicalStatementsTest extends RuntimeTestBase {
                 });
     }
     
+    @Test
+    public void logicalWithNull() throws Exception {
+        String src = "dest = src / src > 10;";
+        System.out.println("   " + src);
+        
+        testScript(src,
+                new Evaluator() {
+                    public double eval(double val) {
+                        return val == 0 ? Double.NaN : 0.0;
+                    }
+                });
+    }
+
+    @Test
+    public void andShortCircuit() throws Exception {
+        String src = "init { n = 0; } \n"
+                + "z = src < 50 && n++ >= 0; \n"
+                + "dest = n;" ;
+        System.out.println("   " + src);
+        
+        testScript(src,
+                new Evaluator() {
+                    public double eval(double val) {
+                        return val < 50 ? val + 1 : 50;
+                    }
+                });
+    }
+    
+    @Test
+    public void orShortCircuit() throws Exception {
+        String src = "init { n = 0; } \n"
+                + "z = src >= 50 || n++ >= 0; \n"
+                + "dest = n;" ;
+        System.out.println("   " + src);
+        
+        testScript(src,
+                new Evaluator() {
+                    public double eval(double val) {
+                        return val < 50 ? val + 1 : 50;
+                    }
+                });
+    }
+    
+    @Test
+    public void shortCircuitIgnoresNull() throws Exception {
+        String src = "dest = con(src % 2, 0 && null, 1 || null);";
+        System.out.println("   " + src);
+        
+        testScript(src,
+                new Evaluator() {
+                    public double eval(double val) {
+                        return ((int) val) % 2 == 1 ? 0.0 : 1.0;
+                    }
+                });
+    }
+    
+    @Test
+    public void operatorsAreInlined() throws Exception {
+        System.out.println("   logical operators are expanded inline");
+        String script = "dest = !(src > 1 && src <= 2 || src == 3 ^| src != 4);" ;
+        
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        
+        String runtimeSrc = jiffle.getRuntimeSource(Jiffle.RuntimeModel.DIRECT, false);
+        assertFalse(runtimeSrc.contains("_FN."));
+    }
 }
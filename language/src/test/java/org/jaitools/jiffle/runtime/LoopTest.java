@@ -57,6 +57,23 @@ public class LoopTest extends RuntimeTestBase {
         testScript(script, e);
     }
     
+    @Test
+    public void whileLoopWithNullCondition() throws Exception {
+        System.out.println("   while loop with null condition");
+        String script = 
+                  "n = 0; \n"
+                + "while (null) n++; \n"
+                + "dest = n;" ;
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return 0;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
     @Test
     public void whileLoopWithBlock() throws Exception {
         System.out.println("   while loop with block");
@@ -0,0 +1,123 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the splitting of large scripts into several methods
+ * in the generated runtime class.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class MethodSplittingTest extends RuntimeTestBase {
+    
+    private static final int NUM_STATEMENTS = 600;
+    
+    @Test
+    public void smallScriptNotSplit() throws Exception {
+        System.out.println("   small script is not split");
+        String script = "a = src * 2; \n dest = a + 1;" ;
+        
+        assertFalse(getSource(script, Jiffle.RuntimeModel.DIRECT).contains("_evaluatePart"));
+    }
+    
+    @Test
+    public void largeScriptDirect() throws Exception {
+        System.out.println("   large script split (direct runtime)");
+        String script = createLargeScript("dest = a;");
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return largeScriptValue(val);
+            }
+        };
+        
+        testScript(script, e);
+        assertTrue(getSource(script, Jiffle.RuntimeModel.DIRECT).contains("_evaluatePart1"));
+    }
+    
+    @Test
+    public void listVarInLargeScript() throws Exception {
+        System.out.println("   list var declared in one method and used in another");
+        String script = "L = [src, 1]; \n" + createLargeScript("dest = a + sum(L);");
+        
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return largeScriptValue(val) + val + 1;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void largeScriptIndirect() throws Exception {
+        System.out.println("   large script split (indirect runtime)");
+        String script = 
+                  "if (x() == 0) { dest = -1; } \n"
+                + createLargeScript("dest = a;").replace("src", "x()");
+        
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        assertTrue(jiffle.getRuntimeSource(Jiffle.RuntimeModel.INDIRECT, false).contains("_evaluatePart1"));
+        
+        JiffleIndirectRuntime runtime = 
+                (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        
+        assertEquals(-1.0, runtime.evaluate(0, 0), TOL);
+        assertEquals(largeScriptValue(3), runtime.evaluate(3, 0), TOL);
+    }
+    
+    /*
+     * Creates a script which, with a source image value v, computes
+     * the value returned by largeScriptValue(v) in variable a.
+     */
+    private String createLargeScript(String lastLine) {
+        StringBuilder sb = new StringBuilder("a = 0; \n");
+        for (int i = 1; i <= NUM_STATEMENTS; i++) {
+            sb.append("a = a * 0.5 + src * ").append(i % 7).append("; \n");
+        }
+        sb.append(lastLine);
+        return sb.toString();
+    }
+    
+    private double largeScriptValue(double val) {
+        double a = 0;
+        for (int i = 1; i <= NUM_STATEMENTS; i++) {
+            a = a * 0.5 + val * (i % 7);
+        }
+        return a;
+    }
+}
@@ -0,0 +1,159 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for indirect runtime objects with several destination variables.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class MultipleDestinationsTest {
+    
+    private static final double TOL = 1.0e-8;
+    
+    private static final String SCRIPT = 
+              "a = x() + 10 * y(); \n"
+            + "sum = a + 1; \n"
+            + "diff = a - 1; \n"
+            + "if (x() > 2) { flag = 1; }" ;
+    
+    private AbstractIndirectRuntime runtime;
+    
+    @Before
+    public void setup() throws Exception {
+        runtime = getRuntime(SCRIPT, "flag", "diff", "sum");
+    }
+    
+    @Test
+    public void outputOrder() throws Exception {
+        System.out.println("   output variables in order of first assignment");
+        
+        assertArrayEquals(new String[] {"sum", "diff", "flag"}, runtime.getOutputVarNames());
+    }
+    
+    @Test
+    public void evaluateAllDestinations() throws Exception {
+        System.out.println("   evaluate all destinations for a pixel");
+        
+        double[] out = new double[3];
+        runtime.evaluate(4, 2, out);
+        assertEquals(25, out[0], TOL);
+        assertEquals(23, out[1], TOL);
+        assertEquals(1, out[2], TOL);
+        
+        // flag is not assigned for this pixel
+        runtime.evaluate(1, 2, out);
+        assertEquals(22, out[0], TOL);
+        assertEquals(20, out[1], TOL);
+        assertTrue(Double.isNaN(out[2]));
+        
+        // single value method returns the first output
+        assertEquals(25, runtime.evaluate(4, 2), TOL);
+    }
+    
+    @Test
+    public void evaluateRowAll() throws Exception {
+        System.out.println("   evaluateRowAll gives pixel-interleaved values");
+        
+        int n = 5;
+        double[] out = new double[3 * n];
+        runtime.evaluateRowAll(1, 1, n, out);
+        
+        for (int i = 0; i < n; i++) {
+            int x = 1 + i;
+            assertEquals(x + 10 + 1, out[3 * i], TOL);
+            assertEquals(x + 10 - 1, out[3 * i + 1], TOL);
+            if (x > 2) {
+                assertEquals(1, out[3 * i + 2], TOL);
+            } else {
+                assertTrue(Double.isNaN(out[3 * i + 2]));
+            }
+        }
+    }
+    
+    @Test
+    public void evaluateRowAllConverted() throws Exception {
+        System.out.println("   evaluateRowAll with byte destination");
+        
+        runtime.setDestinationDataType(DataBuffer.TYPE_BYTE);
+        double[] out = new double[6];
+        runtime.evaluateRowAll(0, 0, 2, out);
+        
+        // diff is -1 at (0, 0) and flag is null for both pixels
+        assertArrayEquals(new double[] {1, 0, 0, 2, 0, 0}, out, TOL);
+    }
+    
+    @Test
+    public void evaluationEndsWhenAllAssigned() throws Exception {
+        System.out.println("   pixel evaluation ends when all destinations are assigned");
+        
+        AbstractIndirectRuntime rt = getRuntime(
+                "d1 = 1; d2 = 2; d1 = 3;", "d1", "d2");
+        
+        double[] out = new double[2];
+        rt.evaluate(0, 0, out);
+        assertEquals(1, out[0], TOL);
+        assertEquals(2, out[1], TOL);
+    }
+    
+    @Test
+    public void copiedRuntime() throws Exception {
+        System.out.println("   copies evaluate all destinations");
+        
+        JiffleIndirectRuntime copy = runtime.copy();
+        double[] out = new double[3];
+        copy.evaluate(4, 2, out);
+        assertArrayEquals(new double[] {25, 23, 1}, out, TOL);
+    }
+    
+    private AbstractIndirectRuntime getRuntime(String script, String ...destNames) 
+            throws Exception {
+        
+        Map<String, Jiffle.ImageRole> imageParams = CollectionFactory.map();
+        for (String name : destNames) {
+            imageParams.put(name, Jiffle.ImageRole.DEST);
+        }
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        AbstractIndirectRuntime rt = (AbstractIndirectRuntime) 
+                jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        rt.setWorldByResolution(new Rectangle(0, 0, 10, 10), 1, 1);
+        return rt;
+    }
+}
@@ -0,0 +1,320 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.SampleModel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RasterFactory;
+import javax.media.jai.TiledImage;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for parallel evaluation with 
+ * {@link AbstractDirectRuntime#evaluateAll(JiffleProgressListener, int)}.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class ParallelEvaluationTest {
+    
+    private static final double TOL = 1.0e-8;
+    private static final String SCRIPT = "dest = src * 2 + x() - y();";
+    
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void matchesSerialResult() throws Exception {
+        System.out.println("   parallel result matches serial result");
+        
+        TiledImage src = createImage(3, 5, 103, 77, 16, 16);
+        for (int y = 5; y < 82; y++) {
+            for (int x = 3; x < 106; x++) {
+                src.setSample(x, y, 0, x * y % 17);
+            }
+        }
+        
+        TiledImage dest = createImage(3, 5, 103, 77, 20, 12);
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, src, dest);
+        runtime.evaluateAll(null, 4);
+        
+        for (int y = 5; y < 82; y++) {
+            for (int x = 3; x < 106; x++) {
+                assertEquals(src.getSampleDouble(x, y, 0) * 2 + x - y, 
+                        dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void packedDestination() throws Exception {
+        System.out.println("   packed destination sample model");
+        
+        SampleModel sm = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 20, 20, 1);
+        TiledImage dest = new TiledImage(0, 0, 203, 101, 0, 0, sm, PlanarImage.createColorModel(sm));
+        
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle("dest = (x() + y()) % 2;", params);
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+        runtime.setDestinationImage("dest", dest);
+        
+        runtime.evaluateAll(null, 8);
+        
+        for (int y = 0; y < 101; y++) {
+            for (int x = 0; x < 203; x++) {
+                assertEquals((x + y) % 2, dest.getSample(x, y, 0));
+            }
+        }
+    }
+    
+    @Test
+    public void destinationsWithDifferentTileGrids() throws Exception {
+        System.out.println("   destinations with different tile grids");
+        
+        String script = "dest = x() * y(); packed = (x() + 2 * y()) % 3 == 0;";
+        TiledImage[] parallel = createMixedDestinations();
+        TiledImage[] serial = createMixedDestinations();
+        
+        AbstractDirectRuntime runtime = createMixedRuntime(script, parallel);
+        
+        // no column break may split a byte of the packed image
+        List<Rectangle> rects = runtime.getParallelRects(8);
+        for (Rectangle r : rects) {
+            assertEquals(0, r.x % 8);
+            assertTrue(r.x + r.width == 203 || (r.x + r.width) % 8 == 0);
+        }
+        
+        runtime.evaluateAll(null, 8);
+        createMixedRuntime(script, serial).evaluateAll(null);
+        
+        for (int y = 0; y < 61; y++) {
+            for (int x = 0; x < 203; x++) {
+                assertEquals(serial[0].getSampleDouble(x, y, 0), 
+                        parallel[0].getSampleDouble(x, y, 0), TOL);
+                assertEquals(serial[1].getSample(x, y, 0), 
+                        parallel[1].getSample(x, y, 0));
+            }
+        }
+    }
+    
+    @Test
+    public void writesImageScopeVarsFlag() throws Exception {
+        System.out.println("   detecting scripts which write image-scope variables");
+        
+        String[] backends = {
+            JiffleProperties.BACKEND_BYTECODE, 
+            JiffleProperties.BACKEND_SOURCE, 
+            JiffleProperties.BACKEND_INTERPRETER
+        };
+        
+        for (String backend : backends) {
+            System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, backend);
+            RuntimeClassCache.clear();
+            
+            assertFalse(backend, createRuntime(SCRIPT).writesImageScopeVars());
+            assertFalse(backend, createRuntime(
+                    "init { k = 2; } a = src; a += k; dest = a;").writesImageScopeVars());
+            assertTrue(backend, createRuntime(
+                    "init { n = 0; } n += 1; dest = src + n;").writesImageScopeVars());
+            assertTrue(backend, createRuntime(
+                    "init { m = 0; } if (src > m) m = src; dest = m;").writesImageScopeVars());
+        }
+    }
+    
+    @Test
+    public void imageScopeVarsWrittenRunsSerially() throws Exception {
+        System.out.println("   script writing image-scope variables runs serially");
+        
+        TiledImage src = createImage(0, 0, 40, 40, 10, 10);
+        TiledImage dest = createImage(0, 0, 40, 40, 10, 10);
+        AbstractDirectRuntime runtime = createRuntime(
+                "init { n = 0; } n += 1; dest = src + n;", src, dest);
+        
+        runtime.evaluateAll(null, 4);
+        
+        int n = 0;
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                assertEquals(++n, dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void scaledDestination() throws Exception {
+        System.out.println("   destination not mapped one-to-one");
+        
+        TiledImage dest = createImage(0, 0, 40, 40, 10, 10);
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("dest", Jiffle.ImageRole.DEST);
+        Jiffle jiffle = new Jiffle("dest = x();", params);
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+        
+        runtime.setWorldByResolution(new Rectangle(0, 0, 80, 80), 2, 2);
+        runtime.setDestinationImage("dest", dest, CoordinateTransforms.scale(0.5, 0.5));
+        runtime.evaluateAll(null, 4);
+        
+        for (int y = 0; y < 40; y++) {
+            for (int x = 0; x < 40; x++) {
+                assertEquals(2 * x, dest.getSampleDouble(x, y, 0), TOL);
+            }
+        }
+    }
+    
+    @Test
+    public void progressListener() throws Exception {
+        System.out.println("   progress listener");
+        
+        TiledImage src = createImage(0, 0, 100, 100, 25, 25);
+        TiledImage dest = createImage(0, 0, 100, 100, 25, 25);
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, src, dest);
+        
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger numStarts = new AtomicInteger();
+        final AtomicInteger numFinishes = new AtomicInteger();
+        final long[] lastDone = {0};
+        
+        AbstractProgressListener listener = new AbstractProgressListener() {
+            public void start() {
+                numStarts.incrementAndGet();
+            }
+            
+            public void update(long done) {
+                assertSame(caller, Thread.currentThread());
+                assertTrue(done >= lastDone[0]);
+                lastDone[0] = done;
+            }
+
+            public void finish() {
+                numFinishes.incrementAndGet();
+            }
+        };
+        
+        runtime.evaluateAll(listener, 4);
+        
+        assertEquals(10000, listener.taskSize);
+        assertEquals(1, numStarts.get());
+        assertEquals(1, numFinishes.get());
+        assertTrue(lastDone[0] <= 10000);
+    }
+    
+    @Test
+    public void firstFailurePropagated() throws Exception {
+        System.out.println("   failure in a worker thread is propagated");
+        
+        // the source image is smaller than the destination and there
+        // is no outside option
+        TiledImage src = createImage(0, 0, 100, 50, 25, 25);
+        TiledImage dest = createImage(0, 0, 100, 100, 25, 25);
+        AbstractDirectRuntime runtime = createRuntime(SCRIPT, src, dest);
+        
+        try {
+            runtime.evaluateAll(null, 4);
+            fail("Expected JiffleRuntimeException");
+        } catch (JiffleRuntimeException ex) {
+            assertTrue(ex.getMessage().contains("outside bounds"));
+        }
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidParallelism() throws Exception {
+        System.out.println("   invalid parallelism");
+        
+        TiledImage src = createImage(0, 0, 10, 10, 10, 10);
+        TiledImage dest = createImage(0, 0, 10, 10, 10, 10);
+        createRuntime(SCRIPT, src, dest).evaluateAll(null, 0);
+    }
+    
+    private AbstractDirectRuntime createRuntime(String script) throws Exception {
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("dest", Jiffle.ImageRole.DEST);
+        params.put("src", Jiffle.ImageRole.SOURCE);
+        
+        Jiffle jiffle = new Jiffle(script, params);
+        return (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+    }
+    
+    private AbstractDirectRuntime createRuntime(String script, 
+            TiledImage src, TiledImage dest) throws Exception {
+        
+        AbstractDirectRuntime runtime = createRuntime(script);
+        runtime.setSourceImage("src", src);
+        runtime.setDestinationImage("dest", dest);
+        return runtime;
+    }
+    
+    private TiledImage[] createMixedDestinations() {
+        SampleModel sm = new MultiPixelPackedSampleModel(DataBuffer.TYPE_BYTE, 40, 16, 1);
+        return new TiledImage[] {
+            createImage(0, 0, 203, 61, 7, 9),
+            new TiledImage(0, 0, 203, 61, 0, 0, sm, PlanarImage.createColorModel(sm))
+        };
+    }
+    
+    private AbstractDirectRuntime createMixedRuntime(String script, 
+            TiledImage[] dests) throws Exception {
+        
+        Map<String, Jiffle.ImageRole> params = CollectionFactory.map();
+        params.put("dest", Jiffle.ImageRole.DEST);
+        params.put("packed", Jiffle.ImageRole.DEST);
+        
+        Jiffle jiffle = new Jiffle(script, params);
+        AbstractDirectRuntime runtime = (AbstractDirectRuntime) jiffle.getRuntimeInstance();
+        runtime.setWorldByResolution(dests[0].getBounds(), 1, 1);
+        runtime.setDestinationImage("dest", dests[0]);
+        runtime.setDestinationImage("packed", dests[1]);
+        return runtime;
+    }
+    
+    private TiledImage createImage(int minX, int minY, int width, int height, 
+            int tileWidth, int tileHeight) {
+        
+        SampleModel sm = RasterFactory.createBandedSampleModel(
+                DataBuffer.TYPE_DOUBLE, tileWidth, tileHeight, 1);
+        return new TiledImage(minX, minY, width, height, 0, 0, 
+                sm, PlanarImage.createColorModel(sm));
+    }
+}
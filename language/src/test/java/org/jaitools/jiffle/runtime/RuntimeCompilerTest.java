@@ -0,0 +1,159 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.util.Map;
+
+import org.jaitools.CollectionFactory;
+import org.jaitools.jiffle.JaninoRuntimeCompiler;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleException;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+import org.jaitools.jiffle.RuntimeCompiler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for selecting the {@link RuntimeCompiler} used for 
+ * runtime source.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class RuntimeCompilerTest extends RuntimeTestBase {
+    
+    /**
+     * A compiler which delegates to Janino and counts its invocations.
+     */
+    public static class CountingCompiler implements RuntimeCompiler {
+        static int count = 0;
+        
+        public String getName() {
+            return "counting";
+        }
+
+        public Map<String, byte[]> compile(String className, String source, ClassLoader parent) 
+                throws JiffleException {
+            count++ ;
+            return new JaninoRuntimeCompiler().compile(className, source, parent);
+        }
+    }
+    
+    @Before
+    public void setup() {
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_SOURCE);
+        RuntimeClassCache.clear();
+    }
+    
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        System.clearProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void javacSimpleScript() throws Exception {
+        System.out.println("   javac compiler with simple script");
+        System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, 
+                JiffleProperties.COMPILER_JAVAC);
+        
+        String script = "a = src * 2; dest = con(a > 50, a, x());";
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                double z = val * 2 > 50 ? val * 2 : x;
+                move();
+                return z;
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void javacListsAndLoops() throws Exception {
+        System.out.println("   javac compiler with lists and loops");
+        System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, 
+                JiffleProperties.COMPILER_JAVAC);
+        
+        String script = "L = [src, 1]; n = 0; foreach (i in L) n += i; dest = n + sum(L);";
+        Evaluator e = new Evaluator() {
+            public double eval(double val) {
+                return 2 * (val + 1);
+            }
+        };
+        
+        testScript(script, e);
+    }
+    
+    @Test
+    public void javacIndirectRuntime() throws Exception {
+        System.out.println("   javac compiler with indirect runtime");
+        System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, 
+                JiffleProperties.COMPILER_JAVAC);
+        
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        
+        Jiffle jiffle = new Jiffle("dest = x() + 10 * y();", imageParams);
+        JiffleIndirectRuntime runtime = 
+                (JiffleIndirectRuntime) jiffle.getRuntimeInstance(Jiffle.RuntimeModel.INDIRECT);
+        
+        assertEquals(32.0, runtime.evaluate(2, 3), TOL);
+    }
+    
+    @Test
+    public void customCompilerClass() throws Exception {
+        System.out.println("   compiler specified by class name");
+        System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, 
+                CountingCompiler.class.getName());
+        
+        CountingCompiler.count = 0;
+        testScript("dest = src + 1;", new Evaluator() {
+            public double eval(double val) {
+                return val + 1;
+            }
+        });
+        
+        assertEquals(1, CountingCompiler.count);
+    }
+    
+    @Test(expected=JiffleException.class)
+    public void invalidCompilerName() throws Exception {
+        System.out.println("   invalid compiler name");
+        System.setProperty(JiffleProperties.COMPILER_SYSTEM_PROPERTY, "no.such.Compiler");
+        
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        new Jiffle("dest = 1;", imageParams).getRuntimeInstance();
+    }
+}
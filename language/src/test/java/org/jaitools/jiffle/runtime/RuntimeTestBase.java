@@ -34,6 +34,8 @@ import javax.media.jai.iterator.RectIterFactory;
 import org.jaitools.CollectionFactory;
 import org.jaitools.imageutils.ImageUtils;
 import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
 
 import static org.junit.Assert.*;
 
@@ -117,6 +119,97 @@ public abstract class RuntimeTestBase {
         assertImage(srcImg, destImg, evaluator);
     }
 
+    /**
+     * Creates a direct runtime object for a script with a destination 
+     * image "dest" and a source image "src".
+     */
+    protected JiffleDirectRuntime createRuntime(String script) throws Exception {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return (JiffleDirectRuntime) jiffle.getRuntimeInstance();
+    }
+    
+    /**
+     * Runs a runtime object created by {@link #createRuntime(String)} and
+     * returns the destination image.
+     */
+    protected RenderedImage run(JiffleDirectRuntime runtime, RenderedImage srcImg) {
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", srcImg);
+        runtime.setDestinationImage("dest", destImg);
+        runtime.evaluateAll(null);
+        return destImg;
+    }
+    
+    /**
+     * Runs a script with each of two runtime backends and checks that the
+     * destination images are equal. The runtime class cache is cleared 
+     * before each run. The caller should clear the backend system property
+     * afterwards.
+     * 
+     * @return the runtime objects created with each backend
+     */
+    protected JiffleDirectRuntime[] assertSameResults(String script, 
+            String backend1, String backend2) throws Exception {
+        
+        RenderedImage srcImg = createSequenceImage();
+        String[] backends = {backend1, backend2};
+        JiffleDirectRuntime[] runtimes = new JiffleDirectRuntime[2];
+        RenderedImage[] images = new RenderedImage[2];
+        
+        for (int i = 0; i < 2; i++) {
+            System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, backends[i]);
+            RuntimeClassCache.clear();
+            runtimes[i] = createRuntime(script);
+            images[i] = run(runtimes[i], srcImg);
+        }
+        
+        assertSameImages(images[1], images[0]);
+        return runtimes;
+    }
+    
+    /**
+     * Checks that two images have the same values.
+     */
+    protected void assertSameImages(RenderedImage expected, RenderedImage actual) {
+        RectIter iter1 = RectIterFactory.create(actual, null);
+        RectIter iter2 = RectIterFactory.create(expected, null);
+        do {
+            do {
+                assertEquals(iter2.getSampleDouble(), iter1.getSampleDouble(), TOL);
+                iter2.nextPixelDone();
+            } while (!iter1.nextPixelDone());
+            
+            iter1.startPixels();
+            iter2.startPixels();
+            iter2.nextLineDone();
+        } while (!iter1.nextLineDone());
+    }
+
+    /**
+     * Gets the direct runtime source generated for a script with a 
+     * destination image "dest" and a source image "src".
+     */
+    protected String getSource(String script) throws Exception {
+        return getSource(script, Jiffle.RuntimeModel.DIRECT);
+    }
+
+    /**
+     * Gets the runtime source generated for a script with a destination 
+     * image "dest" and a source image "src".
+     */
+    protected String getSource(String script, Jiffle.RuntimeModel model) throws Exception {
+        imageParams = CollectionFactory.map();
+        imageParams.put("dest", Jiffle.ImageRole.DEST);
+        imageParams.put("src", Jiffle.ImageRole.SOURCE);
+        
+        Jiffle jiffle = new Jiffle(script, imageParams);
+        return jiffle.getRuntimeSource(model, false);
+    }
+
     protected void assertImage(RenderedImage srcImg, RenderedImage destImg, Evaluator evaluator) {
         RectIter destIter = RectIterFactory.create(destImg, null);
         
@@ -0,0 +1,168 @@
+/* 
+ *  Copyright (c) 2011, Michael Bedward. All rights reserved. 
+ *   
+ *  Redistribution and use in source and binary forms, with or without modification, 
+ *  are permitted provided that the following conditions are met: 
+ *   
+ *  - Redistributions of source code must retain the above copyright notice, this  
+ *    list of conditions and the following disclaimer. 
+ *   
+ *  - Redistributions in binary form must reproduce the above copyright notice, this 
+ *    list of conditions and the following disclaimer in the documentation and/or 
+ *    other materials provided with the distribution.   
+ *   
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND 
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED 
+ *  WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE 
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR 
+ *  ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES 
+ *  (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; 
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON 
+ *  ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+ *  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS 
+ *  SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE. 
+ */   
+
+package org.jaitools.jiffle.runtime;
+
+import java.awt.image.RenderedImage;
+
+import javax.media.jai.TiledImage;
+import javax.media.jai.iterator.RectIter;
+import javax.media.jai.iterator.RectIterFactory;
+
+import org.jaitools.imageutils.ImageUtils;
+import org.jaitools.jiffle.Jiffle;
+import org.jaitools.jiffle.JiffleProperties;
+import org.jaitools.jiffle.RuntimeClassCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for tiered execution, where a script is interpreted while
+ * its runtime class is compiled in the background.
+ * 
+ * @author Michael Bedward
+ * @since 0.1
+ * @version $Id$
+ */
+public class TieredExecutionTest extends RuntimeTestBase {
+    
+    private static final long COMPILE_TIMEOUT = 60000;
+    
+    @Before
+    public void setup() {
+        System.setProperty(JiffleProperties.TIERED_SYSTEM_PROPERTY, "true");
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_SOURCE);
+        RuntimeClassCache.clear();
+    }
+    
+    @After
+    public void cleanup() {
+        System.clearProperty(JiffleProperties.TIERED_SYSTEM_PROPERTY);
+        System.clearProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY);
+        RuntimeClassCache.clear();
+    }
+    
+    @Test
+    public void switchAtRowBoundary() throws Exception {
+        System.out.println("   switch to compiled class with image-scope var");
+        
+        TieredDirectRuntime runtime = createTieredRuntime("init { n = 0; } n += 1; dest = n;");
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", createSequenceImage());
+        runtime.setDestinationImage("dest", destImg);
+        
+        int numRows = IMG_WIDTH / 2;
+        for (int y = 0; y < numRows; y++) {
+            runtime.evaluateRow(y, 0, IMG_WIDTH);
+        }
+        
+        assertTrue(runtime.awaitCompiledClass(COMPILE_TIMEOUT));
+        assertTrue(runtime.isUsingCompiledClass());
+        assertEquals(numRows * IMG_WIDTH, runtime.getVar("n"), TOL);
+        
+        for (int y = numRows; y < IMG_WIDTH; y++) {
+            runtime.evaluateRow(y, 0, IMG_WIDTH);
+        }
+        
+        RectIter iter = RectIterFactory.create(destImg, null);
+        double expected = 1;
+        do {
+            do {
+                assertEquals(expected++, iter.getSampleDouble(), TOL);
+            } while (!iter.nextPixelDone());
+            iter.startPixels();
+        } while (!iter.nextLineDone());
+    }
+    
+    @Test
+    public void serialEvaluateAllSwitches() throws Exception {
+        System.out.println("   serial evaluateAll switches at a row boundary");
+        
+        final TieredDirectRuntime runtime = createTieredRuntime("init { n = 0; } n += 1; dest = n;");
+        TiledImage destImg = ImageUtils.createConstantImage(IMG_WIDTH, IMG_WIDTH, 0.0);
+        runtime.setSourceImage("src", createSequenceImage());
+        runtime.setDestinationImage("dest", destImg);
+        
+        // waits for the compiled class after the first row
+        AbstractProgressListener listener = new AbstractProgressListener() {
+            public void start() {}
+            
+            public void update(long done) {
+                runtime.awaitCompiledClass(COMPILE_TIMEOUT);
+            }
+            
+            public void finish() {}
+        };
+        listener.setUpdateInterval((long) IMG_WIDTH);
+        
+        runtime.evaluateAll(listener, 1);
+        
+        assertTrue(runtime.isUsingCompiledClass());
+        assertEquals(IMG_WIDTH * IMG_WIDTH, runtime.getVar("n"), TOL);
+        assertEquals(IMG_WIDTH * IMG_WIDTH, destImg.getSampleDouble(IMG_WIDTH - 1, IMG_WIDTH - 1, 0), TOL);
+    }
+    
+    @Test
+    public void sameResultsAsCompiledClass() throws Exception {
+        System.out.println("   same results as compiled class");
+        String script = 
+                  "options { outside = 0; } \n"
+                + "L = [src, x()]; \n"
+                + "n = 0; \n"
+                + "foreach (v in L) n += v; \n"
+                + "dest = n + src[1, 0] + sum(L);";
+        
+        RenderedImage srcImg = createSequenceImage();
+        TieredDirectRuntime tiered = createTieredRuntime(script);
+        RenderedImage tieredImg = run(tiered, srcImg);
+        
+        assertTrue(tiered.awaitCompiledClass(COMPILE_TIMEOUT));
+        JiffleDirectRuntime compiled = (JiffleDirectRuntime) 
+                new Jiffle(script, imageParams).getRuntimeInstance();
+        assertFalse(compiled instanceof TieredDirectRuntime);
+        RenderedImage compiledImg = run(compiled, srcImg);
+        
+        assertSameImages(compiledImg, tieredImg);
+    }
+    
+    @Test
+    public void notUsedForBytecodeClass() throws Exception {
+        System.out.println("   not used when bytecode class can be created");
+        System.setProperty(JiffleProperties.BACKEND_SYSTEM_PROPERTY, 
+                JiffleProperties.BACKEND_BYTECODE);
+        
+        assertFalse(createRuntime("dest = src + 1;") instanceof TieredDirectRuntime);
+    }
+    
+    private TieredDirectRuntime createTieredRuntime(String script) throws Exception {
+        JiffleDirectRuntime runtime = createRuntime(script);
+        assertTrue(runtime instanceof TieredDirectRuntime);
+        return (TieredDirectRuntime) runtime;
+    }
+}